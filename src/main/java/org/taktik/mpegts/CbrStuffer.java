@@ -0,0 +1,218 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the output of a {@link Streamer} to a constant bitrate.<br>
+ *
+ * The output is cut into slots of one packet at the configured rate, from an origin taken on the first departure.
+ * Each group of packets paced by a {@link PcrPacer} is sent in the first slots at or after its departure time, the
+ * slots before it being filled with {@link NullPackets}, and its PCRs are restamped with the time of their slot. The
+ * time of the slots is counted in 27MHz ticks, exactly, so restamped PCRs only depend on the position of their packet
+ * in the output. When the input stalls and the slots fall too far behind, the origin is moved instead of sending the
+ * missed null packets in a burst.<br>
+ *
+ * The accuracy of the restamped PCRs is measured against the position of their packets at the constant rate, and
+ * compared to the ±500ns tolerance of ISO 13818-1.
+ */
+public class CbrStuffer {
+	static final Logger log = LoggerFactory.getLogger("streamer");
+
+	private static final long PCR_CLOCK = 27_000_000L;
+	private static final long PCR_WRAP = (1L << 33) * 300;
+	private static final long PCR_ACCURACY_NANOS = 500;
+	private static final long MAX_LAG_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * Sends a run of packets, between two offsets of a buffer.
+	 */
+	public interface Sender {
+		void send(ByteBuffer packets, int start, int end);
+	}
+
+	private final long muxRate;
+	private final PcrPacer pacer;
+	private final ByteBuffer nulls = NullPackets.block();
+
+	// PCR ticks of one slot, and the remainder in 1/muxRate of a tick
+	private final long slotTicks;
+	private final long slotRemainder;
+	// Nano time of the first slot, and the time of the next slot since then
+	private long origin = -1;
+	private long ticks;
+	private long remainder;
+
+	private long slots;
+	private long stuffing;
+
+	// PID of the PCRs measured, and the last of them
+	private int pcrPid = -1;
+	private long lastPcrSlot = -1;
+	private long lastPcr;
+	private long pcrCount;
+	private long pcrErrors;
+	private double maxPcrError;
+
+	/**
+	 * @param muxRate the rate of the output, in bits per second
+	 * @param pacer the pacer waiting for the departure of each slot
+	 */
+	public CbrStuffer(long muxRate, PcrPacer pacer) {
+		if (muxRate <= 0) {
+			throw new IllegalArgumentException("muxRate must be positive");
+		}
+		this.muxRate = muxRate;
+		this.pacer = pacer;
+		long slot = Constants.MPEGTS_PACKET_SIZE * 8 * PCR_CLOCK;
+		this.slotTicks = slot / muxRate;
+		this.slotRemainder = slot % muxRate;
+	}
+
+	/**
+	 * Forget the slots sent, the next group starts a new origin.
+	 */
+	public void reset() {
+		origin = -1;
+		ticks = 0;
+		remainder = 0;
+		lastPcrSlot = -1;
+	}
+
+	/**
+	 * Send a group of packets, preceded by null packets up to its departure time.
+	 *
+	 * @param departure the departure nano time of the group, or -1 to send it in the next slots
+	 */
+	public void send(ByteBuffer packets, int start, int end, long departure, Sender sender) {
+		long now = System.nanoTime();
+		if (origin < 0) {
+			origin = departure < 0 ? now : departure;
+		} else if (slotTime() < now - MAX_LAG_NANOS) {
+			log.warn("Output stalled {}ms, restarting constant bitrate", TimeUnit.NANOSECONDS.toMillis(now - slotTime()));
+			reset();
+			origin = now;
+		}
+
+		if (departure >= 0) {
+			while (slotTime() < departure) {
+				long time = slotTime();
+				int count = 0;
+				while (count < Constants.PACKETS_PER_BLOCK && slotTime() < departure) {
+					tick();
+					count++;
+				}
+				stuffing += count;
+				pacer.awaitDeparture(time);
+				sender.send(nulls, 0, count * Constants.MPEGTS_PACKET_SIZE);
+			}
+		}
+
+		long time = slotTime();
+		// Shift of the PCRs, from the departure of the group to its slot
+		long shift = departure < 0 ? 0 : ticks - (departure - origin) * 27 / 1000;
+		for (int offset = start; offset < end; offset += Constants.MPEGTS_PACKET_SIZE) {
+			if (MTSPacketView.isPcrFlag(packets, offset)) {
+				long pcr = MTSPacketView.getPcr(packets, offset + 6);
+				if (departure >= 0) {
+					pcr = Math.floorMod(pcr + shift, PCR_WRAP);
+					MTSPacketView.setPcr(packets, offset + 6, pcr);
+				}
+				measure(MTSPacketView.getPid(packets, offset), pcr);
+			}
+			tick();
+		}
+		pacer.awaitDeparture(time);
+		sender.send(packets, start, end);
+	}
+
+	/**
+	 * Account for the PCR of the current slot.
+	 */
+	private void measure(int pid, long pcr) {
+		if (pcrPid < 0) {
+			pcrPid = pid;
+		}
+		if (pid != pcrPid) {
+			return;
+		}
+		if (lastPcrSlot >= 0) {
+			long expected = lastPcr + (slots - lastPcrSlot) * Constants.MPEGTS_PACKET_SIZE * 8 * PCR_CLOCK / muxRate;
+			long error = Math.floorMod(pcr - expected + PCR_WRAP / 2, PCR_WRAP) - PCR_WRAP / 2;
+			double errorNanos = Math.abs(error * 1000.0 / 27);
+			pcrCount++;
+			if (errorNanos > PCR_ACCURACY_NANOS) {
+				pcrErrors++;
+			}
+			maxPcrError = Math.max(maxPcrError, errorNanos);
+		}
+		lastPcrSlot = slots;
+		lastPcr = pcr;
+	}
+
+	private void tick() {
+		slots++;
+		ticks += slotTicks;
+		remainder += slotRemainder;
+		if (remainder >= muxRate) {
+			remainder -= muxRate;
+			ticks++;
+		}
+	}
+
+	private long slotTime() {
+		return origin + ticks * 1000 / 27;
+	}
+
+	/**
+	 * @return the rate of the output, in bits per second
+	 */
+	public long getMuxRate() {
+		return muxRate;
+	}
+
+	/**
+	 * @return the number of packets sent, null packets included
+	 */
+	public long getPacketCount() {
+		return slots;
+	}
+
+	/**
+	 * @return the number of null packets sent
+	 */
+	public long getStuffingCount() {
+		return stuffing;
+	}
+
+	/**
+	 * @return the share of null packets in the output
+	 */
+	public double getStuffingRatio() {
+		return slots == 0 ? 0 : (double) stuffing / slots;
+	}
+
+	/**
+	 * @return the number of PCRs measured, the first one of each origin excepted
+	 */
+	public long getPcrCount() {
+		return pcrCount;
+	}
+
+	/**
+	 * @return the number of PCRs off by more than 500ns from the position of their packet
+	 */
+	public long getPcrErrors() {
+		return pcrErrors;
+	}
+
+	/**
+	 * @return the largest difference between a PCR and the position of its packet, in nanoseconds
+	 */
+	public double getMaxPcrErrorNanos() {
+		return maxPcrError;
+	}
+}
@@ -3,4 +3,6 @@ package org.taktik.mpegts;
 public class Constants {
 	public static final int MPEGTS_PACKET_SIZE = 188;
 	public static final byte TS_MARKER = 0x47;
+	// 7 packets (1316 bytes), the customary payload of a single UDP/RTP datagram
+	public static final int PACKETS_PER_BLOCK = 7;
 }
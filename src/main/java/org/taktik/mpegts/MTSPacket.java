@@ -5,18 +5,18 @@ import java.nio.ByteBuffer;
 import com.google.common.base.Preconditions;
 import org.taktik.ioutils.NIOUtils;
 
+/**
+ * A transport stream packet.<br>
+ *
+ * Decoding is lazy: the header fields (PID, PUSI, continuity counter, ...) are always read from and
+ * patched in the backing buffer, the adaptation field and the payload are only decoded when
+ * first asked for. Setters that do not change the packet layout patch the affected bytes in place;
+ * only layout changes (adding or resizing the adaptation field, replacing the payload) trigger a
+ * full re-serialization when {@link #getBuffer()} is called.
+ */
 public class MTSPacket extends PacketSupport {
-	private boolean transportErrorIndicator;	// Transport Error Indicator (TEI)
-	private boolean payloadUnitStartIndicator;	// Payload Unit Start Indicator
-	private boolean transportPriority;			// Transport Priority
-	private int pid;							// Packet Identifier (PID)
-	private int scramblingControl;				// Scrambling control
-	private boolean adaptationFieldExist;		// Adaptation field exist
-	private boolean containsPayload;			// Contains payload
-	private int continuityCounter;				// Continuity counter
-
-	private AdaptationField adaptationField;
-	private ByteBuffer payload;
+	private AdaptationField adaptationField;	// Decoded on demand
+	private ByteBuffer payload;					// Decoded on demand
 
 	public static class AdaptationField {
 		private MTSPacket packet;
@@ -39,6 +39,7 @@ public class MTSPacket extends PacketSupport {
 			public long base;						// 33 bits
 			public int extension;					// 9 bits
 			public byte reserved;					// 6 bits
+			private int position = -1;				// Offset in the packet buffer, -1 if not written yet
 
 			public PCR(AdaptationField field, long base, int extension, byte reserved) {
 				this.base = base;
@@ -53,11 +54,16 @@ public class MTSPacket extends PacketSupport {
 
 			public void setValue(long value) {
 				base = value / 300;
-				extension = (int)value % 300;
-				field.markDirty();
+				extension = (int) (value % 300);
+				if (field != null && field.isAttached() && position >= 0) {
+					MTSPacketView.setPcr(field.packet.buffer, position, value);
+				} else if (field != null) {
+					field.markDirty();
+				}
 			}
 
 			public void write(ByteBuffer buffer) {
+				position = buffer.position();
 				buffer.putInt((int) ((base & 0x1FFFFFFFFL) >> 1));
 				int middleByte = 0;
 				middleByte |= ((base & 0x1) << 7);
@@ -97,11 +103,30 @@ public class MTSPacket extends PacketSupport {
 
 		public void setDiscontinuityIndicator(boolean discontinuityIndicator) {
 			this.discontinuityIndicator = discontinuityIndicator;
-			markDirty();
+			patchFlag(0x80, discontinuityIndicator);
 		}
 
 		private void markDirty() {
-			packet.markDirty();
+			if (packet != null) {
+				packet.markDirty();
+			}
+		}
+
+		/**
+		 * @return true if this field is the one of its packet and the packet buffer reflects its layout
+		 */
+		private boolean isAttached() {
+			return packet != null && packet.adaptationField == this && !packet.dirty;
+		}
+
+		private void patchFlag(int mask, boolean value) {
+			if (isAttached()) {
+				ByteBuffer buffer = packet.buffer;
+				int flags = buffer.get(5) & 0xff;
+				buffer.put(5, (byte) (value ? flags | mask : flags & ~mask));
+			} else {
+				markDirty();
+			}
 		}
 
 		public boolean isRandomAccessIndicator() {
@@ -110,7 +135,7 @@ public class MTSPacket extends PacketSupport {
 
 		public void setRandomAccessIndicator(boolean randomAccessIndicator) {
 			this.randomAccessIndicator = randomAccessIndicator;
-			markDirty();
+			patchFlag(0x40, randomAccessIndicator);
 		}
 
 		public boolean isElementaryStreamPriorityIndicator() {
@@ -119,7 +144,7 @@ public class MTSPacket extends PacketSupport {
 
 		public void setElementaryStreamPriorityIndicator(boolean elementaryStreamPriorityIndicator) {
 			this.elementaryStreamPriorityIndicator = elementaryStreamPriorityIndicator;
-			markDirty();
+			patchFlag(0x20, elementaryStreamPriorityIndicator);
 		}
 
 		public boolean isPcrFlag() {
@@ -173,6 +198,9 @@ public class MTSPacket extends PacketSupport {
 
 		public void setPcr(PCR pcr) {
 			this.pcr = pcr;
+			if (pcr != null) {
+				pcr.field = this;
+			}
 			markDirty();
 		}
 
@@ -182,6 +210,9 @@ public class MTSPacket extends PacketSupport {
 
 		public void setOpcr(PCR opcr) {
 			this.opcr = opcr;
+			if (opcr != null) {
+				opcr.field = this;
+			}
 			markDirty();
 		}
 
@@ -191,7 +222,11 @@ public class MTSPacket extends PacketSupport {
 
 		public void setSpliceCountdown(byte spliceCountdown) {
 			this.spliceCountdown = spliceCountdown;
-			markDirty();
+			if (isAttached() && splicingPointFlag) {
+				packet.buffer.put(6 + (pcrFlag ? 6 : 0) + (opcrFlag ? 6 : 0), spliceCountdown);
+			} else {
+				markDirty();
+			}
 		}
 
 		public byte[] getPrivateData() {
@@ -298,22 +333,29 @@ public class MTSPacket extends PacketSupport {
 	public MTSPacket(boolean transportErrorIndicator, boolean payloadUnitStartIndicator, boolean transportPriority, int pid, int scramblingControl, int continuityCounter) {
 		super();
 		this.buffer = ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
-		this.transportErrorIndicator = transportErrorIndicator;
-		this.payloadUnitStartIndicator = payloadUnitStartIndicator;
-		this.transportPriority = transportPriority;
-		this.pid = pid;
-		this.scramblingControl = scramblingControl;
-		this.continuityCounter = continuityCounter;
-		this.adaptationFieldExist = false;
-		this.containsPayload = false;
+		// Header written directly, not through the overridable setters
+		this.buffer.put(0, Constants.TS_MARKER);
+		patchHeader(1, 0x80, transportErrorIndicator);
+		patchHeader(1, 0x40, payloadUnitStartIndicator);
+		patchHeader(1, 0x20, transportPriority);
+		MTSPacketView.setPid(this.buffer, 0, pid);
+		this.buffer.put(3, (byte) (scramblingControl & 0xc0));
+		MTSPacketView.setContinuityCounter(this.buffer, 0, continuityCounter);
 	}
 
 	public MTSPacket(ByteBuffer buffer) {
 		super(buffer);
+		// Sync byte
+		int marker = buffer.get(0) & 0xff;
+		Preconditions.checkArgument(Constants.TS_MARKER == marker);
 	}
 
 	@Override
 	protected void write() {
+		// The 4 header bytes are always up to date, as header setters patch them in place
+		boolean adaptationFieldExist = isAdaptationFieldExist();
+		boolean containsPayload = isContainsPayload();
+
 		// First write payload
 		int payloadLength = 0;
 		if (containsPayload && payload != null) {
@@ -322,37 +364,7 @@ public class MTSPacket extends PacketSupport {
 			buffer.position(Constants.MPEGTS_PACKET_SIZE - payloadLength);
 			buffer.put(payload);
 		}
-		buffer.rewind();
-		// First byte
-		buffer.put((byte) 0x47);
-
-		// Bytes 2->3
-		int secondAndThirdBytes = 0;
-		if (transportErrorIndicator) {
-			secondAndThirdBytes |= 0x8000;
-		}
-		if (payloadUnitStartIndicator) {
-			secondAndThirdBytes |= 0x4000;
-		}
-		if (transportPriority) {
-			secondAndThirdBytes |= 0x2000;
-		}
-		secondAndThirdBytes |= (pid & 0x1fff);
-
-		buffer.putShort((short) secondAndThirdBytes);
-
-		int fourthByte = 0;
-
-		// Byte 4
-		fourthByte |= (scramblingControl & 0xc0);
-		if (adaptationFieldExist) {
-			fourthByte |= 0x20;
-		}
-		if (containsPayload) {
-			fourthByte |= 0x10;
-		}
-		fourthByte |= (continuityCounter & 0x0f);
-		buffer.put((byte) fourthByte);
+		buffer.position(4);
 
 		// Adaptation field
 		if (adaptationFieldExist) {
@@ -373,43 +385,15 @@ public class MTSPacket extends PacketSupport {
 		}
 	}
 
+	/**
+	 * Decode the adaptation field and locate the payload. Header fields are not decoded, they are read in place.
+	 */
 	protected void parse() {
-		// Sync byte
-		int marker = buffer.get() & 0xff;
-		Preconditions.checkArgument(Constants.TS_MARKER == marker);
-
-		// Second/Third byte
-		int secondAndThirdBytes = buffer.getShort();
-
-		// Transport Error Indicator (TEI)
-		boolean transportErrorIndicator = (secondAndThirdBytes & 0x8000) != 0;
-
-		// Payload Unit Start Indicator
-		boolean payloadUnitStartIndicator = (secondAndThirdBytes & 0x4000) != 0;
-
-		// Transport Priority
-		boolean transportPriority = (secondAndThirdBytes & 0x2000) != 0;
-
-		// Packet Identifier (PID)
-		int pid = secondAndThirdBytes & 0x1fff;
-
-		// Fourth byte
-		int fourthByte = buffer.get() & 0xff;
-
-		// Scrambling control
-		int scramblingControl = fourthByte & 0xc0;
-
-		// Adaptation field exist
-		boolean adaptationFieldExist = (fourthByte & 0x20) != 0;
-
-		// Contains payload
-		boolean containsPayload = (fourthByte & 0x10) != 0;
-
-		// Continuity counter
-		int continuityCounter = fourthByte & 0x0f;
+		// Skip header
+		buffer.position(4);
 
 		MTSPacket.AdaptationField adaptationField = null;
-		if (adaptationFieldExist) {
+		if (isAdaptationFieldExist()) {
 			// Adaptation Field Length
 			int adaptationFieldLength = buffer.get() & 0xff;
 			if (adaptationFieldLength != 0) {
@@ -488,120 +472,171 @@ public class MTSPacket extends PacketSupport {
 			}
 		}
 
-		this.transportErrorIndicator = transportErrorIndicator;
-		this.payloadUnitStartIndicator = payloadUnitStartIndicator;
-		this.transportPriority = transportPriority;
-		this.pid = pid;
-		this.scramblingControl = scramblingControl;
-		this.adaptationFieldExist = adaptationFieldExist;
-		this.containsPayload = containsPayload;
-		this.continuityCounter = continuityCounter;
 		this.adaptationField = adaptationField;
 
 		// Payload
-		this.payload = containsPayload ? buffer.slice() : null;
+		this.payload = isContainsPayload() ? buffer.slice() : null;
 	}
 
 	private AdaptationField.PCR parsePCR() {
 		AdaptationField.PCR pcr;
-		byte[] pcrBytes = new byte[6];
-		buffer.get(pcrBytes);
-
-		long pcrBits = ((pcrBytes[0] & 0xffL) << 40) | ((pcrBytes[1] & 0xffL) << 32) | ((pcrBytes[2] & 0xffL) << 24) | ((pcrBytes[3] & 0xffL) << 16) | ((pcrBytes[4] & 0xffL) << 8) | (pcrBytes[5] & 0xffL);
+		int position = buffer.position();
+		long pcrBits = ((buffer.getInt() & 0xffffffffL) << 16) | (buffer.getShort() & 0xffffL);
 		long base = (pcrBits & 0xFFFFFFFF8000L) >> 15;
 		byte reserved =  (byte) ((pcrBits & 0x7E00) >> 9);
 		int extension = (int) (pcrBits & 0x1FFL);
 		pcr = new AdaptationField.PCR(null, base, extension, reserved);
+		pcr.position = position;
 		return pcr;
 	}
 
 	public boolean isTransportErrorIndicator() {
-		return transportErrorIndicator;
+		return MTSPacketView.isTransportErrorIndicator(buffer, 0);
 	}
 
 	public void setTransportErrorIndicator(boolean transportErrorIndicator) {
-		this.transportErrorIndicator = transportErrorIndicator;
-		markDirty();
+		patchHeader(1, 0x80, transportErrorIndicator);
 	}
 
 	public boolean isPayloadUnitStartIndicator() {
-		return payloadUnitStartIndicator;
+		return MTSPacketView.isPayloadUnitStartIndicator(buffer, 0);
 	}
 
 	public void setPayloadUnitStartIndicator(boolean payloadUnitStartIndicator) {
-		this.payloadUnitStartIndicator = payloadUnitStartIndicator;
-		markDirty();
+		patchHeader(1, 0x40, payloadUnitStartIndicator);
 	}
 
 	public boolean isTransportPriority() {
-		return transportPriority;
+		return MTSPacketView.isTransportPriority(buffer, 0);
 	}
 
 	public void setTransportPriority(boolean transportPriority) {
-		this.transportPriority = transportPriority;
-		markDirty();
+		patchHeader(1, 0x20, transportPriority);
 	}
 
 	public int getPid() {
-		return pid;
+		return MTSPacketView.getPid(buffer, 0);
 	}
 
 	public void setPid(int pid) {
-		this.pid = pid;
-		markDirty();
+		MTSPacketView.setPid(buffer, 0, pid);
 	}
 
 	public int getScramblingControl() {
-		return scramblingControl;
+		return MTSPacketView.getScramblingControl(buffer, 0);
 	}
 
 	public void setScramblingControl(int scramblingControl) {
-		this.scramblingControl = scramblingControl;
-		markDirty();
+		buffer.put(3, (byte) ((buffer.get(3) & 0x3f) | (scramblingControl & 0xc0)));
 	}
 
 	public boolean isAdaptationFieldExist() {
-		return adaptationFieldExist;
+		return MTSPacketView.isAdaptationFieldExist(buffer, 0);
 	}
 
 	public void setAdaptationFieldExist(boolean adaptationFieldExist) {
-		this.adaptationFieldExist = adaptationFieldExist;
+		ensureParsed();
+		patchHeader(3, 0x20, adaptationFieldExist);
 		markDirty();
 	}
 
 	public boolean isContainsPayload() {
-		return containsPayload;
+		return MTSPacketView.isContainsPayload(buffer, 0);
 	}
 
 	public void setContainsPayload(boolean containsPayload) {
-		this.containsPayload = containsPayload;
+		ensureParsed();
+		patchHeader(3, 0x10, containsPayload);
 		markDirty();
 	}
 
 	public int getContinuityCounter() {
-		return continuityCounter;
+		return MTSPacketView.getContinuityCounter(buffer, 0);
 	}
 
 	public void setContinuityCounter(int continuityCounter) {
-		this.continuityCounter = continuityCounter;
-		markDirty();
+		MTSPacketView.setContinuityCounter(buffer, 0, continuityCounter);
+	}
+
+	private void patchHeader(int index, int mask, boolean value) {
+		int b = buffer.get(index) & 0xff;
+		buffer.put(index, (byte) (value ? b | mask : b & ~mask));
 	}
 
 	public AdaptationField getAdaptationField() {
+		ensureParsed();
 		return adaptationField;
 	}
 
 	public void setAdaptationField(AdaptationField adaptationField) {
+		ensureParsed();
 		this.adaptationField = adaptationField;
 		markDirty();
 	}
 
+	/**
+	 * Shortcut for the adaptation field PCR flag, that does not decode the adaptation field.
+	 */
+	public boolean isPcrFlag() {
+		if (dirty) {
+			return adaptationField != null && adaptationField.isPcrFlag() && adaptationField.getPcr() != null;
+		}
+		return MTSPacketView.isPcrFlag(buffer, 0);
+	}
+
+	/**
+	 * Shortcut for the adaptation field PCR value, that does not decode the adaptation field.
+	 *
+	 * @return the PCR in 27MHz units, or -1 if there is no PCR
+	 */
+	public long getPcrValue() {
+		if (dirty) {
+			return isPcrFlag() ? adaptationField.getPcr().getValue() : -1;
+		}
+		return MTSPacketView.isPcrFlag(buffer, 0) ? MTSPacketView.getPcr(buffer, 6) : -1;
+	}
+
+	/**
+	 * Shortcut to patch the PCR value in place. The packet must carry a PCR.
+	 */
+	public void setPcrValue(long value) {
+		if (adaptationField != null && adaptationField.getPcr() != null) {
+			adaptationField.getPcr().setValue(value);
+		} else if (!dirty && MTSPacketView.isPcrFlag(buffer, 0)) {
+			MTSPacketView.setPcr(buffer, 6, value);
+		} else {
+			throw new IllegalStateException("Packet has no PCR");
+		}
+	}
+
+	/**
+	 * Shortcut for the adaptation field random access indicator, that does not decode the adaptation field.
+	 */
+	public boolean isRandomAccessIndicator() {
+		if (dirty) {
+			return adaptationField != null && adaptationField.isRandomAccessIndicator();
+		}
+		return (MTSPacketView.getAdaptationFieldFlags(buffer, 0) & 0x40) != 0;
+	}
+
+	/**
+	 * Shortcut for the adaptation field discontinuity indicator, that does not decode the adaptation field.
+	 */
+	public boolean isDiscontinuityIndicator() {
+		if (dirty) {
+			return adaptationField != null && adaptationField.isDiscontinuityIndicator();
+		}
+		return (MTSPacketView.getAdaptationFieldFlags(buffer, 0) & 0x80) != 0;
+	}
+
 	public ByteBuffer getPayload() {
+		ensureParsed();
 		return payload;
 	}
 
 	public void setPayload(ByteBuffer payload) {
+		ensureParsed();
 		this.payload = payload;
 		markDirty();
 	}
-}
\ No newline at end of file
+}
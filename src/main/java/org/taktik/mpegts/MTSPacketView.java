@@ -0,0 +1,332 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable, allocation-free view of a single transport stream packet.<br>
+ *
+ * Unlike {@link MTSPacket}, a view does not copy or decode anything: it is a cursor over
+ * {@link Constants#MPEGTS_PACKET_SIZE} bytes starting at an offset of a (typically pooled) {@link ByteBuffer},
+ * and every accessor reads or patches the bytes in place. A single instance is meant to be
+ * {@link #wrap(ByteBuffer, int) re-wrapped} for every packet, so that packets can travel from a source
+ * to a sink without any per packet allocation.<br>
+ *
+ * The content of a view is only valid until the next call to the method that filled it
+ * (e.g. {@link org.taktik.mpegts.sources.MTSSource#nextPacket(MTSPacketView)}). Code that needs
+ * to keep a packet must copy it, with {@link #copyTo(MTSPacketView)} or {@link #toPacket()}.
+ *
+ * The static accessors work on any buffer/offset pair and are shared with {@link MTSPacket}.
+ */
+public final class MTSPacketView {
+	private ByteBuffer buffer;
+	private int offset;
+
+	// Cached duplicate of buffer, used to expose the packet or its payload as a ByteBuffer
+	private ByteBuffer duplicate;
+	// Private copy of a packet of a read-only buffer
+	private ByteBuffer copy;
+
+	public MTSPacketView() {
+	}
+
+	public MTSPacketView(ByteBuffer buffer, int offset) {
+		wrap(buffer, offset);
+	}
+
+	/**
+	 * Point this view to the packet starting at the given absolute offset of the buffer.
+	 *
+	 * @return this view
+	 */
+	public MTSPacketView wrap(ByteBuffer buffer, int offset) {
+		if (this.buffer != buffer) {
+			this.buffer = buffer;
+			this.duplicate = null;
+		}
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * Point this view to the bytes of an existing packet.
+	 *
+	 * @return this view
+	 */
+	public MTSPacketView wrap(MTSPacket packet) {
+		return wrap(packet.getBuffer(), 0);
+	}
+
+	/**
+	 * Make sure the packet can be patched: if the wrapped buffer is read-only (e.g. a memory-mapped file), copy
+	 * the packet to a buffer owned by this view and point to it.
+	 *
+	 * @return this view
+	 */
+	public MTSPacketView ensureWritable() {
+		if (buffer.isReadOnly()) {
+			if (copy == null) {
+				copy = ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
+			}
+			copy.put(0, buffer, offset, Constants.MPEGTS_PACKET_SIZE);
+			wrap(copy, 0);
+		}
+		return this;
+	}
+
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	public int offset() {
+		return offset;
+	}
+
+	public boolean isTransportErrorIndicator() {
+		return isTransportErrorIndicator(buffer, offset);
+	}
+
+	public boolean isPayloadUnitStartIndicator() {
+		return isPayloadUnitStartIndicator(buffer, offset);
+	}
+
+	public boolean isTransportPriority() {
+		return isTransportPriority(buffer, offset);
+	}
+
+	public int getPid() {
+		return getPid(buffer, offset);
+	}
+
+	public void setPid(int pid) {
+		setPid(buffer, offset, pid);
+	}
+
+	public int getScramblingControl() {
+		return getScramblingControl(buffer, offset);
+	}
+
+	public boolean isAdaptationFieldExist() {
+		return isAdaptationFieldExist(buffer, offset);
+	}
+
+	public boolean isContainsPayload() {
+		return isContainsPayload(buffer, offset);
+	}
+
+	public int getContinuityCounter() {
+		return getContinuityCounter(buffer, offset);
+	}
+
+	public void setContinuityCounter(int continuityCounter) {
+		setContinuityCounter(buffer, offset, continuityCounter);
+	}
+
+	public int getAdaptationFieldLength() {
+		return getAdaptationFieldLength(buffer, offset);
+	}
+
+	public boolean isDiscontinuityIndicator() {
+		return (getAdaptationFieldFlags(buffer, offset) & 0x80) != 0;
+	}
+
+	public boolean isRandomAccessIndicator() {
+		return (getAdaptationFieldFlags(buffer, offset) & 0x40) != 0;
+	}
+
+	public boolean isPcrFlag() {
+		return isPcrFlag(buffer, offset);
+	}
+
+	public boolean isOpcrFlag() {
+		return (getAdaptationFieldFlags(buffer, offset) & 0x08) != 0;
+	}
+
+	/**
+	 * @return the PCR value in 27MHz units, or -1 if the packet carries no PCR
+	 */
+	public long getPcr() {
+		return isPcrFlag(buffer, offset) ? getPcr(buffer, offset + 6) : -1;
+	}
+
+	/**
+	 * Patch the PCR in place. The packet must already carry a PCR.
+	 */
+	public void setPcr(long value) {
+		if (!isPcrFlag(buffer, offset)) {
+			throw new IllegalStateException("Packet has no PCR");
+		}
+		setPcr(buffer, offset + 6, value);
+	}
+
+	/**
+	 * @return the absolute offset in {@link #buffer()} of the first payload byte
+	 */
+	public int getPayloadOffset() {
+		return getPayloadOffset(buffer, offset);
+	}
+
+	/**
+	 * @return the payload length, 0 if the packet has no payload
+	 */
+	public int getPayloadLength() {
+		return getPayloadLength(buffer, offset);
+	}
+
+	/**
+	 * The payload of this packet, as a buffer positioned on the first payload byte and limited to the end of the packet.
+	 * The returned buffer is shared by all calls on this view and is repositioned on each call.
+	 */
+	public ByteBuffer getPayload() {
+		ByteBuffer dup = duplicate();
+		dup.limit(offset + Constants.MPEGTS_PACKET_SIZE);
+		dup.position(offset + Constants.MPEGTS_PACKET_SIZE - getPayloadLength());
+		return dup;
+	}
+
+	/**
+	 * The whole packet, as a buffer positioned on the sync byte and limited to the end of the packet.
+	 * The returned buffer is shared by all calls on this view and is repositioned on each call.
+	 */
+	public ByteBuffer asByteBuffer() {
+		ByteBuffer dup = duplicate();
+		dup.limit(offset + Constants.MPEGTS_PACKET_SIZE);
+		dup.position(offset);
+		return dup;
+	}
+
+	private ByteBuffer duplicate() {
+		if (duplicate == null) {
+			duplicate = buffer.duplicate();
+		}
+		duplicate.clear();
+		return duplicate;
+	}
+
+	/**
+	 * Copy the packet bytes to the location pointed by another view.
+	 */
+	public void copyTo(MTSPacketView target) {
+		target.buffer.put(target.offset, buffer, offset, Constants.MPEGTS_PACKET_SIZE);
+	}
+
+	/**
+	 * Copy the packet bytes at the current position of a buffer.
+	 */
+	public void copyTo(ByteBuffer target) {
+		target.put(target.position(), buffer, offset, Constants.MPEGTS_PACKET_SIZE);
+		target.position(target.position() + Constants.MPEGTS_PACKET_SIZE);
+	}
+
+	/**
+	 * Copy this packet into a newly allocated {@link MTSPacket}.
+	 */
+	public MTSPacket toPacket() {
+		ByteBuffer copy = ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
+		copy.put(0, buffer, offset, Constants.MPEGTS_PACKET_SIZE);
+		return new MTSPacket(copy);
+	}
+
+	public static boolean isTransportErrorIndicator(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset + 1) & 0x80) != 0;
+	}
+
+	public static boolean isPayloadUnitStartIndicator(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset + 1) & 0x40) != 0;
+	}
+
+	public static boolean isTransportPriority(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset + 1) & 0x20) != 0;
+	}
+
+	public static int getPid(ByteBuffer buffer, int offset) {
+		return ((buffer.get(offset + 1) & 0x1f) << 8) | (buffer.get(offset + 2) & 0xff);
+	}
+
+	public static void setPid(ByteBuffer buffer, int offset, int pid) {
+		buffer.put(offset + 1, (byte) ((buffer.get(offset + 1) & 0xe0) | ((pid >> 8) & 0x1f)));
+		buffer.put(offset + 2, (byte) pid);
+	}
+
+	public static int getScramblingControl(ByteBuffer buffer, int offset) {
+		return buffer.get(offset + 3) & 0xc0;
+	}
+
+	public static boolean isAdaptationFieldExist(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset + 3) & 0x20) != 0;
+	}
+
+	public static boolean isContainsPayload(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset + 3) & 0x10) != 0;
+	}
+
+	public static int getContinuityCounter(ByteBuffer buffer, int offset) {
+		return buffer.get(offset + 3) & 0x0f;
+	}
+
+	public static void setContinuityCounter(ByteBuffer buffer, int offset, int continuityCounter) {
+		buffer.put(offset + 3, (byte) ((buffer.get(offset + 3) & 0xf0) | (continuityCounter & 0x0f)));
+	}
+
+	/**
+	 * @return the adaptation_field_length, or -1 if there is no adaptation field
+	 */
+	public static int getAdaptationFieldLength(ByteBuffer buffer, int offset) {
+		return isAdaptationFieldExist(buffer, offset) ? buffer.get(offset + 4) & 0xff : -1;
+	}
+
+	/**
+	 * @return the adaptation field flags byte, or 0 if there is none
+	 */
+	public static int getAdaptationFieldFlags(ByteBuffer buffer, int offset) {
+		return getAdaptationFieldLength(buffer, offset) > 0 ? buffer.get(offset + 5) & 0xff : 0;
+	}
+
+	public static boolean isPcrFlag(ByteBuffer buffer, int offset) {
+		return getAdaptationFieldLength(buffer, offset) >= 7 && (buffer.get(offset + 5) & 0x10) != 0;
+	}
+
+	/**
+	 * Decode a 48 bits PCR (or OPCR) field.
+	 *
+	 * @param pcrOffset absolute offset of the PCR field
+	 * @return the PCR value in 27MHz units
+	 */
+	public static long getPcr(ByteBuffer buffer, int pcrOffset) {
+		long base = ((buffer.get(pcrOffset) & 0xffL) << 25)
+				| ((buffer.get(pcrOffset + 1) & 0xffL) << 17)
+				| ((buffer.get(pcrOffset + 2) & 0xffL) << 9)
+				| ((buffer.get(pcrOffset + 3) & 0xffL) << 1)
+				| ((buffer.get(pcrOffset + 4) & 0x80L) >> 7);
+		int extension = ((buffer.get(pcrOffset + 4) & 0x01) << 8) | (buffer.get(pcrOffset + 5) & 0xff);
+		return base * 300 + extension;
+	}
+
+	/**
+	 * Encode a 48 bits PCR (or OPCR) field, preserving the reserved bits.
+	 *
+	 * @param pcrOffset absolute offset of the PCR field
+	 * @param value the PCR value in 27MHz units
+	 */
+	public static void setPcr(ByteBuffer buffer, int pcrOffset, long value) {
+		long base = value / 300;
+		int extension = (int) (value % 300);
+		buffer.put(pcrOffset, (byte) (base >> 25));
+		buffer.put(pcrOffset + 1, (byte) (base >> 17));
+		buffer.put(pcrOffset + 2, (byte) (base >> 9));
+		buffer.put(pcrOffset + 3, (byte) (base >> 1));
+		buffer.put(pcrOffset + 4, (byte) (((base & 0x1) << 7) | (buffer.get(pcrOffset + 4) & 0x7e) | ((extension >> 8) & 0x1)));
+		buffer.put(pcrOffset + 5, (byte) extension);
+	}
+
+	public static int getPayloadOffset(ByteBuffer buffer, int offset) {
+		int adaptationFieldLength = getAdaptationFieldLength(buffer, offset);
+		return offset + 4 + (adaptationFieldLength < 0 ? 0 : adaptationFieldLength + 1);
+	}
+
+	public static int getPayloadLength(ByteBuffer buffer, int offset) {
+		if (!isContainsPayload(buffer, offset)) {
+			return 0;
+		}
+		return Math.max(0, offset + Constants.MPEGTS_PACKET_SIZE - getPayloadOffset(buffer, offset));
+	}
+}
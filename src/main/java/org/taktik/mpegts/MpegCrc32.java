@@ -0,0 +1,50 @@
+package org.taktik.mpegts;
+
+/**
+ * The CRC_32 of PSI sections (ISO/IEC 13818-1 annex A): polynomial 0x04C11DB7, most significant bit first, initial
+ * value 0xFFFFFFFF and no final XOR. {@link java.util.zip.CRC32} processes bits the other way round and cannot be
+ * used.<br>
+ *
+ * Computed 4 bytes at a time from 4 lookup tables (slicing-by-4). The CRC of a whole section, its CRC_32 field
+ * included, is 0 when the section is intact.
+ */
+public final class MpegCrc32 {
+	private static final int POLYNOMIAL = 0x04C11DB7;
+	// TABLES[k][b] is the CRC of byte b followed by k zero bytes
+	private static final int[][] TABLES = new int[4][256];
+
+	static {
+		for (int b = 0; b < 256; b++) {
+			int crc = b << 24;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc << 1) ^ ((crc >> 31) & POLYNOMIAL);
+			}
+			TABLES[0][b] = crc;
+		}
+		for (int k = 1; k < 4; k++) {
+			for (int b = 0; b < 256; b++) {
+				int crc = TABLES[k - 1][b];
+				TABLES[k][b] = (crc << 8) ^ TABLES[0][crc >>> 24];
+			}
+		}
+	}
+
+	private MpegCrc32() {
+	}
+
+	public static int compute(byte[] data, int offset, int length) {
+		int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+		int crc = 0xFFFFFFFF;
+		int i = offset;
+		int end = offset + length;
+		for (; i + 4 <= end; i += 4) {
+			crc ^= ((data[i] & 0xff) << 24) | ((data[i + 1] & 0xff) << 16) | ((data[i + 2] & 0xff) << 8)
+					| (data[i + 3] & 0xff);
+			crc = t3[crc >>> 24] ^ t2[(crc >>> 16) & 0xff] ^ t1[(crc >>> 8) & 0xff] ^ t0[crc & 0xff];
+		}
+		for (; i < end; i++) {
+			crc = (crc << 8) ^ t0[(crc >>> 24) ^ (data[i] & 0xff)];
+		}
+		return crc;
+	}
+}
@@ -0,0 +1,79 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Null packets (PID 0x1fff) for stuffing. They are built once and shared read-only, nothing is allocated per packet.<br>
+ *
+ * A run of null packets can also be carried by a single marker packet, to save bandwidth on a link and restore the
+ * exact stream on the other side: the marker has a payload starting with {@link #MARKER_MAGIC} and the length of the
+ * run, on a PID otherwise unused by the stream ({@link #DEFAULT_MARKER_PID} by default).
+ */
+public final class NullPackets {
+	public static final int PID = 0x1fff;
+	public static final int DEFAULT_MARKER_PID = 0x1ffe;
+	public static final int MARKER_MAGIC = 0x4e554c4c; // "NULL"
+
+	// PACKETS_PER_BLOCK null packets, never written after initialization
+	private static final ByteBuffer BLOCK = build();
+
+	private NullPackets() {
+	}
+
+	private static ByteBuffer build() {
+		ByteBuffer block = ByteBuffer.allocateDirect(Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE);
+		while (block.hasRemaining()) {
+			if (block.position() % Constants.MPEGTS_PACKET_SIZE == 0) {
+				block.put(Constants.TS_MARKER).put((byte) (PID >> 8)).put((byte) PID).put((byte) 0x10);
+			} else {
+				block.put((byte) 0xff);
+			}
+		}
+		return block.clear().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return a read-only buffer over {@link Constants#PACKETS_PER_BLOCK} null packets, for the caller to position
+	 */
+	public static ByteBuffer block() {
+		return BLOCK.duplicate();
+	}
+
+	/**
+	 * Write a marker packet standing for a run of null packets.
+	 *
+	 * @param offset absolute offset of the packet in the buffer
+	 * @param count the number of null packets of the run
+	 */
+	public static void writeMarker(ByteBuffer target, int offset, int pid, int continuityCounter, int count) {
+		target.put(offset, Constants.TS_MARKER);
+		target.put(offset + 1, (byte) (pid >> 8));
+		target.put(offset + 2, (byte) pid);
+		target.put(offset + 3, (byte) (0x10 | (continuityCounter & 0x0f)));
+		target.putInt(offset + 4, MARKER_MAGIC);
+		target.putInt(offset + 8, count);
+		for (int i = 12; i < Constants.MPEGTS_PACKET_SIZE; i++) {
+			target.put(offset + i, (byte) 0xff);
+		}
+	}
+
+	/**
+	 * @param offset absolute offset of a packet carried by the marker PID
+	 * @return the number of null packets of the run, or -1 if the packet is not a marker
+	 */
+	public static int getMarkerCount(ByteBuffer buffer, int offset) {
+		if (MTSPacketView.isAdaptationFieldExist(buffer, offset) || buffer.getInt(offset + 4) != MARKER_MAGIC) {
+			return -1;
+		}
+		int count = buffer.getInt(offset + 8);
+		return count > 0 ? count : -1;
+	}
+
+	/**
+	 * Copy a null packet at the current position of a buffer.
+	 */
+	public static void copyTo(ByteBuffer target) {
+		target.put(target.position(), BLOCK, 0, Constants.MPEGTS_PACKET_SIZE);
+		target.position(target.position() + Constants.MPEGTS_PACKET_SIZE);
+	}
+}
@@ -2,7 +2,7 @@ package org.taktik.mpegts;
 
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -32,7 +32,8 @@ public class PATSection extends PSISection {
 			return null;
 		}
 		List<Integer> networkPids = Lists.newArrayList();
-		Map<Integer, Integer> programs = new HashMap<>();
+		// In the order of the section
+		Map<Integer, Integer> programs = new LinkedHashMap<>();
 
 		while (data.remaining() > 4) {
 			int programNum = data.getShort() & 0xffff;
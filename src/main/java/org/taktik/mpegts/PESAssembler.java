@@ -0,0 +1,184 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Follows the PES carried on PIDs, as a stream of callbacks.<br>
+ *
+ * Code using this class pushes the packets of the PIDs it follows with {@link #push(MTSPacketView)}.
+ * {@link PESListener#onPesStart} is called on each packet starting a PES whose header it holds, with a
+ * {@link PESHeaderView} pointing into the packet so that timestamps can be read or rewritten in place. When
+ * reassembly is enabled, {@link PESListener#onPes} is then called with each whole PES: once PES_packet_length bytes
+ * are gathered, or at the start of the next PES for unbounded video PES, or on {@link #flush()}.<br>
+ *
+ * Reassembly copies payloads to a buffer per PID, grown to the largest PES seen and reused: following a stream does
+ * not allocate once warm. Duplicate packets are ignored, and a PES missing packets (continuity counter jump) or larger
+ * than the maximum size is dropped.
+ */
+public class PESAssembler {
+	private static final int PID_COUNT = 8192;
+	public static final int DEFAULT_MAX_PES_SIZE = 4 * 1024 * 1024;
+
+	public interface PESListener {
+		/**
+		 * Called on the packet starting a PES.
+		 *
+		 * @param header the PES header, in the packet
+		 */
+		default void onPesStart(int pid, PESHeaderView header, MTSPacketView packet) {
+		}
+
+		/**
+		 * Called with a whole PES, when reassembly is enabled.
+		 *
+		 * @param header the PES header, in pes
+		 * @param pes the PES from its start code, only valid during the call
+		 */
+		default void onPes(int pid, PESHeaderView header, ByteBuffer pes) {
+		}
+	}
+
+	private final PESListener listener;
+	private final boolean reassemble;
+	private final int maxPesSize;
+	private final PidState[] states = new PidState[PID_COUNT];
+	private final PESHeaderView header = new PESHeaderView();
+	private long droppedPes;
+
+	/**
+	 * @param reassemble true to gather whole PES for {@link PESListener#onPes}, false to only follow their starts
+	 */
+	public PESAssembler(PESListener listener, boolean reassemble) {
+		this(listener, reassemble, DEFAULT_MAX_PES_SIZE);
+	}
+
+	public PESAssembler(PESListener listener, boolean reassemble, int maxPesSize) {
+		this.listener = listener;
+		this.reassemble = reassemble;
+		this.maxPesSize = maxPesSize;
+	}
+
+	public void push(MTSPacketView packet) {
+		if (packet.isTransportErrorIndicator() || !packet.isContainsPayload()) {
+			return;
+		}
+		int pid = packet.getPid();
+		PidState state = states[pid];
+		if (state == null) {
+			state = states[pid] = new PidState();
+		}
+		int cc = packet.getContinuityCounter();
+		if (state.cc >= 0 && !packet.isDiscontinuityIndicator()) {
+			if (cc == state.cc) {
+				return;
+			}
+			if (cc != ((state.cc + 1) & 0x0f)) {
+				drop(state);
+			}
+		}
+		state.cc = cc;
+
+		ByteBuffer buffer = packet.buffer();
+		int position = packet.getPayloadOffset();
+		int length = packet.getPayloadLength();
+		if (packet.isPayloadUnitStartIndicator()) {
+			if (state.length > 0) {
+				if (state.size == 0) {
+					complete(pid, state);
+				} else {
+					drop(state);
+				}
+			}
+			if (!header.wrap(buffer, position, length).isValid()) {
+				return;
+			}
+			int size = header.getPacketLength() == 0 ? 0 : 6 + header.getPacketLength();
+			listener.onPesStart(pid, header, packet);
+			if (reassemble) {
+				state.length = 0;
+				state.size = size;
+				append(pid, state, buffer, position, length);
+			}
+		} else if (state.length >= 0) {
+			append(pid, state, buffer, position, length);
+		}
+	}
+
+	private void append(int pid, PidState state, ByteBuffer buffer, int position, int length) {
+		if (state.size > 0) {
+			length = Math.min(length, state.size - state.length);
+		}
+		if (state.length + length > state.data.length) {
+			if (state.length + length > maxPesSize) {
+				drop(state);
+				return;
+			}
+			state.data = Arrays.copyOf(state.data, Math.min(maxPesSize, Math.max(state.length + length, 2 * state.data.length)));
+			state.view = ByteBuffer.wrap(state.data);
+		}
+		buffer.get(position, state.data, state.length, length);
+		state.length += length;
+		if (state.size > 0 && state.length == state.size) {
+			complete(pid, state);
+		}
+	}
+
+	private void complete(int pid, PidState state) {
+		ByteBuffer pes = state.view.limit(state.length).position(0);
+		state.length = -1;
+		if (header.wrap(pes, 0, pes.limit()).isValid()) {
+			listener.onPes(pid, header, pes);
+		}
+	}
+
+	private void drop(PidState state) {
+		if (state.length >= 0) {
+			state.length = -1;
+			droppedPes++;
+		}
+	}
+
+	/**
+	 * Emit the unbounded PES in progress, at the end of the stream.
+	 */
+	public void flush() {
+		for (int pid = 0; pid < PID_COUNT; pid++) {
+			PidState state = states[pid];
+			if (state != null && state.length > 0 && state.size == 0) {
+				complete(pid, state);
+			}
+		}
+	}
+
+	/**
+	 * Forget a PID, dropping its PES in progress.
+	 */
+	public void reset(int pid) {
+		states[pid] = null;
+	}
+
+	/**
+	 * Forget all PIDs.
+	 */
+	public void reset() {
+		Arrays.fill(states, null);
+	}
+
+	/**
+	 * @return the number of PES dropped for missing packets or their size
+	 */
+	public long getDroppedPes() {
+		return droppedPes;
+	}
+
+	private static class PidState {
+		byte[] data = new byte[Constants.MPEGTS_PACKET_SIZE];
+		ByteBuffer view = ByteBuffer.wrap(data);
+		// Bytes of the PES in progress, -1 waiting for the next PES start
+		int length = -1;
+		// Size of the PES in progress, 0 if unbounded
+		int size;
+		int cc = -1;
+	}
+}
@@ -0,0 +1,166 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable, allocation-free view of the header of a PES packet, in the manner of {@link MTSPacketView}: a cursor
+ * over the bytes starting at the packet_start_code_prefix, reading and patching fields in place.<br>
+ *
+ * A view is wrapped over the bytes available, e.g. the payload of the transport stream packet starting the PES, and
+ * {@link #isValid()} tells whether they hold a whole PES header. The other accessors must only be called on a valid
+ * view.<br>
+ *
+ * Timestamps are 33 bits values in 90kHz units, -1 when absent.
+ */
+public final class PESHeaderView {
+	public static final long TIMESTAMP_WRAP = 1L << 33;
+
+	private ByteBuffer buffer;
+	private int offset;
+	private int length;
+
+	public PESHeaderView() {
+	}
+
+	/**
+	 * Point this view to the PES starting at an absolute offset of the buffer.
+	 *
+	 * @param length the number of bytes available from offset
+	 * @return this view
+	 */
+	public PESHeaderView wrap(ByteBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+
+	/**
+	 * @return true if the bytes start with a packet_start_code_prefix, and hold the whole PES header
+	 */
+	public boolean isValid() {
+		if (length < 6 || buffer.get(offset) != 0 || buffer.get(offset + 1) != 0 || buffer.get(offset + 2) != 1) {
+			return false;
+		}
+		if (!hasOptionalHeader()) {
+			return true;
+		}
+		if (length < 9 || (buffer.get(offset + 6) & 0xc0) != 0x80 || getHeaderLength() > length) {
+			return false;
+		}
+		int flags = buffer.get(offset + 7) & 0xc0;
+		int timestamps = flags == 0xc0 ? 10 : flags == 0x80 ? 5 : 0;
+		return 9 + timestamps <= getHeaderLength();
+	}
+
+	public int getStreamId() {
+		return buffer.get(offset + 3) & 0xff;
+	}
+
+	/**
+	 * @return the PES_packet_length: the number of bytes following it, or 0 if unbounded
+	 */
+	public int getPacketLength() {
+		return buffer.getShort(offset + 4) & 0xffff;
+	}
+
+	/**
+	 * @return false for the streams whose PES have no flags nor timestamps, e.g. padding or private_stream_2
+	 */
+	public boolean hasOptionalHeader() {
+		switch (getStreamId()) {
+			case 0xbc: // program_stream_map
+			case 0xbe: // padding_stream
+			case 0xbf: // private_stream_2
+			case 0xf0: // ECM
+			case 0xf1: // EMM
+			case 0xf2: // DSMCC
+			case 0xf8: // H.222.1 type E
+			case 0xff: // program_stream_directory
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * @return the length of the header, the offset of the PES payload from the start code
+	 */
+	public int getHeaderLength() {
+		return hasOptionalHeader() ? 9 + (buffer.get(offset + 8) & 0xff) : 6;
+	}
+
+	public boolean isDataAlignment() {
+		return hasOptionalHeader() && (buffer.get(offset + 6) & 0x04) != 0;
+	}
+
+	public boolean hasPts() {
+		return hasOptionalHeader() && (buffer.get(offset + 7) & 0x80) != 0;
+	}
+
+	public boolean hasDts() {
+		return hasOptionalHeader() && (buffer.get(offset + 7) & 0xc0) == 0xc0;
+	}
+
+	public long getPts() {
+		return hasPts() ? getTimestamp(buffer, offset + 9) : -1;
+	}
+
+	public long getDts() {
+		return hasDts() ? getTimestamp(buffer, offset + 14) : -1;
+	}
+
+	/**
+	 * @return the DTS, or the PTS without DTS, or -1
+	 */
+	public long getDecodingTime() {
+		return hasDts() ? getDts() : getPts();
+	}
+
+	/**
+	 * Patch the PTS in place, modulo 2^33. The PES must already carry a PTS.
+	 */
+	public void setPts(long pts) {
+		if (!hasPts()) {
+			throw new IllegalStateException("PES has no PTS");
+		}
+		setTimestamp(buffer, offset + 9, pts);
+	}
+
+	/**
+	 * Patch the DTS in place, modulo 2^33. The PES must already carry a DTS.
+	 */
+	public void setDts(long dts) {
+		if (!hasDts()) {
+			throw new IllegalStateException("PES has no DTS");
+		}
+		setTimestamp(buffer, offset + 14, dts);
+	}
+
+	/**
+	 * Decode a 33 bits timestamp field of 5 bytes, with its marker bits.
+	 *
+	 * @param timestampOffset absolute offset of the field
+	 */
+	public static long getTimestamp(ByteBuffer buffer, int timestampOffset) {
+		return ((buffer.get(timestampOffset) & 0x0eL) << 29)
+				| ((buffer.get(timestampOffset + 1) & 0xffL) << 22)
+				| ((buffer.get(timestampOffset + 2) & 0xfeL) << 14)
+				| ((buffer.get(timestampOffset + 3) & 0xffL) << 7)
+				| ((buffer.get(timestampOffset + 4) & 0xfeL) >> 1);
+	}
+
+	/**
+	 * Encode a 33 bits timestamp field, preserving its 4 bits prefix and setting the marker bits.
+	 *
+	 * @param timestampOffset absolute offset of the field
+	 */
+	public static void setTimestamp(ByteBuffer buffer, int timestampOffset, long value) {
+		long timestamp = Math.floorMod(value, TIMESTAMP_WRAP);
+		buffer.put(timestampOffset, (byte) ((buffer.get(timestampOffset) & 0xf0) | ((timestamp >> 29) & 0x0e) | 0x01));
+		buffer.put(timestampOffset + 1, (byte) (timestamp >> 22));
+		buffer.put(timestampOffset + 2, (byte) (((timestamp >> 14) & 0xfe) | 0x01));
+		buffer.put(timestampOffset + 3, (byte) (timestamp >> 7));
+		buffer.put(timestampOffset + 4, (byte) (((timestamp << 1) & 0xfe) | 0x01));
+	}
+}
@@ -0,0 +1,77 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Last PMT seen on each PID, so that the PMT repeated every few hundred milliseconds by a stream is recognized from its
+ * version and CRC_32 and not parsed again.<br>
+ *
+ * {@link #get(int, ByteBuffer)} returns the same {@link PMTSection} instance as long as the PMT is unchanged: callers
+ * detect updates by comparing instances.
+ */
+public class PMTCache {
+	private static final int TABLE_ID = 0x02;
+
+	private final Map<Integer, PMTSection> sections = new HashMap<>();
+
+	/**
+	 * @param pid the PID carrying the PMT
+	 * @param section the section from its table_id, left untouched
+	 * @return the PMT, the cached instance if its version and CRC_32 are unchanged, or null if the section is not a
+	 * complete PMT
+	 */
+	public PMTSection get(int pid, ByteBuffer section) {
+		int position = section.position();
+		if (section.remaining() < 3 || (section.get(position) & 0xff) != TABLE_ID) {
+			return null;
+		}
+		int sectionLength = ((section.get(position + 1) & 0x0f) << 8) | (section.get(position + 2) & 0xff);
+		if (sectionLength < 13 || section.remaining() < 3 + sectionLength) {
+			return null;
+		}
+		PMTSection cached = sections.get(pid);
+		// A PMT applying later is ignored
+		if ((section.get(position + 5) & 0x01) == 0) {
+			return cached;
+		}
+		int version = (section.get(position + 5) >> 1) & 0x1f;
+		int crc = section.getInt(position + 3 + sectionLength - 4);
+		if (cached != null && cached.getVersionNumber() == version && cached.getCrc() == crc) {
+			return cached;
+		}
+		PMTSection pmt = PMTSection.parse(section.duplicate());
+		if (pmt != null) {
+			sections.put(pid, pmt);
+		}
+		return pmt;
+	}
+
+	/**
+	 * @return the last PMT parsed on a PID, or null
+	 */
+	public PMTSection get(int pid) {
+		return sections.get(pid);
+	}
+
+	/**
+	 * @return the PIDs with a PMT
+	 */
+	public Set<Integer> getPids() {
+		return Set.copyOf(sections.keySet());
+	}
+
+	/**
+	 * Forget the PMTs of the PIDs not listed, e.g. after a PAT update.
+	 */
+	public void retain(Collection<Integer> pids) {
+		sections.keySet().retainAll(pids);
+	}
+
+	public void clear() {
+		sections.clear();
+	}
+}
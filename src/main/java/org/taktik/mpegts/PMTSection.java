@@ -1,11 +1,11 @@
 package org.taktik.mpegts;
 
-import org.jcodec.common.io.NIOUtils;
-
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.google.common.collect.ImmutableList;
+
 /**
  * This class is part of JCodec ( www.jcodec.org ) This software is distributed
  * under FreeBSD License
@@ -16,77 +16,136 @@ import java.util.List;
  * program usually contains two or more streams, such as video, audio, text,
  * etc..
  *
+ * Sections are immutable, descriptors being copied out of the parsed buffer, so
+ * that they can be kept and shared, see {@link PMTCache}.
+ *
  * @author The JCodec project
  *
  */
 public class PMTSection extends PSISection {
 
 	private int pcrPid;
-//	private Tag[] tags;
-//	private PMTStream[] streams;
+	private List<Tag> tags;
+	private List<PMTStream> streams;
+	private int crc;
 
-	public PMTSection(PSISection psi, int pcrPid) {//, Tag[] tags, PMTStream[] streams) {
+	public PMTSection(PSISection psi, int pcrPid, List<Tag> tags, List<PMTStream> streams, int crc) {
 		super(psi);
 		this.pcrPid = pcrPid;
-//		this.tags = tags;
-//		this.streams = streams;
+		this.tags = ImmutableList.copyOf(tags);
+		this.streams = ImmutableList.copyOf(streams);
+		this.crc = crc;
 	}
 
 	public int getPcrPid() {
 		return pcrPid;
 	}
 
-//	public Tag[] getTags() {
-//		return tags;
-//	}
-//
-//	public PMTStream[] getStreams() {
-//		return streams;
-//	}
+	/**
+	 * @return the program descriptors
+	 */
+	public List<Tag> getTags() {
+		return tags;
+	}
+
+	/**
+	 * @return the elementary streams, in the order of the section
+	 */
+	public List<PMTStream> getStreams() {
+		return streams;
+	}
+
+	/**
+	 * @return the elementary stream on a PID, or null
+	 */
+	public PMTStream getStream(int pid) {
+		for (PMTStream stream : streams) {
+			if (stream.getPid() == pid) {
+				return stream;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the CRC_32 closing the section
+	 */
+	public int getCrc() {
+		return crc;
+	}
 
+	/**
+	 * Parse a whole section, from its table_id.
+	 *
+	 * @return the section, or null if it is malformed
+	 */
 	public static PMTSection parse(ByteBuffer data) {
 		PSISection psi = PSISection.parse(data);
+		if (psi == null || data.remaining() < 8) {
+			return null;
+		}
 
 		int w1 = data.getShort() & 0xffff;
 		int pcrPid = w1 & 0x1fff;
 
 		int w2 = data.getShort() & 0xffff;
 		int programInfoLength = w2 & 0xfff;
+		if (programInfoLength > data.remaining() - 4) {
+			return null;
+		}
+
+		List<Tag> tags = parseTags(read(data, programInfoLength));
+		List<PMTStream> streams = new ArrayList<PMTStream>();
+		while (data.remaining() > 4) {
+			int streamType = data.get() & 0xff;
+			int wn = data.getShort() & 0xffff;
+			int elementaryPid = wn & 0x1fff;
+
+			int wn1 = data.getShort() & 0xffff;
+			int esInfoLength = wn1 & 0xfff;
+			if (esInfoLength > data.remaining() - 4) {
+				return null;
+			}
+			streams.add(new PMTStream(streamType, elementaryPid, parseTags(read(data, esInfoLength))));
+		}
+		if (data.remaining() < 4) {
+			return null;
+		}
+
+		return new PMTSection(psi, pcrPid, tags, streams, data.getInt());
+	}
 
-//		List<Tag> tags = parseTags(NIOUtils.read(data, programInfoLength));
-//		List<PMTStream> streams = new ArrayList<PMTStream>();
-//		while (data.remaining() > 4) {
-//			int streamType = data.get() & 0xff;
-//			int wn = data.getShort() & 0xffff;
-//			int elementaryPid = wn & 0x1fff;
-//
-//
-//			int wn1 = data.getShort() & 0xffff;
-//			int esInfoLength = wn1 & 0xfff;
-//			ByteBuffer read = NIOUtils.read(data, esInfoLength);
-//			streams.add(new PMTStream(streamType, elementaryPid, MPSUtils.parseDescriptors(read)));
-//		}
-
-		return new PMTSection(psi, pcrPid);
+	private static ByteBuffer read(ByteBuffer data, int length) {
+		ByteBuffer read = data.duplicate();
+		read.limit(read.position() + length);
+		data.position(data.position() + length);
+		return read;
 	}
 
 	static List<Tag> parseTags(ByteBuffer bb) {
 		List<Tag> tags = new ArrayList<Tag>();
-		while (bb.hasRemaining()) {
-			int tag = bb.get();
-			int tagLen = bb.get();
-			tags.add(new Tag(tag, NIOUtils.read(bb, tagLen)));
+		while (bb.remaining() >= 2) {
+			int tag = bb.get() & 0xff;
+			int tagLen = Math.min(bb.get() & 0xff, bb.remaining());
+			byte[] content = new byte[tagLen];
+			bb.get(content);
+			tags.add(new Tag(tag, ByteBuffer.wrap(content)));
 		}
 		return tags;
 	}
 
+	@Override
+	public String toString() {
+		return "PMT version:" + getVersionNumber() + " pcr pid:" + pcrPid + " es:" + streams;
+	}
+
 	public static class Tag {
 		private int tag;
 		private ByteBuffer content;
 
 		public Tag(int tag, ByteBuffer content) {
 			this.tag = tag;
-			this.content = content;
+			this.content = content.asReadOnlyBuffer();
 		}
 
 		public int getTag() {
@@ -94,37 +153,76 @@ public class PMTSection extends PSISection {
 		}
 
 		public ByteBuffer getContent() {
-			return content;
+			return content.duplicate();
 		}
 	}
 
-//	public static class PMTStream {
-//		private int streamTypeTag;
-//		private int pid;
-//		private List<MPEGMediaDescriptor> descriptors;
-//		private StreamType streamType;
-//
-//		public PMTStream(int streamTypeTag, int pid, List<MPEGMediaDescriptor> descriptors) {
-//			this.streamTypeTag = streamTypeTag;
-//			this.pid = pid;
-//			this.descriptors = descriptors;
-//			this.streamType = StreamType.fromTag(streamTypeTag);
-//		}
-//
-//		public int getStreamTypeTag() {
-//			return streamTypeTag;
-//		}
-//
-//		public StreamType getStreamType() {
-//			return streamType;
-//		}
-//
-//		public int getPid() {
-//			return pid;
-//		}
-//
-//		public List<MPEGMediaDescriptor> getDesctiptors() {
-//			return descriptors;
-//		}
-//	}
-}
\ No newline at end of file
+	public static class PMTStream {
+		private int streamType;
+		private int pid;
+		private List<Tag> descriptors;
+
+		public PMTStream(int streamType, int pid, List<Tag> descriptors) {
+			this.streamType = streamType;
+			this.pid = pid;
+			this.descriptors = ImmutableList.copyOf(descriptors);
+		}
+
+		public int getStreamType() {
+			return streamType;
+		}
+
+		public int getPid() {
+			return pid;
+		}
+
+		public List<Tag> getDescriptors() {
+			return descriptors;
+		}
+
+		public boolean isVideo() {
+			switch (streamType) {
+				case 0x01: // MPEG-1
+				case 0x02: // MPEG-2
+				case 0x10: // MPEG-4 part 2
+				case 0x1b: // H.264
+				case 0x24: // HEVC
+				case 0x33: // VVC
+				case 0x42: // AVS
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		public boolean isAudio() {
+			switch (streamType) {
+				case 0x03: // MPEG-1
+				case 0x04: // MPEG-2
+				case 0x0f: // AAC ADTS
+				case 0x11: // AAC LATM
+				case 0x81: // AC-3 (ATSC)
+				case 0x87: // E-AC-3 (ATSC)
+					return true;
+				case 0x06: // PES private data, audio by its DVB descriptor
+					for (Tag descriptor : descriptors) {
+						switch (descriptor.getTag()) {
+							case 0x6a: // AC-3
+							case 0x7a: // E-AC-3
+							case 0x7b: // DTS
+							case 0x7c: // AAC
+								return true;
+						}
+					}
+					return false;
+				default:
+					return false;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "0x" + Integer.toHexString(streamType) + "@" + pid;
+		}
+	}
+}
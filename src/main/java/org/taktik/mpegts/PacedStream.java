@@ -0,0 +1,238 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.TreeMap;
+
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.sinks.MTSSink;
+import org.taktik.mpegts.sources.MTSSource;
+import org.taktik.mpegts.sources.TimestampedMTSSource;
+
+/**
+ * Cuts the packets of a {@link PacketRing} into groups to send, and gives each group a departure time with a
+ * {@link PcrPacer}.<br>
+ *
+ * A group holds at most {@link PcrPacer#getGroupSize()} consecutive packets of one slot. A packet carrying a PCR of
+ * the program always starts a new group, so that it leaves at its own departure time. The PCR PID is found by
+ * following the PAT and PMTs of the stream.<br>
+ *
+ * Slots published with an arrival time as tag (see {@link #slotTag(MTSSource)}) are paced from the arrival times of
+ * their first packets instead of PCRs.
+ */
+class PacedStream {
+	static final Logger log = LoggerFactory.getLogger("streamer");
+
+	private final PacketRing ring;
+	private final PcrPacer pacer;
+	private final MTSPacketView packet = new MTSPacketView();
+
+	private PATSection patSection;
+	private TreeMap<Integer,PMTSection> pmtSection = Maps.newTreeMap();
+	private final PMTCache pmtCache = new PMTCache();
+	// Emits the PAT and PMT sections when they change
+	private final SectionAssembler sections = new SectionAssembler(this::section);
+
+	// Slot being cut, taken from the ring
+	private ByteBuffer slot;
+	private int offset;
+	private long packetCount;
+
+	private int groupStart;
+	private int groupEnd;
+	private long groupDeparture;
+	private long groupFlushDeadline;
+	// True while slots are tagged with arrival times
+	private boolean arrivalClock;
+
+	PacedStream(PacketRing ring, PcrPacer pacer) {
+		this.ring = ring;
+		this.pacer = pacer;
+		pacer.reset();
+	}
+
+	/**
+	 * Move to the next group of packets.
+	 *
+	 * @param wait true to wait for the ring, false to only use what is already available
+	 * @return false if no packets are available
+	 */
+	boolean nextGroup(boolean wait) {
+		if (slot != null && offset >= slot.limit()) {
+			slot = null;
+			ring.release();
+		}
+		if (slot == null) {
+			slot = wait ? ring.take() : ring.poll();
+			if (slot == null) {
+				return false;
+			}
+			offset = slot.position();
+			arrival(ring.tag());
+		}
+
+		groupStart = offset;
+		int max = groupStart + pacer.getGroupSize() * Constants.MPEGTS_PACKET_SIZE;
+		while (offset < slot.limit() && offset < max) {
+			packet.wrap(slot, offset);
+			boolean pcr = packet.isPcrFlag() && packet.getPid() == getPCRPid();
+			if (pcr && offset > groupStart) {
+				break;
+			}
+			process(packet);
+			if (offset == groupStart) {
+				groupDeparture = pacer.departure(packetCount * Constants.MPEGTS_PACKET_SIZE);
+				groupFlushDeadline = groupDeparture < 0 ? -1
+						: pacer.departure((packetCount + Constants.PACKETS_PER_BLOCK) * Constants.MPEGTS_PACKET_SIZE);
+			}
+			offset += Constants.MPEGTS_PACKET_SIZE;
+			packetCount++;
+		}
+		groupEnd = offset;
+		return true;
+	}
+
+	/**
+	 * @return the slot holding the current group, between {@link #groupStart()} and {@link #groupEnd()}
+	 */
+	ByteBuffer slot() {
+		return slot;
+	}
+
+	int groupStart() {
+		return groupStart;
+	}
+
+	int groupEnd() {
+		return groupEnd;
+	}
+
+	/**
+	 * @return the departure nano time of the current group, or -1 if it is not paced
+	 */
+	long groupDeparture() {
+		return groupDeparture;
+	}
+
+	/**
+	 * @return the departure nano time of the packets one datagram after the start of the current group, or -1 if it
+	 * is not paced: packets of the group held back by the sink must leave by then, see {@link MTSSink#flush()}
+	 */
+	long groupFlushDeadline() {
+		return groupFlushDeadline;
+	}
+
+	long getPacketCount() {
+		return packetCount;
+	}
+
+	private void process(MTSPacketView packet) {
+		int pid = packet.getPid();
+
+		if (pid == 0 || (patSection != null && patSection.getPrograms().containsValue(pid))) {
+			sections.push(packet);
+		}
+
+		// Check for PCR
+		if (packet.isPcrFlag() && !arrivalClock) {
+			if (pid == getPCRPid()) {
+				if (!packet.isDiscontinuityIndicator()) {
+					long position = packetCount * Constants.MPEGTS_PACKET_SIZE;
+					pacer.pcr(packet.getPcr(), position);
+					if (pacer.needsNextPcr()) {
+						lookAhead(pid, position);
+					}
+				} else {
+					log.warn("Skipped PCR - Discontinuity indicator");
+					pacer.reset();
+				}
+			} else {
+				log.debug("Skipped PCR - PID does not match");
+			}
+		}
+	}
+
+	private void section(int pid, ByteBuffer section) {
+		if (pid == 0) {
+			PATSection pat = section.get(0) == 0 ? PATSection.parse(section.duplicate()) : null;
+			if (pat == null || pat.getCurrentNextIndicator() == 0) {
+				return;
+			}
+			patSection = pat;
+			for (Integer pmtPid : pmtSection.keySet()) {
+				if (!pat.getPrograms().containsValue(pmtPid)) {
+					sections.reset(pmtPid);
+				}
+			}
+			pmtSection.keySet().retainAll(pat.getPrograms().values());
+			pmtCache.retain(pat.getPrograms().values());
+		} else {
+			PMTSection pmt = pmtCache.get(pid, section);
+			if (pmt != null && pmt != pmtSection.put(pid, pmt)) {
+				log.debug("PMT on pid {}: {}", pid, pmt);
+			}
+		}
+	}
+
+	/**
+	 * Find the PCR following the current packet, in the rest of the slot and in the slots already available after
+	 * it, and give it to the pacer.
+	 */
+	private void lookAhead(int pcrPid, long position) {
+		ByteBuffer next = slot;
+		int ahead = 0;
+		int offset = this.offset;
+		for (;;) {
+			for (offset += Constants.MPEGTS_PACKET_SIZE; offset < next.limit(); offset += Constants.MPEGTS_PACKET_SIZE) {
+				position += Constants.MPEGTS_PACKET_SIZE;
+				if (MTSPacketView.getPid(next, offset) == pcrPid && MTSPacketView.isPcrFlag(next, offset)) {
+					if ((MTSPacketView.getAdaptationFieldFlags(next, offset) & 0x80) == 0) {
+						pacer.nextPcr(MTSPacketView.getPcr(next, offset + 6), position);
+					}
+					return;
+				}
+			}
+			next = ring.peek(++ahead);
+			if (next == null) {
+				return;
+			}
+			offset = next.position() - Constants.MPEGTS_PACKET_SIZE;
+		}
+	}
+
+	/**
+	 * Account for the arrival time of the slot just taken, and of the next one when it is available.
+	 */
+	private void arrival(long arrivalTime) {
+		if (arrivalTime < 0) {
+			if (arrivalClock) {
+				arrivalClock = false;
+				pacer.reset();
+			}
+			return;
+		}
+		arrivalClock = true;
+		long position = packetCount * Constants.MPEGTS_PACKET_SIZE;
+		pacer.pcr(arrivalTime, position);
+		if (ring.peek(1) != null && ring.peekTag(1) >= 0) {
+			pacer.nextPcr(ring.peekTag(1), position + slot.remaining());
+		}
+	}
+
+	/**
+	 * @return the tag to publish with the packets just read from the source: their arrival time if the source has
+	 * one, or -1
+	 */
+	static long slotTag(MTSSource source) {
+		return source instanceof TimestampedMTSSource ? ((TimestampedMTSSource) source).getArrivalTime() : -1;
+	}
+
+	private int getPCRPid() {
+		if ((!pmtSection.isEmpty())) {
+			// TODO change this
+			return pmtSection.values().iterator().next().getPcrPid();
+		}
+		return -1;
+	}
+}
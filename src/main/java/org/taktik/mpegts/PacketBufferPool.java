@@ -0,0 +1,101 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A pool of fixed size packet buffers, each holding a whole number of transport stream packets.<br>
+ *
+ * Buffers are recycled instead of being left to the garbage collector. Acquiring and releasing
+ * a buffer does not allocate once the pool is warm.
+ */
+public class PacketBufferPool {
+	private final int bufferSize;
+	private final boolean direct;
+	private final int maxPooled;
+	private final ArrayDeque<ByteBuffer> free;
+
+	private PacketBufferPool(int packetsPerBuffer, boolean direct, int maxPooled) {
+		this.bufferSize = packetsPerBuffer * Constants.MPEGTS_PACKET_SIZE;
+		this.direct = direct;
+		this.maxPooled = maxPooled;
+		this.free = new ArrayDeque<>(maxPooled);
+	}
+
+	/**
+	 * @return a cleared buffer of {@link #getBufferSize()} bytes
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer;
+		synchronized (free) {
+			buffer = free.pollFirst();
+		}
+		if (buffer == null) {
+			buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool. The buffer must not be used by the caller anymore.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+			return;
+		}
+		synchronized (free) {
+			if (free.size() < maxPooled) {
+				free.addFirst(buffer);
+			}
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public int getMaxPooled() {
+		return maxPooled;
+	}
+
+	public static PacketBufferPoolBuilder builder() {
+		return new PacketBufferPoolBuilder();
+	}
+
+	public static class PacketBufferPoolBuilder {
+		private int packetsPerBuffer = 1;
+		private boolean direct = false;
+		private int maxPooled = 64;
+
+		private PacketBufferPoolBuilder() {
+		}
+
+		public PacketBufferPoolBuilder setPacketsPerBuffer(int packetsPerBuffer) {
+			this.packetsPerBuffer = packetsPerBuffer;
+			return this;
+		}
+
+		public PacketBufferPoolBuilder setDirect(boolean direct) {
+			this.direct = direct;
+			return this;
+		}
+
+		public PacketBufferPoolBuilder setMaxPooled(int maxPooled) {
+			this.maxPooled = maxPooled;
+			return this;
+		}
+
+		public PacketBufferPool build() {
+			Preconditions.checkArgument(packetsPerBuffer > 0, "packetsPerBuffer must be positive");
+			Preconditions.checkArgument(maxPooled >= 0, "maxPooled cannot be negative");
+			return new PacketBufferPool(packetsPerBuffer, direct, maxPooled);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The ways 188 bytes TS packets are framed in files and captures.<br>
+ *
+ * Sources detect the format and hand out the TS packets only, skipping the extra bytes in place.
+ */
+public enum PacketFormat {
+	/**
+	 * Plain 188 bytes packets.
+	 */
+	TS(Constants.MPEGTS_PACKET_SIZE, 0),
+	/**
+	 * 192 bytes packets of Blu-ray and AVCHD .m2ts files: each packet follows a 4 bytes header holding its arrival
+	 * timestamp, see {@link #getArrivalTimestamp(ByteBuffer, int)}.
+	 */
+	M2TS(192, 4),
+	/**
+	 * 204 bytes packets of DVB-ASI captures: each packet is followed by 16 bytes of Reed-Solomon parity.
+	 */
+	RS(204, 0);
+
+	private final int packetSize;
+	private final int prefixSize;
+
+	PacketFormat(int packetSize, int prefixSize) {
+		this.packetSize = packetSize;
+		this.prefixSize = prefixSize;
+	}
+
+	/**
+	 * @return the distance between two packets, in bytes
+	 */
+	public int getPacketSize() {
+		return packetSize;
+	}
+
+	/**
+	 * @return the number of bytes before the sync byte of a packet
+	 */
+	public int getPrefixSize() {
+		return prefixSize;
+	}
+
+	public boolean hasArrivalTimestamp() {
+		return this == M2TS;
+	}
+
+	/**
+	 * Read the arrival timestamp of a {@link #M2TS} packet.
+	 *
+	 * @param offset offset of the packet, i.e. of its 4 bytes header
+	 * @return the 30 bits arrival timestamp, in 27MHz units
+	 */
+	public static int getArrivalTimestamp(ByteBuffer buffer, int offset) {
+		return buffer.getInt(offset) & 0x3fffffff;
+	}
+}
@@ -0,0 +1,295 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bounded single-producer/single-consumer ring of packet batches.<br>
+ *
+ * Each slot is a preallocated buffer of up to {@link #getPacketsPerSlot()} packets, carved from one slab.
+ * The producer {@link #claim() claims} a slot, fills it between its position and limit, flips it and
+ * {@link #publish(long) publishes} it; the consumer {@link #take() takes} it, reads it, and {@link #release() releases}
+ * it. Hand-off is lock-free; a side that has to wait (producer on a full ring, consumer on an empty one) does so
+ * with the ring's {@link WaitStrategy}, parking until the other side signals it by default.<br>
+ *
+ * The ring counts the times each side had to wait: consumer stalls mean the producer cannot keep up, producer waits
+ * are the backpressure applied by a slow consumer.
+ */
+public class PacketRing {
+	private final ByteBuffer[] slots;
+	private final long[] tags;
+	private final int packetsPerSlot;
+	private final WaitStrategy waitStrategy;
+
+	// Next slot to take, written by the consumer
+	private final AtomicLong head = new AtomicLong();
+	// Next slot to publish, written by the producer
+	private final AtomicLong tail = new AtomicLong();
+
+	private volatile boolean finished;
+	private volatile boolean closed;
+	private volatile Thread waitingConsumer;
+	private volatile Thread waitingProducer;
+
+	private volatile long consumerStalls;
+	private volatile long producerWaits;
+
+	private PacketRing(int slotCount, int packetsPerSlot, boolean direct, WaitStrategy waitStrategy) {
+		this.packetsPerSlot = packetsPerSlot;
+		this.waitStrategy = waitStrategy;
+		int slotSize = packetsPerSlot * Constants.MPEGTS_PACKET_SIZE;
+		ByteBuffer slab = direct ? ByteBuffer.allocateDirect(slotCount * slotSize) : ByteBuffer.allocate(slotCount * slotSize);
+		slots = new ByteBuffer[slotCount];
+		tags = new long[slotCount];
+		for (int i = 0; i < slotCount; i++) {
+			slots[i] = slab.slice(i * slotSize, slotSize);
+		}
+	}
+
+	/**
+	 * Producer side: wait for a free slot.
+	 *
+	 * @return a cleared slot, or null if the ring was closed
+	 */
+	public ByteBuffer claim() {
+		long t = tail.get();
+		if (t - head.get() >= slots.length) {
+			producerWaits++;
+			boolean parking = waitStrategy.isParking();
+			if (parking) {
+				waitingProducer = Thread.currentThread();
+			}
+			while (t - head.get() >= slots.length && !closed) {
+				waitStrategy.idle(this);
+			}
+			if (parking) {
+				waitingProducer = null;
+			}
+		}
+		if (closed) {
+			return null;
+		}
+		ByteBuffer slot = slots[index(t)];
+		slot.clear();
+		return slot;
+	}
+
+	/**
+	 * Producer side: get a free slot without waiting.
+	 *
+	 * @return a cleared slot, or null if the ring is full or closed
+	 */
+	public ByteBuffer tryClaim() {
+		long t = tail.get();
+		if (closed || t - head.get() >= slots.length) {
+			return null;
+		}
+		ByteBuffer slot = slots[index(t)];
+		slot.clear();
+		return slot;
+	}
+
+	/**
+	 * Producer side: make the claimed slot, already flipped, visible to the consumer.
+	 *
+	 * @param tag an opaque value attached to the slot, see {@link #tag()}
+	 */
+	public void publish(long tag) {
+		long t = tail.get();
+		tags[index(t)] = tag;
+		tail.set(t + 1);
+		wake(waitingConsumer);
+	}
+
+	/**
+	 * Producer side: signal that nothing will be published anymore.
+	 */
+	public void finish() {
+		finished = true;
+		wake(waitingConsumer);
+	}
+
+	/**
+	 * Consumer side: get the next published slot without waiting.
+	 *
+	 * @return the slot, or null if none is available
+	 */
+	public ByteBuffer poll() {
+		long h = head.get();
+		if (h == tail.get()) {
+			return null;
+		}
+		return slots[index(h)];
+	}
+
+	/**
+	 * Consumer side: wait for the next published slot. The slot must be {@link #release() released} after use.
+	 *
+	 * @return the slot, or null if the producer {@link #finish() finished} and the ring is empty, or if the ring was
+	 * closed
+	 */
+	public ByteBuffer take() {
+		long h = head.get();
+		if (h == tail.get()) {
+			// The slots published before finish() must still be taken: check tail again once finished is seen
+			if (closed || (finished && h == tail.get())) {
+				return null;
+			}
+			consumerStalls++;
+			boolean parking = waitStrategy.isParking();
+			if (parking) {
+				waitingConsumer = Thread.currentThread();
+			}
+			while (h == tail.get() && !finished && !closed) {
+				waitStrategy.idle(this);
+			}
+			if (parking) {
+				waitingConsumer = null;
+			}
+			if (h == tail.get()) {
+				return null;
+			}
+		}
+		return closed ? null : slots[index(h)];
+	}
+
+	/**
+	 * Consumer side: look at a published slot following the one returned by the last {@link #take()} or
+	 * {@link #poll()}, without taking it. The content of the slot must not be modified.
+	 *
+	 * @param ahead 1 for the next slot, 2 for the one after...
+	 * @return the slot, or null if it is not published yet
+	 */
+	public ByteBuffer peek(int ahead) {
+		long sequence = head.get() + ahead;
+		if (sequence >= tail.get()) {
+			return null;
+		}
+		return slots[index(sequence)];
+	}
+
+	/**
+	 * Consumer side: the tag published with the slot returned by the last {@link #take()} or {@link #poll()}.
+	 */
+	public long tag() {
+		return tags[index(head.get())];
+	}
+
+	/**
+	 * Consumer side: the tag published with the slot returned by {@link #peek(int)}.
+	 */
+	public long peekTag(int ahead) {
+		return tags[index(head.get() + ahead)];
+	}
+
+	/**
+	 * Consumer side: give the slot returned by the last {@link #take()} or {@link #poll()} back to the producer.
+	 */
+	public void release() {
+		head.set(head.get() + 1);
+		wake(waitingProducer);
+	}
+
+	/**
+	 * Stop both sides: {@link #claim()} and {@link #take()} will return null.
+	 */
+	public void close() {
+		closed = true;
+		wake(waitingProducer);
+		wake(waitingConsumer);
+	}
+
+	/**
+	 * Empty the ring and make it usable again. Neither side may be using the ring.
+	 */
+	public void reset() {
+		head.set(0);
+		tail.set(0);
+		finished = false;
+		closed = false;
+	}
+
+	public boolean isFinished() {
+		return finished && head.get() == tail.get();
+	}
+
+	public int getPacketsPerSlot() {
+		return packetsPerSlot;
+	}
+
+	public int getSlotCount() {
+		return slots.length;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	/**
+	 * @return the number of times the consumer found the ring empty
+	 */
+	public long getConsumerStalls() {
+		return consumerStalls;
+	}
+
+	/**
+	 * @return the number of times the producer found the ring full
+	 */
+	public long getProducerWaits() {
+		return producerWaits;
+	}
+
+	private int index(long sequence) {
+		return (int) (sequence % slots.length);
+	}
+
+	private static void wake(Thread thread) {
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	public static PacketRingBuilder builder() {
+		return new PacketRingBuilder();
+	}
+
+	public static class PacketRingBuilder {
+		private int slots = 16;
+		private int packetsPerSlot = Constants.PACKETS_PER_BLOCK;
+		private boolean direct = true;
+		private WaitStrategy waitStrategy = WaitStrategy.PARK;
+
+		private PacketRingBuilder() {
+		}
+
+		public PacketRingBuilder setSlots(int slots) {
+			this.slots = slots;
+			return this;
+		}
+
+		public PacketRingBuilder setPacketsPerSlot(int packetsPerSlot) {
+			this.packetsPerSlot = packetsPerSlot;
+			return this;
+		}
+
+		public PacketRingBuilder setDirect(boolean direct) {
+			this.direct = direct;
+			return this;
+		}
+
+		public PacketRingBuilder setWaitStrategy(WaitStrategy waitStrategy) {
+			this.waitStrategy = waitStrategy;
+			return this;
+		}
+
+		public PacketRing build() {
+			Preconditions.checkArgument(slots > 0, "slots must be positive");
+			Preconditions.checkArgument(packetsPerSlot > 0, "packetsPerSlot must be positive");
+			Preconditions.checkNotNull(waitStrategy, "waitStrategy cannot be null");
+			return new PacketRing(slots, packetsPerSlot, direct, waitStrategy);
+		}
+	}
+}
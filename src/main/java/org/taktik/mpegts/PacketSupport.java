@@ -6,17 +6,21 @@ import java.nio.ByteBuffer;
 public abstract class PacketSupport {
 	protected ByteBuffer buffer;
 	protected boolean dirty;
+	private boolean parsed;
 
 	public PacketSupport() {
 		dirty = false;
+		parsed = true;
 	}
 
+	/**
+	 * Wrap an existing buffer. Nothing is decoded until {@link #ensureParsed()} is called.
+	 */
 	public PacketSupport(ByteBuffer buffer) {
 		this.buffer = buffer;
 		buffer.rewind();
-		parse();
-		buffer.rewind();
 		dirty = false;
+		parsed = false;
 	}
 
 	public ByteBuffer getBuffer() {
@@ -28,10 +32,26 @@ public abstract class PacketSupport {
 		return buffer;
 	}
 
+	/**
+	 * Decode the parts of the packet that are not read directly from the buffer, on first call.
+	 */
+	protected void ensureParsed() {
+		if (!parsed) {
+			parsed = true;
+			buffer.rewind();
+			parse();
+			buffer.rewind();
+		}
+	}
+
 	protected abstract void parse();
 	protected abstract void write();
 
+	/**
+	 * Signal a layout change that requires {@link #write()} to re-serialize the packet.
+	 */
 	protected void markDirty() {
+		ensureParsed();
 		dirty = true;
 	}
 }
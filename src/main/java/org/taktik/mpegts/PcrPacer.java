@@ -0,0 +1,221 @@
+package org.taktik.mpegts;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the departure time of each byte of a transport stream from its PCRs.<br>
+ *
+ * The byte rate is interpolated between two consecutive PCRs when the next one is known
+ * ({@link #nextPcr(long, long)}), and extrapolated from the previous interval otherwise. PCR values are mapped to
+ * {@link System#nanoTime()} from an origin taken on the first PCR, so timing errors do not accumulate; the origin
+ * is moved when the stream falls too far behind, and timing restarts after a PCR discontinuity.<br>
+ *
+ * {@link #awaitDeparture(long)} waits for a departure time by parking until shortly before the deadline, then
+ * spinning, and records the difference between the actual and the target departure time.
+ */
+public class PcrPacer {
+	static final Logger log = LoggerFactory.getLogger("pacer");
+
+	private final int groupSize;
+	private final long spinNanos;
+	private final long maxGapNanos;
+
+	// Mapping of PCR values to nano time
+	private long originPcr = -1;
+	private long originTime;
+
+	// Last PCR and its byte position in the stream
+	private long lastPcr = -1;
+	private long lastPosition;
+	// Next PCR, when known ahead
+	private long nextPcr = -1;
+	// PCR ticks per byte between lastPcr and the next PCR, NaN if unknown
+	private double ticksPerByte = Double.NaN;
+
+	private long departures;
+	private double jitterSum;
+	private double jitterSquareSum;
+	private long maxJitter;
+
+	private PcrPacer(int groupSize, long spinNanos, long maxGapNanos) {
+		this.groupSize = groupSize;
+		this.spinNanos = spinNanos;
+		this.maxGapNanos = maxGapNanos;
+	}
+
+	/**
+	 * Forget the timing of the stream. Bytes are not paced until the next PCR.
+	 */
+	public void reset() {
+		originPcr = -1;
+		lastPcr = -1;
+		nextPcr = -1;
+		ticksPerByte = Double.NaN;
+	}
+
+	/**
+	 * Account for a PCR.
+	 *
+	 * @param pcr the PCR value
+	 * @param position byte position of the packet carrying the PCR
+	 */
+	public void pcr(long pcr, long position) {
+		if (lastPcr >= 0 && (pcr <= lastPcr || toNanos(pcr - lastPcr) > maxGapNanos)) {
+			log.warn("PCR discontinuity: {} after {}", pcr, lastPcr);
+			reset();
+		}
+		long now = System.nanoTime();
+		if (originPcr < 0 || originTime + toNanos(pcr - originPcr) < now - maxGapNanos) {
+			// First PCR, or the stream is too late to catch up
+			originPcr = pcr;
+			originTime = now;
+		}
+		if (lastPcr >= 0) {
+			ticksPerByte = (double) (pcr - lastPcr) / (position - lastPosition);
+		}
+		lastPcr = pcr;
+		lastPosition = position;
+		nextPcr = -1;
+	}
+
+	/**
+	 * Account for the PCR following the last one, found ahead in the stream, to interpolate the rate up to it.
+	 */
+	public void nextPcr(long pcr, long position) {
+		if (lastPcr < 0 || pcr <= lastPcr || position <= lastPosition || toNanos(pcr - lastPcr) > maxGapNanos) {
+			return;
+		}
+		nextPcr = pcr;
+		ticksPerByte = (double) (pcr - lastPcr) / (position - lastPosition);
+	}
+
+	/**
+	 * @return true if the PCR following the last one is not known yet
+	 */
+	public boolean needsNextPcr() {
+		return lastPcr >= 0 && nextPcr < 0;
+	}
+
+	/**
+	 * @return the departure nano time of the byte at the given position, or -1 if it is not paced
+	 */
+	public long departure(long position) {
+		if (lastPcr < 0 || Double.isNaN(ticksPerByte)) {
+			return -1;
+		}
+		long pcr = lastPcr + (long) ((position - lastPosition) * ticksPerByte);
+		return originTime + toNanos(pcr - originPcr);
+	}
+
+	/**
+	 * Wait until the given nano time: park until shortly before it, then spin.
+	 *
+	 * @param deadline the departure nano time, or -1 to return immediately
+	 */
+	public void awaitDeparture(long deadline) {
+		if (deadline < 0) {
+			return;
+		}
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			if (remaining > spinNanos) {
+				LockSupport.parkNanos(this, remaining - spinNanos);
+			} else {
+				Thread.onSpinWait();
+			}
+		}
+		long jitter = -remaining;
+		departures++;
+		jitterSum += jitter;
+		jitterSquareSum += (double) jitter * jitter;
+		maxJitter = Math.max(maxJitter, jitter);
+	}
+
+	/**
+	 * @return the number of packets sent at once
+	 */
+	public int getGroupSize() {
+		return groupSize;
+	}
+
+	/**
+	 * @return the number of paced departures
+	 */
+	public long getDepartures() {
+		return departures;
+	}
+
+	/**
+	 * @return the mean delay of the actual departures after their target time, in nanoseconds
+	 */
+	public double getMeanJitterNanos() {
+		return departures == 0 ? 0 : jitterSum / departures;
+	}
+
+	/**
+	 * @return the root mean square of the delay of the actual departures after their target time, in nanoseconds
+	 */
+	public double getRmsJitterNanos() {
+		return departures == 0 ? 0 : Math.sqrt(jitterSquareSum / departures);
+	}
+
+	/**
+	 * @return the maximum delay of an actual departure after its target time, in nanoseconds
+	 */
+	public long getMaxJitterNanos() {
+		return maxJitter;
+	}
+
+	private static long toNanos(long pcrTicks) {
+		return pcrTicks * 1000 / 27;
+	}
+
+	public static PcrPacerBuilder builder() {
+		return new PcrPacerBuilder();
+	}
+
+	public static class PcrPacerBuilder {
+		private int groupSize = Constants.PACKETS_PER_BLOCK;
+		private long spinNanos = TimeUnit.MICROSECONDS.toNanos(100);
+		private long maxGapNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+		private PcrPacerBuilder() {
+		}
+
+		/**
+		 * Number of packets sent at once, default {@link Constants#PACKETS_PER_BLOCK}.
+		 */
+		public PcrPacerBuilder setGroupSize(int groupSize) {
+			this.groupSize = groupSize;
+			return this;
+		}
+
+		/**
+		 * Time before a departure during which the pacer spins instead of parking, default 100µs.
+		 */
+		public PcrPacerBuilder setSpinNanos(long spinNanos) {
+			this.spinNanos = spinNanos;
+			return this;
+		}
+
+		/**
+		 * Largest acceptable gap between two PCRs, and largest acceptable delay, default 100ms.
+		 */
+		public PcrPacerBuilder setMaxGapNanos(long maxGapNanos) {
+			this.maxGapNanos = maxGapNanos;
+			return this;
+		}
+
+		public PcrPacer build() {
+			Preconditions.checkArgument(groupSize > 0, "groupSize must be positive");
+			Preconditions.checkArgument(spinNanos >= 0, "spinNanos cannot be negative");
+			Preconditions.checkArgument(maxGapNanos > 0, "maxGapNanos must be positive");
+			return new PcrPacer(groupSize, spinNanos, maxGapNanos);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Splits a stream into several outputs in one pass, each output being selected and rewritten by a {@link PidFilter},
+ * e.g. one output per program to split an MPTS into SPTS.<br>
+ *
+ * The PAT and PMTs of the input are reassembled and parsed once, and handed to every filter when they change. Each
+ * packet is then dispatched through an array indexed by PID, holding the filters selecting the PID: the cost of a
+ * packet does not depend on the number of outputs that drop it.
+ */
+public class PidDemux {
+	private static final int PID_COUNT = 8192;
+	private static final PidFilter[] NONE = new PidFilter[0];
+
+	private final List<PidFilter> filters;
+	private final SectionAssembler sections = new SectionAssembler(this::section);
+	// PIDs carrying the PAT and the PMTs of the input
+	private final boolean[] psiPids = new boolean[PID_COUNT];
+	private PATSection pat;
+	private final PidFilter[][] dispatch = new PidFilter[PID_COUNT][];
+	private boolean dirty;
+
+	public PidDemux(List<PidFilter> filters) {
+		this.filters = ImmutableList.copyOf(filters);
+		psiPids[0] = true;
+		updateDispatch();
+	}
+
+	public List<PidFilter> getFilters() {
+		return filters;
+	}
+
+	/**
+	 * Append what the packet becomes to the {@link PidFilter#output()} of each filter.
+	 */
+	public void push(MTSPacketView packet) {
+		int pid = packet.getPid();
+		if (psiPids[pid]) {
+			sections.push(packet);
+			if (dirty) {
+				updateDispatch();
+			}
+		}
+		for (PidFilter filter : dispatch[pid]) {
+			filter.filter(packet);
+		}
+	}
+
+	private void section(int pid, ByteBuffer section) {
+		if (pid == 0) {
+			PATSection pat = section.get(0) == 0 ? PATSection.parse(section.duplicate()) : null;
+			if (pat == null || pat.getCurrentNextIndicator() == 0) {
+				return;
+			}
+			if (this.pat != null) {
+				for (int pmtPid : this.pat.getPrograms().values()) {
+					if (!pat.getPrograms().containsValue(pmtPid)) {
+						psiPids[pmtPid] = false;
+						sections.reset(pmtPid);
+					}
+				}
+			}
+			for (int pmtPid : pat.getPrograms().values()) {
+				psiPids[pmtPid] = true;
+			}
+			this.pat = pat;
+			for (PidFilter filter : filters) {
+				filter.onPat(pat);
+			}
+		} else {
+			PMTSection pmt = section.get(0) == 0x02 ? PMTSection.parse(section.duplicate()) : null;
+			if (pmt == null || pmt.getCurrentNextIndicator() == 0) {
+				return;
+			}
+			for (PidFilter filter : filters) {
+				filter.onPmt(pid, pmt);
+			}
+		}
+		dirty = true;
+	}
+
+	private void updateDispatch() {
+		PidFilter[] selecting = new PidFilter[filters.size()];
+		for (int pid = 0; pid < PID_COUNT; pid++) {
+			int count = 0;
+			for (PidFilter filter : filters) {
+				if (filter.isSelected(pid)) {
+					selecting[count++] = filter;
+				}
+			}
+			dispatch[pid] = count == 0 ? NONE : Arrays.copyOf(selecting, count);
+		}
+		dirty = false;
+	}
+
+	/**
+	 * Forget the tables of the input, e.g. before switching to another input.
+	 */
+	public void reset() {
+		sections.reset();
+	}
+}
@@ -0,0 +1,264 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Selects the programs or PIDs of a stream for one output of a {@link PidDemux}, rewriting its PAT and PMTs for the
+ * reduced output and optionally remapping PIDs.<br>
+ *
+ * The PAT of the output only lists the selected programs, and their PMTs list remapped PIDs. These tables are rebuilt
+ * when the input tables change, and sent in place of the input tables each time these are repeated. Packets of the
+ * elementary streams and PCR of the selected programs, and of the PIDs selected explicitly, are copied with their PID
+ * remapped.<br>
+ *
+ * What happens to each PID is kept in an array indexed by PID: filtering a packet is a lookup and a copy.
+ */
+public class PidFilter {
+	private static final int PID_COUNT = 8192;
+	private static final byte DROP = 0;
+	private static final byte PASS = 1;
+	private static final byte TABLE = 2;
+
+	// Selected programs, all if empty, and PIDs
+	private final Set<Integer> programs;
+	private final int[] pids;
+	private final int[] remap;
+
+	private final byte[] kinds = new byte[PID_COUNT];
+	// Continuity counters of the tables sent
+	private final int[] continuities = new int[PID_COUNT];
+	private PATSection pat;
+	// Packets of the PAT sent in place of the input one
+	private ByteBuffer patTable;
+	// PMT of the selected programs, by PMT PID and program_number: several programs may share a PMT PID
+	private final Map<Integer, Map<Integer, PMTSection>> pmts = new HashMap<>();
+	// Packets of the PMTs sent in place of the input ones, by input PID and program_number
+	private final Map<Integer, Map<Integer, ByteBuffer>> pmtTables = new HashMap<>();
+
+	private ByteBuffer output = ByteBuffer.allocate(64 * Constants.MPEGTS_PACKET_SIZE);
+
+	private PidFilter(Set<Integer> programs, int[] pids, int[] remap) {
+		this.programs = programs;
+		this.pids = pids;
+		this.remap = remap;
+		updateKinds();
+	}
+
+	/**
+	 * @return true if packets of the input PID reach the output, possibly rewritten
+	 */
+	public boolean isSelected(int pid) {
+		return kinds[pid] != DROP;
+	}
+
+	/**
+	 * @return the program numbers of the output, known once the PAT is
+	 */
+	public Set<Integer> getOutputPrograms() {
+		Set<Integer> output = new HashSet<>();
+		if (pat != null) {
+			for (int program : pat.getPrograms().keySet()) {
+				if (isProgramSelected(program)) {
+					output.add(program);
+				}
+			}
+		}
+		return output;
+	}
+
+	private boolean isProgramSelected(int program) {
+		return programs.isEmpty() || programs.contains(program);
+	}
+
+	private boolean isPmtSelected(int pid, int program) {
+		return pat != null && isProgramSelected(program) && Integer.valueOf(pid).equals(pat.getPrograms().get(program));
+	}
+
+	/**
+	 * Apply a new PAT of the input.
+	 */
+	public void onPat(PATSection pat) {
+		this.pat = pat;
+		Map<Integer, Integer> selected = new LinkedHashMap<>();
+		pat.getPrograms().forEach((program, pid) -> {
+			if (isProgramSelected(program)) {
+				selected.put(program, remap[pid]);
+			}
+		});
+		retainSelected(pmts);
+		retainSelected(pmtTables);
+		patTable = PsiWriter.packetize(0, PsiWriter.pat(pat.getSpecificId(), pat.getVersionNumber(), selected));
+		updateKinds();
+	}
+
+	/**
+	 * Forget the PMTs of the programs that are no more in the PAT, or moved to another PID.
+	 */
+	private void retainSelected(Map<Integer, ? extends Map<Integer, ?>> byPid) {
+		byPid.forEach((pid, byProgram) -> byProgram.keySet().removeIf(program -> !isPmtSelected(pid, program)));
+		byPid.values().removeIf(Map::isEmpty);
+	}
+
+	/**
+	 * Apply a new PMT of the input.
+	 */
+	public void onPmt(int pid, PMTSection pmt) {
+		int program = pmt.getSpecificId();
+		if (!isPmtSelected(pid, program)) {
+			return;
+		}
+		pmts.computeIfAbsent(pid, key -> new TreeMap<>()).put(program, pmt);
+		pmtTables.computeIfAbsent(pid, key -> new TreeMap<>())
+				.put(program, PsiWriter.packetize(remap[pid], PsiWriter.pmt(pmt, remap)));
+		updateKinds();
+	}
+
+	private void updateKinds() {
+		Arrays.fill(kinds, DROP);
+		for (int pid : pids) {
+			kinds[pid] = PASS;
+		}
+		if (pat != null) {
+			pat.getPrograms().forEach((program, pid) -> {
+				if (isProgramSelected(program)) {
+					kinds[pid] = TABLE;
+				}
+			});
+		}
+		for (Map<Integer, PMTSection> byProgram : pmts.values()) {
+			for (PMTSection pmt : byProgram.values()) {
+				if (pmt.getPcrPid() != 0x1fff) {
+					kinds[pmt.getPcrPid()] = PASS;
+				}
+				for (PMTSection.PMTStream stream : pmt.getStreams()) {
+					kinds[stream.getPid()] = PASS;
+				}
+			}
+		}
+		kinds[0] = TABLE;
+	}
+
+	/**
+	 * Append what a packet of the input becomes to the output: nothing, a copy with its PID remapped, or the rewritten
+	 * tables in place of the start of an input table. All the selected PMTs carried on a PMT PID are sent at the start
+	 * of each of its input sections.
+	 */
+	public void filter(MTSPacketView packet) {
+		int pid = packet.getPid();
+		switch (kinds[pid]) {
+			case PASS:
+				reserve(Constants.MPEGTS_PACKET_SIZE);
+				int offset = output.position();
+				packet.copyTo(output);
+				if (remap[pid] != pid) {
+					MTSPacketView.setPid(output, offset, remap[pid]);
+				}
+				break;
+			case TABLE:
+				if (!packet.isPayloadUnitStartIndicator()) {
+					break;
+				}
+				if (pid == 0) {
+					putTable(pid, patTable);
+				} else {
+					Map<Integer, ByteBuffer> byProgram = pmtTables.get(pid);
+					if (byProgram != null) {
+						for (ByteBuffer table : byProgram.values()) {
+							putTable(pid, table);
+						}
+					}
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	private void putTable(int pid, ByteBuffer table) {
+		if (table == null) {
+			return;
+		}
+		reserve(table.limit());
+		for (int start = 0; start < table.limit(); start += Constants.MPEGTS_PACKET_SIZE) {
+			output.put(output.position(), table, start, Constants.MPEGTS_PACKET_SIZE);
+			continuities[pid] = (continuities[pid] + 1) & 0x0f;
+			MTSPacketView.setContinuityCounter(output, output.position(), continuities[pid]);
+			output.position(output.position() + Constants.MPEGTS_PACKET_SIZE);
+		}
+	}
+
+	/**
+	 * @return the packets filtered since the last {@link ByteBuffer#clear()} of the buffer, between its start and its
+	 * position
+	 */
+	public ByteBuffer output() {
+		return output;
+	}
+
+	private void reserve(int length) {
+		if (output.remaining() < length) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * output.capacity(), output.position() + length));
+			output.flip();
+			output = larger.put(output);
+		}
+	}
+
+	public static PidFilterBuilder builder() {
+		return new PidFilterBuilder();
+	}
+
+	public static class PidFilterBuilder {
+		private final Set<Integer> programs = new HashSet<>();
+		private final Set<Integer> pids = new HashSet<>();
+		private final int[] remap = new int[PID_COUNT];
+
+		private PidFilterBuilder() {
+			for (int pid = 0; pid < PID_COUNT; pid++) {
+				remap[pid] = pid;
+			}
+		}
+
+		/**
+		 * Select programs by program_number. All programs are selected by default.
+		 */
+		public PidFilterBuilder addPrograms(int... programs) {
+			for (int program : programs) {
+				this.programs.add(program);
+			}
+			return this;
+		}
+
+		/**
+		 * Also pass the packets of PIDs outside of the programs, e.g. 0x11 for the SDT.
+		 */
+		public PidFilterBuilder addPids(int... pids) {
+			for (int pid : pids) {
+				Preconditions.checkArgument(pid > 0 && pid < PID_COUNT, "Invalid PID %s", pid);
+				this.pids.add(pid);
+			}
+			return this;
+		}
+
+		/**
+		 * Move a PID of the input to another PID in the output. PMTs and the PAT are rewritten accordingly.
+		 */
+		public PidFilterBuilder remapPid(int from, int to) {
+			Preconditions.checkArgument(from > 0 && from < 0x1fff && to > 0 && to < 0x1fff, "Invalid PID mapping %s -> %s", from, to);
+			remap[from] = to;
+			return this;
+		}
+
+		public PidFilter build() {
+			return new PidFilter(Set.copyOf(programs), pids.stream().mapToInt(Integer::intValue).toArray(), remap.clone());
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package org.taktik.mpegts;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds PAT and PMT sections, closed by their CRC_32, and cuts sections into transport stream packets.
+ */
+public final class PsiWriter {
+	private static final int PAT_TABLE_ID = 0x00;
+	private static final int PMT_TABLE_ID = 0x02;
+
+	private PsiWriter() {
+	}
+
+	/**
+	 * @param programs PMT PID by program_number, in the order of the section
+	 */
+	public static byte[] pat(int transportStreamId, int version, Map<Integer, Integer> programs) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		programs.forEach((program, pid) -> {
+			writeShort(body, program);
+			writeShort(body, 0xe000 | pid);
+		});
+		return section(PAT_TABLE_ID, transportStreamId, version, body.toByteArray());
+	}
+
+	/**
+	 * @param remap the PID of the output for each PID of the PMT
+	 */
+	public static byte[] pmt(PMTSection pmt, int[] remap) {
+		return pmt(pmt, pmt.getSpecificId(), remap);
+	}
+
+	/**
+	 * @param program the program_number of the output
+	 * @param remap the PID of the output for each PID of the PMT
+	 */
+	public static byte[] pmt(PMTSection pmt, int program, int[] remap) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int pcrPid = pmt.getPcrPid();
+		writeShort(body, 0xe000 | (pcrPid == 0x1fff ? pcrPid : remap[pcrPid]));
+		writeDescriptors(body, pmt.getTags());
+		for (PMTSection.PMTStream stream : pmt.getStreams()) {
+			body.write(stream.getStreamType());
+			writeShort(body, 0xe000 | remap[stream.getPid()]);
+			writeDescriptors(body, stream.getDescriptors());
+		}
+		return section(PMT_TABLE_ID, program, pmt.getVersionNumber(), body.toByteArray());
+	}
+
+	private static void writeDescriptors(ByteArrayOutputStream body, List<PMTSection.Tag> descriptors) {
+		ByteArrayOutputStream loop = new ByteArrayOutputStream();
+		for (PMTSection.Tag descriptor : descriptors) {
+			ByteBuffer content = descriptor.getContent();
+			loop.write(descriptor.getTag());
+			loop.write(content.remaining());
+			while (content.hasRemaining()) {
+				loop.write(content.get());
+			}
+		}
+		writeShort(body, 0xf000 | loop.size());
+		body.writeBytes(loop.toByteArray());
+	}
+
+	/**
+	 * @return a long section, current, with a single section_number
+	 */
+	private static byte[] section(int tableId, int extension, int version, byte[] body) {
+		int length = 5 + body.length + 4;
+		byte[] section = new byte[3 + length];
+		ByteBuffer buffer = ByteBuffer.wrap(section);
+		buffer.put((byte) tableId);
+		buffer.putShort((short) (0xb000 | length));
+		buffer.putShort((short) extension);
+		buffer.put((byte) (0xc1 | ((version & 0x1f) << 1)));
+		buffer.put((byte) 0); // section_number
+		buffer.put((byte) 0); // last_section_number
+		buffer.put(body);
+		buffer.putInt(MpegCrc32.compute(section, 0, section.length - 4));
+		return section;
+	}
+
+	/**
+	 * Cut a section into packets: the first one starts it with a zero pointer_field, and the last one is padded with
+	 * stuffing bytes. Continuity counters are left to 0.
+	 *
+	 * @return the packets, flipped
+	 */
+	public static ByteBuffer packetize(int pid, byte[] section) {
+		int payloadSize = Constants.MPEGTS_PACKET_SIZE - 4;
+		int packets = (section.length + 1 + payloadSize - 1) / payloadSize;
+		ByteBuffer buffer = ByteBuffer.allocate(packets * Constants.MPEGTS_PACKET_SIZE);
+		byte[] stuffing = new byte[buffer.capacity()];
+		Arrays.fill(stuffing, (byte) 0xff);
+		buffer.put(0, stuffing);
+		int position = 0;
+		for (int packet = 0; packet < packets; packet++) {
+			int offset = packet * Constants.MPEGTS_PACKET_SIZE;
+			buffer.position(offset);
+			buffer.put((byte) 0x47);
+			buffer.put((byte) ((packet == 0 ? 0x40 : 0) | (pid >> 8)));
+			buffer.put((byte) pid);
+			buffer.put((byte) 0x10);
+			if (packet == 0) {
+				buffer.put((byte) 0);
+			}
+			int count = Math.min(offset + Constants.MPEGTS_PACKET_SIZE - buffer.position(), section.length - position);
+			buffer.put(section, position, count);
+			position += count;
+		}
+		return buffer.clear();
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write(value >> 8);
+		out.write(value);
+	}
+}
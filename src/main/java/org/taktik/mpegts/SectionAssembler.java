@@ -0,0 +1,208 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reassembles the PSI sections carried on PIDs, for sections spanning several packets and packets carrying several
+ * sections.<br>
+ *
+ * Code using this class pushes the packets of the PIDs it follows with {@link #push(MTSPacketView)}. Sections are
+ * gathered from the pointer_field of packets starting one, checked against their CRC_32, and handed to the
+ * {@link SectionListener}. A section identical to the last one emitted with the same table_id, table_id_extension and
+ * section_number is recognized from its CRC_32 field and dropped before its CRC is even computed: the repetitions of
+ * an unchanged table cost one comparison. Monitoring code can have repetitions verified too, to count corrupted ones
+ * in {@link #getCrcErrors()}.<br>
+ *
+ * Duplicate packets are ignored, and a continuity counter jump drops the section in progress. State is kept in an
+ * array indexed by PID, allocated on the first packet of each PID.
+ */
+public class SectionAssembler {
+	private static final int PID_COUNT = 8192;
+	// table_id, section_length, and the longest private section
+	private static final int MAX_SECTION_SIZE = 3 + 4093;
+
+	public interface SectionListener {
+		/**
+		 * @param section the section from its table_id to its CRC_32 included, read-only and only valid during the
+		 *                call
+		 */
+		void onSection(int pid, ByteBuffer section);
+	}
+
+	private final SectionListener listener;
+	private final boolean verifyRepeats;
+	private final PidState[] states = new PidState[PID_COUNT];
+	private long crcErrors;
+
+	public SectionAssembler(SectionListener listener) {
+		this(listener, false);
+	}
+
+	/**
+	 * @param verifyRepeats true to check the CRC_32 of every section, repetitions of the last one emitted included
+	 */
+	public SectionAssembler(SectionListener listener, boolean verifyRepeats) {
+		this.listener = listener;
+		this.verifyRepeats = verifyRepeats;
+	}
+
+	public void push(MTSPacketView packet) {
+		if (packet.isTransportErrorIndicator() || !packet.isContainsPayload()) {
+			return;
+		}
+		int pid = packet.getPid();
+		PidState state = states[pid];
+		if (state == null) {
+			state = states[pid] = new PidState();
+		}
+		int cc = packet.getContinuityCounter();
+		if (state.cc >= 0 && !packet.isDiscontinuityIndicator()) {
+			if (cc == state.cc) {
+				return;
+			}
+			if (cc != ((state.cc + 1) & 0x0f)) {
+				state.length = -1;
+			}
+		}
+		state.cc = cc;
+
+		ByteBuffer buffer = packet.buffer();
+		int position = packet.getPayloadOffset();
+		int end = position + packet.getPayloadLength();
+		if (packet.isPayloadUnitStartIndicator()) {
+			int pointer = buffer.get(position++) & 0xff;
+			if (position + pointer > end) {
+				state.length = -1;
+				return;
+			}
+			// End of the previous section, then the sections starting in this packet
+			if (state.length > 0) {
+				append(pid, state, buffer, position, position + pointer, false);
+			}
+			state.length = 0;
+			append(pid, state, buffer, position + pointer, end, true);
+		} else if (state.length > 0) {
+			append(pid, state, buffer, position, end, false);
+		}
+	}
+
+	/**
+	 * @param mayStart true if sections may start in the given bytes, false to stop after the section in progress
+	 */
+	private void append(int pid, PidState state, ByteBuffer buffer, int position, int end, boolean mayStart) {
+		while (position < end) {
+			if (state.length == 0 && (buffer.get(position) & 0xff) == 0xff) {
+				// Stuffing up to the end of the packet
+				state.length = -1;
+				return;
+			}
+			int needed = state.length < 3 ? 3 - state.length : state.size - state.length;
+			int count = Math.min(needed, end - position);
+			buffer.get(position, state.data, state.length, count);
+			state.length += count;
+			position += count;
+			if (state.length == 3 && count == needed) {
+				state.size = 3 + (((state.data[1] & 0x0f) << 8) | (state.data[2] & 0xff));
+				if (state.size > MAX_SECTION_SIZE) {
+					state.length = -1;
+					return;
+				}
+			}
+			if (state.length >= 3 && state.length == state.size) {
+				complete(pid, state);
+				if (!mayStart) {
+					state.length = -1;
+					return;
+				}
+				state.length = 0;
+			}
+		}
+	}
+
+	private void complete(int pid, PidState state) {
+		byte[] data = state.data;
+		int size = state.size;
+		// Short sections have no CRC_32, nor version
+		if ((data[1] & 0x80) == 0) {
+			listener.onSection(pid, ByteBuffer.wrap(data, 0, size).asReadOnlyBuffer());
+			return;
+		}
+		if (size < 12) {
+			crcErrors++;
+			return;
+		}
+		// table_id, table_id_extension, section_number
+		int key = ((data[0] & 0xff) << 24) | ((data[3] & 0xff) << 16) | ((data[4] & 0xff) << 8) | (data[6] & 0xff);
+		int crc = ((data[size - 4] & 0xff) << 24) | ((data[size - 3] & 0xff) << 16) | ((data[size - 2] & 0xff) << 8)
+				| (data[size - 1] & 0xff);
+		int index = state.indexOf(key);
+		boolean repeat = index >= 0 && state.crcs[index] == crc;
+		if (repeat && !verifyRepeats) {
+			return;
+		}
+		if (MpegCrc32.compute(data, 0, size) != 0) {
+			crcErrors++;
+			return;
+		}
+		if (repeat) {
+			return;
+		}
+		state.put(index, key, crc);
+		listener.onSection(pid, ByteBuffer.wrap(data, 0, size).asReadOnlyBuffer());
+	}
+
+	/**
+	 * Forget a PID, e.g. a PMT PID removed from the PAT: its next sections are emitted even if unchanged.
+	 */
+	public void reset(int pid) {
+		states[pid] = null;
+	}
+
+	/**
+	 * Forget all PIDs.
+	 */
+	public void reset() {
+		Arrays.fill(states, null);
+	}
+
+	/**
+	 * @return the number of sections dropped for a wrong CRC_32 or length
+	 */
+	public long getCrcErrors() {
+		return crcErrors;
+	}
+
+	private static class PidState {
+		final byte[] data = new byte[MAX_SECTION_SIZE];
+		// Bytes of the section in progress, -1 waiting for the next section start
+		int length = -1;
+		int size;
+		int cc = -1;
+		// CRC_32 of the last section emitted per table_id, table_id_extension and section_number
+		int[] keys = new int[1];
+		int[] crcs = new int[1];
+		int count;
+
+		int indexOf(int key) {
+			for (int i = 0; i < count; i++) {
+				if (keys[i] == key) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		void put(int index, int key, int crc) {
+			if (index < 0) {
+				if (count == keys.length) {
+					keys = Arrays.copyOf(keys, 2 * count);
+					crcs = Arrays.copyOf(crcs, 2 * count);
+				}
+				index = count++;
+				keys[index] = key;
+			}
+			crcs[index] = crc;
+		}
+	}
+}
@@ -1,11 +1,8 @@
 package org.taktik.mpegts;
 
 import java.nio.ByteBuffer;
-import java.util.TreeMap;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Maps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.taktik.mpegts.sinks.MTSSink;
@@ -17,28 +14,33 @@ public class Streamer {
 	private MTSSource source;
 	private MTSSink sink;
 
-	private ArrayBlockingQueue<MTSPacket> buffer;
+	// Packets travel from the buffering thread to the streaming thread in blocks of PACKETS_PER_BLOCK packets,
+	// preallocated off-heap
+	private PacketRing buffer;
 	private int bufferSize;
-	private boolean endOfSourceReached;
-	private boolean streamingShouldStop;
-
-	private PATSection patSection;
-	private TreeMap<Integer,PMTSection> pmtSection;
+	private WaitStrategy waitStrategy;
+	private PcrPacer pacer;
+	// Holds the output to a constant bitrate, null without a mux rate
+	private CbrStuffer stuffer;
+	private volatile boolean streamingShouldStop;
 
 	private Thread bufferingThread;
 	private Thread streamingThread;
 
-	private Streamer(MTSSource source, MTSSink sink, int bufferSize) {
+	private Streamer(MTSSource source, MTSSink sink, int bufferSize, WaitStrategy waitStrategy, PcrPacer pacer, long muxRate) {
 		this.source = source;
 		this.sink = sink;
 		this.bufferSize = bufferSize;
+		this.waitStrategy = waitStrategy;
+		this.pacer = pacer;
+		this.stuffer = muxRate > 0 ? new CbrStuffer(muxRate, pacer) : null;
 	}
 
 	public void stream() {
-		buffer = new ArrayBlockingQueue<>(bufferSize);
-		patSection = null;
-		pmtSection = Maps.newTreeMap();
-		endOfSourceReached = false;
+		buffer = PacketRing.builder()
+				.setSlots((bufferSize + Constants.PACKETS_PER_BLOCK - 1) / Constants.PACKETS_PER_BLOCK)
+				.setWaitStrategy(waitStrategy)
+				.build();
 		streamingShouldStop = false;
 		log.info("PreBuffering {} packets", bufferSize);
 		try {
@@ -61,7 +63,7 @@ public class Streamer {
 
 	public void stop() {
 		streamingShouldStop = true;
-		buffer.clear();
+		buffer.close();
 		try {
 			bufferingThread.join();
 			streamingThread.join();
@@ -76,210 +78,111 @@ public class Streamer {
 		streamingThread.join();
 	}
 
+	public PcrPacer getPacer() {
+		return pacer;
+	}
 
-	private void internalStream() {
-		boolean resetState = false;
-		MTSPacket packet;
-		long packetCount = 0;
-		long pcrCount = 0;
-		//long pcrPidPacketCount = 0;
-		Long firstPcrValue = null;
-		Long firstPcrTime = null;
-		//Long firstPcrPacketCount = null;
-		Long lastPcrValue = null;
-		Long lastPcrTime = null;
-		//Long lastPcrPacketCount = null;
-		Long averageSleep = null;
-		while (!streamingShouldStop) {
-			if (resetState) {
-				pcrCount = 0;
-				firstPcrValue = null;
-				firstPcrTime = null;
-				lastPcrValue = null;
-				lastPcrTime = null;
-				averageSleep = null;
-				resetState = false;
-			}
-
-			// Initialize time to sleep
-			long sleepNanos = 0;
-
-			packet = buffer.poll();
-
-			if (packet == null) {
-				if (endOfSourceReached) {
-					packet = buffer.poll();
-					if (packet == null) {
-						break;
-					}
-				} else {
-					continue;
-				}
-			}
-
-			int pid = packet.getPid();
-
-			if (pid == 0 && packet.isPayloadUnitStartIndicator()) {
-				ByteBuffer payload = packet.getPayload();
-				payload.rewind();
-				int pointer = payload.get() & 0xff;
-				payload.position(payload.position() + pointer);
-				patSection = PATSection.parse(payload);
-				for (Integer pmtPid : pmtSection.keySet()) {
-					if (!patSection.getPrograms().values().contains(pmtPid)) {
-						pmtSection.remove(pmtPid);
-					}
-				}
-			}
-
-			if (pid != 0 && patSection!=null) {
-				if (patSection.getPrograms().values().contains(pid)) {
-					if (packet.isPayloadUnitStartIndicator()) {
-						ByteBuffer payload = packet.getPayload();
-						payload.rewind();
-						int pointer = payload.get() & 0xff;
-						payload.position(payload.position() + pointer);
-						pmtSection.put(pid, PMTSection.parse(payload));
-					}
-				}
-
-			}
-
-			// Check PID matches PCR PID
-			if (true) {//mtsPacket.pid == pmt.getPcrPid()) {
-				//pcrPidPacketCount++;
-
-				if (averageSleep != null) {
-					sleepNanos = averageSleep;
-				} else {
-//						if (pcrPidPacketCount < 2) {
-//							if (pcrPidPacketCount % 10 == 0) {
-//								sleepNanos = 15;
-//							}
-//						}
-				}
-			}
-
-			// Check for PCR
-			if (packet.getAdaptationField() != null) {
-				if (packet.getAdaptationField().getPcr() != null) {
-					if (packet.getPid() == getPCRPid()) {
-						if (!packet.getAdaptationField().isDiscontinuityIndicator()) {
-							// Get PCR and current nano time
-							long pcrValue = packet.getAdaptationField().getPcr().getValue();
-							long pcrTime = System.nanoTime();
-							pcrCount++;
-
-							// Compute sleepNanosOrig
-							Long sleepNanosOrig = null;
-							if (firstPcrValue == null || firstPcrTime == null) {
-								firstPcrValue = pcrValue;
-								firstPcrTime = pcrTime;
-								//firstPcrPacketCount = pcrPidPacketCount;
-							} else if (pcrValue > firstPcrValue) {
-								sleepNanosOrig = ((pcrValue - firstPcrValue) / 27 * 1000) - (pcrTime - firstPcrTime);
-							}
-
-							// Compute sleepNanosPrevious
-							Long sleepNanosPrevious = null;
-							if (lastPcrValue != null && lastPcrTime != null) {
-								if (pcrValue <= lastPcrValue) {
-									System.err.println("PCR discontinuity ! "  + packet.getPid());
-									resetState = true;
-								} else {
-									sleepNanosPrevious = ((pcrValue - lastPcrValue) / 27 * 1000) - (pcrTime - lastPcrTime);
-								}
-							}
-							log.atDebug().log("pcrValue={}, lastPcrValue={}, sleepNanosPrevious={}, sleepNanosOrig={}",
-									pcrValue, lastPcrValue, sleepNanosPrevious, sleepNanosOrig);
+	/**
+	 * @return the stuffing stage of the constant bitrate mode, or null without a mux rate
+	 */
+	public CbrStuffer getStuffer() {
+		return stuffer;
+	}
 
-							// Set sleep time based on PCR if possible
-							if (sleepNanosPrevious != null) {
-								// Safety : We should never have to wait more than 100ms
-								if (sleepNanosPrevious > 100000000) {
-									log.warn("PCR sleep ignored, too high !");
-									resetState = true;
-								} else {
-									sleepNanos = sleepNanosPrevious;
-//										averageSleep = sleepNanosPrevious / (pcrPidPacketCount - lastPcrPacketCount - 1);
-								}
-							}
 
-							// Set lastPcrValue/lastPcrTime
-							lastPcrValue = pcrValue;
-							lastPcrTime = pcrTime + sleepNanos;
-							//lastPcrPacketCount = pcrPidPacketCount;
-						} else {
-							log.warn("Skipped PCR - Discontinuity indicator");
-						}
-					} else {
-						log.debug("Skipped PCR - PID does not match");
-					}
-				}
-			}
-
-			// Sleep if needed
-			if (sleepNanos > 0) {
-				log.trace("Sleeping " + sleepNanos / 1000000 + " millis, " + sleepNanos % 1000000 + " nanos");
-				try {
-					Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
-				} catch (InterruptedException e) {
-					log.warn("Streaming sleep interrupted!");
+	private void internalStream() {
+		PacedStream paced = new PacedStream(buffer, pacer);
+		if (stuffer != null) {
+			stuffer.reset();
+		}
+		// Departure time by which the packets held back by the sink must leave, -1 if none
+		long flushDeadline = -1;
+		while (!streamingShouldStop && nextGroup(paced)) {
+			if (stuffer != null) {
+				stuffer.send(paced.slot(), paced.groupStart(), paced.groupEnd(), paced.groupDeparture(), this::sendRun);
+			} else {
+				if (flushDeadline >= 0 && paced.groupDeparture() > flushDeadline) {
+					// Nothing to complete the held packets in time: send them with their own group
+					flushSink();
 				}
+				pacer.awaitDeparture(paced.groupDeparture());
+				sendRun(paced.slot(), paced.groupStart(), paced.groupEnd());
+				flushDeadline = paced.groupFlushDeadline();
 			}
+		}
+		log.info("Sent {} MPEG-TS packets", paced.getPacketCount());
+		log.info("Paced {} departures, jitter mean={}ns rms={}ns max={}ns", pacer.getDepartures(),
+				(long) pacer.getMeanJitterNanos(), (long) pacer.getRmsJitterNanos(), pacer.getMaxJitterNanos());
+		if (stuffer != null) {
+			log.info("Sent {} packets at {}b/s, stuffing={}%, PCR accuracy max={}ns, {} of {} PCRs beyond 500ns",
+					stuffer.getPacketCount(), stuffer.getMuxRate(), Math.round(stuffer.getStuffingRatio() * 1000) / 10.0,
+					(long) stuffer.getMaxPcrErrorNanos(), stuffer.getPcrErrors(), stuffer.getPcrCount());
+		}
+	}
 
-			// Stream packet
-			// System.out.println("Streaming packet #" + packetCount + ", PID=" + mtsPacket.getPid() + ", pcrCount=" + pcrCount + ", continuityCounter=" + mtsPacket.getContinuityCounter());
+	/**
+	 * Move to the next group, flushing the sink first if the buffer ran dry.
+	 */
+	private boolean nextGroup(PacedStream paced) {
+		if (paced.nextGroup(false)) {
+			return true;
+		}
+		flushSink();
+		return paced.nextGroup(true);
+	}
 
-			try {
-				sink.send(packet);
-			} catch (Exception e) {
-				log.error("Error sending packet to sink", e);
-			}
+	private void flushSink() {
+		try {
+			sink.flush();
+		} catch (Exception e) {
+			log.error("Error flushing sink", e);
+		}
+	}
 
-			packetCount++;
+	private void sendRun(ByteBuffer slot, int start, int end) {
+		if (start >= end) {
+			return;
+		}
+		int limit = slot.limit();
+		try {
+			slot.limit(end).position(start);
+			sink.send(slot);
+		} catch (Exception e) {
+			log.error("Error sending packets to sink", e);
+		} finally {
+			slot.limit(limit);
 		}
-		log.info("Sent {} MPEG-TS packets", packetCount);
 	}
 
 	private void preBuffer() throws Exception {
-		MTSPacket packet;
-		int packetNumber = 0;
-		while ((packetNumber < bufferSize) && (packet = source.nextPacket()) != null) {
-			buffer.add(packet);
-			packetNumber++;
+		ByteBuffer slot;
+		while ((slot = buffer.tryClaim()) != null) {
+			if (source.nextPackets(slot) == 0) {
+				buffer.finish();
+				break;
+			}
+			slot.flip();
+			buffer.publish(PacedStream.slotTag(source));
 		}
 	}
 
 	private void fillBuffer() {
 		try {
-			MTSPacket packet;
-			while (!streamingShouldStop && (packet = source.nextPacket()) != null) {
-				boolean put = false;
-				while (!put) {
-					try {
-						buffer.put(packet);
-						put = true;
-					} catch (InterruptedException ignored) {
-
-					}
+			ByteBuffer slot;
+			while (!streamingShouldStop && (slot = buffer.claim()) != null) {
+				if (source.nextPackets(slot) == 0) {
+					break;
 				}
+				slot.flip();
+				buffer.publish(PacedStream.slotTag(source));
 			}
 		} catch (Exception e) {
 			log.error("Error reading from source", e);
 		} finally {
-			endOfSourceReached = true;
+			buffer.finish();
 		}
 	}
 
-	private int getPCRPid() {
-		if ((!pmtSection.isEmpty())) {
-			// TODO change this
-			return pmtSection.values().iterator().next().getPcrPid();
-		}
-		return -1;
-	}
-
 	public static StreamerBuilder builder() {
 		return new StreamerBuilder();
 	}
@@ -288,6 +191,9 @@ public class Streamer {
 		private MTSSink sink;
 		private MTSSource source;
 		private int bufferSize = 1000;
+		private WaitStrategy waitStrategy = WaitStrategy.PARK;
+		private PcrPacer pacer;
+		private long muxRate;
 
 		public StreamerBuilder setSink(MTSSink sink) {
 			this.sink = sink;
@@ -304,10 +210,37 @@ public class Streamer {
 			return this;
 		}
 
+		/**
+		 * How the streaming thread waits for packets, and the buffering thread for free space:
+		 * {@link WaitStrategy#PARK} (default) for idle efficiency, {@link WaitStrategy#BUSY_SPIN} for hand-off latency.
+		 */
+		public StreamerBuilder setWaitStrategy(WaitStrategy waitStrategy) {
+			this.waitStrategy = waitStrategy;
+			return this;
+		}
+
+		public StreamerBuilder setPacer(PcrPacer pacer) {
+			this.pacer = pacer;
+			return this;
+		}
+
+		/**
+		 * Send a constant bitrate output: null packets fill the gaps of the input and PCRs are restamped for the
+		 * position of their packets. 0, the default, sends the input as it is.
+		 *
+		 * @param muxRate the rate of the output in bits per second
+		 */
+		public StreamerBuilder setMuxRate(long muxRate) {
+			this.muxRate = muxRate;
+			return this;
+		}
+
 		public Streamer build() {
 			Preconditions.checkNotNull(sink);
 			Preconditions.checkNotNull(source);
-			return new Streamer(source, sink, bufferSize);
+			Preconditions.checkNotNull(waitStrategy);
+			Preconditions.checkArgument(muxRate >= 0, "muxRate cannot be negative");
+			return new Streamer(source, sink, bufferSize, waitStrategy, pacer == null ? PcrPacer.builder().build() : pacer, muxRate);
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,335 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.sinks.MTSSink;
+import org.taktik.mpegts.sources.MTSSource;
+
+/**
+ * Streams many channels, each from a source to a sink, with a small pool of carrier threads.<br>
+ *
+ * Each channel cuts its packets in paced groups, like {@link Streamer}. Channels wait in a queue ordered by the
+ * departure time of their next group: a carrier takes the earliest channel when its departure is close, sends the
+ * group, reads ahead from the source, and queues the channel again. Carriers sleep while no departure is due, so the
+ * CPU used grows with the total bitrate rather than with the number of channels.<br>
+ *
+ * Sources are read on the carriers, so they should not block for long, e.g. sources that read ahead like
+ * {@link org.taktik.mpegts.sources.AbstractBlockingMTSSource}.
+ */
+public class StreamingEngine {
+	static final Logger log = LoggerFactory.getLogger("engine");
+
+	private final int carriers;
+	private final int bufferSize;
+	private final long spinNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition due = lock.newCondition();
+	private final PriorityQueue<Channel> queue = new PriorityQueue<>(Comparator.comparingLong(channel -> channel.due));
+	private final List<Thread> threads = new ArrayList<>();
+	private boolean running;
+
+	private StreamingEngine(int carriers, int bufferSize, long spinNanos) {
+		this.carriers = carriers;
+		this.bufferSize = bufferSize;
+		this.spinNanos = spinNanos;
+	}
+
+	public void start() {
+		lock.lock();
+		try {
+			Preconditions.checkState(!running, "Engine already started");
+			running = true;
+			for (int i = 0; i < carriers; i++) {
+				threads.add(Thread.ofPlatform().name("carrier-" + i).start(this::carry));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop the carriers. Channels that are not finished are stopped.
+	 */
+	public void stop() {
+		lock.lock();
+		try {
+			running = false;
+			due.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			log.error("stop exception", e);
+		}
+		threads.clear();
+		lock.lock();
+		try {
+			Channel channel;
+			while ((channel = queue.poll()) != null) {
+				channel.finish();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Channel addChannel(MTSSource source, MTSSink sink) {
+		return addChannel(source, sink, PcrPacer.builder().build());
+	}
+
+	public Channel addChannel(MTSSource source, MTSSink sink, PcrPacer pacer) {
+		Preconditions.checkNotNull(source);
+		Preconditions.checkNotNull(sink);
+		Preconditions.checkNotNull(pacer);
+		Channel channel = new Channel(source, sink, pacer);
+		channel.due = System.nanoTime();
+		schedule(channel);
+		return channel;
+	}
+
+	private void schedule(Channel channel) {
+		lock.lock();
+		try {
+			queue.add(channel);
+			due.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void carry() {
+		lock.lock();
+		try {
+			while (running) {
+				Channel channel = queue.peek();
+				if (channel == null) {
+					due.await();
+					continue;
+				}
+				long wait = channel.due - System.nanoTime() - spinNanos;
+				if (wait > 0) {
+					due.awaitNanos(wait);
+					continue;
+				}
+				queue.poll();
+				// Another carrier may take the next channel
+				due.signal();
+				boolean more;
+				lock.unlock();
+				try {
+					more = channel.step();
+				} finally {
+					lock.lock();
+				}
+				if (more && !channel.stopped) {
+					queue.add(channel);
+				} else {
+					channel.finish();
+				}
+			}
+		} catch (InterruptedException e) {
+			log.warn("Carrier interrupted");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public class Channel {
+		private final MTSSource source;
+		private final MTSSink sink;
+		private final PcrPacer pacer;
+		private final PacketRing ring;
+		private final PacedStream paced;
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		// Nano time at which the next group is due
+		private long due;
+		private boolean endOfSource;
+		private volatile boolean stopped;
+		private boolean started;
+
+		private Channel(MTSSource source, MTSSink sink, PcrPacer pacer) {
+			this.source = source;
+			this.sink = sink;
+			this.pacer = pacer;
+			// The current group holds a slot while the next one is read ahead
+			this.ring = PacketRing.builder()
+					.setSlots(Math.max(2, (bufferSize + Constants.PACKETS_PER_BLOCK - 1) / Constants.PACKETS_PER_BLOCK))
+					.build();
+			this.paced = new PacedStream(ring, pacer);
+		}
+
+		/**
+		 * Send the current group, read ahead and cut the next group.
+		 *
+		 * @return false when the channel is finished
+		 */
+		private boolean step() {
+			long flushDeadline = -1;
+			if (started) {
+				pacer.awaitDeparture(paced.groupDeparture());
+				send(paced.slot(), paced.groupStart(), paced.groupEnd());
+				flushDeadline = paced.groupFlushDeadline();
+			}
+			started = true;
+			fill();
+			if (!paced.nextGroup(false)) {
+				flush();
+				return false;
+			}
+			long departure = paced.groupDeparture();
+			if (flushDeadline >= 0 && departure > flushDeadline) {
+				// Nothing to complete the packets held back by the sink in time: send them with their own group
+				flush();
+			}
+			due = departure < 0 ? System.nanoTime() : departure;
+			return true;
+		}
+
+		private void fill() {
+			try {
+				ByteBuffer slot;
+				while (!endOfSource && (slot = ring.tryClaim()) != null) {
+					if (source.nextPackets(slot) == 0) {
+						endOfSource = true;
+						break;
+					}
+					slot.flip();
+					ring.publish(PacedStream.slotTag(source));
+				}
+			} catch (Exception e) {
+				log.error("Error reading from source", e);
+				endOfSource = true;
+			}
+			if (endOfSource) {
+				ring.finish();
+			}
+		}
+
+		private void send(ByteBuffer slot, int start, int end) {
+			int limit = slot.limit();
+			try {
+				slot.limit(end).position(start);
+				sink.send(slot);
+			} catch (Exception e) {
+				log.error("Error sending packets to sink", e);
+			} finally {
+				slot.limit(limit);
+			}
+		}
+
+		private void flush() {
+			try {
+				sink.flush();
+			} catch (Exception e) {
+				log.error("Error flushing sink", e);
+			}
+		}
+
+		private void finish() {
+			if (done.getCount() > 0) {
+				log.info("Sent {} MPEG-TS packets", paced.getPacketCount());
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Stop streaming this channel. The source and the sink are not closed.
+		 */
+		public void stop() {
+			stopped = true;
+			lock.lock();
+			try {
+				if (queue.remove(this)) {
+					finish();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Wait until the channel is finished, at the end of its source or when stopped.
+		 */
+		public void join() throws InterruptedException {
+			done.await();
+		}
+
+		public boolean join(long timeout, TimeUnit unit) throws InterruptedException {
+			return done.await(timeout, unit);
+		}
+
+		public boolean isFinished() {
+			return done.getCount() == 0;
+		}
+
+		public long getPacketCount() {
+			return paced.getPacketCount();
+		}
+
+		public PcrPacer getPacer() {
+			return pacer;
+		}
+	}
+
+	public static StreamingEngineBuilder builder() {
+		return new StreamingEngineBuilder();
+	}
+
+	public static class StreamingEngineBuilder {
+		private int carriers = Runtime.getRuntime().availableProcessors();
+		private int bufferSize = 1000;
+		private long spinNanos = TimeUnit.MICROSECONDS.toNanos(100);
+
+		private StreamingEngineBuilder() {
+		}
+
+		/**
+		 * Number of carrier threads, default one per processor.
+		 */
+		public StreamingEngineBuilder setCarriers(int carriers) {
+			this.carriers = carriers;
+			return this;
+		}
+
+		/**
+		 * Number of packets buffered per channel, default 1000, rounded up to at least two slots of
+		 * {@link Constants#PACKETS_PER_BLOCK} packets.
+		 */
+		public StreamingEngineBuilder setBufferSize(int bufferSize) {
+			this.bufferSize = bufferSize;
+			return this;
+		}
+
+		/**
+		 * How long before a departure a carrier takes the channel, default 100µs.
+		 */
+		public StreamingEngineBuilder setSpinNanos(long spinNanos) {
+			this.spinNanos = spinNanos;
+			return this;
+		}
+
+		public StreamingEngine build() {
+			Preconditions.checkArgument(carriers > 0, "carriers must be positive");
+			Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+			Preconditions.checkArgument(spinNanos >= 0, "spinNanos cannot be negative");
+			return new StreamingEngine(carriers, bufferSize, spinNanos);
+		}
+	}
+}
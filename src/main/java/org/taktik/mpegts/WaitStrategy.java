@@ -0,0 +1,46 @@
+package org.taktik.mpegts;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits for the other side of a {@link PacketRing}.
+ */
+public enum WaitStrategy {
+	/**
+	 * Spin on the CPU. Lowest hand-off latency, but a waiting thread burns a whole core.
+	 */
+	BUSY_SPIN {
+		@Override
+		void idle(Object blocker) {
+			Thread.onSpinWait();
+		}
+	},
+	/**
+	 * Give the CPU to other threads between checks. Low latency, costs CPU when idle.
+	 */
+	YIELD {
+		@Override
+		void idle(Object blocker) {
+			Thread.yield();
+		}
+	},
+	/**
+	 * Park until woken up by the other side. An idle channel costs almost nothing.
+	 */
+	PARK {
+		@Override
+		void idle(Object blocker) {
+			LockSupport.parkNanos(blocker, PARK_NANOS);
+		}
+	};
+
+	// Upper bound of a single park, in case a wake-up is missed
+	private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	abstract void idle(Object blocker);
+
+	boolean isParking() {
+		return this == PARK;
+	}
+}
@@ -1,9 +1,11 @@
 package org.taktik.mpegts.sinks;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
 public class ByteChannelSink implements MTSSink {
 
@@ -18,6 +20,18 @@ public class ByteChannelSink implements MTSSink {
 		byteChannel.write(packet.getBuffer());
 	}
 
+	@Override
+	public void send(MTSPacketView packet) throws Exception {
+		byteChannel.write(packet.asByteBuffer());
+	}
+
+	@Override
+	public void send(ByteBuffer packets) throws Exception {
+		while (packets.hasRemaining()) {
+			byteChannel.write(packets);
+		}
+	}
+
 	public void close() throws IOException {
 		byteChannel.close();
 	}
@@ -0,0 +1,176 @@
+package org.taktik.mpegts.sinks;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves the playlist and the segments of an {@link HLSSink} with the JDK HTTP server, e.g.
+ * {@code server.createContext("/live/", new HLSHttpHandler(sink))}.<br>
+ *
+ * With low-latency HLS, the playlist and the partial segments are served from the {@link PartRing} of the sink:
+ * blocking playlist reloads and requests for the part of a preload hint wait until it is published, for at most three
+ * target durations. Complete segments are served from memory while their parts are held, then from the directory of
+ * the sink.
+ */
+public class HLSHttpHandler implements HttpHandler {
+	private static final String PLAYLIST_TYPE = "application/vnd.apple.mpegurl";
+	private static final String SEGMENT_TYPE = "video/mp2t";
+
+	private final HLSSink sink;
+	private final String playlistName;
+	private final Pattern partPattern;
+	private final Pattern segmentPattern;
+	private final long timeoutNanos;
+
+	public HLSHttpHandler(HLSSink sink) {
+		this.sink = sink;
+		this.playlistName = sink.getPlaylistPath().getFileName().toString();
+		this.partPattern = Pattern.compile(Pattern.quote(sink.getName()) + "(\\d+)\\.(\\d+)\\.ts");
+		this.segmentPattern = Pattern.compile(Pattern.quote(sink.getName()) + "(\\d+)\\.ts");
+		this.timeoutNanos = 3 * sink.getTargetDuration().toNanos();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			try {
+				String method = exchange.getRequestMethod();
+				if (!method.equals("GET") && !method.equals("HEAD")) {
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				String path = exchange.getRequestURI().getPath();
+				String file = path.substring(path.lastIndexOf('/') + 1);
+				Matcher part = partPattern.matcher(file);
+				Matcher segment = segmentPattern.matcher(file);
+				if (file.equals(playlistName)) {
+					servePlaylist(exchange, query(exchange.getRequestURI().getRawQuery()));
+				} else if (part.matches()) {
+					servePart(exchange, Long.parseLong(part.group(1)), Integer.parseInt(part.group(2)));
+				} else if (segment.matches()) {
+					serveSegment(exchange, file, Long.parseLong(segment.group(1)));
+				} else {
+					exchange.sendResponseHeaders(404, -1);
+				}
+			} catch (NumberFormatException e) {
+				// Still open: the exchange is only closed once answered
+				exchange.sendResponseHeaders(400, -1);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private void servePlaylist(HttpExchange exchange, Map<String, String> query)
+			throws IOException, InterruptedException {
+		if (query.containsKey("_HLS_part") && !query.containsKey("_HLS_msn")) {
+			// A part is only meaningful within a media sequence number
+			exchange.sendResponseHeaders(400, -1);
+			return;
+		}
+		PartRing ring = sink.getPartRing();
+		byte[] playlist;
+		if (ring == null) {
+			Path path = sink.getPlaylistPath();
+			playlist = Files.exists(path) ? Files.readAllBytes(path) : null;
+		} else if (query.containsKey("_HLS_msn")) {
+			long msn = parseNumber(query.get("_HLS_msn"), Long.MAX_VALUE);
+			int part = query.containsKey("_HLS_part") ? (int) parseNumber(query.get("_HLS_part"), Integer.MAX_VALUE) : -1;
+			playlist = ring.awaitPlaylist(msn, part, timeoutNanos);
+			if (playlist == null) {
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+		} else {
+			playlist = ring.getPlaylist();
+		}
+		if (playlist == null) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		send(exchange, PLAYLIST_TYPE, playlist);
+	}
+
+	private void servePart(HttpExchange exchange, long msn, int part) throws IOException, InterruptedException {
+		PartRing ring = sink.getPartRing();
+		byte[] data = ring != null ? ring.awaitPart(msn, part, timeoutNanos) : null;
+		if (data == null) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		send(exchange, SEGMENT_TYPE, data);
+	}
+
+	private void serveSegment(HttpExchange exchange, String file, long msn) throws IOException {
+		PartRing ring = sink.getPartRing();
+		byte[] data = ring != null ? ring.getSegment(msn) : null;
+		if (data != null) {
+			send(exchange, SEGMENT_TYPE, data);
+			return;
+		}
+		Path path = sink.getDirectory().resolve(file);
+		if (!Files.exists(path)) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", SEGMENT_TYPE);
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			exchange.getResponseHeaders().set("Content-Length", Long.toString(Files.size(path)));
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(200, Files.size(path));
+		try (OutputStream body = exchange.getResponseBody()) {
+			Files.copy(path, body);
+		}
+	}
+
+	private static void send(HttpExchange exchange, String contentType, byte[] data) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			exchange.getResponseHeaders().set("Content-Length", Integer.toString(data.length));
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(200, data.length);
+		try (OutputStream body = exchange.getResponseBody()) {
+			body.write(data);
+		}
+	}
+
+	/**
+	 * @throws NumberFormatException if the value is not a number between 0 and max
+	 */
+	private static long parseNumber(String value, long max) {
+		long number = Long.parseLong(value);
+		if (number < 0 || number > max) {
+			throw new NumberFormatException("Out of range: " + value);
+		}
+		return number;
+	}
+
+	private static Map<String, String> query(String rawQuery) {
+		Map<String, String> query = new HashMap<>();
+		if (rawQuery != null) {
+			for (String parameter : rawQuery.split("&")) {
+				int equals = parameter.indexOf('=');
+				if (equals > 0) {
+					query.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+				}
+			}
+		}
+		return query;
+	}
+}
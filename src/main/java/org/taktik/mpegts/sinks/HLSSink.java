@@ -1,103 +1,705 @@
 package org.taktik.mpegts.sinks;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.PATSection;
+import org.taktik.mpegts.PESHeaderView;
+import org.taktik.mpegts.PMTCache;
+import org.taktik.mpegts.PMTSection;
+import org.taktik.mpegts.PMTSection.PMTStream;
+import org.taktik.mpegts.SectionAssembler;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * Packages a stream as live HLS: {@code .ts} segments written to a directory, listed by a sliding window
+ * {@code .m3u8} playlist.<br>
+ *
+ * The first program of the PAT is packaged. Segments are cut at the random access points of its video stream (or of
+ * its first stream, without video) once they reach the target duration, and start with the last PAT and PMT seen.
+ * Segment durations are taken from the PTS of the first PES of each segment, or from the PCRs across a
+ * discontinuity.<br>
+ *
+ * Segment files are written from pooled direct buffers by a {@link SegmentWriter}, and synced to disk before they are
+ * added to the playlist. Sinks packaging many channels should share one writer.<br>
+ *
+ * With a {@link HLSSinkBuilder#setPartTarget(Duration) part target}, segments are also cut into partial segments for
+ * low-latency HLS, kept in memory in a {@link PartRing} with a playlist listing them, to be served by a
+ * {@link HLSHttpHandler}.
+ */
 public class HLSSink implements MTSSink {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HLSSink.class);
 
+    private static final long PCR_CLOCK = 27_000_000L;
+    private static final long PCR_WRAP = (1L << 33) * 300;
+    private static final long PTS_CLOCK = 90_000L;
+    private static final long PTS_WRAP = 1L << 33;
+    // A PCR step outside of [0, MAX_PCR_GAP] is a discontinuity
+    private static final long MAX_PCR_GAP = 10 * PCR_CLOCK;
+
+    private final Path directory;
+    private final String name;
+    private final Path playlistPath;
+    private final Duration target;
+    private final long targetDuration;
+    private final int playlistSize;
+    private final boolean deleteSegments;
+    private final SegmentWriter writer;
+    private final boolean ownWriter;
+    private final MTSPacketView view = new MTSPacketView();
+    private final PESHeaderView pes = new PESHeaderView();
+    // Low-latency HLS, partTarget being 0 and parts null without
+    private final long partTarget;
+    private final PartRing parts;
+
     List<TSProg> progs = Lists.newArrayList();
+    private final SectionAssembler sections = new SectionAssembler(this::readSection);
+    private final PMTCache pmtCache = new PMTCache();
+    // Program being packaged, the first of the PAT
+    private TSProg prog;
+    // Packets of the last PAT, injected at the start of each segment
+    private final List<ByteBuffer> patPackets = Lists.newArrayList();
+    private final Set<Integer> droppedPids = new HashSet<>();
+
+    // Time elapsed since the first PCR, in 27MHz units, not counting discontinuities
+    private long clock;
+    private long lastPcr = -1;
+    private boolean discontinuity;
+    // PTS and clock of the last PES of the stream segments are cut on
+    private long lastPts = -1;
+    private long lastPesClock;
+
+    // Segment being written, and its unwritten packets
+    private Segment segment;
+    private SegmentWriter.SegmentFile segmentFile;
+    private ByteBuffer buffer;
+    private long nextSequence;
+
+    // Part being written, with low-latency HLS
+    private byte[] partData;
+    private int partLength;
+    private long partStartClock;
+    private long partStartPts;
+    private boolean partIndependent;
+
+    // Segments of the playlist, and those removed from it but not deleted yet
+    private final ArrayDeque<Segment> playlist = new ArrayDeque<>();
+    private final ArrayDeque<Segment> removed = new ArrayDeque<>();
+    private long discontinuitySequence;
+    private long targetSeconds;
+    // Last playlist update, after the previous ones
+    private CompletableFuture<Void> published = CompletableFuture.completedFuture(null);
+    private boolean closed;
+
+    private HLSSink(Path directory, String name, Duration targetDuration, Duration partTarget, int playlistSize,
+                    boolean deleteSegments, SegmentWriter writer, boolean ownWriter) {
+        this.directory = directory;
+        this.name = name;
+        this.playlistPath = directory.resolve(name + ".m3u8");
+        this.target = targetDuration;
+        this.targetDuration = toPcrClock(targetDuration);
+        this.partTarget = partTarget != null ? toPcrClock(partTarget) : 0;
+        this.parts = partTarget != null ? new PartRing() : null;
+        this.targetSeconds = (targetDuration.toMillis() + 999) / 1000;
+        this.playlistSize = playlistSize;
+        this.deleteSegments = deleteSegments;
+        this.writer = writer;
+        this.ownWriter = ownWriter;
+    }
+
+    private static long toPcrClock(Duration duration) {
+        return duration.toNanos() * PCR_CLOCK / 1_000_000_000L;
+    }
 
     @Override
     public void send(MTSPacket packet) throws Exception {
-        if (packet.getPid() == 0) {
-            readPat(packet);
+        send(view.wrap(packet));
+    }
+
+    @Override
+    public void send(ByteBuffer packets) throws Exception {
+        MTSPacketView packet = new MTSPacketView();
+        while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+            send(packet.wrap(packets, packets.position()));
+            packets.position(packets.position() + Constants.MPEGTS_PACKET_SIZE);
+        }
+    }
+
+    @Override
+    public void send(MTSPacketView packet) throws Exception {
+        checkFailure();
+        int pid = packet.getPid();
+        if (pid == 0) {
+            sections.push(packet);
+            keepPsi(patPackets, packet);
+            write(packet);
             return;
         }
-        for (TSProg prog : progs) {
-            if (packet.getPid() == prog.getPid()) {
-                readPmt(prog, packet);
-                return;
-            }
-            for (TSES es : prog.es) {
-                if (packet.getPid() == es.getPid()) {
-                    readPes(prog, es, packet);
-                }
-            }
+        if (prog == null) {
+            return;
+        }
+        if (pid == prog.getPid()) {
+            sections.push(packet);
+            keepPsi(prog.pmtPackets, packet);
+            write(packet);
+            return;
+        }
+        if (pid == prog.pcrPid && packet.isPcrFlag()) {
+            readPcr(packet.getPcr());
+        }
+        PMTStream es = prog.esByPid != null ? prog.esByPid[pid] : null;
+        if (es != null) {
+            readPes(prog, es, packet);
+            return;
+        }
+        // Null packets are dropped silently
+        if (pid != 0x1fff && droppedPids.add(pid)) {
+            LOGGER.info("dropping unexpected TS packet pid:{}", pid);
         }
-
-        LOGGER.info("dropping unexpected TS packet pid:{}", packet.getPid());
     }
 
-    private void readPes(TSProg prog, TSES es, MTSPacket packet) {
+    private void readPes(TSProg prog, PMTStream es, MTSPacketView packet) throws IOException {
+        if (es == prog.cutEs && packet.isPayloadUnitStartIndicator()) {
+            long pts = getPts(packet);
+            boolean rap = packet.isRandomAccessIndicator() || !es.isVideo();
+            if (rap && (segment == null || discontinuity || clock - segment.startClock >= targetDuration)) {
+                cut(pts);
+            } else if (parts != null && segment != null && isPartDue(pts)) {
+                finishPart(pts);
+                startPart(pts, rap);
+            }
+            lastPts = pts;
+            lastPesClock = clock;
+        }
+        write(packet);
+    }
 
+    /**
+     * @return true if the part being written would last more than the part target with one more PES, assuming PES
+     * are evenly spaced
+     */
+    private boolean isPartDue(long pts) {
+        long elapsed;
+        long step;
+        if (pts >= 0 && partStartPts >= 0 && lastPts >= 0) {
+            elapsed = Math.floorMod(pts - partStartPts, PTS_WRAP) * 300;
+            step = Math.floorMod(pts - lastPts, PTS_WRAP) * 300;
+        } else {
+            elapsed = clock - partStartClock;
+            step = clock - lastPesClock;
+        }
+        return elapsed + step > partTarget;
     }
 
-    private void readPmt(TSProg prog, MTSPacket packet) {
+    /**
+     * Called by the {@link SectionAssembler} for each new PAT or PMT section.
+     */
+    private void readSection(int pid, ByteBuffer section) {
+        if (pid == 0) {
+            readPat(section);
+        } else if (prog != null && pid == prog.getPid()) {
+            readPmt(prog, section);
+        }
+    }
 
+    private void readPmt(TSProg prog, ByteBuffer section) {
+        PMTSection pmt = pmtCache.get(prog.pid, section);
+        if (pmt == null) {
+            LOGGER.error("malformed PMT");
+            return;
+        }
+        if (pmt == prog.pmt) {
+            return;
+        }
+        prog.pmt = pmt;
+        prog.pcrPid = pmt.getPcrPid();
+        prog.es = pmt.getStreams();
+        prog.esByPid = new PMTStream[8192];
+        for (PMTStream es : prog.es) {
+            prog.esByPid[es.getPid()] = es;
+        }
+        prog.cutEs = prog.es.stream().filter(PMTStream::isVideo).findFirst()
+                .orElse(prog.es.isEmpty() ? null : prog.es.get(0));
+        LOGGER.debug("ts program {}, {}", prog.number, pmt);
     }
 
-    private void readPat(MTSPacket packet) {
-        ByteBuffer buf = packet.getPayload().asReadOnlyBuffer();
-        byte ptr = buf.get(); // pointer_field
-        buf.position(buf.position() + (0xff & ptr) + 1); // skipped + table_id
-        short len = buf.getShort(); // section_length
-        len &= 0x0fff;
-        if (len < 9) {
+    private void readPat(ByteBuffer section) {
+        PATSection pat = section.get(0) == 0 ? PATSection.parse(section.duplicate()) : null;
+        if (pat == null) {
             LOGGER.error("malformed PAT");
             return;
         }
-        if (len > 0x03fd) {
-            LOGGER.error("too big PAT: {}", len);
+        if (pat.getCurrentNextIndicator() == 0) {
             return;
         }
-        if (buf.remaining() < len) {
+        List<Integer> pmtPids = Lists.newArrayList();
+        progs.clear();
+        pat.getPrograms().forEach((number, pid) -> {
+            progs.add(new TSProg(number, pid));
+            pmtPids.add(pid);
+            LOGGER.atDebug().log("ts program {}, pid:{}", number, pid);
+        });
+        TSProg first = progs.isEmpty() ? null : progs.get(0);
+        if (prog == null || first == null || first.number != prog.number || first.pid != prog.pid) {
+            prog = first;
+            if (prog != null) {
+                sections.reset(prog.pid);
+            }
+        } else {
+            progs.set(0, prog);
+        }
+        // PMTs of the programs removed are read again if they come back
+        for (int pid : pmtCache.getPids()) {
+            if (!pmtPids.contains(pid)) {
+                sections.reset(pid);
+            }
+        }
+        pmtCache.retain(pmtPids);
+    }
+
+    private void readPcr(long pcr) {
+        if (lastPcr >= 0) {
+            long step = Math.floorMod(pcr - lastPcr, PCR_WRAP);
+            if (step <= MAX_PCR_GAP) {
+                clock += step;
+            } else {
+                discontinuity = true;
+            }
+        }
+        lastPcr = pcr;
+    }
+
+    /**
+     * @return the PTS of the PES starting in the packet, or -1
+     */
+    private long getPts(MTSPacketView packet) {
+        return pes.wrap(packet.buffer(), packet.getPayloadOffset(), packet.getPayloadLength()).isValid() ? pes.getPts() : -1;
+    }
+
+    /**
+     * Keep the packets of the last PSI table of a PID, to inject them at the start of segments.
+     */
+    private static void keepPsi(List<ByteBuffer> packets, MTSPacketView packet) {
+        if (packet.isPayloadUnitStartIndicator()) {
+            packets.clear();
+        } else if (packets.isEmpty()) {
             return;
         }
-        // PAT fully available
-        buf.position(buf.position() + 5); // transport_stream_id .. last_section_number
+        ByteBuffer copy = ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
+        packet.copyTo(copy);
+        packets.add(copy.flip());
+    }
 
-        int nprogs = (len - 9) / 4;
-        for (int i = 0; i < nprogs; i++) {
-            short number = buf.getShort(); // program_number
-            short pid = buf.getShort(); // network_PID / program_map_PID
-            progs.add(new TSProg(number, pid));
-            LOGGER.atDebug().log("ts program {}, pid:{}", number, pid);
+    /**
+     * End the current segment, if any, and start a new one.
+     *
+     * @param pts the PTS of the first PES of the new segment, or -1
+     */
+    private void cut(long pts) throws IOException {
+        if (segment != null) {
+            finishSegment(pts);
+        }
+        long sequence = nextSequence++;
+        segment = new Segment(sequence, name + sequence + ".ts", clock, pts, discontinuity && !playlist.isEmpty());
+        discontinuity = false;
+        segmentFile = writer.open(directory.resolve(segment.uri));
+        if (parts != null) {
+            startPart(pts, true);
+        }
+        for (ByteBuffer packet : patPackets) {
+            put(packet, 0);
+        }
+        for (ByteBuffer packet : prog.pmtPackets) {
+            put(packet, 0);
+        }
+    }
+
+    private void write(MTSPacketView packet) {
+        if (segment != null) {
+            put(packet.buffer(), packet.offset());
+        }
+    }
+
+    private void put(ByteBuffer packet, int offset) {
+        if (buffer == null) {
+            buffer = writer.acquire();
+        }
+        buffer.put(buffer.position(), packet, offset, Constants.MPEGTS_PACKET_SIZE);
+        buffer.position(buffer.position() + Constants.MPEGTS_PACKET_SIZE);
+        if (buffer.remaining() < Constants.MPEGTS_PACKET_SIZE) {
+            segmentFile.write(buffer.flip());
+            buffer = null;
+        }
+        if (parts != null) {
+            if (partData == null || partLength + Constants.MPEGTS_PACKET_SIZE > partData.length) {
+                partData = Arrays.copyOf(partData != null ? partData : new byte[0],
+                        Math.max(2 * partLength, 256 * Constants.MPEGTS_PACKET_SIZE));
+            }
+            packet.get(offset, partData, partLength, Constants.MPEGTS_PACKET_SIZE);
+            partLength += Constants.MPEGTS_PACKET_SIZE;
+        }
+    }
+
+    private void startPart(long pts, boolean independent) {
+        partLength = 0;
+        partStartClock = clock;
+        partStartPts = pts;
+        partIndependent = independent;
+    }
+
+    /**
+     * Publish the part being written, with the playlist listing it.
+     *
+     * @param endPts the PTS of the first PES of the next part, or -1 at the end of the stream
+     */
+    private void finishPart(long endPts) {
+        int index = segment.parts.size();
+        segment.parts.add(new Part(duration(partStartPts, partStartClock, endPts), partIndependent));
+        parts.publishPart(segment.sequence, index, Arrays.copyOf(partData, partLength), playlist(false, true));
+        partLength = 0;
+    }
+
+    /**
+     * @return the duration in seconds from the given start to endPts, or to the current clock without PTS or across a
+     * discontinuity
+     */
+    private double duration(long startPts, long startClock, long endPts) {
+        if (startPts >= 0 && endPts >= 0 && !discontinuity) {
+            return (double) Math.floorMod(endPts - startPts, PTS_WRAP) / PTS_CLOCK;
+        }
+        return (double) (clock - startClock) / PCR_CLOCK;
+    }
+
+    /**
+     * Close the current segment, and publish the playlist with it once it is on disk.
+     *
+     * @param endPts the PTS of the first PES of the next segment, or -1 at the end of the stream
+     */
+    private void finishSegment(long endPts) {
+        if (parts != null) {
+            finishPart(endPts);
+        }
+        if (buffer != null) {
+            segmentFile.write(buffer.flip());
+            buffer = null;
+        }
+        CompletableFuture<Void> written = segmentFile.close();
+        segment.duration = duration(segment.startPts, segment.startClock, endPts);
+        if (Math.round(segment.duration) > targetSeconds) {
+            LOGGER.warn("segment {} lasts {}s, more than the target duration", segment.uri, segment.duration);
+            targetSeconds = Math.round(segment.duration);
+        }
+        long sequence = segment.sequence;
+        playlist.addLast(segment);
+        segment = null;
+        while (playlist.size() > playlistSize) {
+            Segment first = playlist.removeFirst();
+            if (first.discontinuity) {
+                discontinuitySequence++;
+            }
+            removed.addLast(first);
+        }
+        published = writer.replace(playlistPath, playlist(false, false), CompletableFuture.allOf(published, written));
+        // Keep removed segments for clients that loaded an older playlist
+        while (deleteSegments && removed.size() > playlistSize) {
+            published = writer.delete(directory.resolve(removed.removeFirst().uri), published);
+        }
+        if (parts != null) {
+            parts.trim(partsFrom());
+            parts.publishSegment(sequence, playlist(false, true));
+        }
+    }
+
+    /**
+     * @return the sequence number of the first segment whose parts are listed: the last two complete segments and
+     * the current one have their parts listed
+     */
+    private long partsFrom() {
+        return playlist.isEmpty() ? 0 : playlist.getLast().sequence - 1;
+    }
+
+    private String partUri(long sequence, int index) {
+        return name + sequence + "." + index + ".ts";
+    }
+
+    /**
+     * @param lowLatency true for the playlist of the {@link PartRing}, listing partial segments
+     */
+    private byte[] playlist(boolean end, boolean lowLatency) {
+        StringBuilder m3u8 = new StringBuilder()
+                .append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:").append(lowLatency ? 6 : 3).append('\n')
+                .append("#EXT-X-TARGETDURATION:").append(targetSeconds).append('\n');
+        if (lowLatency) {
+            double partSeconds = (double) partTarget / PCR_CLOCK;
+            m3u8.append(String.format(Locale.ROOT, "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=%.3f\n", 3 * partSeconds))
+                    .append(String.format(Locale.ROOT, "#EXT-X-PART-INF:PART-TARGET=%.3f\n", partSeconds));
+        }
+        long first = !playlist.isEmpty() ? playlist.getFirst().sequence : segment != null ? segment.sequence : nextSequence;
+        m3u8.append("#EXT-X-MEDIA-SEQUENCE:").append(first).append('\n');
+        if (discontinuitySequence > 0) {
+            m3u8.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySequence).append('\n');
+        }
+        long partsFrom = partsFrom();
+        for (Segment s : playlist) {
+            if (s.discontinuity) {
+                m3u8.append("#EXT-X-DISCONTINUITY\n");
+            }
+            if (lowLatency && s.sequence >= partsFrom) {
+                appendParts(m3u8, s);
+            }
+            m3u8.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", s.duration)).append(s.uri).append('\n');
         }
+        if (lowLatency && segment != null) {
+            if (segment.discontinuity) {
+                m3u8.append("#EXT-X-DISCONTINUITY\n");
+            }
+            appendParts(m3u8, segment);
+        }
+        if (end) {
+            m3u8.append("#EXT-X-ENDLIST\n");
+        } else if (lowLatency) {
+            String hint = segment != null ? partUri(segment.sequence, segment.parts.size()) : partUri(nextSequence, 0);
+            m3u8.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"").append(hint).append("\"\n");
+        }
+        return m3u8.toString().getBytes(StandardCharsets.UTF_8);
+    }
 
-       // tsRunHandler(TS_PAT);
+    private void appendParts(StringBuilder m3u8, Segment s) {
+        for (int i = 0; i < s.parts.size(); i++) {
+            Part part = s.parts.get(i);
+            m3u8.append(String.format(Locale.ROOT, "#EXT-X-PART:DURATION=%.3f,URI=\"%s\"", part.duration, partUri(s.sequence, i)));
+            if (part.independent) {
+                m3u8.append(",INDEPENDENT=YES");
+            }
+            m3u8.append('\n');
+        }
     }
 
+    private void checkFailure() throws IOException {
+        if (closed) {
+            throw new IOException("closed");
+        }
+        if (segmentFile != null) {
+            segmentFile.checkFailure();
+        }
+        if (published.isCompletedExceptionally()) {
+            try {
+                published.join();
+            } catch (RuntimeException e) {
+                throw new IOException("Error publishing " + playlistPath, e.getCause() != null ? e.getCause() : e);
+            }
+        }
+    }
+
+    /**
+     * Publish the last segment, and end the playlist.
+     */
     @Override
     public void close() throws Exception {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (segment != null) {
+                finishSegment(lastPts);
+            }
+            published = writer.replace(playlistPath, playlist(true, false), published);
+            if (parts != null) {
+                parts.end(playlist(true, true));
+            }
+            published.join();
+        } finally {
+            if (ownWriter) {
+                writer.close();
+            }
+        }
+    }
 
+    /**
+     * @return the store of the partial segments and of the low-latency playlist, or null without low-latency HLS
+     */
+    public PartRing getPartRing() {
+        return parts;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Path getPlaylistPath() {
+        return playlistPath;
+    }
+
+    public Duration getTargetDuration() {
+        return target;
+    }
+
+    /**
+     * @return the sequence numbers of the segments in the playlist
+     */
+    public long[] getPlaylistSequences() {
+        return playlist.stream().mapToLong(s -> s.sequence).toArray();
     }
 
     static class TSProg {
-        final short number;
-        final short pid;
-        final List<TSES> es = Lists.newArrayList();
+        final int number;
+        final int pid;
+        // Packets of the last PMT, injected at the start of each segment
+        final List<ByteBuffer> pmtPackets = Lists.newArrayList();
+        PMTSection pmt;
+        List<PMTStream> es = List.of();
+        // Streams of the program by PID
+        PMTStream[] esByPid;
+        int pcrPid = -1;
+        // Stream whose random access points start segments
+        PMTStream cutEs;
 
-        TSProg(short number, short pid) {
+        TSProg(int number, int pid) {
             this.number = number;
             this.pid = pid;
         }
 
-        short getPid() {
+        int getPid() {
             return pid;
         }
     }
 
-    static class TSES {
+    private static class Segment {
+        final long sequence;
+        final String uri;
+        final long startClock;
+        final long startPts;
+        final boolean discontinuity;
+        final List<Part> parts = Lists.newArrayList();
+        double duration;
+
+        Segment(long sequence, String uri, long startClock, long startPts, boolean discontinuity) {
+            this.sequence = sequence;
+            this.uri = uri;
+            this.startClock = startClock;
+            this.startPts = startPts;
+            this.discontinuity = discontinuity;
+        }
+    }
+
+    private static class Part {
+        final double duration;
+        final boolean independent;
+
+        Part(double duration, boolean independent) {
+            this.duration = duration;
+            this.independent = independent;
+        }
+    }
+
+    public static HLSSinkBuilder builder() {
+        return new HLSSinkBuilder();
+    }
 
-        short getPid() {
-            return 0;
+    public static class HLSSinkBuilder {
+        private Path directory;
+        private String name = "stream";
+        private Duration targetDuration = Duration.ofSeconds(6);
+        private Duration partTarget;
+        private int playlistSize = 6;
+        private boolean deleteSegments = true;
+        private SegmentWriter writer;
+
+        private HLSSinkBuilder() {
+        }
+
+        public HLSSinkBuilder setDirectory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /**
+         * Name of the playlist, {@code name.m3u8}, and prefix of the segments, default "stream".
+         */
+        public HLSSinkBuilder setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Duration segments are cut at, default 6s.
+         */
+        public HLSSinkBuilder setTargetDuration(Duration targetDuration) {
+            this.targetDuration = targetDuration;
+            return this;
+        }
+
+        /**
+         * Enable low-latency HLS, with partial segments lasting at most partTarget, e.g. 200ms. By default
+         * segments are not split.
+         */
+        public HLSSinkBuilder setPartTarget(Duration partTarget) {
+            this.partTarget = partTarget;
+            return this;
+        }
+
+        /**
+         * Number of segments in the playlist, default 6.
+         */
+        public HLSSinkBuilder setPlaylistSize(int playlistSize) {
+            this.playlistSize = playlistSize;
+            return this;
+        }
+
+        /**
+         * Delete segments some time after they leave the playlist, default true.
+         */
+        public HLSSinkBuilder setDeleteSegments(boolean deleteSegments) {
+            this.deleteSegments = deleteSegments;
+            return this;
+        }
+
+        /**
+         * Writer of the segment files, to share between sinks. By default the sink has its own writer.
+         */
+        public HLSSinkBuilder setWriter(SegmentWriter writer) {
+            this.writer = writer;
+            return this;
+        }
+
+        public HLSSink build() throws IOException {
+            Preconditions.checkNotNull(directory, "directory cannot be null");
+            Preconditions.checkNotNull(name, "name cannot be null");
+            Preconditions.checkArgument(targetDuration != null && !targetDuration.isNegative() && !targetDuration.isZero(),
+                    "targetDuration must be positive");
+            Preconditions.checkArgument(partTarget == null || (!partTarget.isNegative() && !partTarget.isZero()
+                    && partTarget.compareTo(targetDuration) < 0), "partTarget must be positive and below targetDuration");
+            Preconditions.checkArgument(playlistSize > 0, "playlistSize must be positive");
+            Files.createDirectories(directory);
+            if (writer != null) {
+                return new HLSSink(directory, name, targetDuration, partTarget, playlistSize, deleteSegments, writer, false);
+            }
+            return new HLSSink(directory, name, targetDuration, partTarget, playlistSize, deleteSegments,
+                    SegmentWriter.builder().build(), true);
         }
     }
 }
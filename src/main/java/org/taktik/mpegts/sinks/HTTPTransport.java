@@ -1,87 +1,490 @@
 package org.taktik.mpegts.sinks;
 
 import com.google.common.base.Preconditions;
-import org.jcodec.common.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.PacketBufferPool;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.ProtocolException;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Pushes the stream to an HTTP ingest point, as the chunked body of a single PUT (or POST) request.<br>
+ *
+ * Packets are copied to a bounded buffer of {@link HTTPTransportBuilder#setBufferSize(int)} bytes, and handed to the
+ * {@link HttpClient} as the connection asks for more, in writes of up to {@link HTTPTransportBuilder#setChunkSize(int)}
+ * bytes: a slow remote gets fewer and larger writes. When the buffer is full, {@link #send(ByteBuffer)} blocks until
+ * the remote catches up, which slows down the {@link org.taktik.mpegts.Streamer} feeding it.<br>
+ *
+ * When the request fails, the buffered packets are dropped and a new request is sent after
+ * {@link HTTPTransportBuilder#setReconnectDelay(Duration)}, starting at the next random access packet rather than in
+ * the middle of a GOP. Packets sent while reconnecting are dropped, up to the next random access packet once the
+ * buffer is full. After {@link HTTPTransportBuilder#setRetries(int)} failed requests in a row, the error is thrown
+ * by the next call.<br>
+ *
+ * Chunks are pooled buffers, given back to the pool once written.
+ */
 public class HTTPTransport implements MTSSink {
 
-    private HttpURLConnection connection;
-    private OutputStream outputStream;
-    private boolean closed;
-    private CompletableFuture<Void> queue = CompletableFuture.completedFuture(null);
-    private final Thread.Builder builder = Thread.ofVirtual().name("HTTPMTSSource");
+    private static final Logger log = LoggerFactory.getLogger(HTTPTransport.class);
 
+    private final HttpClient client;
+    // true if the client was built by this sink, and must be shut down with it
+    private final boolean ownClient;
+    private final URI uri;
+    private final String method;
+    private final String contentType;
+    private final int bufferSize;
+    private final int chunkSize;
+    private final int retries;
+    private final Duration reconnectDelay;
+    private final Duration timeout;
+    private final PacketBufferPool pool;
 
-    protected HTTPTransport(URI uri) throws IOException {
-        connection = (HttpURLConnection) uri.toURL().openConnection();
-        initConnection();
-    }
+    // Guards everything below
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition space = lock.newCondition();
+    // Chunks ready to be written, flipped, and the chunk being filled
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+    private ByteBuffer tail;
+    // Number of bytes in chunks and tail
+    private int buffered;
+    // Drop packets up to the next random access packet
+    private boolean needRap;
+    private long droppedPackets;
+
+    // Current request, null while waiting to reconnect
+    private Upload upload;
+    // Failed requests in a row
+    private int failures;
+    private long reconnects;
+    private IOException failure;
+    private boolean closing;
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
 
-    protected void initConnection() throws ProtocolException {
-        connection.setRequestMethod("PUT");
-        connection.setDoOutput(true);
-        connection.setRequestProperty("Content-Type", "video/mp2t");
+    private HTTPTransport(HttpClient client, boolean ownClient, URI uri, String method, String contentType,
+                          int bufferSize, int chunkSize, int retries, Duration reconnectDelay, Duration timeout) {
+        this.client = client;
+        this.ownClient = ownClient;
+        this.uri = uri;
+        this.method = method;
+        this.contentType = contentType;
+        this.bufferSize = bufferSize;
+        this.chunkSize = chunkSize;
+        this.retries = retries;
+        this.reconnectDelay = reconnectDelay;
+        this.timeout = timeout;
+        this.pool = PacketBufferPool.builder()
+                .setPacketsPerBuffer(chunkSize / Constants.MPEGTS_PACKET_SIZE)
+                .setMaxPooled(bufferSize / chunkSize + 2)
+                .build();
+        lock.lock();
+        try {
+            connect();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void send(MTSPacket packet) throws Exception {
-        ByteBuffer buffer = packet.getBuffer();
-        Preconditions.checkArgument(buffer.hasArray());
+        send(packet.getBuffer().duplicate().rewind());
+    }
 
-        queue = queue.thenRunAsync(() -> {
+    @Override
+    public void send(MTSPacketView packet) throws Exception {
+        send(packet.asByteBuffer());
+    }
+
+    @Override
+    public void send(ByteBuffer packets) throws Exception {
+        while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+            Upload toDrain;
+            boolean full;
+            lock.lock();
             try {
-                for (; ; ) {
-                    while (outputStream == null) {
-                        if (closed) {
-                            throw new IOException("closed");
-                        }
-                        try {
-                            outputStream = connection.getOutputStream();
-                        } catch (IOException ex) {
-                            if (connection instanceof HttpURLConnection x) {
-                                x.disconnect();
-                            }
-                            connection = (HttpURLConnection) connection.getURL().openConnection();
-                            initConnection();
-                        }
-                    }
+                full = !append(packets);
+                toDrain = upload;
+            } finally {
+                lock.unlock();
+            }
+            if (toDrain != null) {
+                toDrain.drain();
+            }
+            if (full) {
+                awaitSpace();
+            }
+        }
+        packets.position(packets.limit());
+    }
 
-                    try {
-                        outputStream.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
-                        break;
-                    } catch (IOException ex) {
-                        IOUtils.closeQuietly(outputStream);
-                        outputStream = null;
-                    }
+    /**
+     * Copy packets to the buffer, dropping them while looking for a random access packet. Called holding the lock.
+     *
+     * @return false if the buffer is full
+     */
+    private boolean append(ByteBuffer packets) throws IOException {
+        checkOpen();
+        while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+            int offset = packets.position();
+            if (needRap) {
+                if ((MTSPacketView.getAdaptationFieldFlags(packets, offset) & 0x40) == 0) {
+                    droppedPackets++;
+                    packets.position(offset + Constants.MPEGTS_PACKET_SIZE);
+                    continue;
                 }
-                outputStream.flush();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                needRap = false;
+            }
+            if (buffered + Constants.MPEGTS_PACKET_SIZE > bufferSize) {
+                if (!isReconnecting()) {
+                    return false;
+                }
+                // Nowhere to write: drop what is buffered, rather than stalling the stream
+                dropBuffered();
+                continue;
+            }
+            if (tail == null || !tail.hasRemaining()) {
+                sealTail();
+                tail = pool.acquire();
+            }
+            int length = Math.min(Math.min(packets.remaining(), tail.remaining()), bufferSize - buffered);
+            length -= length % Constants.MPEGTS_PACKET_SIZE;
+            tail.put(tail.position(), packets, offset, length);
+            tail.position(tail.position() + length);
+            packets.position(offset + length);
+            buffered += length;
+        }
+        return true;
+    }
+
+    private void awaitSpace() throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            while (buffered + Constants.MPEGTS_PACKET_SIZE > bufferSize && !isReconnecting()) {
+                checkOpen();
+                space.await();
             }
-        }, builder::start);
-        if (queue.isDone()) {
-            queue.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException("Upload to " + uri + " failed", failure);
+        }
+        if (closing) {
+            throw new IOException("closed");
         }
     }
 
+    /**
+     * @return true if the previous request failed, and the next one did not start sending yet
+     */
+    private boolean isReconnecting() {
+        return upload == null || (failures > 0 && !upload.started);
+    }
+
+    private void sealTail() {
+        if (tail != null && tail.position() > 0) {
+            chunks.addLast(tail.flip());
+        } else {
+            pool.release(tail);
+        }
+        tail = null;
+    }
+
+    private void dropBuffered() {
+        droppedPackets += buffered / Constants.MPEGTS_PACKET_SIZE;
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        pool.release(tail);
+        tail = null;
+        buffered = 0;
+        needRap = true;
+        space.signalAll();
+    }
+
+    /**
+     * @return the next chunk to write, or null if nothing is buffered. Called holding the lock.
+     */
+    private ByteBuffer poll() {
+        if (chunks.isEmpty()) {
+            sealTail();
+        }
+        ByteBuffer chunk = chunks.pollFirst();
+        if (chunk != null) {
+            buffered -= chunk.remaining();
+            space.signalAll();
+        }
+        return chunk;
+    }
+
+    /**
+     * Send a new request, its body being written from the buffer. Called holding the lock.
+     */
+    private void connect() {
+        Upload u = new Upload();
+        upload = u;
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .method(method, HttpRequest.BodyPublishers.fromPublisher(u))
+                .header("Content-Type", contentType)
+                .build();
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> ended(u, response, error));
+    }
+
+    private void ended(Upload u, HttpResponse<Void> response, Throwable error) {
+        lock.lock();
+        try {
+            if (upload != u) {
+                return;
+            }
+            u.cancelled = true;
+            u.releaseWritten(0);
+            upload = null;
+            space.signalAll();
+            if (error == null && u.completed && response.statusCode() / 100 == 2) {
+                finished.complete(null);
+                return;
+            }
+            IOException cause;
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            if (error == null) {
+                cause = new IOException(u.completed ? "bad response code: " + response.statusCode()
+                        : "Request ended by the remote with code " + response.statusCode());
+            } else if (error instanceof IOException e) {
+                cause = e;
+            } else {
+                cause = new IOException(error);
+            }
+            dropBuffered();
+            if (closing || ++failures > retries) {
+                failure = cause;
+                finished.complete(null);
+                return;
+            }
+            log.warn("Upload to {} failed, reconnecting in {}: {}", uri, reconnectDelay, cause.toString());
+            CompletableFuture.delayedExecutor(reconnectDelay.toMillis(), TimeUnit.MILLISECONDS).execute(this::reconnect);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconnect() {
+        lock.lock();
+        try {
+            if (upload == null && !closing && failure == null) {
+                reconnects++;
+                connect();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the buffered packets, end the request and wait for its response.
+     */
     @Override
     public void close() throws IOException {
-        closed = true;
+        Upload toDrain;
+        lock.lock();
+        try {
+            if (closing) {
+                return;
+            }
+            closing = true;
+            toDrain = upload;
+            if (toDrain == null) {
+                finished.complete(null);
+            }
+            space.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (toDrain != null) {
+                toDrain.drain();
+            }
+            finished.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("No response from " + uri, e);
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            if (ownClient) {
+                client.shutdownNow();
+            }
+        }
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new IOException("Upload to " + uri + " failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        if (outputStream != null) {
-            IOUtils.closeQuietly(outputStream);
+    /**
+     * @return the number of packets dropped because the remote could not be reached
+     */
+    public long getDroppedPackets() {
+        lock.lock();
+        try {
+            return droppedPackets;
+        } finally {
+            lock.unlock();
         }
-        if (connection instanceof HttpURLConnection x) {
-            x.disconnect();
+    }
+
+    public long getReconnects() {
+        lock.lock();
+        try {
+            return reconnects;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Body of a request: hands the buffered chunks to the client as it asks for them.
+     */
+    private class Upload implements Flow.Publisher<ByteBuffer>, Flow.Subscription {
+        // Serializes the calls to the subscriber
+        private final AtomicInteger draining = new AtomicInteger();
+        private Flow.Subscriber<? super ByteBuffer> subscriber;
+        // Chunks handed to the subscriber and not given back to the pool yet, in order
+        private final ArrayDeque<ByteBuffer> written = new ArrayDeque<>();
+        private long demand;
+        private boolean started;
+        private boolean cancelled;
+        private boolean completed;
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            boolean first;
+            lock.lock();
+            try {
+                first = this.subscriber == null;
+                if (first) {
+                    this.subscriber = subscriber;
+                }
+            } finally {
+                lock.unlock();
+            }
+            subscriber.onSubscribe(this);
+            if (!first) {
+                subscriber.onError(new IllegalStateException("Request body cannot be sent twice"));
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            lock.lock();
+            try {
+                if (n <= 0) {
+                    cancelled = true;
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    // Asking for more, the client is done with the chunks before the last one
+                    releaseWritten(1);
+                    if (!started) {
+                        started = true;
+                        failures = 0;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (n <= 0) {
+                subscriber.onError(new IllegalArgumentException("non-positive request"));
+                return;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            lock.lock();
+            try {
+                cancelled = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Hand chunks to the subscriber while it asks for them, then complete the body once closing.
+         */
+        private void drain() {
+            if (draining.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                for (;;) {
+                    ByteBuffer chunk = null;
+                    boolean complete = false;
+                    lock.lock();
+                    try {
+                        if (cancelled || subscriber == null || upload != this || demand == 0) {
+                            break;
+                        }
+                        chunk = poll();
+                        if (chunk != null) {
+                            demand--;
+                            written.addLast(chunk);
+                            if (written.size() > pool.getMaxPooled()) {
+                                // Never asked for more in between: left to the garbage collector
+                                written.pollFirst();
+                            }
+                        } else if (closing && !completed) {
+                            completed = complete = true;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (chunk != null) {
+                        subscriber.onNext(chunk);
+                    } else {
+                        if (complete) {
+                            subscriber.onComplete();
+                        }
+                        break;
+                    }
+                }
+            } while (draining.decrementAndGet() != 0);
+        }
+
+        /**
+         * Give the written chunks back to the pool, but the last ones that may still be in use. Called holding the lock.
+         */
+        private void releaseWritten(int keep) {
+            while (written.size() > keep) {
+                pool.release(written.pollFirst());
+            }
         }
     }
 
@@ -91,6 +494,14 @@ public class HTTPTransport implements MTSSink {
 
     public static class HTTPTransportBuilder {
         private URI uri;
+        private HttpClient httpClient;
+        private String method = "PUT";
+        private String contentType = "video/mp2t";
+        private int bufferSize = 4 << 20;
+        private int chunkSize = 64 << 10;
+        private int retries = 3;
+        private Duration reconnectDelay = Duration.ofSeconds(1);
+        private Duration timeout = Duration.ofSeconds(10);
 
         private HTTPTransportBuilder() {
         }
@@ -104,11 +515,84 @@ public class HTTPTransport implements MTSSink {
             return setURI(URI.create(uri));
         }
 
+        /**
+         * Client to send the requests with. By default the sink has its own HTTP/1.1 client.
+         */
+        public HTTPTransportBuilder setHttpClient(HttpClient httpClient) {
+            this.httpClient = httpClient;
+            return this;
+        }
+
+        /**
+         * PUT or POST, default PUT.
+         */
+        public HTTPTransportBuilder setMethod(String method) {
+            this.method = method;
+            return this;
+        }
+
+        public HTTPTransportBuilder setContentType(String contentType) {
+            this.contentType = contentType;
+            return this;
+        }
+
+        /**
+         * Maximum number of bytes buffered before blocking the sender, rounded down to whole packets, default 4MB.
+         */
+        public HTTPTransportBuilder setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Maximum size of a write, rounded down to whole packets and at most bufferSize, default 64KB.
+         */
+        public HTTPTransportBuilder setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Number of failed requests in a row before giving up, default 3.
+         */
+        public HTTPTransportBuilder setRetries(int retries) {
+            this.retries = retries;
+            return this;
+        }
+
+        /**
+         * Time to wait before sending a new request after a failure, default 1s.
+         */
+        public HTTPTransportBuilder setReconnectDelay(Duration reconnectDelay) {
+            this.reconnectDelay = reconnectDelay;
+            return this;
+        }
+
+        /**
+         * Timeout to connect, and to get the response once closed, default 10s.
+         */
+        public HTTPTransportBuilder setTimeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
         public HTTPTransport build() throws IOException {
-            if ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) {
-                return new HTTPTransport(uri);
+            Preconditions.checkNotNull(uri, "uri cannot be null");
+            Preconditions.checkNotNull(reconnectDelay, "reconnectDelay cannot be null");
+            Preconditions.checkNotNull(timeout, "timeout cannot be null");
+            Preconditions.checkArgument(chunkSize >= Constants.MPEGTS_PACKET_SIZE, "chunkSize too small");
+            Preconditions.checkArgument(bufferSize >= Constants.MPEGTS_PACKET_SIZE, "bufferSize too small");
+            Preconditions.checkArgument(retries >= 0, "retries cannot be negative");
+            if (!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme())) {
+                throw new IllegalArgumentException("Bad URI scheme");
             }
-            throw new IllegalArgumentException("Bad URI scheme");
+            HttpClient client = httpClient != null ? httpClient : HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(timeout)
+                    .build();
+            return new HTTPTransport(client, httpClient == null, uri, method, contentType,
+                    bufferSize - bufferSize % Constants.MPEGTS_PACKET_SIZE,
+                    Math.min(chunkSize, bufferSize) / Constants.MPEGTS_PACKET_SIZE * Constants.MPEGTS_PACKET_SIZE, retries, reconnectDelay, timeout);
         }
     }
 }
@@ -1,7 +1,39 @@
 package org.taktik.mpegts.sinks;
 
+import java.nio.ByteBuffer;
+
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
 public interface MTSSink extends AutoCloseable {
 	public void send(MTSPacket packet) throws Exception;
+
+	/**
+	 * Flyweight variant of {@link #send(MTSPacket)}. The view is only valid for the duration of the call:
+	 * implementations that keep the packet must copy it.
+	 */
+	public default void send(MTSPacketView packet) throws Exception {
+		send(packet.toPacket());
+	}
+
+	/**
+	 * Bulk variant of {@link #send(MTSPacket)}: send the contiguous run of packets between the position and
+	 * the limit of the buffer, and move its position to its limit. The buffer is only valid for the duration
+	 * of the call.
+	 */
+	public default void send(ByteBuffer packets) throws Exception {
+		MTSPacketView view = new MTSPacketView();
+		while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+			send(view.wrap(packets, packets.position()));
+			packets.position(packets.position() + Constants.MPEGTS_PACKET_SIZE);
+		}
+	}
+
+	/**
+	 * Send the packets the sink holds back to fill its output units, if any. The streamer calls it when no packets
+	 * follow within one datagram interval, so that held packets leave close to their departure time.
+	 */
+	public default void flush() throws Exception {
+	}
 }
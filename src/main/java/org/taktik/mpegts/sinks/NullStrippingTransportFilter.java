@@ -0,0 +1,164 @@
+package org.taktik.mpegts.sinks;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.NullPackets;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Strips null packets before a transport, to save the bandwidth of constant bitrate streams. Each run of null
+ * packets is replaced by a single marker packet holding its length (see {@link NullPackets}), from which a
+ * {@link org.taktik.mpegts.sources.NullRestoringMTSSource} restores the exact stream, and thus its timing, on the
+ * receiving side. A lone null packet is sent as it is.<br>
+ *
+ * A run is only sent once the next packet arrives, or when the filter is closed.
+ */
+public class NullStrippingTransportFilter implements MTSSink {
+    private static final Logger log = LoggerFactory.getLogger(NullStrippingTransportFilter.class);
+
+    private final MTSSink sink;
+    private final int markerPid;
+    private final ByteBuffer marker = ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
+    private final ByteBuffer nulls = NullPackets.block();
+    private int markerContinuity;
+
+    // Length of the current run of null packets
+    private int run;
+    private long inputBytes;
+    private long outputBytes;
+
+    public static NullStrippingTransportFilter wrap(MTSSink sink) {
+        return wrap(sink, NullPackets.DEFAULT_MARKER_PID);
+    }
+
+    /**
+     * @param markerPid the PID of the markers, unused by the stream
+     */
+    public static NullStrippingTransportFilter wrap(MTSSink sink, int markerPid) {
+        if (markerPid <= 0 || markerPid >= NullPackets.PID) {
+            throw new IllegalArgumentException("Invalid marker PID " + markerPid);
+        }
+        return new NullStrippingTransportFilter(Objects.requireNonNull(sink), markerPid);
+    }
+
+    protected NullStrippingTransportFilter(MTSSink sink, int markerPid) {
+        this.sink = sink;
+        this.markerPid = markerPid;
+    }
+
+    @Override
+    public void send(MTSPacket packet) throws Exception {
+        inputBytes += Constants.MPEGTS_PACKET_SIZE;
+        if (packet.getPid() == NullPackets.PID) {
+            run++;
+            return;
+        }
+        flushRun();
+        sink.send(packet);
+        outputBytes += Constants.MPEGTS_PACKET_SIZE;
+    }
+
+    @Override
+    public void send(MTSPacketView packet) throws Exception {
+        inputBytes += Constants.MPEGTS_PACKET_SIZE;
+        if (packet.getPid() == NullPackets.PID) {
+            run++;
+            return;
+        }
+        flushRun();
+        sink.send(packet);
+        outputBytes += Constants.MPEGTS_PACKET_SIZE;
+    }
+
+    @Override
+    public void send(ByteBuffer packets) throws Exception {
+        int end = packets.limit();
+        // Start of the packets to send in one run
+        int start = packets.position();
+        int offset = start;
+        for (; offset + Constants.MPEGTS_PACKET_SIZE <= end; offset += Constants.MPEGTS_PACKET_SIZE) {
+            inputBytes += Constants.MPEGTS_PACKET_SIZE;
+            if (MTSPacketView.getPid(packets, offset) == NullPackets.PID) {
+                sendRun(packets, start, offset);
+                start = offset + Constants.MPEGTS_PACKET_SIZE;
+                run++;
+            } else if (run > 0) {
+                flushRun();
+            }
+        }
+        sendRun(packets, start, offset);
+        packets.position(end);
+    }
+
+    private void sendRun(ByteBuffer packets, int start, int end) throws Exception {
+        if (start < end) {
+            int limit = packets.limit();
+            try {
+                packets.limit(end).position(start);
+                sink.send(packets);
+            } finally {
+                packets.limit(limit);
+            }
+            outputBytes += end - start;
+        }
+    }
+
+    /**
+     * Send the current run of null packets: a marker, or the null packet itself when alone.
+     */
+    private void flushRun() throws Exception {
+        if (run == 0) {
+            return;
+        }
+        if (run == 1) {
+            sink.send(nulls.limit(Constants.MPEGTS_PACKET_SIZE).position(0));
+        } else {
+            markerContinuity = (markerContinuity + 1) & 0x0f;
+            NullPackets.writeMarker(marker, 0, markerPid, markerContinuity, run);
+            sink.send(marker.clear());
+        }
+        outputBytes += Constants.MPEGTS_PACKET_SIZE;
+        run = 0;
+    }
+
+    /**
+     * @return the number of bytes received, null packets included
+     */
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    /**
+     * @return the number of bytes sent to the transport, markers included
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * @return the share of the input bytes that were not sent, up to the current run
+     */
+    public double getSavingRatio() {
+        return inputBytes == 0 ? 0 : 1 - (double) (outputBytes + (run > 0 ? Constants.MPEGTS_PACKET_SIZE : 0)) / inputBytes;
+    }
+
+    @Override
+    public void flush() throws Exception {
+        sink.flush();
+    }
+
+    @Override
+    public void close() throws Exception {
+        try {
+            flushRun();
+            log.info("Sent {} of {} bytes, saved {}%", outputBytes, inputBytes, Math.round(getSavingRatio() * 1000) / 10.0);
+        } finally {
+            sink.close();
+        }
+    }
+}
@@ -2,8 +2,11 @@ package org.taktik.mpegts.sinks;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.Objects;
 
@@ -11,6 +14,7 @@ public class PCRDebugTransportFilter implements MTSSink {
     private static final Logger log = LoggerFactory.getLogger(PCRDebugTransportFilter.class);
 
     private final MTSSink sink;
+    private final MTSPacketView batchView = new MTSPacketView();
 
     public static MTSSink wrap(MTSSink sink) {
         return new PCRDebugTransportFilter(Objects.requireNonNull(sink));
@@ -24,21 +28,52 @@ public class PCRDebugTransportFilter implements MTSSink {
     public void send(MTSPacket packet) throws Exception {
         sink.send(packet);
 
-        if (packet.isAdaptationFieldExist() && packet.getAdaptationField() != null /*&& packet.getAdaptationField().isRandomAccessIndicator()*/) {
-            if (packet.getAdaptationField().isPcrFlag()) {
-                MTSPacket.AdaptationField.PCR pcr = packet.getAdaptationField().getPcr();
-                Duration duration = Duration.ofMillis(pcr.getValue() / 27000L);
-                log.atInfo().setMessage("point - {}")
-                        .addArgument(() -> String
-                                .format("%d:%02d:%02d.%03d",
-                                        duration.toHours(),
-                                        duration.toMinutesPart(),
-                                        duration.toSecondsPart(), duration.toMillisPart()))
-                        .log();
+        if (packet.isPcrFlag() /*&& packet.isRandomAccessIndicator()*/) {
+            logPcr(packet.getPcrValue());
+        }
+    }
+
+    @Override
+    public void send(MTSPacketView packet) throws Exception {
+        sink.send(packet);
+
+        if (packet.isPcrFlag()) {
+            logPcr(packet.getPcr());
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer packets) throws Exception {
+        int start = packets.position();
+        int end = packets.limit();
+        sink.send(packets);
+
+        for (int offset = start; offset + Constants.MPEGTS_PACKET_SIZE <= end; offset += Constants.MPEGTS_PACKET_SIZE) {
+            if (batchView.wrap(packets, offset).isPcrFlag()) {
+                logPcr(batchView.getPcr());
             }
         }
     }
 
+    private void logPcr(long pcr) {
+        if (!log.isInfoEnabled()) {
+            return;
+        }
+        Duration duration = Duration.ofMillis(pcr / 27000L);
+        log.atInfo().setMessage("point - {}")
+                .addArgument(() -> String
+                        .format("%d:%02d:%02d.%03d",
+                                duration.toHours(),
+                                duration.toMinutesPart(),
+                                duration.toSecondsPart(), duration.toMillisPart()))
+                .log();
+    }
+
+    @Override
+    public void flush() throws Exception {
+        sink.flush();
+    }
+
     @Override
     public void close() throws Exception {
         sink.close();
@@ -0,0 +1,144 @@
+package org.taktik.mpegts.sinks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * In-memory store of the partial segments of a low-latency HLS channel and of its latest playlist, for an HTTP server
+ * to serve them without touching the disk.<br>
+ *
+ * The sink publishes each partial segment together with the playlist listing it, and drops the parts of segments that
+ * left the playlist. Readers block until a part is published, as needed by blocking playlist reloads
+ * ({@code _HLS_msn} and {@code _HLS_part}) and by requests for the part of a preload hint.
+ */
+public class PartRing {
+	private final ArrayDeque<Part> parts = new ArrayDeque<>();
+	private byte[] playlist;
+	// Last part published, and last complete segment
+	private long lastMsn = -1;
+	private int lastPart = -1;
+	private long completeMsn = -1;
+	private boolean ended;
+
+	/**
+	 * Add a partial segment, and the playlist listing it.
+	 */
+	public synchronized void publishPart(long msn, int part, byte[] data, byte[] playlist) {
+		parts.addLast(new Part(msn, part, data));
+		lastMsn = msn;
+		lastPart = part;
+		this.playlist = playlist;
+		notifyAll();
+	}
+
+	/**
+	 * Mark a segment as complete, all its parts being published, with the playlist listing it.
+	 */
+	public synchronized void publishSegment(long msn, byte[] playlist) {
+		completeMsn = msn;
+		this.playlist = playlist;
+		notifyAll();
+	}
+
+	/**
+	 * Publish the last playlist of the stream. Waiting readers are released.
+	 */
+	public synchronized void end(byte[] playlist) {
+		ended = true;
+		this.playlist = playlist;
+		notifyAll();
+	}
+
+	/**
+	 * Drop the parts of the segments before msn.
+	 */
+	public synchronized void trim(long msn) {
+		while (!parts.isEmpty() && parts.getFirst().msn < msn) {
+			parts.removeFirst();
+		}
+	}
+
+	/**
+	 * @return the latest playlist, or null if none was published yet
+	 */
+	public synchronized byte[] getPlaylist() {
+		return playlist;
+	}
+
+	/**
+	 * Wait for a playlist holding a segment, or a part of a segment.
+	 *
+	 * @param part the index of the part, or -1 to wait for the whole segment
+	 * @return the playlist, or null on timeout
+	 */
+	public synchronized byte[] awaitPlaylist(long msn, int part, long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		while (!ended && !(part < 0 ? completeMsn >= msn : lastMsn > msn || (lastMsn == msn && lastPart >= part))) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+		}
+		return playlist;
+	}
+
+	/**
+	 * Wait for a part to be published.
+	 *
+	 * @return its content, or null on timeout, or if it was dropped or will never be published
+	 */
+	public synchronized byte[] awaitPart(long msn, int part, long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		while (!ended && (lastMsn < msn || (lastMsn == msn && lastPart < part))) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+		}
+		for (Iterator<Part> it = parts.descendingIterator(); it.hasNext(); ) {
+			Part p = it.next();
+			if (p.msn == msn && p.index == part) {
+				return p.data;
+			}
+			if (p.msn < msn) {
+				break;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the content of a complete segment whose parts are all held, or null
+	 */
+	public synchronized byte[] getSegment(long msn) {
+		if (msn > completeMsn) {
+			return null;
+		}
+		ByteArrayOutputStream segment = new ByteArrayOutputStream();
+		int next = 0;
+		for (Part p : parts) {
+			if (p.msn == msn) {
+				if (p.index != next++) {
+					return null;
+				}
+				segment.writeBytes(p.data);
+			}
+		}
+		return next > 0 ? segment.toByteArray() : null;
+	}
+
+	private static class Part {
+		final long msn;
+		final int index;
+		final byte[] data;
+
+		Part(long msn, int index, byte[] data) {
+			this.msn = msn;
+			this.index = index;
+			this.data = data;
+		}
+	}
+}
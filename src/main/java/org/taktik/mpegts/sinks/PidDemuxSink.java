@@ -0,0 +1,124 @@
+package org.taktik.mpegts.sinks;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.PidDemux;
+import org.taktik.mpegts.PidFilter;
+
+/**
+ * Splits a stream into several sinks in one pass, each sink receiving the programs or PIDs selected by its
+ * {@link PidFilter}, with rewritten PAT and PMTs, e.g. the 30 programs of an MPTS to 30 SPTS outputs.<br>
+ *
+ * Packets are handed to the sinks in runs, once per call to {@link #send(ByteBuffer)}.
+ */
+public class PidDemuxSink implements MTSSink {
+	private final PidDemux demux;
+	private final List<MTSSink> sinks;
+	private final MTSPacketView view = new MTSPacketView();
+
+	private PidDemuxSink(List<PidFilter> filters, List<MTSSink> sinks) {
+		this.demux = new PidDemux(filters);
+		this.sinks = sinks;
+	}
+
+	@Override
+	public void send(MTSPacket packet) throws Exception {
+		send(view.wrap(packet));
+	}
+
+	@Override
+	public void send(MTSPacketView packet) throws Exception {
+		demux.push(packet);
+		sendOutputs();
+	}
+
+	@Override
+	public void send(ByteBuffer packets) throws Exception {
+		while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+			demux.push(view.wrap(packets, packets.position()));
+			packets.position(packets.position() + Constants.MPEGTS_PACKET_SIZE);
+		}
+		sendOutputs();
+	}
+
+	private void sendOutputs() throws Exception {
+		List<PidFilter> filters = demux.getFilters();
+		for (int i = 0; i < filters.size(); i++) {
+			ByteBuffer output = filters.get(i).output();
+			if (output.position() > 0) {
+				sinks.get(i).send(output.flip());
+				output.clear();
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws Exception {
+		for (MTSSink sink : sinks) {
+			sink.flush();
+		}
+	}
+
+	@Override
+	public void close() throws Exception {
+		Exception error = null;
+		for (MTSSink sink : sinks) {
+			try {
+				sink.close();
+			} catch (Exception e) {
+				if (error == null) {
+					error = e;
+				} else {
+					error.addSuppressed(e);
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	public static PidDemuxSinkBuilder builder() {
+		return new PidDemuxSinkBuilder();
+	}
+
+	public static class PidDemuxSinkBuilder {
+		private final List<PidFilter> filters = Lists.newArrayList();
+		private final List<MTSSink> sinks = Lists.newArrayList();
+
+		private PidDemuxSinkBuilder() {
+		}
+
+		/**
+		 * Send the packets selected by a filter to a sink. Each output needs its own filter.
+		 */
+		public PidDemuxSinkBuilder addOutput(PidFilter filter, MTSSink sink) {
+			Preconditions.checkNotNull(filter);
+			Preconditions.checkNotNull(sink);
+			Preconditions.checkArgument(!filters.contains(filter), "filter already used by an output");
+			filters.add(filter);
+			sinks.add(sink);
+			return this;
+		}
+
+		/**
+		 * Send each program to its sink, by program_number.
+		 */
+		public PidDemuxSinkBuilder addPrograms(Map<Integer, MTSSink> sinks) {
+			sinks.forEach((program, sink) -> addOutput(PidFilter.builder().addPrograms(program).build(), sink));
+			return this;
+		}
+
+		public PidDemuxSink build() {
+			Preconditions.checkArgument(!filters.isEmpty(), "no output");
+			return new PidDemuxSink(filters, List.copyOf(sinks));
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package org.taktik.mpegts.sinks;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.common.base.Preconditions;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+
+/**
+ * Sends packets over RTP/UDP as specified by RFC 2250: {@link Constants#PACKETS_PER_BLOCK} packets per RTP packet,
+ * payload type 33, and a 90kHz timestamp following the PCRs of the stream.<br>
+ *
+ * Optionally generates SMPTE 2022-1 forward error correction: media packets are laid out in a matrix of
+ * {@code columns} x {@code rows}, and an XOR FEC packet is sent for each column to port + 2 and, unless disabled,
+ * for each row to port + 4. RTP headers and FEC sums are computed in preallocated buffers.<br>
+ *
+ * Batching of single packets works as in {@link UDPTransport}.
+ */
+public class RTPTransport implements MTSSink {
+	public static final int RTP_HEADER_SIZE = 12;
+	public static final int FEC_HEADER_SIZE = 16;
+	public static final int MP2T_PAYLOAD_TYPE = 33;
+	public static final int FEC_PAYLOAD_TYPE = 96;
+
+	private static final int PAYLOAD_SIZE = Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE;
+
+	private final InetSocketAddress mediaAddress;
+	private final InetSocketAddress columnAddress;
+	private final InetSocketAddress rowAddress;
+	private final DatagramChannel channel;
+	private final int ssrc;
+
+	// RTP packet being built, payload gathered after the header
+	private final ByteBuffer rtpPacket = ByteBuffer.allocateDirect(RTP_HEADER_SIZE + PAYLOAD_SIZE);
+	private int sequence;
+	// Nano time at which the first packet of rtpPacket was given to the sink
+	private long firstPacketNanos;
+
+	// 90kHz clock, following the PCRs of pcrPid
+	private int pcrPid = -1;
+	private long lastPcrBase = -1;
+	private long lastPcrNanos;
+
+	// FEC matrix, null without FEC
+	private final int columns;
+	private final int rows;
+	private final FecSum[] columnSums;
+	private final FecSum rowSum;
+	private final ByteBuffer fecPacket;
+	private int matrixIndex;
+	private int columnSequence;
+	private int rowSequence;
+
+	private RTPTransport(String address, int port, int ttl, int ssrc, int columns, int rows, boolean rowFec) throws IOException {
+		mediaAddress = new InetSocketAddress(address, port);
+		columnAddress = new InetSocketAddress(address, port + 2);
+		rowAddress = new InetSocketAddress(address, port + 4);
+
+		channel = DatagramChannel.open(mediaAddress.getAddress() instanceof Inet6Address
+				? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+
+		this.ssrc = ssrc;
+		this.sequence = ThreadLocalRandom.current().nextInt(0x10000);
+		this.columns = columns;
+		this.rows = rows;
+		if (columns > 0) {
+			columnSums = new FecSum[columns];
+			for (int i = 0; i < columns; i++) {
+				columnSums[i] = new FecSum();
+			}
+			rowSum = rowFec ? new FecSum() : null;
+			fecPacket = ByteBuffer.allocateDirect(RTP_HEADER_SIZE + FEC_HEADER_SIZE + PAYLOAD_SIZE);
+		} else {
+			columnSums = null;
+			rowSum = null;
+			fecPacket = null;
+		}
+		rtpPacket.position(RTP_HEADER_SIZE);
+	}
+
+	@Override
+	public void send(MTSPacket packet) throws Exception {
+		ByteBuffer buffer = packet.getBuffer();
+		startPacket();
+		rtpPacket.put(rtpPacket.position(), buffer, 0, Constants.MPEGTS_PACKET_SIZE);
+		rtpPacket.position(rtpPacket.position() + Constants.MPEGTS_PACKET_SIZE);
+		if (!rtpPacket.hasRemaining()) {
+			flush();
+		}
+	}
+
+	@Override
+	public void send(MTSPacketView packet) throws Exception {
+		startPacket();
+		packet.copyTo(rtpPacket);
+		if (!rtpPacket.hasRemaining()) {
+			flush();
+		}
+	}
+
+	/**
+	 * Send the run of packets as RTP packets of {@link Constants#PACKETS_PER_BLOCK} packets, keeping the packets left
+	 * over for the next RTP packet.
+	 */
+	@Override
+	public void send(ByteBuffer packets) throws Exception {
+		while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+			startPacket();
+			int length = Math.min(packets.remaining(), rtpPacket.remaining());
+			length -= length % Constants.MPEGTS_PACKET_SIZE;
+			rtpPacket.put(rtpPacket.position(), packets, packets.position(), length);
+			rtpPacket.position(rtpPacket.position() + length);
+			packets.position(packets.position() + length);
+			if (!rtpPacket.hasRemaining()) {
+				flush();
+			}
+		}
+	}
+
+	private void startPacket() {
+		if (rtpPacket.position() == RTP_HEADER_SIZE) {
+			firstPacketNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Send the packets waiting for a full RTP packet.
+	 */
+	@Override
+	public void flush() throws IOException {
+		int length = rtpPacket.position() - RTP_HEADER_SIZE;
+		if (length == 0) {
+			return;
+		}
+		int timestamp = timestamp(length);
+		writeRtpHeader(rtpPacket, MP2T_PAYLOAD_TYPE, sequence, timestamp, ssrc);
+		rtpPacket.flip();
+		channel.send(rtpPacket, mediaAddress);
+		rtpPacket.clear().position(RTP_HEADER_SIZE);
+
+		if (columnSums != null) {
+			protect(length, timestamp);
+		}
+		sequence = (sequence + 1) & 0xffff;
+	}
+
+	/**
+	 * Add the media packet just sent to the FEC sums, and send the FEC packets completed by it.
+	 */
+	private void protect(int length, int timestamp) throws IOException {
+		int column = matrixIndex % columns;
+		int row = matrixIndex / columns;
+		columnSums[column].add(rtpPacket, length, sequence, timestamp);
+		if (rowSum != null) {
+			rowSum.add(rtpPacket, length, sequence, timestamp);
+			if (column == columns - 1) {
+				rowSequence = sendFec(rowSum, rowAddress, rowSequence, true, 1, columns);
+			}
+		}
+		if (row == rows - 1) {
+			columnSequence = sendFec(columnSums[column], columnAddress, columnSequence, false, columns, rows);
+		}
+		matrixIndex = (matrixIndex + 1) % (columns * rows);
+	}
+
+	private int sendFec(FecSum sum, InetSocketAddress address, int fecSequence, boolean row, int offset, int count) throws IOException {
+		ByteBuffer packet = fecPacket;
+		packet.clear();
+		writeRtpHeader(packet, FEC_PAYLOAD_TYPE, fecSequence, sum.timestamp, 0);
+		int header = RTP_HEADER_SIZE;
+		packet.putShort(header, (short) sum.base);
+		packet.putShort(header + 2, (short) sum.length);
+		// E bit set, as required by SMPTE 2022-1
+		packet.put(header + 4, (byte) (0x80 | (sum.payloadType & 0x7f)));
+		// Mask, always 0
+		packet.put(header + 5, (byte) 0);
+		packet.putShort(header + 6, (short) 0);
+		packet.putInt(header + 8, sum.timestamp);
+		// X=0, D=0 for columns and 1 for rows, type=0 (XOR), index=0
+		packet.put(header + 12, (byte) (row ? 0x40 : 0));
+		packet.put(header + 13, (byte) offset);
+		packet.put(header + 14, (byte) count);
+		// SNBase extension bits, unused with 16 bits sequence numbers
+		packet.put(header + 15, (byte) 0);
+		int payload = header + FEC_HEADER_SIZE;
+		packet.put(payload, sum.payload, 0, sum.size);
+		packet.position(payload + sum.size);
+		packet.flip();
+		channel.send(packet, address);
+		sum.reset();
+		return (fecSequence + 1) & 0xffff;
+	}
+
+	/**
+	 * @return the 90kHz timestamp of the RTP packet, from the last PCR and the time elapsed since then, taken when its
+	 * first packet was given to the sink rather than when it is sent
+	 */
+	private int timestamp(int length) {
+		long now = firstPacketNanos;
+		for (int offset = RTP_HEADER_SIZE; offset < RTP_HEADER_SIZE + length; offset += Constants.MPEGTS_PACKET_SIZE) {
+			if (MTSPacketView.isPcrFlag(rtpPacket, offset)) {
+				int pid = MTSPacketView.getPid(rtpPacket, offset);
+				if (pcrPid < 0) {
+					pcrPid = pid;
+				}
+				if (pid == pcrPid) {
+					lastPcrBase = MTSPacketView.getPcr(rtpPacket, offset + 6) / 300;
+					lastPcrNanos = now;
+					break;
+				}
+			}
+		}
+		if (lastPcrBase < 0) {
+			return (int) (now * 9 / 100000);
+		}
+		return (int) (lastPcrBase + (now - lastPcrNanos) * 9 / 100000);
+	}
+
+	private static void writeRtpHeader(ByteBuffer packet, int payloadType, int sequence, int timestamp, int ssrc) {
+		// V=2, P=0, X=0, CC=0
+		packet.put(0, (byte) 0x80);
+		// M=0
+		packet.put(1, (byte) payloadType);
+		packet.putShort(2, (short) sequence);
+		packet.putInt(4, timestamp);
+		packet.putInt(8, ssrc);
+	}
+
+	public int getSsrc() {
+		return ssrc;
+	}
+
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Running XOR of the media packets protected by one FEC packet.
+	 */
+	private static class FecSum {
+		private final ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_SIZE);
+		private int size;
+		private int base = -1;
+		private int length;
+		private int payloadType;
+		private int timestamp;
+
+		void add(ByteBuffer rtpPacket, int length, int sequence, int timestamp) {
+			if (base < 0) {
+				base = sequence;
+			}
+			this.length ^= length;
+			this.payloadType ^= rtpPacket.get(1) & 0x7f;
+			this.timestamp ^= timestamp;
+			// Shorter payloads are padded with zeros, which leaves the sum unchanged
+			int i = 0;
+			for (; i + Long.BYTES <= length; i += Long.BYTES) {
+				payload.putLong(i, payload.getLong(i) ^ rtpPacket.getLong(RTP_HEADER_SIZE + i));
+			}
+			for (; i < length; i++) {
+				payload.put(i, (byte) (payload.get(i) ^ rtpPacket.get(RTP_HEADER_SIZE + i)));
+			}
+			size = Math.max(size, length);
+		}
+
+		void reset() {
+			int i = 0;
+			for (; i + Long.BYTES <= size; i += Long.BYTES) {
+				payload.putLong(i, 0);
+			}
+			for (; i < size; i++) {
+				payload.put(i, (byte) 0);
+			}
+			size = 0;
+			base = -1;
+			length = 0;
+			payloadType = 0;
+			timestamp = 0;
+		}
+	}
+
+	public static RTPTransportBuilder builder() {
+		return new RTPTransportBuilder();
+	}
+
+	public static class RTPTransportBuilder {
+		private String address;
+		private int port;
+		private int ttl;
+		private int ssrc = ThreadLocalRandom.current().nextInt();
+		private int columns;
+		private int rows;
+		private boolean rowFec = true;
+
+		private RTPTransportBuilder() {
+		}
+
+		public RTPTransportBuilder setAddress(String address) {
+			this.address = address;
+			return this;
+		}
+
+		public RTPTransportBuilder setPort(int port) {
+			this.port = port;
+			return this;
+		}
+
+		public RTPTransportBuilder setTtl(int ttl) {
+			this.ttl = ttl;
+			return this;
+		}
+
+		public RTPTransportBuilder setSsrc(int ssrc) {
+			this.ssrc = ssrc;
+			return this;
+		}
+
+		/**
+		 * Enable SMPTE 2022-1 FEC with a matrix of L columns and D rows.
+		 */
+		public RTPTransportBuilder setFec(int columns, int rows) {
+			this.columns = columns;
+			this.rows = rows;
+			return this;
+		}
+
+		/**
+		 * Also send row FEC packets, default true when FEC is enabled.
+		 */
+		public RTPTransportBuilder setRowFec(boolean rowFec) {
+			this.rowFec = rowFec;
+			return this;
+		}
+
+		public RTPTransport build() throws IOException {
+			Preconditions.checkNotNull(address, "address cannot be null");
+			if (columns != 0 || rows != 0) {
+				// Limits of SMPTE 2022-1
+				Preconditions.checkArgument(columns >= 1 && columns <= 20, "FEC columns must be between 1 and 20");
+				Preconditions.checkArgument(rows >= 4 && rows <= 20, "FEC rows must be between 4 and 20");
+				Preconditions.checkArgument(columns * rows <= 100, "FEC matrix cannot exceed 100 packets");
+			}
+			return new RTPTransport(address, port, ttl, ssrc, columns, rows, rowFec);
+		}
+	}
+}
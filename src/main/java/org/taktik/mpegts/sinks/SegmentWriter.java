@@ -0,0 +1,240 @@
+package org.taktik.mpegts.sinks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.base.Preconditions;
+import org.taktik.mpegts.PacketBufferPool;
+
+/**
+ * Writes files in the background from pooled direct buffers, so that packaging threads never wait for the disk.<br>
+ *
+ * Buffers are taken with {@link #acquire()}, filled, and handed to {@link SegmentFile#write(ByteBuffer)}, which
+ * gives them back to the pool once written. Writes to a file are applied in order, and
+ * {@link SegmentFile#close()} syncs the file to disk before completing, so that it can then be published.<br>
+ *
+ * A writer has no per-file thread: sinks packaging many channels in one JVM should share a single writer.
+ */
+public class SegmentWriter implements AutoCloseable {
+	private final PacketBufferPool pool;
+	private final ExecutorService executor;
+	private final boolean ownExecutor;
+	private final boolean sync;
+
+	private SegmentWriter(PacketBufferPool pool, ExecutorService executor, boolean ownExecutor, boolean sync) {
+		this.pool = pool;
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+		this.sync = sync;
+	}
+
+	public static SegmentWriterBuilder builder() {
+		return new SegmentWriterBuilder();
+	}
+
+	/**
+	 * @return a cleared direct buffer of {@link #getBufferSize()} bytes
+	 */
+	public ByteBuffer acquire() {
+		return pool.acquire();
+	}
+
+	public int getBufferSize() {
+		return pool.getBufferSize();
+	}
+
+	/**
+	 * Create a file, or truncate it if it exists.
+	 */
+	public SegmentFile open(Path path) {
+		return new SegmentFile(path);
+	}
+
+	/**
+	 * Replace the content of a file atomically once after is done, through a temporary file in the same directory.
+	 */
+	public CompletableFuture<Void> replace(Path path, byte[] content, CompletableFuture<?> after) {
+		return after.thenRunAsync(() -> {
+			try {
+				Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+				try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+					ByteBuffer buffer = ByteBuffer.wrap(content);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					if (sync) {
+						channel.force(false);
+					}
+				}
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Delete a file once after is done.
+	 */
+	public CompletableFuture<Void> delete(Path path, CompletableFuture<?> after) {
+		return after.thenRunAsync(() -> {
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor);
+	}
+
+	@Override
+	public void close() {
+		if (ownExecutor) {
+			executor.close();
+		}
+	}
+
+	/**
+	 * A file being written. Its methods must be called from a single thread.
+	 */
+	public class SegmentFile {
+		private final Path path;
+		private FileChannel channel;
+		// Last operation on the file
+		private CompletableFuture<Void> tail;
+
+		private SegmentFile(Path path) {
+			this.path = path;
+			tail = CompletableFuture.runAsync(() -> {
+				try {
+					channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+							StandardOpenOption.WRITE);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, executor);
+		}
+
+		/**
+		 * Append the content of a flipped buffer taken with {@link #acquire()}. The buffer is given back to the pool
+		 * once written.
+		 */
+		public void write(ByteBuffer buffer) {
+			tail = tail.whenCompleteAsync((result, error) -> {
+				try {
+					if (error == null) {
+						while (buffer.hasRemaining()) {
+							channel.write(buffer);
+						}
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} finally {
+					pool.release(buffer);
+				}
+			}, executor);
+		}
+
+		/**
+		 * Close the file once written, syncing it to disk.
+		 *
+		 * @return completed when the file is closed, exceptionally if any write failed
+		 */
+		public CompletableFuture<Void> close() {
+			tail = tail.whenCompleteAsync((result, error) -> {
+				if (channel == null) {
+					return;
+				}
+				try (FileChannel toClose = channel) {
+					if (error == null && sync) {
+						toClose.force(false);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, executor);
+			return tail;
+		}
+
+		/**
+		 * Throw the error of a failed write, if any.
+		 */
+		public void checkFailure() throws IOException {
+			if (tail.isCompletedExceptionally()) {
+				try {
+					tail.join();
+				} catch (RuntimeException e) {
+					throw new IOException("Error writing " + path, e.getCause() != null ? e.getCause() : e);
+				}
+			}
+		}
+
+		public Path getPath() {
+			return path;
+		}
+	}
+
+	public static class SegmentWriterBuilder {
+		private int packetsPerBuffer = 1024;
+		private int maxPooled = 256;
+		private ExecutorService executor;
+		private boolean sync = true;
+
+		private SegmentWriterBuilder() {
+		}
+
+		/**
+		 * Size of the buffers, in packets, default 1024.
+		 */
+		public SegmentWriterBuilder setPacketsPerBuffer(int packetsPerBuffer) {
+			this.packetsPerBuffer = packetsPerBuffer;
+			return this;
+		}
+
+		/**
+		 * Maximum number of free buffers kept for reuse, default 256.
+		 */
+		public SegmentWriterBuilder setMaxPooled(int maxPooled) {
+			this.maxPooled = maxPooled;
+			return this;
+		}
+
+		/**
+		 * Executor running the file operations. By default a virtual thread is started per operation.
+		 */
+		public SegmentWriterBuilder setExecutor(ExecutorService executor) {
+			this.executor = executor;
+			return this;
+		}
+
+		/**
+		 * Sync files to disk before they are published, default true.
+		 */
+		public SegmentWriterBuilder setSync(boolean sync) {
+			this.sync = sync;
+			return this;
+		}
+
+		public SegmentWriter build() {
+			Preconditions.checkArgument(packetsPerBuffer > 0, "packetsPerBuffer must be positive");
+			PacketBufferPool pool = PacketBufferPool.builder()
+					.setPacketsPerBuffer(packetsPerBuffer)
+					.setDirect(true)
+					.setMaxPooled(maxPooled)
+					.build();
+			if (executor != null) {
+				return new SegmentWriter(pool, executor, false, sync);
+			}
+			return new SegmentWriter(pool, Executors.newVirtualThreadPerTaskExecutor(), true, sync);
+		}
+	}
+}
@@ -0,0 +1,623 @@
+package org.taktik.mpegts.sinks;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.NullPackets;
+import org.taktik.mpegts.PATSection;
+import org.taktik.mpegts.PESHeaderView;
+import org.taktik.mpegts.PMTSection;
+import org.taktik.mpegts.SectionAssembler;
+
+/**
+ * Monitors a stream with the priority 1 and 2 checks of ETSI TR 101 290, and optionally forwards it to another sink.
+ * <br>
+ *
+ * Every check is counted per PID, in primitive arrays indexed by PID, so that the analysis of a packet neither
+ * allocates nor boxes: the sink can sit inline on every channel. The PAT and PMTs are followed to know which PIDs
+ * are referenced, and intervals are measured with a nano time clock, the arrival time of the packets by default.
+ * An interval is checked when its next occurrence arrives, and by a periodic scan of the referenced PIDs, so that a
+ * PID that stopped is reported once per outage.<br>
+ *
+ * Reports are snapshots of the counters, published periodically from the thread sending the packets to a listener,
+ * and kept as {@link #getReport()}. Counters are cumulative from the start of the stream.<br>
+ *
+ * PCR accuracy is measured on the constant rate interpolated between the two PCRs around each PCR of a PID.
+ */
+public class TR101290Sink implements MTSSink {
+	static final Logger log = LoggerFactory.getLogger("tr101290");
+
+	public enum Check {
+		SYNC_LOSS(1),
+		SYNC_BYTE(1),
+		PAT(1),
+		CONTINUITY(1),
+		PMT(1),
+		PID(1),
+		TRANSPORT(2),
+		CRC(2),
+		PCR_REPETITION(2),
+		PCR_DISCONTINUITY(2),
+		PCR_ACCURACY(2),
+		PTS(2),
+		CAT(2);
+
+		private final int priority;
+
+		Check(int priority) {
+			this.priority = priority;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+	}
+
+	private static final Check[] CHECKS = Check.values();
+	private static final int PID_COUNT = 8192;
+	private static final long PCR_WRAP = (1L << 33) * 300;
+
+	private static final long TABLE_INTERVAL = Duration.ofMillis(500).toNanos();
+	private static final long PCR_INTERVAL = Duration.ofMillis(40).toNanos();
+	private static final long PTS_INTERVAL = Duration.ofMillis(700).toNanos();
+	// Largest step between two PCRs, in 27MHz units
+	private static final long PCR_GAP = 100 * 27_000L;
+	private static final long PCR_ACCURACY_NANOS = 500;
+	private static final long SCAN_INTERVAL = Duration.ofMillis(5).toNanos();
+
+	private static final byte NONE = 0;
+	private static final byte TABLE = 1;
+	private static final byte ES = 2;
+
+	private final MTSSink sink;
+	private final LongSupplier clock;
+	private final long pidTimeout;
+	private final long reportInterval;
+	private final Consumer<Report> listener;
+
+	private final MTSPacketView view = new MTSPacketView();
+	private final PESHeaderView pes = new PESHeaderView();
+	private final SectionAssembler sections = new SectionAssembler(this::section, true);
+
+	// Counters, in total and by check and PID
+	private final long[] totals = new long[CHECKS.length];
+	private final int[] errors = new int[CHECKS.length * PID_COUNT];
+	private final long[] packets = new long[PID_COUNT];
+	private long packetCount;
+
+	private int badSyncs;
+	private int goodSyncs;
+	private boolean syncLost;
+
+	// Tables of the stream, and what each PID is
+	private PATSection pat;
+	private final PMTSection[] pmts = new PMTSection[PID_COUNT];
+	private final byte[] kinds = new byte[PID_COUNT];
+	private final boolean[] pcrPids = new boolean[PID_COUNT];
+	private final boolean[] ptsPids = new boolean[PID_COUNT];
+	private boolean catSeen;
+	// PIDs checked by the periodic scan
+	private int[] referenced = {0};
+
+	// Continuity counters, -1 if unknown, and whether the last packet was a duplicate
+	private final byte[] continuities = new byte[PID_COUNT];
+	private final boolean[] duplicates = new boolean[PID_COUNT];
+
+	// Last occurrences, and whether their interval was already reported as too long
+	private final long[] lastPacket = new long[PID_COUNT];
+	private final boolean[] pidLate = new boolean[PID_COUNT];
+	private final long[] lastTable = new long[PID_COUNT];
+	private final boolean[] tableLate = new boolean[PID_COUNT];
+	private final long[] lastPcrTime = new long[PID_COUNT];
+	private final boolean[] pcrLate = new boolean[PID_COUNT];
+	private final long[] lastPtsTime = new long[PID_COUNT];
+	private final boolean[] ptsLate = new boolean[PID_COUNT];
+
+	// Last two PCRs of each PID and their byte positions, -1 if unknown
+	private final long[] lastPcr = new long[PID_COUNT];
+	private final long[] lastPcrPosition = new long[PID_COUNT];
+	private final long[] previousPcr = new long[PID_COUNT];
+	private final long[] previousPcrPosition = new long[PID_COUNT];
+
+	private long now;
+	private boolean started;
+	private long nextScan;
+	private long nextReport;
+	private volatile Report report;
+
+	private TR101290Sink(MTSSink sink, LongSupplier clock, Duration pidTimeout, Duration reportInterval,
+			Consumer<Report> listener) {
+		this.sink = sink;
+		this.clock = clock;
+		this.pidTimeout = pidTimeout.toNanos();
+		this.reportInterval = reportInterval.toNanos();
+		this.listener = listener;
+		Arrays.fill(continuities, (byte) -1);
+		Arrays.fill(lastPcr, -1);
+		Arrays.fill(previousPcr, -1);
+		kinds[0] = TABLE;
+		this.report = snapshot();
+	}
+
+	@Override
+	public void send(MTSPacket packet) throws Exception {
+		analyze(view.wrap(packet));
+		if (sink != null) {
+			sink.send(packet);
+		}
+	}
+
+	@Override
+	public void send(MTSPacketView packet) throws Exception {
+		analyze(packet);
+		if (sink != null) {
+			sink.send(packet);
+		}
+	}
+
+	@Override
+	public void send(ByteBuffer packets) throws Exception {
+		int start = packets.position();
+		for (int offset = start; offset + Constants.MPEGTS_PACKET_SIZE <= packets.limit(); offset += Constants.MPEGTS_PACKET_SIZE) {
+			analyze(view.wrap(packets, offset));
+		}
+		if (sink != null) {
+			sink.send(packets);
+		} else {
+			packets.position(packets.limit());
+		}
+	}
+
+	private void analyze(MTSPacketView packet) {
+		now = clock.getAsLong();
+		if (!started) {
+			started = true;
+			lastTable[0] = now;
+			nextScan = now + SCAN_INTERVAL;
+			nextReport = now + reportInterval;
+		}
+		if (now - nextScan >= 0) {
+			scan();
+		}
+		long position = packetCount++ * Constants.MPEGTS_PACKET_SIZE;
+
+		if (packet.buffer().get(packet.offset()) != Constants.TS_MARKER) {
+			goodSyncs = 0;
+			count(Check.SYNC_BYTE, -1);
+			if (++badSyncs >= 2 && !syncLost) {
+				syncLost = true;
+				count(Check.SYNC_LOSS, -1);
+			}
+			return;
+		}
+		badSyncs = 0;
+		if (syncLost) {
+			if (++goodSyncs < 5) {
+				return;
+			}
+			syncLost = false;
+			// Packets were lost with the sync, already reported
+			Arrays.fill(continuities, (byte) -1);
+		}
+
+		int pid = packet.getPid();
+		packets[pid]++;
+		interval(Check.PID, pid, lastPacket, pidLate, pidTimeout);
+		if (packet.isTransportErrorIndicator()) {
+			count(Check.TRANSPORT, pid);
+			return;
+		}
+		continuity(pid, packet);
+
+		if (packet.getScramblingControl() != 0) {
+			if (pid == 0) {
+				count(Check.PAT, pid);
+			} else if (kinds[pid] == TABLE) {
+				count(Check.PMT, pid);
+			} else if (!catSeen) {
+				count(Check.CAT, pid);
+			}
+		} else if (pid == 1 || kinds[pid] == TABLE) {
+			if (packet.isPayloadUnitStartIndicator() && pid != 1) {
+				interval(pid == 0 ? Check.PAT : Check.PMT, pid, lastTable, tableLate, TABLE_INTERVAL);
+			}
+			long crcErrors = sections.getCrcErrors();
+			sections.push(packet);
+			if (sections.getCrcErrors() != crcErrors) {
+				count(Check.CRC, pid);
+			}
+		} else if (kinds[pid] == ES && packet.isPayloadUnitStartIndicator()) {
+			pes.wrap(packet.buffer(), packet.getPayloadOffset(), packet.getPayloadLength());
+			if (pes.isValid() && pes.hasPts()) {
+				if (!ptsPids[pid]) {
+					ptsPids[pid] = true;
+					lastPtsTime[pid] = now;
+					updateReferenced();
+				}
+				interval(Check.PTS, pid, lastPtsTime, ptsLate, PTS_INTERVAL);
+			}
+		}
+
+		if (packet.isPcrFlag()) {
+			pcr(pid, packet.getPcr(), position, packet.isDiscontinuityIndicator());
+		}
+
+		if (listener != null && now - nextReport >= 0) {
+			nextReport = now + reportInterval;
+			publish();
+		}
+	}
+
+	private void continuity(int pid, MTSPacketView packet) {
+		if (pid == NullPackets.PID) {
+			return;
+		}
+		int continuity = packet.getContinuityCounter();
+		int last = continuities[pid];
+		continuities[pid] = (byte) continuity;
+		if (last < 0 || packet.isDiscontinuityIndicator()) {
+			duplicates[pid] = false;
+			return;
+		}
+		if (!packet.isContainsPayload()) {
+			if (continuity != last) {
+				count(Check.CONTINUITY, pid);
+			}
+		} else if (continuity == last) {
+			// A packet may be sent twice, not more
+			if (duplicates[pid]) {
+				count(Check.CONTINUITY, pid);
+			}
+			duplicates[pid] = true;
+		} else {
+			duplicates[pid] = false;
+			if (continuity != ((last + 1) & 0x0f)) {
+				count(Check.CONTINUITY, pid);
+			}
+		}
+	}
+
+	private void pcr(int pid, long pcr, long position, boolean discontinuity) {
+		if (!pcrPids[pid]) {
+			// PCRs of a PID that is not the PCR PID of a program are not checked
+			return;
+		}
+		interval(Check.PCR_REPETITION, pid, lastPcrTime, pcrLate, PCR_INTERVAL);
+		boolean continuous = false;
+		if (lastPcr[pid] >= 0 && !discontinuity) {
+			long step = Math.floorMod(pcr - lastPcr[pid], PCR_WRAP);
+			if (step > PCR_GAP) {
+				count(Check.PCR_DISCONTINUITY, pid);
+			} else {
+				continuous = true;
+				if (previousPcr[pid] >= 0) {
+					accuracy(pid, pcr, position);
+				}
+			}
+		}
+		previousPcr[pid] = continuous ? lastPcr[pid] : -1;
+		previousPcrPosition[pid] = lastPcrPosition[pid];
+		lastPcr[pid] = pcr;
+		lastPcrPosition[pid] = position;
+	}
+
+	/**
+	 * Check the last PCR of a PID against the rate between the PCRs around it.
+	 */
+	private void accuracy(int pid, long pcr, long position) {
+		long span = Math.floorMod(pcr - previousPcr[pid], PCR_WRAP);
+		long length = position - previousPcrPosition[pid];
+		if (length <= 0) {
+			return;
+		}
+		long expected = previousPcr[pid] + span * (lastPcrPosition[pid] - previousPcrPosition[pid]) / length;
+		long error = Math.floorMod(lastPcr[pid] - expected + PCR_WRAP / 2, PCR_WRAP) - PCR_WRAP / 2;
+		if (Math.abs(error) * 1000 / 27 > PCR_ACCURACY_NANOS) {
+			count(Check.PCR_ACCURACY, pid);
+		}
+	}
+
+	/**
+	 * Account for an occurrence, and check the interval since the last one unless it was already reported.
+	 */
+	private void interval(Check check, int pid, long[] last, boolean[] late, long limit) {
+		if (!late[pid] && kinds[pid] != NONE && now - last[pid] > limit) {
+			count(check, pid);
+		}
+		last[pid] = now;
+		late[pid] = false;
+	}
+
+	/**
+	 * Report the referenced PIDs that have not occurred for too long.
+	 */
+	private void scan() {
+		nextScan = now + SCAN_INTERVAL;
+		for (int pid : referenced) {
+			if (kinds[pid] == TABLE) {
+				late(pid == 0 ? Check.PAT : Check.PMT, pid, lastTable, tableLate, TABLE_INTERVAL);
+			} else {
+				late(Check.PID, pid, lastPacket, pidLate, pidTimeout);
+			}
+			if (pcrPids[pid]) {
+				late(Check.PCR_REPETITION, pid, lastPcrTime, pcrLate, PCR_INTERVAL);
+			}
+			if (ptsPids[pid]) {
+				late(Check.PTS, pid, lastPtsTime, ptsLate, PTS_INTERVAL);
+			}
+		}
+	}
+
+	private void late(Check check, int pid, long[] last, boolean[] late, long limit) {
+		if (!late[pid] && now - last[pid] > limit) {
+			count(check, pid);
+			late[pid] = true;
+		}
+	}
+
+	private void count(Check check, int pid) {
+		totals[check.ordinal()]++;
+		if (pid >= 0) {
+			errors[check.ordinal() * PID_COUNT + pid]++;
+		}
+	}
+
+	private void section(int pid, ByteBuffer section) {
+		int tableId = section.get(0) & 0xff;
+		if (pid == 1) {
+			catSeen |= tableId == 0x01;
+		} else if (pid == 0) {
+			PATSection pat = tableId == 0 ? PATSection.parse(section.duplicate()) : null;
+			if (pat == null) {
+				count(Check.PAT, pid);
+			} else if (pat.getCurrentNextIndicator() != 0) {
+				this.pat = pat;
+				for (int pmtPid = 1; pmtPid < PID_COUNT; pmtPid++) {
+					if (pmts[pmtPid] != null && !pat.getPrograms().containsValue(pmtPid)) {
+						pmts[pmtPid] = null;
+						sections.reset(pmtPid);
+					}
+				}
+				updateKinds();
+			}
+		} else if (tableId == 0x02) {
+			PMTSection pmt = PMTSection.parse(section.duplicate());
+			if (pmt == null) {
+				count(Check.PMT, pid);
+			} else if (pmt.getCurrentNextIndicator() != 0) {
+				pmts[pid] = pmt;
+				updateKinds();
+			}
+		}
+	}
+
+	/**
+	 * Follow the PAT and PMTs: PIDs becoming referenced are given a grace period from now.
+	 */
+	private void updateKinds() {
+		byte[] previous = kinds.clone();
+		Arrays.fill(kinds, NONE);
+		Arrays.fill(pcrPids, false);
+		kinds[0] = TABLE;
+		pat.getPrograms().forEach((program, pid) -> {
+			// Program 0 points to the NIT
+			if (program != 0) {
+				kinds[pid] = TABLE;
+			}
+		});
+		for (int pid = 0; pid < PID_COUNT; pid++) {
+			PMTSection pmt = pmts[pid];
+			if (pmt == null || kinds[pid] != TABLE) {
+				continue;
+			}
+			for (PMTSection.PMTStream stream : pmt.getStreams()) {
+				kinds[stream.getPid()] = ES;
+			}
+			if (pmt.getPcrPid() != NullPackets.PID) {
+				pcrPids[pmt.getPcrPid()] = true;
+				if (kinds[pmt.getPcrPid()] == NONE) {
+					kinds[pmt.getPcrPid()] = ES;
+				}
+			}
+		}
+		for (int pid = 0; pid < PID_COUNT; pid++) {
+			if (kinds[pid] != NONE && previous[pid] == NONE) {
+				lastTable[pid] = lastPacket[pid] = lastPcrTime[pid] = now;
+			}
+			if (kinds[pid] != ES) {
+				ptsPids[pid] = false;
+			}
+		}
+		updateReferenced();
+	}
+
+	private void updateReferenced() {
+		int count = 0;
+		for (int pid = 0; pid < PID_COUNT; pid++) {
+			if (kinds[pid] != NONE) {
+				count++;
+			}
+		}
+		int[] referenced = new int[count];
+		count = 0;
+		for (int pid = 0; pid < PID_COUNT; pid++) {
+			if (kinds[pid] != NONE) {
+				referenced[count++] = pid;
+			}
+		}
+		this.referenced = referenced;
+	}
+
+	private Report snapshot() {
+		return new Report(now, packetCount, totals.clone(), errors.clone(), packets.clone());
+	}
+
+	private void publish() {
+		Report report = snapshot();
+		this.report = report;
+		listener.accept(report);
+	}
+
+	/**
+	 * @return the last report published, updated at each report interval with a listener, and on close
+	 */
+	public Report getReport() {
+		return report;
+	}
+
+	@Override
+	public void flush() throws Exception {
+		if (sink != null) {
+			sink.flush();
+		}
+	}
+
+	@Override
+	public void close() throws Exception {
+		try {
+			report = snapshot();
+			if (listener != null) {
+				listener.accept(report);
+			}
+			log.info("{}", report);
+		} finally {
+			if (sink != null) {
+				sink.close();
+			}
+		}
+	}
+
+	/**
+	 * A snapshot of the counters of the checks.
+	 */
+	public static final class Report {
+		private final long time;
+		private final long packetCount;
+		private final long[] totals;
+		private final int[] errors;
+		private final long[] packets;
+
+		private Report(long time, long packetCount, long[] totals, int[] errors, long[] packets) {
+			this.time = time;
+			this.packetCount = packetCount;
+			this.totals = totals;
+			this.errors = errors;
+			this.packets = packets;
+		}
+
+		/**
+		 * @return the clock time of the last packet analyzed
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public long getPacketCount() {
+			return packetCount;
+		}
+
+		public long getPacketCount(int pid) {
+			return packets[pid];
+		}
+
+		public long getCount(Check check) {
+			return totals[check.ordinal()];
+		}
+
+		/**
+		 * @return the errors of a check on a PID; sync errors are not counted by PID
+		 */
+		public int getCount(Check check, int pid) {
+			return errors[check.ordinal() * PID_COUNT + pid];
+		}
+
+		/**
+		 * @return the errors of all the checks of a priority
+		 */
+		public long getPriorityCount(int priority) {
+			long count = 0;
+			for (Check check : CHECKS) {
+				if (check.getPriority() == priority) {
+					count += totals[check.ordinal()];
+				}
+			}
+			return count;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder("packets=").append(packetCount);
+			for (Check check : CHECKS) {
+				if (totals[check.ordinal()] > 0) {
+					builder.append(' ').append(check).append('=').append(totals[check.ordinal()]);
+				}
+			}
+			return builder.toString();
+		}
+	}
+
+	public static TR101290SinkBuilder builder() {
+		return new TR101290SinkBuilder();
+	}
+
+	public static class TR101290SinkBuilder {
+		private MTSSink sink;
+		private LongSupplier clock = System::nanoTime;
+		private Duration pidTimeout = Duration.ofSeconds(5);
+		private Duration reportInterval = Duration.ofSeconds(1);
+		private Consumer<Report> listener;
+
+		private TR101290SinkBuilder() {
+		}
+
+		/**
+		 * Forward the packets to a sink after their analysis. Packets are only analyzed by default.
+		 */
+		public TR101290SinkBuilder setSink(MTSSink sink) {
+			this.sink = sink;
+			return this;
+		}
+
+		/**
+		 * The clock timing the packets, in nanoseconds. {@link System#nanoTime()} by default.
+		 */
+		public TR101290SinkBuilder setClock(LongSupplier clock) {
+			this.clock = clock;
+			return this;
+		}
+
+		/**
+		 * How long a PID referenced by a PMT may be missing, 5s by default.
+		 */
+		public TR101290SinkBuilder setPidTimeout(Duration pidTimeout) {
+			this.pidTimeout = pidTimeout;
+			return this;
+		}
+
+		public TR101290SinkBuilder setReportInterval(Duration reportInterval) {
+			this.reportInterval = reportInterval;
+			return this;
+		}
+
+		public TR101290SinkBuilder setReportListener(Consumer<Report> listener) {
+			this.listener = listener;
+			return this;
+		}
+
+		public TR101290Sink build() {
+			Preconditions.checkNotNull(clock);
+			Preconditions.checkArgument(pidTimeout != null && !pidTimeout.isNegative() && !pidTimeout.isZero(), "Invalid PID timeout %s", pidTimeout);
+			Preconditions.checkArgument(reportInterval != null && !reportInterval.isNegative() && !reportInterval.isZero(), "Invalid report interval %s", reportInterval);
+			return new TR101290Sink(sink, clock, pidTimeout, reportInterval, listener);
+		}
+	}
+}
@@ -1,61 +1,124 @@
 package org.taktik.mpegts.sinks;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.net.Inet6Address;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.time.Duration;
-import java.util.concurrent.CompletableFuture;
+import java.nio.channels.DatagramChannel;
 
 import com.google.common.base.Preconditions;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
-
+import org.taktik.mpegts.MTSPacketView;
+
+/**
+ * Sends packets over UDP, unicast or multicast, in datagrams of {@link Constants#PACKETS_PER_BLOCK} packets
+ * (1316 bytes) by default.<br>
+ *
+ * Every datagram is full: packets are gathered in a reused direct buffer until a datagram is complete, and the full
+ * datagrams of a run given to {@link #send(ByteBuffer)} are written straight from its buffer. Packets left over
+ * are sent with the next ones, or by {@link #flush()} and {@link #close()}, the only short datagrams. The
+ * {@link org.taktik.mpegts.Streamer} flushes when no packets follow within one datagram interval, or when its buffer
+ * runs dry, so that packets are not held past their departure time.
+ */
 public class UDPTransport implements MTSSink {
 
 	private final InetSocketAddress inetSocketAddress;
-	private final MulticastSocket multicastSocket;
-	private CompletableFuture<Void> queue = CompletableFuture.completedFuture(null);
-	private final Thread.Builder builder = Thread.ofVirtual().name("HTTPMTSSource");
-
+	private final DatagramChannel channel;
+	private final int datagramSize;
+	// Single packets waiting for a full datagram
+	private final ByteBuffer pending;
 
 
-	private UDPTransport(String address, int port, int ttl, int soTimeout) throws IOException {
+	private UDPTransport(String address, int port, int ttl, int soTimeout, int packetsPerDatagram) throws IOException {
 		// InetSocketAddress
 		inetSocketAddress = new InetSocketAddress(address, port);
 
-		// Create the socket but we don't bind it as we are only going to send data
+		// Create the channel but we don't bind it as we are only going to send data
 		// Note that we don't have to join the multicast group if we are only sending data and not receiving
-		multicastSocket = new MulticastSocket();
-		multicastSocket.setReuseAddress(true);
-		multicastSocket.setSoTimeout(soTimeout);
-		multicastSocket.setTimeToLive(ttl);
+		channel = DatagramChannel.open(inetSocketAddress.getAddress() instanceof Inet6Address
+				? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+		channel.socket().setSoTimeout(soTimeout);
+
+		datagramSize = packetsPerDatagram * Constants.MPEGTS_PACKET_SIZE;
+		pending = ByteBuffer.allocateDirect(datagramSize);
 	}
 
 	@Override
 	public void send(MTSPacket packet) throws Exception {
 		ByteBuffer buffer = packet.getBuffer();
-		Preconditions.checkArgument(buffer.hasArray());
-		DatagramPacket datagramPacket = new DatagramPacket(buffer.array(), buffer.arrayOffset(), buffer.limit(), inetSocketAddress);
-		CompletableFuture<Void> oldFuture = queue;
-		queue = queue.thenRunAsync(() -> {
-            try {
-                multicastSocket.send(datagramPacket);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }, builder::start);
-		if (queue.isDone()) {
-			queue.get();
-		} else {
-			oldFuture.join();
+		pending.put(pending.position(), buffer, 0, Constants.MPEGTS_PACKET_SIZE);
+		pending.position(pending.position() + Constants.MPEGTS_PACKET_SIZE);
+		if (!pending.hasRemaining()) {
+			flush();
+		}
+	}
+
+	@Override
+	public void send(MTSPacketView packet) throws Exception {
+		packet.copyTo(pending);
+		if (!pending.hasRemaining()) {
+			flush();
+		}
+	}
+
+	/**
+	 * Send the run of packets as datagrams of {@link UDPTransportBuilder#setPacketsPerDatagram(int)} packets, keeping
+	 * the packets left over for the next datagram.
+	 */
+	@Override
+	public void send(ByteBuffer packets) throws Exception {
+		int limit = packets.limit();
+		try {
+			if (pending.position() > 0) {
+				// Complete the datagram started by previous packets
+				append(packets);
+				if (pending.hasRemaining()) {
+					return;
+				}
+				flush();
+			}
+			while (packets.remaining() >= datagramSize) {
+				packets.limit(packets.position() + datagramSize);
+				channel.send(packets, inetSocketAddress);
+				packets.limit(limit);
+			}
+			append(packets);
+		} finally {
+			packets.limit(limit);
 		}
 	}
 
-	public void close() {
-		multicastSocket.close();
+	private void append(ByteBuffer packets) {
+		int length = Math.min(pending.remaining(), packets.remaining());
+		length -= length % Constants.MPEGTS_PACKET_SIZE;
+		pending.put(pending.position(), packets, packets.position(), length);
+		pending.position(pending.position() + length);
+		packets.position(packets.position() + length);
+	}
+
+	/**
+	 * Send the packets waiting for a full datagram.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (pending.position() > 0) {
+			pending.flip();
+			channel.send(pending, inetSocketAddress);
+			pending.clear();
+		}
+	}
+
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
 	}
 
 	public static UDPTransport.UDPTransportBuilder builder() {
@@ -67,6 +130,7 @@ public class UDPTransport implements MTSSink {
 		private int port;
 		private int ttl;
 		private int soTimeout;
+		private int packetsPerDatagram = Constants.PACKETS_PER_BLOCK;
 
 		public UDPTransportBuilder setAddress(String address) {
 			this.address = address;
@@ -88,8 +152,18 @@ public class UDPTransport implements MTSSink {
 			return this;
 		}
 
+		/**
+		 * Maximum number of packets per datagram, default {@link Constants#PACKETS_PER_BLOCK}.
+		 */
+		public UDPTransportBuilder setPacketsPerDatagram(int packetsPerDatagram) {
+			this.packetsPerDatagram = packetsPerDatagram;
+			return this;
+		}
+
 		public UDPTransport build() throws IOException {
-			return new UDPTransport(address, port, ttl, soTimeout);
+			Preconditions.checkNotNull(address, "address cannot be null");
+			Preconditions.checkArgument(packetsPerDatagram > 0, "packetsPerDatagram must be positive");
+			return new UDPTransport(address, port, ttl, soTimeout, packetsPerDatagram);
 		}
 	}
 }
@@ -1,33 +1,200 @@
 package org.taktik.mpegts.sources;
 
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.PacketRing;
 
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.nio.ByteBuffer;
 import java.util.Objects;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
 
+/**
+ * Base class of the sources that read from a blocking resource (file, stream, network...).<br>
+ *
+ * Reading is done ahead of the consumer by a single long-lived virtual thread, started on the first read, which fills
+ * a {@link PacketRing} of packet batches through {@link #nextPacketsBlocking(ByteBuffer)}. The ring holds up to
+ * {@link #getReadAheadDepth()} batches of {@link Constants#PACKETS_PER_BLOCK} packets; when it is full the reader
+ * waits for the consumer. Subclasses must stop the reader with {@link #stopReadAhead()} when they drop or reposition
+ * the underlying resource: a resource that is dropped is closed first, so that a reader blocked on it returns and
+ * can be joined, and a resource that is repositioned, which cannot block for long, is repositioned afterwards.
+ */
 public abstract class AbstractBlockingMTSSource extends AbstractMTSSource {
 
-    private Future<MTSPacket> nextPacket;
+    public static final int DEFAULT_READ_AHEAD_DEPTH = 16;
+
     private final Thread.Builder builder = Thread.ofVirtual().name(Objects.toIdentityString(this));
+    private final MTSPacketView readView = new MTSPacketView();
+
+    private int readAheadDepth = DEFAULT_READ_AHEAD_DEPTH;
+    private PacketRing ring;
+    private Thread reader;
+    private volatile Exception failure;
+    // Batch being consumed, owned by the consumer until released to the ring
+    private ByteBuffer batch;
+
+    /**
+     * Set the number of packet batches read ahead. Must be called before the first read.
+     */
+    public void setReadAheadDepth(int readAheadDepth) {
+        Preconditions.checkArgument(readAheadDepth > 0, "readAheadDepth must be positive");
+        Preconditions.checkState(ring == null, "Read-ahead already started");
+        this.readAheadDepth = readAheadDepth;
+    }
+
+    public int getReadAheadDepth() {
+        return readAheadDepth;
+    }
+
+    /**
+     * @return the number of times a read had to wait for the underlying resource
+     */
+    public long getReadAheadStalls() {
+        return ring == null ? 0 : ring.getConsumerStalls();
+    }
+
+    /**
+     * @return the number of times the reader had to wait for the consumer
+     */
+    public long getReadAheadWaits() {
+        return ring == null ? 0 : ring.getProducerWaits();
+    }
 
     @Override
     protected MTSPacket nextPacketInternal() throws Exception {
-        MTSPacket packet;
-        if (nextPacket == null) {
-            packet = nextPacketBlocking();
-        } else {
-            packet = nextPacket.get();
+        return nextPacketInternal(readView) ? readView.toPacket() : null;
+    }
+
+    @Override
+    protected boolean nextPacketInternal(MTSPacketView view) throws Exception {
+        if (!nextBatch(true)) {
+            return false;
         }
-        if (packet == null) {
-            nextPacket = null;
-        } else {
-            FutureTask<MTSPacket> task = new FutureTask<>(this::nextPacketBlocking);
-            builder.start(task);
-            nextPacket = task;
+        int offset = batch.position();
+        view.wrap(batch, offset);
+        batch.position(offset + Constants.MPEGTS_PACKET_SIZE);
+        return true;
+    }
+
+    @Override
+    protected int nextPacketsInternal(ByteBuffer packets) throws Exception {
+        int count = 0;
+        // Only wait for the first packets, then take what is already read
+        while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE && nextBatch(count == 0)) {
+            int length = Math.min(packets.remaining(), batch.remaining());
+            length -= length % Constants.MPEGTS_PACKET_SIZE;
+            packets.put(packets.position(), batch, batch.position(), length);
+            packets.position(packets.position() + length);
+            batch.position(batch.position() + length);
+            count += length / Constants.MPEGTS_PACKET_SIZE;
+        }
+        return count;
+    }
+
+    /**
+     * Make sure {@link #batch} has packets left, taking the next batch from the ring if needed.
+     */
+    private boolean nextBatch(boolean wait) throws Exception {
+        if (batch != null) {
+            if (batch.hasRemaining()) {
+                return true;
+            }
+            batch = null;
+            ring.release();
+        }
+        if (reader == null) {
+            startReadAhead();
         }
-        return packet;
+        ByteBuffer next = wait ? ring.take() : ring.poll();
+        if (next == null) {
+            Exception e = failure;
+            if (e != null && wait) {
+                failure = null;
+                throw e;
+            }
+            return false;
+        }
+        batch = next;
+        batchTaken(batch, ring.tag());
+        return true;
+    }
+
+    private void startReadAhead() {
+        if (ring == null) {
+            ring = PacketRing.builder().setSlots(readAheadDepth).build();
+        }
+        reader = builder.start(this::readAhead);
+    }
+
+    private void readAhead() {
+        try {
+            ByteBuffer slot;
+            while ((slot = ring.claim()) != null) {
+                long tag = batchTag();
+                if (nextPacketsBlocking(slot) == 0) {
+                    break;
+                }
+                slot.flip();
+                ring.publish(tag);
+            }
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            ring.finish();
+        }
+    }
+
+    /**
+     * Stop the reader and drop what was read ahead. The reader restarts on the next read.
+     */
+    protected void stopReadAhead() {
+        if (reader != null) {
+            ring.close();
+            Uninterruptibles.joinUninterruptibly(reader);
+            reader = null;
+        }
+        if (ring != null) {
+            ring.reset();
+        }
+        batch = null;
+        failure = null;
+    }
+
+    /**
+     * Called by the reader before reading a batch.
+     *
+     * @return a value handed to {@link #batchTaken(ByteBuffer, long)} with the batch
+     */
+    protected long batchTag() {
+        return 0;
+    }
+
+    /**
+     * Called by the consumer when it starts reading a batch.
+     */
+    protected void batchTaken(ByteBuffer batch, long tag) {
     }
 
     protected abstract MTSPacket nextPacketBlocking() throws Exception;
+
+    protected boolean nextPacketBlocking(MTSPacketView view) throws Exception {
+        MTSPacket packet = nextPacketBlocking();
+        if (packet == null) {
+            return false;
+        }
+        view.wrap(packet);
+        return true;
+    }
+
+    protected int nextPacketsBlocking(ByteBuffer packets) throws Exception {
+        MTSPacketView view = batchView();
+        int count = 0;
+        while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE && nextPacketBlocking(view)) {
+            view.copyTo(packets);
+            count++;
+        }
+        return count;
+    }
 }
@@ -9,6 +9,8 @@ import org.slf4j.LoggerFactory;
 import org.taktik.ioutils.NIOUtils;
 import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.PacketFormat;
 
 public abstract class AbstractByteChannelMTSSource<T extends ByteChannel> extends AbstractBlockingMTSSource {
 	static final Logger log = LoggerFactory.getLogger("source");
@@ -17,6 +19,9 @@ public abstract class AbstractByteChannelMTSSource<T extends ByteChannel> extend
 
 	protected ByteBuffer buffer;
 	protected T byteChannel;
+	protected final SyncScanner scanner = SyncScanner.builder().build();
+	// true when MTSPacket slices of buffer were handed out, so it cannot be recycled
+	private boolean sliced;
 
 
 	protected AbstractByteChannelMTSSource(T byteChannel) throws IOException {
@@ -25,7 +30,13 @@ public abstract class AbstractByteChannelMTSSource<T extends ByteChannel> extend
 	}
 
 	protected boolean fillBuffer() throws IOException {
-		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		if (buffer == null || sliced) {
+			// Packets handed out as MTSPacket still reference the old buffer
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			sliced = false;
+		} else {
+			buffer.clear();
+		}
 		return fillBuffer(buffer);
 	}
 
@@ -43,79 +54,132 @@ public abstract class AbstractByteChannelMTSSource<T extends ByteChannel> extend
 
 	@Override
 	protected MTSPacket nextPacketBlocking() throws IOException {
-		ByteBuffer packetBuffer = null;
-		while (true) {
-			boolean foundFirstMarker = false;
-			int skipped = 0;
-			while (!foundFirstMarker) {
-				if (!buffer.hasRemaining()) {
-					if (lastBuffer()) {
-						return null;
+		for (;;) {
+			int offset = nextPacketOffset();
+			if (offset < 0) {
+				return null;
+			}
+			ByteBuffer packetBuffer = buffer.slice(offset, Constants.MPEGTS_PACKET_SIZE);
+			sliced = true;
+
+			// Parse the packet
+			try {
+				return new MTSPacket(packetBuffer);
+			} catch (Exception e) {
+				log.warn("Error parsing packet", e);
+			}
+		}
+	}
+
+	@Override
+	protected boolean nextPacketBlocking(MTSPacketView view) throws IOException {
+		int offset = nextPacketOffset();
+		if (offset < 0) {
+			return false;
+		}
+		view.wrap(buffer, offset);
+		return true;
+	}
+
+	@Override
+	protected int nextPacketsBlocking(ByteBuffer packets) throws IOException {
+		int count = 0;
+		while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+			int offset = nextPacketOffset();
+			if (offset < 0) {
+				break;
+			}
+			// Extend the run with the following packets that are already buffered and in sync
+			PacketFormat format = scanner.getFormat();
+			int run = 1;
+			int max = packets.remaining() / Constants.MPEGTS_PACKET_SIZE;
+			while (run < max && scanner.isInSync(buffer, buffer.position(), buffer.limit())) {
+				buffer.position(buffer.position() + format.getPacketSize());
+				run++;
+			}
+			if (format == PacketFormat.TS) {
+				int length = run * Constants.MPEGTS_PACKET_SIZE;
+				packets.put(packets.position(), buffer, offset, length);
+				packets.position(packets.position() + length);
+			} else {
+				for (int i = 0; i < run; i++) {
+					packets.put(packets.position(), buffer, offset + i * format.getPacketSize(), Constants.MPEGTS_PACKET_SIZE);
+					packets.position(packets.position() + Constants.MPEGTS_PACKET_SIZE);
+				}
+			}
+			count += run;
+		}
+		return count;
+	}
+
+	/**
+	 * Find the next packet in {@link #buffer}, refilling it as needed, and move past it. The packet format is
+	 * detected by the {@link SyncScanner}: the prefix or suffix of 192 and 204 bytes packets is skipped.
+	 *
+	 * @return the offset of the 188 bytes TS packet in {@link #buffer}, or -1 at the end of the channel
+	 */
+	protected int nextPacketOffset() throws IOException {
+		boolean end = false;
+		for (;;) {
+			int position = buffer.position();
+			if (buffer.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+				if (scanner.isLocked()) {
+					if (scanner.isInSync(buffer, position, buffer.limit())) {
+						return nextPacketOffset(position);
 					}
-					if (!fillBuffer()) {
-						return null;
+					if (buffer.remaining() >= scanner.getFormat().getPacketSize()) {
+						scanner.lost();
 					}
 				}
-				if ((buffer.get(buffer.position()) & 0xff) == Constants.TS_MARKER) {
-					foundFirstMarker = true;
-				} else {
-					buffer.position(buffer.position() + 1);
-					skipped++;
+				if (!scanner.isLocked()) {
+					int offset = scanner.scan(buffer, position, buffer.limit(), end || lastBuffer());
+					if (offset >= 0) {
+						return nextPacketOffset(offset);
+					}
+					buffer.position(-1 - offset);
 				}
 			}
-			if (skipped > 0) {
-				log.info("Skipped {} bytes looking for TS marker", skipped);
+			if (end || lastBuffer()) {
+				return -1;
 			}
-			if (buffer.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
-				if ((buffer.remaining() == Constants.MPEGTS_PACKET_SIZE) ||
-						(buffer.get(buffer.position() + Constants.MPEGTS_PACKET_SIZE) & 0xff) == Constants.TS_MARKER) {
-					packetBuffer = buffer.slice();
-					packetBuffer.limit(Constants.MPEGTS_PACKET_SIZE);
-					buffer.position(buffer.position() + Constants.MPEGTS_PACKET_SIZE);
-				} else {
-					log.info("no second marker found");
-					buffer.position(buffer.position() + 1);
+			if (!buffer.hasRemaining()) {
+				if (!fillBuffer()) {
+					return -1;
 				}
-			} else if (!lastBuffer()) {
-				log.info("NEW BUFFER");
-
+				continue;
+			}
+			// Keep the start of a packet, or of a candidate waiting for confirmation
+			if (sliced) {
 				ByteBuffer newBuffer = ByteBuffer.allocate(BUFFER_SIZE);
 				newBuffer.put(buffer);
 				buffer = newBuffer;
-				if (!fillBuffer(buffer)) {
-					return null;
-				}
-				if (buffer.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
-					if ((buffer.remaining() == Constants.MPEGTS_PACKET_SIZE) ||
-							(buffer.get(buffer.position() + Constants.MPEGTS_PACKET_SIZE) & 0xff) == Constants.TS_MARKER) {
-						packetBuffer = buffer.slice();
-						packetBuffer.limit(Constants.MPEGTS_PACKET_SIZE);
-						buffer.position(buffer.position() + Constants.MPEGTS_PACKET_SIZE);
-					} else {
-						log.info("no second marker found");
-						buffer.position(buffer.position() + 1);
-					}
-				} else {
-					return null;
-				}
+				sliced = false;
 			} else {
-				return null;
+				buffer.compact();
 			}
-
-			if (packetBuffer != null) {
-				// Parse the packet
-				try {
-					return new MTSPacket(packetBuffer);
-				} catch (Exception e) {
-					packetBuffer = null;
-					log.warn("Error parsing packet", e);
-				}
+			if (!fillBuffer(buffer)) {
+				buffer.flip();
+				end = true;
 			}
 		}
 	}
 
+	private int nextPacketOffset(int packetOffset) {
+		PacketFormat format = scanner.getFormat();
+		buffer.position(packetOffset + format.getPacketSize());
+		return packetOffset + format.getPrefixSize();
+	}
+
+	/**
+	 * @return the sync scanner, with its lock and loss counts, and the detected packet format
+	 */
+	public SyncScanner getSyncScanner() {
+		return scanner;
+	}
+
 	@Override
 	protected void closeInternal() throws Exception {
 		byteChannel.close();
+		stopReadAhead();
 	}
 }
@@ -1,9 +1,14 @@
 package org.taktik.mpegts.sources;
 
+import java.nio.ByteBuffer;
+
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
 public abstract class AbstractMTSSource implements MTSSource {
 	private boolean closed;
+	private MTSPacketView batchView;
 
 	@Override
 	public final MTSPacket nextPacket() throws Exception {
@@ -13,6 +18,22 @@ public abstract class AbstractMTSSource implements MTSSource {
 		return nextPacketInternal();
 	}
 
+	@Override
+	public final boolean nextPacket(MTSPacketView view) throws Exception {
+		if (closed) {
+			throw new IllegalStateException("Source is closed");
+		}
+		return nextPacketInternal(view);
+	}
+
+	@Override
+	public final int nextPackets(ByteBuffer packets) throws Exception {
+		if (closed) {
+			throw new IllegalStateException("Source is closed");
+		}
+		return nextPacketsInternal(packets);
+	}
+
 	@Override
 	public final void close() throws Exception {
 		try {
@@ -27,6 +48,36 @@ public abstract class AbstractMTSSource implements MTSSource {
 	}
 
 	protected abstract MTSPacket nextPacketInternal() throws Exception;
+
+	protected boolean nextPacketInternal(MTSPacketView view) throws Exception {
+		MTSPacket packet = nextPacketInternal();
+		if (packet == null) {
+			return false;
+		}
+		view.wrap(packet);
+		return true;
+	}
+
+	protected int nextPacketsInternal(ByteBuffer packets) throws Exception {
+		MTSPacketView view = batchView();
+		int count = 0;
+		while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE && nextPacketInternal(view)) {
+			view.copyTo(packets);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return a view reserved to bulk operations of this source
+	 */
+	protected MTSPacketView batchView() {
+		if (batchView == null) {
+			batchView = new MTSPacketView();
+		}
+		return batchView;
+	}
+
 	protected abstract void closeInternal() throws Exception;
 
 
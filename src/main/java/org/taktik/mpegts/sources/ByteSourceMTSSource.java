@@ -7,12 +7,18 @@ import com.google.common.base.Preconditions;
 import com.google.common.io.ByteSource;
 import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
+/**
+ * A source reading a {@link ByteSource}, opened again on reset. The packet format is detected, see
+ * {@link #getSyncScanner()}.
+ */
 public class ByteSourceMTSSource extends AbstractBlockingMTSSource implements ResettableMTSSource {
 
 	private ByteSource byteSource;
 
 	private InputStream stream;
+	private final PacketFramer framer = new PacketFramer(this::read);
 
 
 	private ByteSourceMTSSource(ByteSource byteSource) {
@@ -26,25 +32,57 @@ public class ByteSourceMTSSource extends AbstractBlockingMTSSource implements Re
 				//close
 			}
 		}
+		stopReadAhead();
+		framer.reset();
 		stream = byteSource.openBufferedStream();
 	}
 
 	@Override
 	protected MTSPacket nextPacketBlocking() throws Exception {
-		if (stream == null) {
-			stream = byteSource.openBufferedStream();
-		}
-
-		byte[] barray = new byte[Constants.MPEGTS_PACKET_SIZE];
-		if (stream.read(barray) != Constants.MPEGTS_PACKET_SIZE) {
-			stream.close();
+		int offset = framer.next();
+		if (offset < 0) {
 			return null;
 		}
+		byte[] barray = new byte[Constants.MPEGTS_PACKET_SIZE];
+		framer.buffer().get(offset, barray);
 
 		// Parse the packet
 		return new MTSPacket(ByteBuffer.wrap(barray));
 	}
 
+	@Override
+	protected boolean nextPacketBlocking(MTSPacketView view) throws Exception {
+		int offset = framer.next();
+		if (offset < 0) {
+			return false;
+		}
+		view.wrap(framer.buffer(), offset);
+		return true;
+	}
+
+	@Override
+	protected int nextPacketsBlocking(ByteBuffer packets) throws Exception {
+		return framer.next(packets);
+	}
+
+	private int read(ByteBuffer buffer) throws Exception {
+		if (stream == null) {
+			stream = byteSource.openBufferedStream();
+		}
+		int read = stream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		if (read > 0) {
+			buffer.position(buffer.position() + read);
+		}
+		return read;
+	}
+
+	/**
+	 * @return the sync scanner, with its lock and loss counts, and the detected packet format
+	 */
+	public SyncScanner getSyncScanner() {
+		return framer.getSyncScanner();
+	}
+
 	@Override
 	protected void closeInternal() throws Exception {
 		if (stream != null) {
@@ -52,6 +90,7 @@ public class ByteSourceMTSSource extends AbstractBlockingMTSSource implements Re
 				//close
 			}
 		}
+		stopReadAhead();
 	}
 
 	public static ByteSourceMTSSourceBuilder builder() {
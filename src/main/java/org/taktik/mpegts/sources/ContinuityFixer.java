@@ -1,10 +1,11 @@
 package org.taktik.mpegts.sources;
 
 import java.nio.ByteBuffer;
-import java.util.Map;
+import java.util.Arrays;
 
-import com.google.common.collect.Maps;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.PESHeaderView;
 
 
 /**
@@ -14,44 +15,59 @@ import org.taktik.mpegts.MTSPacket;
  * This class does 3 things:
  * <ol>
  * <li> Rewrite the PCR to be continuous with the previous source</li>
- * <li> Rewrite the PTS of the PES to be continuous with the previous source</li>
+ * <li> Rewrite the PTS and DTS of the PES to be continuous with the previous source</li>
  * <li> Rewrite the continuity counter to be continuous with the previous source</li>
  * </ol>
  *
  * Code using this class should call {@link #fixContinuity(org.taktik.mpegts.MTSPacket)} for each source packet,
  * then {@link #nextSource()} after the last packet of the current source and before the first packet of the next source.
+ *
+ * State is kept in primitive arrays indexed by PID, so fixing a packet does not allocate.
  */
 public class ContinuityFixer {
-	private Map<Integer, MTSPacket> pcrPackets;
-	private Map<Integer, MTSPacket> allPackets;
-	private Map<Integer, Long> ptss;
-	private Map<Integer, Long> lastPTSsOfPreviousSource;
-	private Map<Integer, Long> lastPCRsOfPreviousSource;
-	private Map<Integer, Long> firstPCRsOfCurrentSource;
-	private Map<Integer, Long> firstPTSsOfCurrentSource;
-
-	private Map<Integer, MTSPacket> lastPacketsOfPreviousSource = Maps.newHashMap();
-	private Map<Integer, MTSPacket> firstPacketsOfCurrentSource = Maps.newHashMap();
-	private Map<Integer, Integer> continuityFixes = Maps.newHashMap();
+	private static final int PID_COUNT = 8192;
+	private static final long NONE = Long.MIN_VALUE;
+
+	// Per PID state of the current source
+	private final boolean[] seen = new boolean[PID_COUNT];
+	private final int[] continuities = new int[PID_COUNT];
+	private final long[] pcrs = new long[PID_COUNT];
+	private final long[] ptss = new long[PID_COUNT];
+	private final long[] firstPCRsOfCurrentSource = new long[PID_COUNT];
+	private final long[] firstPTSsOfCurrentSource = new long[PID_COUNT];
+
+	// Per PID state of the previous source
+	private final int[] lastContinuitiesOfPreviousSource = new int[PID_COUNT];
+	private final long[] lastPCRsOfPreviousSource = new long[PID_COUNT];
+	private final long[] lastPTSsOfPreviousSource = new long[PID_COUNT];
+	private int anyPCRPidOfPreviousSource;
+	private int anyPTSPidOfPreviousSource;
+
+	private final int[] continuityFixes = new int[PID_COUNT];
+	private final PESHeaderView pes = new PESHeaderView();
 
 	private boolean firstSource;
 
 
 	public ContinuityFixer() {
-		pcrPackets = Maps.newHashMap();
-		allPackets = Maps.newHashMap();
-		ptss = Maps.newHashMap();
-		lastPTSsOfPreviousSource = Maps.newHashMap();
-		lastPCRsOfPreviousSource = Maps.newHashMap();
-		firstPCRsOfCurrentSource = Maps.newHashMap();
-		firstPTSsOfCurrentSource = Maps.newHashMap();
-
-		lastPacketsOfPreviousSource = Maps.newHashMap();
-		firstPacketsOfCurrentSource = Maps.newHashMap();
-		continuityFixes = Maps.newHashMap();
+		clearCurrentSource();
+		Arrays.fill(lastContinuitiesOfPreviousSource, -1);
+		Arrays.fill(lastPCRsOfPreviousSource, NONE);
+		Arrays.fill(lastPTSsOfPreviousSource, NONE);
+		anyPCRPidOfPreviousSource = -1;
+		anyPTSPidOfPreviousSource = -1;
 		firstSource = true;
 	}
 
+	private void clearCurrentSource() {
+		Arrays.fill(seen, false);
+		Arrays.fill(continuities, -1);
+		Arrays.fill(pcrs, NONE);
+		Arrays.fill(ptss, NONE);
+		Arrays.fill(firstPCRsOfCurrentSource, NONE);
+		Arrays.fill(firstPTSsOfCurrentSource, NONE);
+	}
+
 	/**
 	 * Signals the {@link org.taktik.mpegts.sources.ContinuityFixer} that the following
 	 * packet will be from another source.
@@ -59,23 +75,24 @@ public class ContinuityFixer {
 	 * Call this method after the last packet of the current source and before the first packet of the next source.
 	 */
 	public void nextSource() {
-		firstPCRsOfCurrentSource.clear();
-		lastPCRsOfPreviousSource.clear();
-		firstPTSsOfCurrentSource.clear();
-		lastPTSsOfPreviousSource.clear();
-		firstPacketsOfCurrentSource.clear();
-		lastPacketsOfPreviousSource.clear();
-		for (MTSPacket mtsPacket : pcrPackets.values()) {
-			lastPCRsOfPreviousSource.put(mtsPacket.getPid(), mtsPacket.getAdaptationField().getPcr().getValue());
-		}
-		lastPTSsOfPreviousSource.putAll(ptss);
-		lastPacketsOfPreviousSource.putAll(allPackets);
-		pcrPackets.clear();
-		ptss.clear();
-		allPackets.clear();
+		System.arraycopy(continuities, 0, lastContinuitiesOfPreviousSource, 0, PID_COUNT);
+		System.arraycopy(pcrs, 0, lastPCRsOfPreviousSource, 0, PID_COUNT);
+		System.arraycopy(ptss, 0, lastPTSsOfPreviousSource, 0, PID_COUNT);
+		anyPCRPidOfPreviousSource = firstPid(lastPCRsOfPreviousSource);
+		anyPTSPidOfPreviousSource = firstPid(lastPTSsOfPreviousSource);
+		clearCurrentSource();
 		firstSource = false;
 	}
 
+	private static int firstPid(long[] values) {
+		for (int pid = 0; pid < PID_COUNT; pid++) {
+			if (values[pid] != NONE) {
+				return pid;
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * Fix the continuity of the packet.
 	 *
@@ -85,124 +102,136 @@ public class ContinuityFixer {
 	 */
 	public void fixContinuity(MTSPacket tsPacket) {
 		int pid = tsPacket.getPid();
-		allPackets.put(pid, tsPacket);
-		if (!firstPacketsOfCurrentSource.containsKey(pid)) {
-			firstPacketsOfCurrentSource.put(pid, tsPacket);
+		int continuityCounter = fixContinuityCounter(pid, tsPacket.getContinuityCounter(), tsPacket.isContainsPayload());
+		if (!firstSource) {
+			tsPacket.setContinuityCounter(continuityCounter);
+		}
+		if (tsPacket.isPayloadUnitStartIndicator() && tsPacket.isContainsPayload()) {
+			ByteBuffer payload = tsPacket.getPayload();
+			fixTimestamps(pes.wrap(payload, 0, payload.limit()), pid);
+		}
+		if (tsPacket.isPcrFlag()) {
+			long newPcr = fixPCR(pid, tsPacket.getPcrValue());
 			if (!firstSource) {
-				MTSPacket lastPacketOfPreviousSource = lastPacketsOfPreviousSource.get(pid);
-				int continuityFix = lastPacketOfPreviousSource == null ? 0 : lastPacketOfPreviousSource.getContinuityCounter() - tsPacket.getContinuityCounter();
-				if (tsPacket.isContainsPayload()) {
-					continuityFix++;
-				}
-				continuityFixes.put(pid, continuityFix);
+				tsPacket.setPcrValue(newPcr);
 			}
 		}
+	}
+
+	/**
+	 * Fix the continuity of the packet, patching its bytes in place. A view of a read-only buffer is pointed to a
+	 * patched copy of the packet.
+	 *
+	 * Call this method for each source packet, in order.
+	 *
+	 * @param tsPacket The packet to fix.
+	 */
+	public void fixContinuity(MTSPacketView tsPacket) {
+		tsPacket.ensureWritable();
+		int pid = tsPacket.getPid();
+		int continuityCounter = fixContinuityCounter(pid, tsPacket.getContinuityCounter(), tsPacket.isContainsPayload());
 		if (!firstSource) {
-			tsPacket.setContinuityCounter((tsPacket.getContinuityCounter() + continuityFixes.get(pid)) % 16);
+			tsPacket.setContinuityCounter(continuityCounter);
+		}
+		int payloadLength = tsPacket.getPayloadLength();
+		if (tsPacket.isPayloadUnitStartIndicator() && payloadLength > 0) {
+			fixTimestamps(pes.wrap(tsPacket.buffer(), tsPacket.getPayloadOffset(), payloadLength), pid);
+		}
+		if (tsPacket.isPcrFlag()) {
+			long newPcr = fixPCR(pid, tsPacket.getPcr());
+			if (!firstSource) {
+				tsPacket.setPcr(newPcr);
+			}
 		}
-		fixPTS(tsPacket, pid);
-		fixPCR(tsPacket, pid);
 	}
 
-	private void fixPCR(MTSPacket tsPacket, int pid) {
-		if (tsPacket.isAdaptationFieldExist() && tsPacket.getAdaptationField() != null) {
-			if (tsPacket.getAdaptationField().isPcrFlag()) {
-				if (!firstPCRsOfCurrentSource.containsKey(pid)) {
-					firstPCRsOfCurrentSource.put(pid, tsPacket.getAdaptationField().getPcr().getValue());
+	private int fixContinuityCounter(int pid, int continuityCounter, boolean containsPayload) {
+		if (!seen[pid]) {
+			seen[pid] = true;
+			if (!firstSource) {
+				int lastContinuityOfPreviousSource = lastContinuitiesOfPreviousSource[pid];
+				int continuityFix = lastContinuityOfPreviousSource < 0 ? 0 : lastContinuityOfPreviousSource - continuityCounter;
+				if (containsPayload) {
+					continuityFix++;
 				}
-				rewritePCR(tsPacket);
-				pcrPackets.put(pid, tsPacket);
+				continuityFixes[pid] = continuityFix;
 			}
 		}
+		if (!firstSource) {
+			continuityCounter = (continuityCounter + continuityFixes[pid]) & 0x0f;
+		}
+		continuities[pid] = continuityCounter;
+		return continuityCounter;
 	}
 
-	private void fixPTS(MTSPacket tsPacket, int pid) {
-		if (tsPacket.isContainsPayload()) {
-			ByteBuffer payload = tsPacket.getPayload();
-			if (((payload.get(0) & 0xff) == 0) && ((payload.get(1) & 0xff) == 0) && ((payload.get(2) & 0xff) == 1)) {
-				int extension = payload.getShort(6) & 0xffff;
-				if ((extension & 0x80) != 0) {
-					// PTS is present
-					// TODO add payload size check to avoid indexoutofboundexception
-					long pts = (((payload.get(9) & 0xE)) << 29) | (((payload.getShort(10) & 0xFFFE)) << 14) | ((payload.getShort(12) & 0xFFFE) >> 1);
-					if (!firstPTSsOfCurrentSource.containsKey(pid)) {
-						firstPTSsOfCurrentSource.put(pid, pts);
-					}
-					if (!firstSource) {
-						long newPts = Math.round(pts + (getTimeGap(pid) / 300.0) + 100 * ((27_000_000 / 300.0) / 1_000));
-
-						payload.put(9, (byte) (0x20 | ((newPts & 0x1C0000000l) >> 29) | 0x1));
-						payload.putShort(10, (short) (0x1 | ((newPts & 0x3FFF8000) >> 14)));
-						payload.putShort(12, (short) (0x1 | ((newPts & 0x7FFF) << 1)));
-						payload.rewind();
-						pts = newPts;
-					}
-
-					ptss.put(pid, pts);
-				}
+	private long fixPCR(int pid, long pcr) {
+		if (firstPCRsOfCurrentSource[pid] == NONE) {
+			firstPCRsOfCurrentSource[pid] = pcr;
+		}
+		if (!firstSource) {
+			pcr = pcr + getTimeGap(pid) + 100 * ((27_000_000) / 1_000);
+		}
+		pcrs[pid] = pcr;
+		return pcr;
+	}
+
+	/**
+	 * Shift the PTS, and the DTS if any, of the PES starting in a packet.
+	 */
+	private void fixTimestamps(PESHeaderView header, int pid) {
+		if (!header.isValid() || !header.hasPts()) {
+			return;
+		}
+		long pts = header.getPts();
+		if (firstPTSsOfCurrentSource[pid] == NONE) {
+			firstPTSsOfCurrentSource[pid] = pts;
+		}
+		if (!firstSource) {
+			long shift = Math.round((getTimeGap(pid) / 300.0) + 100 * ((27_000_000 / 300.0) / 1_000));
+			pts += shift;
+			header.setPts(pts);
+			if (header.hasDts()) {
+				header.setDts(header.getDts() + shift);
 			}
 		}
+		ptss[pid] = pts;
 	}
 
 	private long getTimeGap(int pid) {
 		// Try with PCR of the same PID
-		Long lastPCROfPreviousSource = lastPCRsOfPreviousSource.get(pid);
-		if (lastPCROfPreviousSource == null) {
-			lastPCROfPreviousSource = 0l;
-		}
-		Long firstPCROfCurrentSource = firstPCRsOfCurrentSource.get(pid);
-		if (firstPCROfCurrentSource != null) {
-			return lastPCROfPreviousSource - firstPCROfCurrentSource;
+		long firstPCROfCurrentSource = firstPCRsOfCurrentSource[pid];
+		if (firstPCROfCurrentSource != NONE) {
+			return orZero(lastPCRsOfPreviousSource[pid]) - firstPCROfCurrentSource;
 		}
 
 		// Try with any PCR
-		if (!lastPCRsOfPreviousSource.isEmpty()) {
-			int pcrPid = lastPCRsOfPreviousSource.keySet().iterator().next();
-			lastPCROfPreviousSource = lastPCRsOfPreviousSource.get(pcrPid);
-			if (lastPCROfPreviousSource == null) {
-				lastPCROfPreviousSource = 0l;
-			}
-			firstPCROfCurrentSource = firstPCRsOfCurrentSource.get(pcrPid);
-			if (firstPCROfCurrentSource != null) {
-				return lastPCROfPreviousSource - firstPCROfCurrentSource;
+		int pcrPid = anyPCRPidOfPreviousSource;
+		if (pcrPid >= 0) {
+			firstPCROfCurrentSource = firstPCRsOfCurrentSource[pcrPid];
+			if (firstPCROfCurrentSource != NONE) {
+				return orZero(lastPCRsOfPreviousSource[pcrPid]) - firstPCROfCurrentSource;
 			}
 		}
 
 		// Try with PTS of the same PID
-		Long lastPTSOfPreviousSource = lastPTSsOfPreviousSource.get(pid);
-		if (lastPTSOfPreviousSource == null) {
-			lastPTSOfPreviousSource = 0l;
-		}
-
-		Long firstPTSofCurrentSource = firstPTSsOfCurrentSource.get(pid);
-		if (firstPTSofCurrentSource != null) {
-			return (lastPTSOfPreviousSource - firstPTSofCurrentSource) * 300;
+		long firstPTSofCurrentSource = firstPTSsOfCurrentSource[pid];
+		if (firstPTSofCurrentSource != NONE) {
+			return (orZero(lastPTSsOfPreviousSource[pid]) - firstPTSofCurrentSource) * 300;
 		}
 
 		// Try with any PTS
-		if (!lastPTSsOfPreviousSource.isEmpty()) {
-			int randomPid = lastPTSsOfPreviousSource.keySet().iterator().next();
-			lastPTSOfPreviousSource = lastPTSsOfPreviousSource.get(randomPid);
-			if (lastPTSOfPreviousSource == null) {
-				lastPTSOfPreviousSource = 0l;
-			}
-
-			firstPTSofCurrentSource = firstPTSsOfCurrentSource.get(randomPid);
-			if (firstPTSofCurrentSource != null) {
-				return (lastPTSOfPreviousSource - firstPTSofCurrentSource) * 300;
+		int randomPid = anyPTSPidOfPreviousSource;
+		if (randomPid >= 0) {
+			firstPTSofCurrentSource = firstPTSsOfCurrentSource[randomPid];
+			if (firstPTSofCurrentSource != NONE) {
+				return (orZero(lastPTSsOfPreviousSource[randomPid]) - firstPTSofCurrentSource) * 300;
 			}
 		}
 
 		return 0;
 	}
 
-	private void rewritePCR(MTSPacket tsPacket) {
-		if (firstSource) {
-			return;
-		}
-		long timeGap = getTimeGap(tsPacket.getPid());
-		long pcr = tsPacket.getAdaptationField().getPcr().getValue();
-		long newPcr = pcr + timeGap + 100 * ((27_000_000) / 1_000);
-		tsPacket.getAdaptationField().getPcr().setValue(newPcr);
+	private static long orZero(long value) {
+		return value == NONE ? 0 : value;
 	}
 }
@@ -1,95 +1,534 @@
 package org.taktik.mpegts.sources;
 
-import com.google.common.collect.Lists;
+import com.google.common.base.Preconditions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.PacketFormat;
+import org.taktik.mpegts.PacketBufferPool;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * A source reading a resource over HTTP with an {@link HttpClient}.<br>
+ *
+ * The length of the resource and the support of byte ranges are taken from a HEAD request. When both are known, the
+ * resource is read by chunks of {@link HTTPMTSSourceBuilder#setChunkSize(int)} bytes: up to
+ * {@link HTTPMTSSourceBuilder#setPrefetch(int)} range requests are in flight ahead of the read cursor, over the
+ * connections kept alive by the client, each landing in a pooled buffer. Otherwise the resource is read with a single
+ * request.<br>
+ *
+ * A failed or stalled request is retried up to {@link HTTPMTSSourceBuilder#setRetries(int)} times, resuming after
+ * the bytes already received.<br>
+ *
+ * A resource of plain TS packets starting on its first byte is read straight from the buffers. Otherwise, e.g. for
+ * 192 bytes M2TS or 204 bytes packets, or a resource starting with garbage, the packets are found by a
+ * {@link SyncScanner} that detects their format, at the cost of one more copy.
+ */
 public class HTTPMTSSource extends AbstractBlockingMTSSource implements ResettableMTSSource {
 
     private static final Logger log = LoggerFactory.getLogger(HTTPMTSSource.class);
-    private HttpURLConnection connection;
-    private InputStream inputStream;
+
+    private final HttpClient client;
+    // true if the client was built by this source, and must be shut down with it
+    private final boolean ownClient;
+    private final URI uri;
     private final long contentLength;
-    private long bytesRead;
+    private final boolean chunked;
+    private final int chunkSize;
+    private final int prefetch;
+    private final int retries;
+    private final Duration timeout;
+    private final PacketBufferPool pool;
+
+    // Chunks requested ahead of the read cursor, in order. Also guards nextRequest, stopping and streamResponse
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    // Offset of the next chunk to request
+    private long nextRequest;
+    // Set while the reader is being stopped, so that no more requests are sent
+    private volatile boolean stopping;
+
+    // Buffer being read, and offset in the resource of its first byte
+    private ByteBuffer current;
+    private long currentStart;
+
+    // Set when the packets are not plain TS packets from the first byte, and are found by the framer
+    private final PacketFramer framer = new PacketFramer(this::read);
+    private boolean formatChecked;
+    private boolean framed;
 
-    protected HTTPMTSSource(URI source) throws IOException {
-        connection = (HttpURLConnection) source.toURL().openConnection();
-        connection.setRequestMethod("HEAD");
-        if (connection.getResponseCode() != 200) {
-            throw new IOException("bad response code: " + connection.getResponseCode());
+    // Single request, when the resource is not read by chunks
+    private CompletableFuture<HttpResponse<InputStream>> streamResponse;
+    private volatile InputStream stream;
+
+    private HTTPMTSSource(HttpClient client, boolean ownClient, URI uri, int chunkSize, int prefetch, int retries,
+                          Duration timeout) throws IOException {
+        this.client = client;
+        this.ownClient = ownClient;
+        this.uri = uri;
+        this.chunkSize = chunkSize;
+        this.prefetch = prefetch;
+        this.retries = retries;
+        this.timeout = timeout;
+        this.pool = PacketBufferPool.builder()
+                .setPacketsPerBuffer(chunkSize / Constants.MPEGTS_PACKET_SIZE)
+                .setMaxPooled(prefetch + 1)
+                .build();
+
+        HttpResponse<Void> head;
+        try {
+            head = client.send(HttpRequest.newBuilder(uri)
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                    .timeout(timeout)
+                    .build(), HttpResponse.BodyHandlers.discarding());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during HEAD request");
+        }
+        if (head.statusCode() != 200) {
+            throw new IOException("bad response code: " + head.statusCode());
         }
-        contentLength = connection.getContentLengthLong();
-        String accepts = connection.getHeaderField("Accept-Ranges");
-        if (accepts == null || !Lists.newArrayList(accepts.split(",")).contains("bytes")) {
+        contentLength = head.headers().firstValueAsLong("Content-Length").orElse(-1);
+        String accepts = head.headers().firstValue("Accept-Ranges").orElse(null);
+        boolean ranges = accepts != null && List.of(accepts.split("\\s*,\\s*")).contains("bytes");
+        if (!ranges) {
             log.warn("Source doesn't support bytes range: {}", accepts);
         }
-        connection = (HttpURLConnection) connection.getURL().openConnection();
+        chunked = ranges && contentLength >= 0;
     }
 
-    private InputStream getInputStream() throws IOException {
-        return new BufferedInputStream(connection.getInputStream(), 65536);
+    @Override
+    protected MTSPacket nextPacketBlocking() throws Exception {
+        MTSPacketView view = batchView();
+        return nextPacketBlocking(view) ? view.toPacket() : null;
     }
 
     @Override
-    protected MTSPacket nextPacketBlocking() throws Exception {
-        if (contentLength >= 0 && bytesRead >= contentLength) {
+    protected boolean nextPacketBlocking(MTSPacketView view) throws Exception {
+        if (checkFormat()) {
+            int offset = framer.next();
+            if (offset < 0) {
+                return false;
+            }
+            view.wrap(framer.buffer(), offset);
+            return true;
+        }
+        if (!nextBuffer(Constants.MPEGTS_PACKET_SIZE)) {
+            return false;
+        }
+        int offset = current.position();
+        view.wrap(current, offset);
+        current.position(offset + Constants.MPEGTS_PACKET_SIZE);
+        return true;
+    }
+
+    @Override
+    protected int nextPacketsBlocking(ByteBuffer packets) throws Exception {
+        if (checkFormat()) {
+            return framer.next(packets);
+        }
+        int count = 0;
+        while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE && nextBuffer(Constants.MPEGTS_PACKET_SIZE)) {
+            int length = Math.min(packets.remaining(), current.remaining());
+            length -= length % Constants.MPEGTS_PACKET_SIZE;
+            packets.put(packets.position(), current, current.position(), length);
+            packets.position(packets.position() + length);
+            current.position(current.position() + length);
+            count += length / Constants.MPEGTS_PACKET_SIZE;
+        }
+        return count;
+    }
+
+    /**
+     * Check the format of the resource on its first buffer, once.
+     *
+     * @return true if the packets are found by the {@link #framer}
+     */
+    private boolean checkFormat() throws Exception {
+        if (!formatChecked) {
+            formatChecked = true;
+            if (nextBuffer(1)) {
+                SyncScanner scanner = SyncScanner.builder().build();
+                int start = current.position();
+                framed = scanner.scan(current, start, current.limit(), current.limit() < chunkSize) != start
+                        || scanner.getFormat() != PacketFormat.TS;
+                if (framed) {
+                    log.info("Reading {} with sync detection, format {}", uri, scanner.getFormat());
+                }
+            }
+        }
+        return framed;
+    }
+
+    /**
+     * Input of the {@link #framer}: copy the next bytes of the resource.
+     */
+    private int read(ByteBuffer buffer) throws Exception {
+        if (!nextBuffer(1)) {
+            return -1;
+        }
+        int length = Math.min(buffer.remaining(), current.remaining());
+        buffer.put(buffer.position(), current, current.position(), length);
+        buffer.position(buffer.position() + length);
+        current.position(current.position() + length);
+        return length;
+    }
+
+    /**
+     * Make sure {@link #current} holds at least the given number of bytes, moving to the next buffer if needed.
+     *
+     * @return false at the end of the resource
+     */
+    private boolean nextBuffer(int length) throws Exception {
+        while (current == null || current.remaining() < length) {
+            if (current != null) {
+                currentStart += current.limit();
+                pool.release(current);
+                current = null;
+            }
+            current = chunked ? nextChunk() : nextStreamBuffer();
+            if (current == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer nextChunk() throws Exception {
+        Chunk chunk;
+        synchronized (chunks) {
+            requestAhead();
+            chunk = chunks.peekFirst();
+        }
+        if (chunk == null) {
             return null;
         }
+        ByteBuffer buffer = chunk.await();
+        synchronized (chunks) {
+            chunks.pollFirst();
+            requestAhead();
+        }
+        return buffer;
+    }
 
-        byte[] barray = new byte[Constants.MPEGTS_PACKET_SIZE];
+    /**
+     * Send the range requests of the next chunks, up to {@link #prefetch} in flight. Called holding {@link #chunks}.
+     */
+    private void requestAhead() {
+        while (!stopping && chunks.size() < prefetch && nextRequest < contentLength) {
+            Chunk chunk = new Chunk(nextRequest, Math.min(nextRequest + chunkSize, contentLength));
+            chunk.request();
+            chunks.addLast(chunk);
+            nextRequest = chunk.end;
+        }
+    }
 
-        if (inputStream == null) {
-            inputStream = getInputStream();
+    private ByteBuffer nextStreamBuffer() throws Exception {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            int attempts = 0;
+            for (;;) {
+                try {
+                    if (stream == null) {
+                        openStream(currentStart + buffer.position());
+                    }
+                    int read = stream.readNBytes(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    buffer.position(buffer.position() + read);
+                    long received = currentStart + buffer.position();
+                    if (buffer.hasRemaining() && contentLength >= 0 && received < contentLength) {
+                        throw new IOException("Response ended after " + received + " of " + contentLength + " bytes");
+                    }
+                    break;
+                } catch (IOException e) {
+                    closeStream();
+                    if (stopping || ++attempts > retries) {
+                        throw e;
+                    }
+                    log.warn("Retrying {} from byte {}: {}", uri, currentStart + buffer.position(), e.toString());
+                }
+            }
+        } catch (Exception e) {
+            pool.release(buffer);
+            throw e;
         }
-        for (;;) {
-            int read = inputStream.readNBytes(barray, 0, barray.length);
+        buffer.flip();
+        if (!buffer.hasRemaining()) {
+            pool.release(buffer);
+            return null;
+        }
+        return buffer;
+    }
 
-            if (read == Constants.MPEGTS_PACKET_SIZE) {
-                bytesRead += Constants.MPEGTS_PACKET_SIZE;
+    private void openStream(long offset) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(timeout);
+        if (offset > 0 && contentLength >= 0) {
+            request.header("Range", "bytes=" + offset + "-");
+        }
+        CompletableFuture<HttpResponse<InputStream>> future;
+        synchronized (chunks) {
+            if (stopping) {
+                throw new IOException("Source stopped");
+            }
+            future = client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            streamResponse = future;
+        }
+        HttpResponse<InputStream> response;
+        try {
+            response = future.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        InputStream body = response.body();
+        stream = body;
+        if (response.statusCode() == 200) {
+            body.skipNBytes(offset);
+        } else if (response.statusCode() != 206) {
+            throw new IOException("bad response code: " + response.statusCode());
+        }
+    }
 
-                // Parse the packet
-                return new MTSPacket(ByteBuffer.wrap(barray));
+    private void closeStream() {
+        InputStream toClose = stream;
+        stream = null;
+        if (toClose != null) {
+            try {
+                toClose.close();
+            } catch (IOException e) {
+                log.debug("Error closing response", e);
             }
-            if (read <= 0 && contentLength == -1) {
-                return null;
+        }
+    }
+
+    /**
+     * Stop the requests in flight, so that the reader does not wait for them.
+     */
+    private void cancelRequests() {
+        synchronized (chunks) {
+            stopping = true;
+            for (Chunk chunk : chunks) {
+                chunk.cancel();
+            }
+            if (streamResponse != null) {
+                streamResponse.cancel(true);
             }
+        }
+        closeStream();
+    }
 
-            connection.disconnect();
-            connection = (HttpURLConnection) connection.getURL().openConnection();
-            connection.setRequestProperty("Range", "bytes=" + bytesRead + "-");
-            if (connection.getResponseCode() == 206) {
-                inputStream = getInputStream();
-            } else if (connection.getResponseCode() != 200) {
-                log.warn("response code = {}", connection.getResponseCode());
-                return null;
-            } else {
-                inputStream = getInputStream();
-                inputStream.skipNBytes(bytesRead);
+    /**
+     * Drop the requests and buffers once the reader is stopped, to read again from the start.
+     */
+    private void clearRequests() {
+        synchronized (chunks) {
+            for (Chunk chunk : chunks) {
+                chunk.cancel();
+                pool.release(chunk.buffer);
             }
+            chunks.clear();
+            nextRequest = 0;
+            streamResponse = null;
+            stopping = false;
         }
+        closeStream();
+        pool.release(current);
+        current = null;
+        currentStart = 0;
+        framer.reset();
+        formatChecked = false;
+        framed = false;
     }
 
     @Override
     protected void closeInternal() throws Exception {
-        connection.disconnect();
+        cancelRequests();
+        stopReadAhead();
+        clearRequests();
+        if (ownClient) {
+            client.shutdownNow();
+        }
     }
 
     @Override
     public void reset() throws Exception {
-        connection.disconnect();
-        inputStream = null;
-        bytesRead = 0;
+        cancelRequests();
+        stopReadAhead();
+        clearRequests();
+    }
+
+    /**
+     * @return the length of the resource reported by the server, or -1
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * A range of the resource, requested into a pooled buffer.
+     */
+    private class Chunk {
+        private final long start;
+        private final long end;
+        private final ByteBuffer buffer;
+        private ChunkSubscriber subscriber;
+        private CompletableFuture<HttpResponse<Void>> response;
+        private int attempts;
+
+        private Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.buffer = pool.acquire();
+            buffer.limit((int) (end - start));
+        }
+
+        /**
+         * Request the bytes of the chunk not received yet.
+         */
+        private void request() {
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .timeout(timeout)
+                    .header("Range", "bytes=" + (start + buffer.position()) + "-" + (end - 1))
+                    .build();
+            ChunkSubscriber subscriber = new ChunkSubscriber(buffer);
+            this.subscriber = subscriber;
+            response = client.sendAsync(request, info -> info.statusCode() == 206
+                    ? subscriber : HttpResponse.BodySubscribers.replacing(null));
+        }
+
+        /**
+         * Wait for the whole chunk, retrying when the response fails, or stalls for longer than the timeout.
+         *
+         * @return the buffer holding the chunk, flipped
+         */
+        private ByteBuffer await() throws Exception {
+            long received = -1;
+            for (;;) {
+                try {
+                    HttpResponse<Void> r = response.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+                    if (r.statusCode() != 206) {
+                        throw new IOException("bad response code: " + r.statusCode());
+                    }
+                    if (buffer.hasRemaining()) {
+                        throw new IOException("Response ended after " + buffer.position() + " of " + buffer.limit() + " bytes");
+                    }
+                    buffer.flip();
+                    return buffer;
+                } catch (TimeoutException e) {
+                    long progress = subscriber.received();
+                    if (progress != received) {
+                        received = progress;
+                        continue;
+                    }
+                    retry(new IOException("Request stalled", e));
+                } catch (ExecutionException e) {
+                    retry(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                } catch (IOException e) {
+                    retry(e);
+                }
+            }
+        }
+
+        private void retry(Exception e) throws Exception {
+            cancel();
+            synchronized (chunks) {
+                if (stopping || ++attempts > retries) {
+                    throw e;
+                }
+                log.warn("Retrying bytes {}-{} of {}: {}", start + buffer.position(), end - 1, uri, e.toString());
+                request();
+            }
+        }
+
+        /**
+         * Stop the request. The buffer is not written to afterwards.
+         */
+        private void cancel() {
+            subscriber.abandon();
+            response.cancel(true);
+        }
+    }
+
+    /**
+     * Copies a response body into a buffer, until abandoned.
+     */
+    private static class ChunkSubscriber implements HttpResponse.BodySubscriber<Void> {
+        private final ByteBuffer buffer;
+        private final CompletableFuture<Void> body = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private boolean abandoned;
+
+        private ChunkSubscriber(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public CompletionStage<Void> getBody() {
+            return body;
+        }
+
+        @Override
+        public synchronized void onSubscribe(Flow.Subscription subscription) {
+            if (abandoned) {
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public synchronized void onNext(List<ByteBuffer> items) {
+            if (abandoned) {
+                return;
+            }
+            for (ByteBuffer item : items) {
+                int length = Math.min(item.remaining(), buffer.remaining());
+                buffer.put(buffer.position(), item, item.position(), length);
+                buffer.position(buffer.position() + length);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            body.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            body.complete(null);
+        }
+
+        private synchronized long received() {
+            return buffer.position();
+        }
+
+        private void abandon() {
+            Flow.Subscription toCancel;
+            synchronized (this) {
+                abandoned = true;
+                toCancel = subscription;
+            }
+            if (toCancel != null) {
+                toCancel.cancel();
+            }
+        }
     }
 
     public static HTTPMTSSourceBuilder builder() {
@@ -98,6 +537,11 @@ public class HTTPMTSSource extends AbstractBlockingMTSSource implements Resettab
 
     public static class HTTPMTSSourceBuilder {
         private URI uri;
+        private HttpClient httpClient;
+        private int chunkSize = 1 << 20;
+        private int prefetch = 4;
+        private int retries = 3;
+        private Duration timeout = Duration.ofSeconds(10);
 
         private HTTPMTSSourceBuilder() {
         }
@@ -111,9 +555,65 @@ public class HTTPMTSSource extends AbstractBlockingMTSSource implements Resettab
             return setURI(URI.create(uri));
         }
 
+        /**
+         * Client to send the requests with, to share its connections. By default the source has its own client.
+         */
+        public HTTPMTSSourceBuilder setHttpClient(HttpClient httpClient) {
+            this.httpClient = httpClient;
+            return this;
+        }
+
+        /**
+         * Size of the range requests, rounded down to whole packets, default 1MB.
+         */
+        public HTTPMTSSourceBuilder setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Number of range requests in flight ahead of the read cursor, default 4.
+         */
+        public HTTPMTSSourceBuilder setPrefetch(int prefetch) {
+            this.prefetch = prefetch;
+            return this;
+        }
+
+        /**
+         * Number of times a failed request is retried, default 3.
+         */
+        public HTTPMTSSourceBuilder setRetries(int retries) {
+            this.retries = retries;
+            return this;
+        }
+
+        /**
+         * Time to wait for response headers, and for more bytes of a response, default 10s.
+         */
+        public HTTPMTSSourceBuilder setTimeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
 
         public HTTPMTSSource build() throws IOException {
-            return new HTTPMTSSource(uri);
+            Preconditions.checkNotNull(uri, "uri cannot be null");
+            Preconditions.checkNotNull(timeout, "timeout cannot be null");
+            Preconditions.checkArgument(chunkSize >= Constants.MPEGTS_PACKET_SIZE, "chunkSize too small");
+            Preconditions.checkArgument(prefetch > 0, "prefetch must be positive");
+            Preconditions.checkArgument(retries >= 0, "retries cannot be negative");
+            HttpClient client = httpClient != null ? httpClient : HttpClient.newBuilder()
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .connectTimeout(timeout)
+                    .build();
+            try {
+                return new HTTPMTSSource(client, httpClient == null, uri,
+                        chunkSize - chunkSize % Constants.MPEGTS_PACKET_SIZE, prefetch, retries, timeout);
+            } catch (IOException | RuntimeException e) {
+                if (httpClient == null) {
+                    client.shutdownNow();
+                }
+                throw e;
+            }
         }
     }
 }
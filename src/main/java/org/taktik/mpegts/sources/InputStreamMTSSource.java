@@ -7,31 +7,69 @@ import java.nio.ByteBuffer;
 import com.google.common.base.Preconditions;
 import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
+/**
+ * A source reading an InputStream, e.g. the output of a process. The packet format is detected, see
+ * {@link #getSyncScanner()}.
+ */
 public class InputStreamMTSSource extends AbstractBlockingMTSSource {
 
 	private InputStream inputStream;
+	private final PacketFramer framer = new PacketFramer(this::read);
 
 	protected InputStreamMTSSource(InputStream inputStream) throws IOException {
 		this.inputStream = inputStream;
 	}
 
 	@Override
-	protected MTSPacket nextPacketBlocking() throws IOException {
-		byte[] barray = new byte[Constants.MPEGTS_PACKET_SIZE];
-		if (inputStream.read(barray) != Constants.MPEGTS_PACKET_SIZE) {
-			inputStream.close();
+	protected MTSPacket nextPacketBlocking() throws Exception {
+		int offset = framer.next();
+		if (offset < 0) {
 			return null;
 		}
+		byte[] barray = new byte[Constants.MPEGTS_PACKET_SIZE];
+		framer.buffer().get(offset, barray);
 
 		// Parse the packet
 		return new MTSPacket(ByteBuffer.wrap(barray));
 	}
 
+	@Override
+	protected boolean nextPacketBlocking(MTSPacketView view) throws Exception {
+		int offset = framer.next();
+		if (offset < 0) {
+			return false;
+		}
+		view.wrap(framer.buffer(), offset);
+		return true;
+	}
+
+	@Override
+	protected int nextPacketsBlocking(ByteBuffer packets) throws Exception {
+		return framer.next(packets);
+	}
+
+	private int read(ByteBuffer buffer) throws IOException {
+		int read = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		if (read > 0) {
+			buffer.position(buffer.position() + read);
+		}
+		return read;
+	}
+
+	/**
+	 * @return the sync scanner, with its lock and loss counts, and the detected packet format
+	 */
+	public SyncScanner getSyncScanner() {
+		return framer.getSyncScanner();
+	}
+
 	@Override
 	protected void closeInternal() throws Exception {
 		try (InputStream toClose = inputStream) {
 		}
+		stopReadAhead();
 		inputStream = null;
 	}
 
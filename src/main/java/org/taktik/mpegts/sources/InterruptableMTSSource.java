@@ -43,12 +43,9 @@ public class InterruptableMTSSource extends AbstractMTSSource {
             return null;
         }
         MTSPacket packet = getNextSourcePacket();
-        if (wantCancel && packet != null && packet.isAdaptationFieldExist()) {
-            MTSPacket.AdaptationField adapt = packet.getAdaptationField();
-            if (adapt != null && adapt.isRandomAccessIndicator()) {
-                isCancelled = true;
-                return null;
-            }
+        if (wantCancel && packet != null && packet.isRandomAccessIndicator()) {
+            isCancelled = true;
+            return null;
         }
         return packet;
     }
@@ -69,9 +66,8 @@ public class InterruptableMTSSource extends AbstractMTSSource {
         if (nextSourcePacket == null) {
             nextSourcePacket = source.nextPacket();
         }
-        if (nextSourcePacket != null && !queue.isEmpty() && nextSourcePacket.isAdaptationFieldExist()) {
-            MTSPacket.AdaptationField field = nextSourcePacket.getAdaptationField();
-            if (field != null && field.isPcrFlag() && field.isRandomAccessIndicator()) {
+        if (nextSourcePacket != null && !queue.isEmpty()) {
+            if (nextSourcePacket.isPcrFlag() && nextSourcePacket.isRandomAccessIndicator()) {
                 while (!queue.isEmpty() && intermission == null) {
                     intermission = queue.poll();
                     if (intermission != null) {
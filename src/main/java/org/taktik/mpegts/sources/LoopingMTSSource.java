@@ -1,6 +1,9 @@
 package org.taktik.mpegts.sources;
 
+import java.nio.ByteBuffer;
+
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -31,6 +34,33 @@ public class LoopingMTSSource extends AbstractMTSSource{
 		return packet;
 	}
 
+	@Override
+	protected boolean nextPacketInternal(MTSPacketView view) throws Exception {
+		if (source.nextPacket(view)) {
+			return true;
+		}
+		currentLoop++;
+		if (maxLoops == null || (currentLoop <= maxLoops)) {
+			source.reset();
+			return source.nextPacket(view);
+		}
+		return false;
+	}
+
+	@Override
+	protected int nextPacketsInternal(ByteBuffer packets) throws Exception {
+		int count = source.nextPackets(packets);
+		if (count > 0) {
+			return count;
+		}
+		currentLoop++;
+		if (maxLoops == null || (currentLoop <= maxLoops)) {
+			source.reset();
+			return source.nextPackets(packets);
+		}
+		return 0;
+	}
+
 	@Override
 	protected void closeInternal() throws Exception {
 		source.close();
@@ -1,8 +1,43 @@
 package org.taktik.mpegts.sources;
 
+import java.nio.ByteBuffer;
+
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
 public interface MTSSource {
 	public MTSPacket nextPacket() throws Exception;
 	public void close() throws Exception;
+
+	/**
+	 * Flyweight variant of {@link #nextPacket()}: point the view to the next packet instead of allocating one.
+	 * The packet bytes are only valid until the next call on this source.
+	 *
+	 * @return false when there are no more packets
+	 */
+	public default boolean nextPacket(MTSPacketView view) throws Exception {
+		MTSPacket packet = nextPacket();
+		if (packet == null) {
+			return false;
+		}
+		view.wrap(packet);
+		return true;
+	}
+
+	/**
+	 * Bulk variant of {@link #nextPacket()}: copy as many whole packets as fit between the position and
+	 * the limit of the buffer, and move its position past them.
+	 *
+	 * @return the number of packets copied, 0 when there are no more packets
+	 */
+	public default int nextPackets(ByteBuffer packets) throws Exception {
+		MTSPacketView view = new MTSPacketView();
+		int count = 0;
+		while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE && nextPacket(view)) {
+			view.copyTo(packets);
+			count++;
+		}
+		return count;
+	}
 }
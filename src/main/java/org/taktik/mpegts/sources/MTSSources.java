@@ -5,7 +5,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.ByteChannel;
-import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 
 import com.google.common.io.ByteSource;
@@ -39,9 +38,9 @@ public class MTSSources {
 				.build();
 	}
 
-	public static ResettableMTSSource from(File file) throws IOException {
-		return SeekableByteChannelMTSSource.builder()
-				.setByteChannel(FileChannel.open(file.toPath()))
+	public static SeekableMTSSource from(File file) throws IOException {
+		return MappedFileMTSSource.builder()
+				.setFile(file)
 				.build();
 	}
 
@@ -70,4 +69,10 @@ public class MTSSources {
 				.build();
 	}
 
+	public static MTSSource restoreNulls(MTSSource source) {
+		return NullRestoringMTSSource.builder()
+				.setSource(source)
+				.build();
+	}
+
 }
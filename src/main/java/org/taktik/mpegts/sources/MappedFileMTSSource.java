@@ -0,0 +1,314 @@
+package org.taktik.mpegts.sources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.google.common.base.Preconditions;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.PacketFormat;
+
+/**
+ * A source reading a local file through a read-only memory mapping.<br>
+ *
+ * Views returned by {@link #nextPacket(MTSPacketView)} point straight into the mapping, and
+ * {@link #nextPackets(ByteBuffer)} copies whole runs of packets from the mapping to the caller's buffer: there is no
+ * intermediate buffer between the page cache and the sink. Views are read-only, see
+ * {@link MTSPacketView#ensureWritable()}.<br>
+ *
+ * The file is mapped by windows of at most {@link MappedFileMTSSourceBuilder#setWindowSize(int)} bytes, moved as
+ * reading goes, so files over 2GB are supported. {@link #reset()}, {@link #rewind()} and {@link #seek(long)} only
+ * move the read offset, {@link #seek(long)} looking the offset up in a {@link PcrIndex}.<br>
+ *
+ * The {@link PacketFormat} of the file is detected: the headers of M2TS packets and the parity bytes of 204 bytes
+ * packets are skipped in place, and the arrival timestamps of M2TS packets are available to pace the stream.
+ */
+public class MappedFileMTSSource extends AbstractMTSSource implements SeekableMTSSource, TimestampedMTSSource {
+	private final FileChannel channel;
+	private final int windowSize;
+	private final PcrIndex index;
+	private final SyncScanner scanner = SyncScanner.builder().build();
+	// Size of the file, refreshed at the end of the file in case it grows
+	private long size;
+
+	private MappedByteBuffer window;
+	// Offset in the file of the first byte of window
+	private long windowStart;
+	// Offset in the file of the next packet
+	private long position;
+
+	private long lastRandomPosition = -1;
+	private long mark = -1;
+
+	// Unwrapping of the 30 bits M2TS arrival timestamps
+	private long arrivalTime = -1;
+	private int lastArrivalTimestamp = -1;
+	private long arrivalWraps;
+
+	private MappedFileMTSSource(FileChannel channel, int windowSize, PcrIndex index) throws IOException {
+		this.channel = channel;
+		this.index = index;
+		this.size = channel.size();
+		this.windowSize = windowSize - windowSize % Constants.MPEGTS_PACKET_SIZE;
+	}
+
+	public static MappedFileMTSSourceBuilder builder() {
+		return new MappedFileMTSSourceBuilder();
+	}
+
+	@Override
+	protected MTSPacket nextPacketInternal() throws IOException {
+		MTSPacketView view = batchView();
+		return nextPacketInternal(view) ? view.toPacket() : null;
+	}
+
+	@Override
+	protected boolean nextPacketInternal(MTSPacketView view) throws IOException {
+		if (!sync()) {
+			return false;
+		}
+		PacketFormat format = scanner.getFormat();
+		int offset = (int) (position - windowStart);
+		arrivalTime = arrivalTime(format, offset);
+		view.wrap(window, offset + format.getPrefixSize());
+		if (view.isRandomAccessIndicator()) {
+			lastRandomPosition = position;
+		}
+		position += format.getPacketSize();
+		return true;
+	}
+
+	@Override
+	protected int nextPacketsInternal(ByteBuffer packets) throws IOException {
+		int count = 0;
+		while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE && sync()) {
+			// Extend the run with the following packets of the window that are in sync
+			PacketFormat format = scanner.getFormat();
+			int packetSize = format.getPacketSize();
+			int start = (int) (position - windowStart);
+			int max = packets.remaining() / Constants.MPEGTS_PACKET_SIZE;
+			int end = start + packetSize;
+			int run = 1;
+			while (run < max && scanner.isInSync(window, end, window.limit())) {
+				end += packetSize;
+				run++;
+			}
+			if (count == 0) {
+				arrivalTime = arrivalTime(format, start);
+			}
+			for (int offset = start + format.getPrefixSize(); offset < end; offset += packetSize) {
+				if ((MTSPacketView.getAdaptationFieldFlags(window, offset) & 0x40) != 0) {
+					lastRandomPosition = windowStart + offset - format.getPrefixSize();
+				}
+			}
+			if (format == PacketFormat.TS) {
+				int length = end - start;
+				packets.put(packets.position(), window, start, length);
+				packets.position(packets.position() + length);
+			} else {
+				for (int offset = start + format.getPrefixSize(); offset < end; offset += packetSize) {
+					packets.put(packets.position(), window, offset, Constants.MPEGTS_PACKET_SIZE);
+					packets.position(packets.position() + Constants.MPEGTS_PACKET_SIZE);
+				}
+			}
+			position += end - start;
+			count += run;
+		}
+		return count;
+	}
+
+	/**
+	 * Move {@link #position} to the next packet in sync, mapping the window holding it.
+	 *
+	 * @return false at the end of the file
+	 */
+	private boolean sync() throws IOException {
+		for (;;) {
+			if (!map(position)) {
+				return false;
+			}
+			int offset = (int) (position - windowStart);
+			if (scanner.isLocked()) {
+				if (scanner.isInSync(window, offset, window.limit())) {
+					return true;
+				}
+				if (window.limit() - offset < scanner.getFormat().getPacketSize()) {
+					// Truncated packet at the end of the file
+					return false;
+				}
+				scanner.lost();
+			}
+			boolean end = windowStart + window.limit() == size;
+			int found = scanner.scan(window, offset, window.limit(), end);
+			if (found >= 0) {
+				position = windowStart + found;
+				return true;
+			}
+			position = windowStart - 1 - found;
+			if (end) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Make sure the window maps the packet starting at the given file offset, and enough bytes after it to acquire
+	 * sync.
+	 *
+	 * @return false if there is no whole packet at this offset
+	 */
+	private boolean map(long offset) throws IOException {
+		if (offset + scanner.getLockLength() > size) {
+			size = channel.size();
+			if (offset + Constants.MPEGTS_PACKET_SIZE > size) {
+				return false;
+			}
+		}
+		long needed = Math.min(offset + scanner.getLockLength(), size);
+		if (window == null || offset < windowStart || needed > windowStart + window.limit()) {
+			windowStart = offset;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(windowSize, size - offset));
+		}
+		return true;
+	}
+
+	/**
+	 * @return the arrival timestamp of the packet at the offset of the window, unwrapped, or -1 if the format has
+	 * none
+	 */
+	private long arrivalTime(PacketFormat format, int offset) {
+		if (!format.hasArrivalTimestamp()) {
+			return -1;
+		}
+		int timestamp = PacketFormat.getArrivalTimestamp(window, offset);
+		if (lastArrivalTimestamp >= 0 && timestamp < lastArrivalTimestamp) {
+			arrivalWraps++;
+		}
+		lastArrivalTimestamp = timestamp;
+		return (arrivalWraps << 30) + timestamp;
+	}
+
+	/**
+	 * @return the arrival time of the first packet returned by the last read, in 27MHz units, for M2TS files; -1 for
+	 * other formats
+	 */
+	@Override
+	public long getArrivalTime() {
+		return arrivalTime;
+	}
+
+	/**
+	 * @return the format of the packets of the file, or null if none was read yet
+	 */
+	public PacketFormat getFormat() {
+		return scanner.getFormat();
+	}
+
+	/**
+	 * @return the sync scanner, with its lock and loss counts
+	 */
+	public SyncScanner getSyncScanner() {
+		return scanner;
+	}
+
+	@Override
+	public void reset() {
+		position = 0;
+		lastRandomPosition = -1;
+		resetArrivalTime();
+	}
+
+	private void resetArrivalTime() {
+		arrivalTime = -1;
+		lastArrivalTimestamp = -1;
+		arrivalWraps = 0;
+	}
+
+	@Override
+	public void mark() {
+		mark = lastRandomPosition;
+	}
+
+	@Override
+	public void rewind() {
+		if (mark >= 0L) {
+			position = mark;
+			resetArrivalTime();
+		} else {
+			throw new IllegalStateException();
+		}
+	}
+
+	/**
+	 * Move to the last random access packet with a PCR lower or equal to pcr. Packets appended to the file since the
+	 * last seek are indexed first.
+	 */
+	@Override
+	public void seek(long pcr) throws IOException {
+		index.update(channel);
+		long offset = index.floorRandomAccess(pcr);
+		if (offset < 0) {
+			reset();
+			throw new IOException("Position not found");
+		}
+		position = offset;
+		lastRandomPosition = offset;
+		resetArrivalTime();
+	}
+
+	public PcrIndex getIndex() {
+		return index;
+	}
+
+	@Override
+	protected void closeInternal() throws Exception {
+		window = null;
+		channel.close();
+	}
+
+	public static class MappedFileMTSSourceBuilder {
+		private FileChannel fileChannel;
+		private int windowSize = 1 << 30;
+		private PcrIndex index;
+
+		private MappedFileMTSSourceBuilder(){}
+
+		public MappedFileMTSSourceBuilder setFile(File file) throws IOException {
+			this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			return this;
+		}
+
+		public MappedFileMTSSourceBuilder setFileChannel(FileChannel fileChannel) {
+			this.fileChannel = fileChannel;
+			return this;
+		}
+
+		/**
+		 * Size of the mapped windows, default 1GB.
+		 */
+		public MappedFileMTSSourceBuilder setWindowSize(int windowSize) {
+			this.windowSize = windowSize;
+			return this;
+		}
+
+		/**
+		 * Index used by {@link #seek(long)}, e.g. loaded with {@link PcrIndex#load(java.nio.file.Path)}. By default
+		 * an empty index is built on the first seek.
+		 */
+		public MappedFileMTSSourceBuilder setIndex(PcrIndex index) {
+			this.index = index;
+			return this;
+		}
+
+		public MappedFileMTSSource build() throws IOException {
+			Preconditions.checkNotNull(fileChannel, "fileChannel cannot be null");
+			Preconditions.checkArgument(windowSize >= 8 * Constants.MPEGTS_PACKET_SIZE, "windowSize too small");
+			return new MappedFileMTSSource(fileChannel, windowSize, index != null ? index : new PcrIndex());
+		}
+	}
+}
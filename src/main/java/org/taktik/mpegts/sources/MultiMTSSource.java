@@ -1,5 +1,6 @@
 package org.taktik.mpegts.sources;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 
@@ -7,7 +8,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
 public class MultiMTSSource extends AbstractMTSSource {
 	static final Logger log = LoggerFactory.getLogger("multisource");
@@ -68,6 +71,43 @@ public class MultiMTSSource extends AbstractMTSSource {
 		}
 	}
 
+	@Override
+	protected boolean nextPacketInternal(MTSPacketView view) throws Exception {
+		if (currentSource == null) {
+			return false;
+		}
+		if (currentSource.nextPacket(view)) {
+			if (fixContinuity) {
+				continuityFixer.fixContinuity(view);
+			}
+			return true;
+		} else {
+			nextSource();
+			return nextPacket(view);
+		}
+	}
+
+	@Override
+	protected int nextPacketsInternal(ByteBuffer packets) throws Exception {
+		if (currentSource == null) {
+			return 0;
+		}
+		int start = packets.position();
+		int count = currentSource.nextPackets(packets);
+		if (count > 0) {
+			if (fixContinuity) {
+				MTSPacketView view = batchView();
+				for (int i = 0; i < count; i++) {
+					continuityFixer.fixContinuity(view.wrap(packets, start + i * Constants.MPEGTS_PACKET_SIZE));
+				}
+			}
+			return count;
+		} else {
+			nextSource();
+			return nextPackets(packets);
+		}
+	}
+
 	public synchronized void updateSources(List<MTSSource> newSources) {
 		checkLoopingPossible(newSources);
 		List<MTSSource> oldSources = this.sources;
@@ -0,0 +1,467 @@
+package org.taktik.mpegts.sources;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.NullPackets;
+import org.taktik.mpegts.PATSection;
+import org.taktik.mpegts.PMTSection;
+import org.taktik.mpegts.PsiWriter;
+import org.taktik.mpegts.SectionAssembler;
+
+/**
+ * Interleaves several sources, typically SPTS, into one MPTS. Where {@link MultiMTSSource} and {@link ProgMTSSource}
+ * play sources one after the other, this source plays them side by side.<br>
+ *
+ * Each packet of an input is given a departure time from the PCRs of the input, extrapolated from the previous PCR
+ * interval, and the inputs are merged by departure time. Programs and PIDs colliding with those of another input are
+ * moved to free program numbers and PIDs, and the PMTs rewritten accordingly; a combined PAT is sent every PSI
+ * interval in place of the PATs of the inputs. Other PIDs of the inputs, e.g. SDT or null packets, are dropped.<br>
+ *
+ * With a mux rate, packets are sent in fixed slots of a constant bitrate output: a slot with no packet due is filled
+ * with a null packet, and PCRs are restamped with the time of their slot. Without a mux rate, packets are sent as soon
+ * as they are due and PCRs only move when a packet is sent late.
+ */
+public class MuxMTSSource extends AbstractMTSSource {
+	static final Logger log = LoggerFactory.getLogger("mux");
+
+	private static final int PID_COUNT = 8192;
+	private static final int FIRST_PID = 0x20;
+	private static final long PCR_CLOCK = 27_000_000L;
+	private static final long PCR_WRAP = (1L << 33) * 300;
+	// A larger step between two PCRs of an input is a discontinuity
+	private static final long MAX_PCR_GAP = PCR_CLOCK;
+
+	private final List<Input> inputs;
+	private final int transportStreamId;
+	private final long muxRate;
+	private final long psiInterval;
+
+	// Output PIDs and program numbers taken by an input
+	private final boolean[] usedPids = new boolean[PID_COUNT];
+	private final Set<Integer> usedPrograms = new HashSet<>();
+	private ByteBuffer pat;
+	private int patVersion = -1;
+	private int patContinuity;
+	private long nextPat;
+	private boolean started;
+
+	// Time of the mux in 27MHz units: the time of the current slot with a mux rate, of the last packet otherwise
+	private long clock;
+	private final long slotTicks;
+	private final long slotRemainder;
+	private long remainder;
+
+	private ByteBuffer output = ByteBuffer.allocate(16 * Constants.MPEGTS_PACKET_SIZE);
+	// Muxed packets not returned yet, from pending to the position of the output
+	private int pending;
+
+	private MuxMTSSource(List<MTSSource> sources, int transportStreamId, long muxRate, Duration psiInterval) {
+		this.inputs = Lists.newArrayList();
+		for (MTSSource source : sources) {
+			inputs.add(new Input(source));
+		}
+		this.transportStreamId = transportStreamId;
+		this.muxRate = muxRate;
+		this.psiInterval = psiInterval.toNanos() * 27 / 1000;
+		long slot = Constants.MPEGTS_PACKET_SIZE * 8 * PCR_CLOCK;
+		this.slotTicks = muxRate > 0 ? slot / muxRate : 0;
+		this.slotRemainder = muxRate > 0 ? slot % muxRate : 0;
+		Arrays.fill(usedPids, 0, FIRST_PID, true);
+		usedPids[NullPackets.PID] = true;
+	}
+
+	@Override
+	protected MTSPacket nextPacketInternal() throws Exception {
+		MTSPacketView view = batchView();
+		return nextPacketInternal(view) ? view.toPacket() : null;
+	}
+
+	@Override
+	protected boolean nextPacketInternal(MTSPacketView view) throws Exception {
+		while (pending >= output.position()) {
+			output.clear();
+			pending = 0;
+			if (!mux()) {
+				return false;
+			}
+		}
+		view.wrap(output, pending);
+		pending += Constants.MPEGTS_PACKET_SIZE;
+		return true;
+	}
+
+	/**
+	 * Send the next slot.
+	 *
+	 * @return false once all the inputs ended
+	 */
+	private boolean mux() throws Exception {
+		if (!started) {
+			for (Input input : inputs) {
+				input.advance();
+			}
+			started = true;
+		}
+		while (true) {
+			Input next = null;
+			for (Input input : inputs) {
+				if (!input.end && (next == null || input.departure < next.departure)) {
+					next = input;
+				}
+			}
+			if (next == null) {
+				return false;
+			}
+			if (pat != null && clock >= nextPat) {
+				nextPat = clock + psiInterval;
+				patContinuity = writeTable(pat, patContinuity);
+				return true;
+			}
+			if (next.departure > clock) {
+				if (muxRate > 0) {
+					writeNull();
+					return true;
+				}
+				clock = next.departure;
+			}
+			boolean sent = next.send();
+			next.advance();
+			if (sent) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the continuity counter of the last packet written
+	 */
+	private int writeTable(ByteBuffer table, int continuity) {
+		reserve(table.limit());
+		for (int start = 0; start < table.limit(); start += Constants.MPEGTS_PACKET_SIZE) {
+			output.put(output.position(), table, start, Constants.MPEGTS_PACKET_SIZE);
+			continuity = (continuity + 1) & 0x0f;
+			MTSPacketView.setContinuityCounter(output, output.position(), continuity);
+			output.position(output.position() + Constants.MPEGTS_PACKET_SIZE);
+			tick();
+		}
+		return continuity;
+	}
+
+	private void writeNull() {
+		reserve(Constants.MPEGTS_PACKET_SIZE);
+		NullPackets.copyTo(output);
+		tick();
+	}
+
+	/**
+	 * Move to the next slot, with a mux rate.
+	 */
+	private void tick() {
+		if (muxRate > 0) {
+			clock += slotTicks;
+			remainder += slotRemainder;
+			if (remainder >= muxRate) {
+				remainder -= muxRate;
+				clock++;
+			}
+		}
+	}
+
+	private void reserve(int length) {
+		if (output.remaining() < length) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * output.capacity(), output.position() + length));
+			output.flip();
+			output = larger.put(output);
+		}
+	}
+
+	private int allocatePid(int pid) {
+		if (!usedPids[pid]) {
+			usedPids[pid] = true;
+			return pid;
+		}
+		for (int free = FIRST_PID; free < NullPackets.PID; free++) {
+			if (!usedPids[free]) {
+				usedPids[free] = true;
+				log.debug("PID {} moved to {}", pid, free);
+				return free;
+			}
+		}
+		throw new IllegalStateException("No PID left for PID " + pid);
+	}
+
+	private int allocateProgram(int program) {
+		int free = program;
+		if (usedPrograms.contains(free)) {
+			free = 1;
+			while (usedPrograms.contains(free)) {
+				free++;
+			}
+			log.info("Program {} renumbered {}", program, free);
+		}
+		Preconditions.checkState(free <= 0xffff, "No program number left");
+		usedPrograms.add(free);
+		return free;
+	}
+
+	/**
+	 * Rebuild the combined PAT from the programs of all inputs, and send it at the next slot.
+	 */
+	private void updatePat() {
+		Map<Integer, Integer> programs = new LinkedHashMap<>();
+		for (Input input : inputs) {
+			input.pmtPids.forEach((program, pid) -> programs.put(input.programs.get(program), input.remap[pid]));
+		}
+		patVersion = (patVersion + 1) & 0x1f;
+		pat = PsiWriter.packetize(0, PsiWriter.pat(transportStreamId, patVersion, programs));
+		nextPat = clock;
+	}
+
+	@Override
+	protected void closeInternal() throws Exception {
+		Exception error = null;
+		for (Input input : inputs) {
+			try {
+				input.source.close();
+			} catch (Exception e) {
+				if (error == null) {
+					error = e;
+				} else {
+					error.addSuppressed(e);
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * An input and its next packet.
+	 */
+	private class Input {
+		private final MTSSource source;
+		private final MTSPacketView packet = new MTSPacketView();
+		private final SectionAssembler sections = new SectionAssembler(this::section);
+		// Output PID of each input PID, -1 to drop its packets
+		private final int[] remap = new int[PID_COUNT];
+		// PIDs carrying the PAT and the PMTs of the input
+		private final boolean[] psi = new boolean[PID_COUNT];
+		// Output program_number and PMT PID of each input program
+		private final Map<Integer, Integer> programs = new HashMap<>();
+		private final Map<Integer, Integer> pmtPids = new LinkedHashMap<>();
+		// Rewritten PMTs by input PMT PID, and their continuity counters
+		private final Map<Integer, ByteBuffer> tables = new HashMap<>();
+		private final int[] continuities = new int[PID_COUNT];
+		private boolean end;
+
+		private int pcrPid = -1;
+		private long lastPcr = -1;
+		// Mux time of the last PCR, and the extrapolated duration of a packet
+		private long pcrTime;
+		private long ticksPerPacket;
+		private long packetsSincePcr;
+		// Mux time of the next packet, Long.MIN_VALUE to send it at once
+		private long departure;
+
+		private Input(MTSSource source) {
+			this.source = source;
+			Arrays.fill(remap, -1);
+			psi[0] = true;
+		}
+
+		/**
+		 * Read the next packet, and compute its departure time.
+		 */
+		private void advance() throws Exception {
+			if (!source.nextPacket(packet)) {
+				end = true;
+				return;
+			}
+			packetsSincePcr++;
+			long pcr = packet.getPcr();
+			if (pcr >= 0 && (pcrPid < 0 || packet.getPid() == pcrPid)) {
+				pcrPid = packet.getPid();
+				if (lastPcr < 0) {
+					pcrTime = clock;
+				} else {
+					long step = Math.floorMod(pcr - lastPcr, PCR_WRAP);
+					if (packet.isDiscontinuityIndicator() || step > MAX_PCR_GAP) {
+						pcrTime += packetsSincePcr * ticksPerPacket;
+					} else {
+						ticksPerPacket = step / packetsSincePcr;
+						pcrTime += step;
+					}
+				}
+				lastPcr = pcr;
+				packetsSincePcr = 0;
+			}
+			departure = lastPcr < 0 ? Long.MIN_VALUE : pcrTime + packetsSincePcr * ticksPerPacket;
+		}
+
+		/**
+		 * Write what the current packet becomes to the output: nothing, the rewritten PMT in place of the start of an
+		 * input PMT, or the packet with its PID remapped and its PCR restamped.
+		 *
+		 * @return true if something was written
+		 */
+		private boolean send() {
+			int pid = packet.getPid();
+			if (psi[pid]) {
+				sections.push(packet);
+				ByteBuffer table = tables.get(pid);
+				if (pid == 0 || table == null || !packet.isPayloadUnitStartIndicator()) {
+					return false;
+				}
+				continuities[pid] = writeTable(table, continuities[pid]);
+				return true;
+			}
+			if (remap[pid] < 0) {
+				return false;
+			}
+			reserve(Constants.MPEGTS_PACKET_SIZE);
+			int offset = output.position();
+			packet.copyTo(output);
+			if (remap[pid] != pid) {
+				MTSPacketView.setPid(output, offset, remap[pid]);
+			}
+			if (departure != Long.MIN_VALUE && MTSPacketView.isPcrFlag(output, offset)) {
+				long pcr = MTSPacketView.getPcr(output, offset + 6);
+				MTSPacketView.setPcr(output, offset + 6, Math.floorMod(pcr + clock - departure, PCR_WRAP));
+			}
+			tick();
+			return true;
+		}
+
+		private void section(int pid, ByteBuffer section) {
+			if (pid == 0) {
+				PATSection pat = section.get(0) == 0 ? PATSection.parse(section.duplicate()) : null;
+				if (pat == null || pat.getCurrentNextIndicator() == 0) {
+					return;
+				}
+				onPat(pat);
+			} else {
+				PMTSection pmt = section.get(0) == 0x02 ? PMTSection.parse(section.duplicate()) : null;
+				if (pmt == null || pmt.getCurrentNextIndicator() == 0
+						|| !Integer.valueOf(pid).equals(pmtPids.get(pmt.getSpecificId()))) {
+					return;
+				}
+				if (pmt.getPcrPid() != NullPackets.PID && remap[pmt.getPcrPid()] < 0) {
+					remap[pmt.getPcrPid()] = allocatePid(pmt.getPcrPid());
+				}
+				for (PMTSection.PMTStream stream : pmt.getStreams()) {
+					if (remap[stream.getPid()] < 0) {
+						remap[stream.getPid()] = allocatePid(stream.getPid());
+					}
+				}
+				tables.put(pid, PsiWriter.packetize(remap[pid],
+						PsiWriter.pmt(pmt, programs.get(pmt.getSpecificId()), remap)));
+			}
+		}
+
+		private void onPat(PATSection pat) {
+			boolean changed = false;
+			for (Map.Entry<Integer, Integer> entry : Lists.newArrayList(pmtPids.entrySet())) {
+				int pid = entry.getValue();
+				if (!Integer.valueOf(pid).equals(pat.getPrograms().get(entry.getKey()))) {
+					pmtPids.remove(entry.getKey());
+					usedPrograms.remove(programs.remove(entry.getKey()));
+					psi[pid] = false;
+					sections.reset(pid);
+					tables.remove(pid);
+					changed = true;
+				}
+			}
+			for (Map.Entry<Integer, Integer> entry : pat.getPrograms().entrySet()) {
+				int program = entry.getKey();
+				int pid = entry.getValue();
+				// Program 0 points to the NIT, which is not muxed
+				if (program == 0 || pmtPids.containsKey(program)) {
+					continue;
+				}
+				programs.put(program, allocateProgram(program));
+				pmtPids.put(program, pid);
+				if (remap[pid] < 0) {
+					remap[pid] = allocatePid(pid);
+				}
+				psi[pid] = true;
+				changed = true;
+			}
+			if (changed) {
+				updatePat();
+			}
+		}
+	}
+
+	public static MuxMTSSourceBuilder builder() {
+		return new MuxMTSSourceBuilder();
+	}
+
+	public static class MuxMTSSourceBuilder {
+		private final List<MTSSource> sources = Lists.newArrayList();
+		private int transportStreamId = 1;
+		private long muxRate;
+		private Duration psiInterval = Duration.ofMillis(100);
+
+		private MuxMTSSourceBuilder() {
+		}
+
+		public MuxMTSSourceBuilder addSource(MTSSource source) {
+			Preconditions.checkNotNull(source);
+			sources.add(source);
+			return this;
+		}
+
+		public MuxMTSSourceBuilder addSources(Collection<MTSSource> sources) {
+			sources.forEach(this::addSource);
+			return this;
+		}
+
+		public MuxMTSSourceBuilder setTransportStreamId(int transportStreamId) {
+			Preconditions.checkArgument(transportStreamId >= 0 && transportStreamId <= 0xffff, "Invalid transport_stream_id %s", transportStreamId);
+			this.transportStreamId = transportStreamId;
+			return this;
+		}
+
+		/**
+		 * Send a constant bitrate output, filled with null packets. 0, the default, sends packets as they are due.
+		 *
+		 * @param muxRate the rate of the output in bits per second
+		 */
+		public MuxMTSSourceBuilder setMuxRate(long muxRate) {
+			Preconditions.checkArgument(muxRate >= 0, "Invalid mux rate %s", muxRate);
+			this.muxRate = muxRate;
+			return this;
+		}
+
+		/**
+		 * Interval of the combined PAT, in mux time. 100ms by default.
+		 */
+		public MuxMTSSourceBuilder setPsiInterval(Duration psiInterval) {
+			Preconditions.checkArgument(!psiInterval.isNegative() && !psiInterval.isZero(), "Invalid PSI interval %s", psiInterval);
+			this.psiInterval = psiInterval;
+			return this;
+		}
+
+		public MuxMTSSource build() {
+			Preconditions.checkArgument(!sources.isEmpty(), "Mux must at least contain one source");
+			return new MuxMTSSource(sources, transportStreamId, muxRate, psiInterval);
+		}
+	}
+}
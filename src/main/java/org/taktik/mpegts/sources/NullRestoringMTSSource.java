@@ -0,0 +1,125 @@
+package org.taktik.mpegts.sources;
+
+import java.nio.ByteBuffer;
+
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.NullPackets;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Restores the null packets stripped by a {@link org.taktik.mpegts.sinks.NullStrippingTransportFilter}: each marker
+ * packet is replaced by the run of null packets it stands for, giving back the exact stream sent, with its constant
+ * bitrate. Packets of the marker PID that are not markers are returned as they are.<br>
+ *
+ * Restored null packets are views of the shared {@link NullPackets}, and thus read-only.
+ */
+public class NullRestoringMTSSource extends AbstractMTSSource {
+	private final MTSSource source;
+	private final int markerPid;
+	private final ByteBuffer nulls = NullPackets.block();
+	// Null packets left to return for the last marker
+	private int pending;
+	private long restored;
+
+	private NullRestoringMTSSource(MTSSource source, int markerPid) {
+		this.source = source;
+		this.markerPid = markerPid;
+	}
+
+	@Override
+	protected MTSPacket nextPacketInternal() throws Exception {
+		MTSPacketView view = batchView();
+		return nextPacketInternal(view) ? view.toPacket() : null;
+	}
+
+	@Override
+	protected boolean nextPacketInternal(MTSPacketView view) throws Exception {
+		if (pending > 0) {
+			pending--;
+			view.wrap(nulls, 0);
+			return true;
+		}
+		if (!source.nextPacket(view)) {
+			return false;
+		}
+		if (view.getPid() == markerPid) {
+			int count = NullPackets.getMarkerCount(view.buffer(), view.offset());
+			if (count > 0) {
+				restored += count;
+				pending = count - 1;
+				view.wrap(nulls, 0);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected int nextPacketsInternal(ByteBuffer packets) throws Exception {
+		int count = 0;
+		while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+			// Runs of null packets are copied at once
+			if (pending > 0) {
+				int run = Math.min(pending, Math.min(Constants.PACKETS_PER_BLOCK, packets.remaining() / Constants.MPEGTS_PACKET_SIZE));
+				packets.put(packets.position(), nulls, 0, run * Constants.MPEGTS_PACKET_SIZE);
+				packets.position(packets.position() + run * Constants.MPEGTS_PACKET_SIZE);
+				pending -= run;
+				count += run;
+				continue;
+			}
+			MTSPacketView view = batchView();
+			if (!nextPacketInternal(view)) {
+				break;
+			}
+			view.copyTo(packets);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of null packets restored from markers
+	 */
+	public long getRestoredCount() {
+		return restored;
+	}
+
+	@Override
+	protected void closeInternal() throws Exception {
+		source.close();
+	}
+
+	public static NullRestoringMTSSourceBuilder builder() {
+		return new NullRestoringMTSSourceBuilder();
+	}
+
+	public static class NullRestoringMTSSourceBuilder {
+		private MTSSource source;
+		private int markerPid = NullPackets.DEFAULT_MARKER_PID;
+
+		private NullRestoringMTSSourceBuilder() {
+		}
+
+		public NullRestoringMTSSourceBuilder setSource(MTSSource source) {
+			this.source = source;
+			return this;
+		}
+
+		/**
+		 * The PID of the markers, {@link NullPackets#DEFAULT_MARKER_PID} by default.
+		 */
+		public NullRestoringMTSSourceBuilder setMarkerPid(int markerPid) {
+			this.markerPid = markerPid;
+			return this;
+		}
+
+		public NullRestoringMTSSource build() {
+			checkNotNull(source);
+			checkArgument(markerPid > 0 && markerPid < NullPackets.PID, "Invalid marker PID %s", markerPid);
+			return new NullRestoringMTSSource(source, markerPid);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package org.taktik.mpegts.sources;
+
+import java.nio.ByteBuffer;
+
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.PacketFormat;
+
+/**
+ * Finds the packets of a byte stream read by parts, e.g. from an InputStream, as {@link AbstractByteChannelMTSSource}
+ * does for channels: the {@link SyncScanner} detects the {@link PacketFormat} and resyncs after garbage, and only the
+ * 188 bytes TS packets are handed out.<br>
+ *
+ * The input is read as soon as more bytes are needed, and each read may return fewer bytes than asked, so that a live
+ * stream is not held back to fill the buffer.
+ */
+class PacketFramer {
+	private static final int BUFFER_SIZE = Constants.MPEGTS_PACKET_SIZE * 100;
+
+	/**
+	 * Bytes to frame.
+	 */
+	interface Input {
+		/**
+		 * Read some bytes into the buffer, blocking until at least one is available.
+		 *
+		 * @return the number of bytes read, or -1 at the end of the input
+		 */
+		int read(ByteBuffer buffer) throws Exception;
+	}
+
+	private final Input input;
+	private final SyncScanner scanner = SyncScanner.builder().build();
+	// Bytes read and not framed yet, between position and limit
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private boolean end;
+
+	PacketFramer(Input input) {
+		this.input = input;
+		buffer.flip();
+	}
+
+	/**
+	 * Find the next packet, reading more input as needed, and move past it.
+	 *
+	 * @return the offset of the 188 bytes TS packet in {@link #buffer()}, valid until the next call, or -1 at the end
+	 * of the input
+	 */
+	int next() throws Exception {
+		for (;;) {
+			int position = buffer.position();
+			if (buffer.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+				if (scanner.isLocked()) {
+					if (scanner.isInSync(buffer, position, buffer.limit())) {
+						return next(position);
+					}
+					if (buffer.remaining() >= scanner.getFormat().getPacketSize()) {
+						scanner.lost();
+					}
+				}
+				if (!scanner.isLocked()) {
+					int offset = scanner.scan(buffer, position, buffer.limit(), end);
+					if (offset >= 0) {
+						return next(offset);
+					}
+					buffer.position(-1 - offset);
+				}
+			}
+			if (end) {
+				return -1;
+			}
+			// Keep the start of a packet, or of a candidate waiting for confirmation
+			buffer.compact();
+			try {
+				end = input.read(buffer) < 0;
+			} finally {
+				buffer.flip();
+			}
+		}
+	}
+
+	private int next(int packetOffset) {
+		PacketFormat format = scanner.getFormat();
+		buffer.position(packetOffset + format.getPacketSize());
+		return packetOffset + format.getPrefixSize();
+	}
+
+	/**
+	 * Copy the next packets into the given buffer, as many as it holds, and move past them.
+	 *
+	 * @return the number of packets copied, 0 at the end of the input
+	 */
+	int next(ByteBuffer packets) throws Exception {
+		int count = 0;
+		while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+			int offset = next();
+			if (offset < 0) {
+				break;
+			}
+			// Extend the run with the following packets that are already buffered and in sync
+			PacketFormat format = scanner.getFormat();
+			int run = 1;
+			int max = packets.remaining() / Constants.MPEGTS_PACKET_SIZE;
+			while (run < max && scanner.isInSync(buffer, buffer.position(), buffer.limit())) {
+				buffer.position(buffer.position() + format.getPacketSize());
+				run++;
+			}
+			if (format == PacketFormat.TS) {
+				int length = run * Constants.MPEGTS_PACKET_SIZE;
+				packets.put(packets.position(), buffer, offset, length);
+				packets.position(packets.position() + length);
+			} else {
+				for (int i = 0; i < run; i++) {
+					packets.put(packets.position(), buffer, offset + i * format.getPacketSize(), Constants.MPEGTS_PACKET_SIZE);
+					packets.position(packets.position() + Constants.MPEGTS_PACKET_SIZE);
+				}
+			}
+			count += run;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the buffer holding the packets returned by {@link #next()}
+	 */
+	ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Drop the bytes not framed yet, to read a new input. The format stays detected.
+	 */
+	void reset() {
+		buffer.clear().flip();
+		end = false;
+	}
+
+	SyncScanner getSyncScanner() {
+		return scanner;
+	}
+}
@@ -0,0 +1,229 @@
+package org.taktik.mpegts.sources;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.PacketFormat;
+
+/**
+ * Index of the packets carrying a PCR in a TS file: their PCR, byte offset and random access indicator, kept in
+ * primitive arrays. Offsets are those of whole packets, including the header of M2TS packets.<br>
+ *
+ * {@link #update(SeekableByteChannel)} scans the part of the file not indexed yet, so the first call reads the
+ * whole file and later ones only what was appended to it. {@link #floorRandomAccess(long)} is a binary search over
+ * the random access packets.<br>
+ *
+ * The index can be saved next to the file with {@link #save(Path)} and loaded back with {@link #load(Path)}, to skip
+ * the first scan.
+ */
+public class PcrIndex {
+	static final Logger log = LoggerFactory.getLogger("source");
+
+	private static final int MAGIC = 0x54534958; // "TSIX"
+	private static final int VERSION = 1;
+	private static final long RANDOM_ACCESS = 1L << 63;
+	private static final int SCAN_SIZE = Constants.MPEGTS_PACKET_SIZE * 1024;
+
+	private long[] pcrs = new long[1024];
+	// Byte offsets, with RANDOM_ACCESS set for random access packets
+	private long[] offsets = new long[1024];
+	private int count;
+	// Entries of the random access packets
+	private int[] randomAccess = new int[256];
+	private int randomAccessCount;
+	// Offset of the first byte not scanned yet
+	private long indexedSize;
+
+	/**
+	 * Index the packets appended to the file since the last update, up to the last whole packet. The index is built
+	 * again if the file shrank.<br>
+	 *
+	 * The position of the channel is left unchanged.
+	 */
+	public void update(SeekableByteChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < indexedSize) {
+			log.info("File shrank from {} to {} bytes, indexing it again", indexedSize, size);
+			clear();
+		}
+		if (size - indexedSize < Constants.MPEGTS_PACKET_SIZE) {
+			return;
+		}
+		long channelPosition = channel.position();
+		try {
+			scan(channel, size);
+		} finally {
+			channel.position(channelPosition);
+		}
+	}
+
+	private void scan(SeekableByteChannel channel, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+		SyncScanner scanner = SyncScanner.builder().build();
+		// Offset in the file of the first byte of buffer
+		long bufferStart = indexedSize;
+		while (bufferStart + buffer.position() < size) {
+			long readPosition = bufferStart + buffer.position();
+			int read = channel instanceof FileChannel
+					? ((FileChannel) channel).read(buffer, readPosition)
+					: channel.position(readPosition).read(buffer);
+			if (read <= 0) {
+				break;
+			}
+			buffer.flip();
+			boolean end = bufferStart + buffer.limit() >= size;
+			int offset = 0;
+			while (buffer.limit() - offset >= Constants.MPEGTS_PACKET_SIZE) {
+				if (scanner.isLocked()) {
+					PacketFormat format = scanner.getFormat();
+					if (scanner.isInSync(buffer, offset, buffer.limit())) {
+						int packet = offset + format.getPrefixSize();
+						if (MTSPacketView.isPcrFlag(buffer, packet)) {
+							boolean rap = (MTSPacketView.getAdaptationFieldFlags(buffer, packet) & 0x40) != 0;
+							add(MTSPacketView.getPcr(buffer, packet + 6), bufferStart + offset, rap);
+						}
+						offset += format.getPacketSize();
+						continue;
+					}
+					if (buffer.limit() - offset < format.getPacketSize()) {
+						break;
+					}
+					scanner.lost();
+				}
+				int found = scanner.scan(buffer, offset, buffer.limit(), end);
+				if (found < 0) {
+					// Keep a candidate waiting for more data
+					offset = -1 - found;
+					break;
+				}
+				offset = found;
+			}
+			bufferStart += offset;
+			indexedSize = bufferStart;
+			buffer.position(offset);
+			buffer.compact();
+		}
+		if (scanner.getSkippedBytes() > 0) {
+			log.info("Skipped {} bytes looking for TS marker", scanner.getSkippedBytes());
+		}
+	}
+
+	private void add(long pcr, long offset, boolean rap) {
+		if (count == pcrs.length) {
+			pcrs = Arrays.copyOf(pcrs, count * 2);
+			offsets = Arrays.copyOf(offsets, count * 2);
+		}
+		pcrs[count] = pcr;
+		offsets[count] = rap ? offset | RANDOM_ACCESS : offset;
+		if (rap) {
+			if (randomAccessCount == randomAccess.length) {
+				randomAccess = Arrays.copyOf(randomAccess, randomAccessCount * 2);
+			}
+			randomAccess[randomAccessCount++] = count;
+		}
+		count++;
+	}
+
+	public void clear() {
+		count = 0;
+		randomAccessCount = 0;
+		indexedSize = 0;
+	}
+
+	/**
+	 * Find where to seek to start playing at a PCR, assuming PCRs grow along the file.
+	 *
+	 * @return the offset of the last random access packet with a PCR lower or equal to pcr, or of the first one if
+	 * they are all greater, or -1 if no random access packet was indexed
+	 */
+	public long floorRandomAccess(long pcr) {
+		if (randomAccessCount == 0) {
+			return -1;
+		}
+		int low = 0;
+		int high = randomAccessCount - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (pcrs[randomAccess[middle]] <= pcr) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return getOffset(randomAccess[low]);
+	}
+
+	/**
+	 * @return the number of PCR packets indexed
+	 */
+	public int size() {
+		return count;
+	}
+
+	public int getRandomAccessCount() {
+		return randomAccessCount;
+	}
+
+	public long getPcr(int entry) {
+		return pcrs[entry];
+	}
+
+	public long getOffset(int entry) {
+		return offsets[entry] & ~RANDOM_ACCESS;
+	}
+
+	public boolean isRandomAccess(int entry) {
+		return (offsets[entry] & RANDOM_ACCESS) != 0;
+	}
+
+	/**
+	 * @return the number of bytes of the file already scanned
+	 */
+	public long getIndexedSize() {
+		return indexedSize;
+	}
+
+	public void save(Path path) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(indexedSize);
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeLong(pcrs[i]);
+				out.writeLong(offsets[i]);
+			}
+		}
+	}
+
+	public static PcrIndex load(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a PCR index: " + path);
+			}
+			PcrIndex index = new PcrIndex();
+			long indexedSize = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long pcr = in.readLong();
+				long offset = in.readLong();
+				index.add(pcr, offset & ~RANDOM_ACCESS, (offset & RANDOM_ACCESS) != 0);
+			}
+			index.indexedSize = indexedSize;
+			return index;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.taktik.mpegts.sources;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
+import org.taktik.mpegts.PidDemux;
+import org.taktik.mpegts.PidFilter;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Reduces a source to some of its programs or PIDs with a {@link PidFilter}, e.g. to extract one program of an MPTS.
+ * The PAT and PMTs are rewritten for the output, and PIDs are remapped as configured in the filter.<br>
+ *
+ * To split a source into several outputs in one pass, use a {@link org.taktik.mpegts.sinks.PidDemuxSink}.
+ */
+public class PidFilterMTSSource extends AbstractMTSSource {
+	private final MTSSource source;
+	private final PidDemux demux;
+	private final PidFilter filter;
+	private final ByteBuffer input = ByteBuffer.allocate(Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE);
+	private final MTSPacketView packet = new MTSPacketView();
+	// Filtered packets not returned yet, from pending to the position of the filter output
+	private int pending;
+	private boolean end;
+
+	private PidFilterMTSSource(MTSSource source, PidFilter filter) {
+		this.source = source;
+		this.filter = filter;
+		this.demux = new PidDemux(List.of(filter));
+	}
+
+	@Override
+	protected MTSPacket nextPacketInternal() throws Exception {
+		MTSPacketView view = batchView();
+		return nextPacketInternal(view) ? view.toPacket() : null;
+	}
+
+	@Override
+	protected boolean nextPacketInternal(MTSPacketView view) throws Exception {
+		if (!fill()) {
+			return false;
+		}
+		view.wrap(filter.output(), pending);
+		pending += Constants.MPEGTS_PACKET_SIZE;
+		return true;
+	}
+
+	@Override
+	protected int nextPacketsInternal(ByteBuffer packets) throws Exception {
+		int count = 0;
+		while (packets.remaining() >= Constants.MPEGTS_PACKET_SIZE && fill()) {
+			ByteBuffer output = filter.output();
+			int length = Math.min(output.position() - pending,
+					packets.remaining() / Constants.MPEGTS_PACKET_SIZE * Constants.MPEGTS_PACKET_SIZE);
+			packets.put(packets.position(), output, pending, length);
+			packets.position(packets.position() + length);
+			pending += length;
+			count += length / Constants.MPEGTS_PACKET_SIZE;
+		}
+		return count;
+	}
+
+	/**
+	 * Filter input packets until some are pending.
+	 *
+	 * @return false at the end of the source
+	 */
+	private boolean fill() throws Exception {
+		ByteBuffer output = filter.output();
+		while (pending >= output.position()) {
+			output.clear();
+			pending = 0;
+			if (end) {
+				return false;
+			}
+			if (source.nextPackets(input.clear()) == 0) {
+				end = true;
+				return false;
+			}
+			input.flip();
+			for (int offset = 0; offset < input.limit(); offset += Constants.MPEGTS_PACKET_SIZE) {
+				demux.push(packet.wrap(input, offset));
+			}
+			// The filter grows its output as needed
+			output = filter.output();
+		}
+		return true;
+	}
+
+	@Override
+	protected void closeInternal() throws Exception {
+		source.close();
+	}
+
+	public static PidFilterMTSSourceBuilder builder() {
+		return new PidFilterMTSSourceBuilder();
+	}
+
+	public static class PidFilterMTSSourceBuilder {
+		private MTSSource source;
+		private PidFilter filter;
+
+		private PidFilterMTSSourceBuilder() {
+		}
+
+		public PidFilterMTSSourceBuilder setSource(MTSSource source) {
+			this.source = source;
+			return this;
+		}
+
+		public PidFilterMTSSourceBuilder setFilter(PidFilter filter) {
+			this.filter = filter;
+			return this;
+		}
+
+		public PidFilterMTSSource build() {
+			checkNotNull(source);
+			checkNotNull(filter);
+			return new PidFilterMTSSource(source, filter);
+		}
+	}
+}
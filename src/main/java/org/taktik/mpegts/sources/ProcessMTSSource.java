@@ -3,9 +3,11 @@ package org.taktik.mpegts.sources;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class ProcessMTSSource extends AbstractMTSSource {
 
@@ -42,6 +44,16 @@ public class ProcessMTSSource extends AbstractMTSSource {
         return source.nextPacket();
     }
 
+    @Override
+    protected boolean nextPacketInternal(MTSPacketView view) throws Exception {
+        return source.nextPacket(view);
+    }
+
+    @Override
+    protected int nextPacketsInternal(ByteBuffer packets) throws Exception {
+        return source.nextPackets(packets);
+    }
+
     @Override
     protected void closeInternal() throws Exception {
         source.close();
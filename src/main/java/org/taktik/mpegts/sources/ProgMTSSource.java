@@ -4,8 +4,11 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import java.util.function.IntPredicate;
@@ -55,6 +58,43 @@ public class ProgMTSSource extends AbstractMTSSource {
         }
     }
 
+    @Override
+    protected boolean nextPacketInternal(MTSPacketView view) throws Exception {
+        if (currentSource == null) {
+            return false;
+        }
+        if (currentSource.source().nextPacket(view)) {
+            if (fixContinuity) {
+                continuityFixer.fixContinuity(view);
+            }
+            return true;
+        } else {
+            nextSource();
+            return nextPacket(view);
+        }
+    }
+
+    @Override
+    protected int nextPacketsInternal(ByteBuffer packets) throws Exception {
+        if (currentSource == null) {
+            return 0;
+        }
+        int start = packets.position();
+        int count = currentSource.source().nextPackets(packets);
+        if (count > 0) {
+            if (fixContinuity) {
+                MTSPacketView view = batchView();
+                for (int i = 0; i < count; i++) {
+                    continuityFixer.fixContinuity(view.wrap(packets, start + i * Constants.MPEGTS_PACKET_SIZE));
+                }
+            }
+            return count;
+        } else {
+            nextSource();
+            return nextPackets(packets);
+        }
+    }
+
     @Override
     protected synchronized void closeInternal() throws Exception {
         for (Prog source : sources) {
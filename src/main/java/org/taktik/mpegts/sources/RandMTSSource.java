@@ -4,7 +4,9 @@ import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import java.util.Random;
@@ -32,6 +34,32 @@ public class RandMTSSource extends AbstractMTSSource implements ResettableMTSSou
         return currentSource.nextPacket();
     }
 
+    @Override
+    protected boolean nextPacketInternal(MTSPacketView view) throws Exception {
+        if (currentSource == null) {
+            if (sources.isEmpty()) {
+                return false;
+            }
+
+            currentSource = sources.remove(rand.nextInt(sources.size()));
+        }
+
+        return currentSource.nextPacket(view);
+    }
+
+    @Override
+    protected int nextPacketsInternal(ByteBuffer packets) throws Exception {
+        if (currentSource == null) {
+            if (sources.isEmpty()) {
+                return 0;
+            }
+
+            currentSource = sources.remove(rand.nextInt(sources.size()));
+        }
+
+        return currentSource.nextPackets(packets);
+    }
+
     @Override
     protected synchronized void closeInternal() throws Exception {
         for (MTSSource source : sources) {
@@ -1,6 +1,10 @@
 package org.taktik.mpegts.sources;
 
+import java.nio.ByteBuffer;
+
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
 public class RangeMTSSource extends AbstractMTSSource implements ResettableMTSSource {
 
@@ -22,19 +26,51 @@ public class RangeMTSSource extends AbstractMTSSource implements ResettableMTSSo
         }
         MTSPacket packet = source.nextPacket();
 
-        if (packet.isAdaptationFieldExist()) {
-            MTSPacket.AdaptationField adapt = packet.getAdaptationField();
-            if (adapt != null && adapt.isPcrFlag() && adapt.isRandomAccessIndicator()) {
-                if (adapt.getPcr().getValue() >= endPCR) {
-                    end = true;
-                    return null;
-                }
+        if (packet != null && packet.isPcrFlag() && packet.isRandomAccessIndicator()) {
+            if (packet.getPcrValue() >= endPCR) {
+                end = true;
+                return null;
             }
         }
 
         return packet;
     }
 
+    @Override
+    protected boolean nextPacketInternal(MTSPacketView view) throws Exception {
+        if (end) {
+            return false;
+        }
+        if (!source.nextPacket(view)) {
+            return false;
+        }
+        if (view.isPcrFlag() && view.isRandomAccessIndicator() && view.getPcr() >= endPCR) {
+            end = true;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected int nextPacketsInternal(ByteBuffer packets) throws Exception {
+        if (end) {
+            return 0;
+        }
+        int start = packets.position();
+        int count = source.nextPackets(packets);
+        MTSPacketView view = batchView();
+        for (int i = 0; i < count; i++) {
+            view.wrap(packets, start + i * Constants.MPEGTS_PACKET_SIZE);
+            if (view.isPcrFlag() && view.isRandomAccessIndicator() && view.getPcr() >= endPCR) {
+                // Drop the end packet and the ones read after it
+                end = true;
+                packets.position(view.offset());
+                return i;
+            }
+        }
+        return count;
+    }
+
     @Override
     protected void closeInternal() throws Exception {
         end = true;
@@ -6,16 +6,18 @@ import java.nio.channels.SeekableByteChannel;
 
 import com.google.common.base.Preconditions;
 import org.taktik.mpegts.Constants;
-import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.MTSPacketView;
 
 public class SeekableByteChannelMTSSource extends AbstractByteChannelMTSSource<SeekableByteChannel> implements SeekableMTSSource {
 
 	private long position;
 	private long lastRandomPosition = -1;
 	private long mark = -1;
+	private final PcrIndex index;
 
-	private SeekableByteChannelMTSSource(SeekableByteChannel byteChannel) throws IOException {
+	private SeekableByteChannelMTSSource(SeekableByteChannel byteChannel, PcrIndex index) throws IOException {
 		super(byteChannel);
+		this.index = index;
 	}
 
 	public static SeekableByteChannelMTSSourceBuilder builder() {
@@ -24,6 +26,7 @@ public class SeekableByteChannelMTSSource extends AbstractByteChannelMTSSource<S
 
 	@Override
 	public void reset() throws IOException {
+		stopReadAhead();
 		lastRandomPosition = -1;
 		byteChannel.position(0);
 		fillBuffer();
@@ -37,6 +40,7 @@ public class SeekableByteChannelMTSSource extends AbstractByteChannelMTSSource<S
 	@Override
 	public void rewind() throws IOException {
 		if (mark >= 0L) {
+			stopReadAhead();
 			byteChannel.position(mark);
 			fillBuffer();
 		} else {
@@ -50,60 +54,45 @@ public class SeekableByteChannelMTSSource extends AbstractByteChannelMTSSource<S
 	}
 
 	@Override
-	protected MTSPacket nextPacketBlocking() throws IOException {
-		MTSPacket packet = super.nextPacketBlocking();
-		if (packet != null && packet.isAdaptationFieldExist()) {
-			MTSPacket.AdaptationField adapt = packet.getAdaptationField();
-			if (adapt != null && adapt.isRandomAccessIndicator()) {
-				lastRandomPosition = position;
+	protected long batchTag() {
+		// Start of the buffer holding the first packet of the batch, a RAP of the batch is after it
+		return position;
+	}
+
+	@Override
+	protected void batchTaken(ByteBuffer batch, long tag) {
+		for (int offset = batch.position(); offset < batch.limit(); offset += Constants.MPEGTS_PACKET_SIZE) {
+			if ((MTSPacketView.getAdaptationFieldFlags(batch, offset) & 0x40) != 0) {
+				lastRandomPosition = tag;
+				return;
 			}
 		}
-		return packet;
 	}
 
+	/**
+	 * Move to the last random access packet with a PCR lower or equal to pcr. Packets appended to the channel since
+	 * the last seek are indexed first.
+	 */
 	public void seek(long pcr) throws IOException {
-		long minPos = 0L;
-		long maxPos = byteChannel.size();
-		long lastSeekPos = -1;
-		while (minPos + Constants.MPEGTS_PACKET_SIZE < maxPos) {
-			long seekPos = (maxPos + minPos) / 2;
-			seekPos -= seekPos % Constants.MPEGTS_PACKET_SIZE;
-			byteChannel.position(seekPos);
-			fillBuffer();
-			if (seekPos == lastSeekPos) {
-				return;
-			}
-			lastSeekPos = seekPos;
-			for (;;) {
-				MTSPacket packet = nextPacketBlocking();
-				if (packet == null) {
-					reset();
-					throw new IOException("Position not found");
-				}
-				if (!packet.isAdaptationFieldExist()) {
-					continue;
-				}
-				MTSPacket.AdaptationField adapt = packet.getAdaptationField();
-				if (adapt == null || !adapt.isRandomAccessIndicator() || !adapt.isPcrFlag()) {
-					continue;
-				}
-				if (adapt.getPcr().getValue() > pcr) {
-					maxPos = position;
-					break;
-				}
-				if (adapt.getPcr().getValue() < pcr) {
-					minPos = position + Constants.MPEGTS_PACKET_SIZE;
-					break;
-				}
-				byteChannel.position(position);
-				fillBuffer();
-				return;
-			}
+		stopReadAhead();
+		index.update(byteChannel);
+		long offset = index.floorRandomAccess(pcr);
+		if (offset < 0) {
+			reset();
+			throw new IOException("Position not found");
 		}
+		lastRandomPosition = offset;
+		byteChannel.position(offset);
+		fillBuffer();
+	}
+
+	public PcrIndex getIndex() {
+		return index;
 	}
 
 	public static class SeekableByteChannelMTSSourceBuilder {
 		private SeekableByteChannel byteChannel;
+		private PcrIndex index;
 
 		private SeekableByteChannelMTSSourceBuilder(){}
 
@@ -112,9 +101,18 @@ public class SeekableByteChannelMTSSource extends AbstractByteChannelMTSSource<S
 			return this;
 		}
 
+		/**
+		 * Index used by {@link #seek(long)}, e.g. loaded with {@link PcrIndex#load(java.nio.file.Path)}. By default
+		 * an empty index is built on the first seek.
+		 */
+		public SeekableByteChannelMTSSourceBuilder setIndex(PcrIndex index) {
+			this.index = index;
+			return this;
+		}
+
 		public SeekableByteChannelMTSSource build() throws IOException {
 			Preconditions.checkNotNull(byteChannel, "byteChannel cannot be null");
-			return new SeekableByteChannelMTSSource(byteChannel);
+			return new SeekableByteChannelMTSSource(byteChannel, index != null ? index : new PcrIndex());
 		}
 	}
 }
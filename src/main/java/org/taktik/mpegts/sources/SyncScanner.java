@@ -0,0 +1,234 @@
+package org.taktik.mpegts.sources;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.PacketFormat;
+
+/**
+ * Finds packet boundaries in a byte stream that may hold garbage.<br>
+ *
+ * Sync is acquired on a sync byte followed by {@link SyncScannerBuilder#setConfirmations(int) confirmations} more sync
+ * bytes at the packet size of one of the allowed {@link PacketFormat formats} (all by default), e.g. 5 sync bytes in a
+ * row like TR 101 290, which also detects the format. While locked, callers only check the sync byte of each packet,
+ * and report a bad one with {@link #lost()}.<br>
+ *
+ * Candidate sync bytes are searched 8 bytes at a time with a SWAR test on longs. Lock and loss counts are kept
+ * instead of logging each skip.
+ */
+public class SyncScanner {
+	static final Logger log = LoggerFactory.getLogger("source");
+
+	private static final long MARKERS = 0x4747474747474747L;
+	private static final long LOW_BITS = 0x7f7f7f7f7f7f7f7fL;
+
+	private final PacketFormat[] formats;
+	private final int confirmations;
+	private final int lockLength;
+	private final int maxPrefixSize;
+
+	private boolean locked;
+	private PacketFormat format;
+	private long locks;
+	private long losses;
+	private long skippedBytes;
+
+	private SyncScanner(PacketFormat[] formats, int confirmations) {
+		this.formats = formats;
+		this.confirmations = confirmations;
+		int maxPacketSize = 0;
+		int maxPrefixSize = 0;
+		for (PacketFormat format : formats) {
+			maxPacketSize = Math.max(maxPacketSize, format.getPacketSize());
+			maxPrefixSize = Math.max(maxPrefixSize, format.getPrefixSize());
+		}
+		this.lockLength = maxPrefixSize + confirmations * maxPacketSize + 1;
+		this.maxPrefixSize = maxPrefixSize;
+	}
+
+	public static SyncScannerBuilder builder() {
+		return new SyncScannerBuilder();
+	}
+
+	/**
+	 * Look for the first packet in sync between from and limit, and lock on it.
+	 *
+	 * @param end true if no data follows limit for now: a whole packet is then accepted with the sync bytes that are
+	 * available
+	 * @return the offset of the packet, including the prefix of its {@link #getFormat() format}, or if none is found
+	 * -1 minus the offset from which data must be kept, either because a candidate needs more data to be confirmed,
+	 * or limit
+	 */
+	public int scan(ByteBuffer buffer, int from, int limit, boolean end) {
+		for (int candidate = nextMarker(buffer, from, limit); candidate >= 0; candidate = nextMarker(buffer, candidate + 1, limit)) {
+			boolean pending = false;
+			// Try the format we were locked on first
+			if (format != null) {
+				int status = confirm(buffer, candidate, from, limit, end, format);
+				if (status > 0) {
+					return lock(candidate, from, format);
+				}
+				pending = status == 0;
+			}
+			for (PacketFormat other : formats) {
+				if (other == format) {
+					continue;
+				}
+				int status = confirm(buffer, candidate, from, limit, end, other);
+				if (status > 0) {
+					return lock(candidate, from, other);
+				}
+				pending |= status == 0;
+			}
+			if (pending) {
+				// Keep the bytes that may be the prefix of the candidate
+				int keep = Math.max(from, candidate - maxPrefixSize);
+				skippedBytes += keep - from;
+				return -1 - keep;
+			}
+		}
+		skippedBytes += limit - from;
+		return -1 - limit;
+	}
+
+	/**
+	 * @return 1 if the candidate is confirmed, 0 if more data is needed, -1 if it is not a packet start
+	 */
+	private int confirm(ByteBuffer buffer, int candidate, int from, int limit, boolean end, PacketFormat format) {
+		if (candidate - format.getPrefixSize() < from) {
+			return -1;
+		}
+		int size = format.getPacketSize();
+		for (int i = 1; i <= confirmations; i++) {
+			int offset = candidate + i * size;
+			if (offset >= limit) {
+				// At the end, accept a whole packet, and keep the start of a truncated one for when the data grows
+				return end && candidate - format.getPrefixSize() + size <= limit ? 1 : 0;
+			}
+			if (buffer.get(offset) != Constants.TS_MARKER) {
+				return -1;
+			}
+		}
+		return 1;
+	}
+
+	private int lock(int candidate, int from, PacketFormat format) {
+		int offset = candidate - format.getPrefixSize();
+		skippedBytes += offset - from;
+		locked = true;
+		locks++;
+		if (format != this.format) {
+			log.debug("Locked on {} packets", format);
+		}
+		this.format = format;
+		return offset;
+	}
+
+	/**
+	 * @return true if a whole packet of the locked format starts at the offset, with its sync byte
+	 */
+	public boolean isInSync(ByteBuffer buffer, int offset, int limit) {
+		return limit - offset >= format.getPacketSize() && buffer.get(offset + format.getPrefixSize()) == Constants.TS_MARKER;
+	}
+
+	/**
+	 * Report a packet not starting with a sync byte while locked.
+	 */
+	public void lost() {
+		if (locked) {
+			locked = false;
+			losses++;
+			log.debug("Sync lost");
+		}
+	}
+
+	/**
+	 * Offset of the next sync byte between from and limit, or -1.
+	 */
+	static int nextMarker(ByteBuffer buffer, int from, int limit) {
+		int offset = from;
+		boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+		for (; offset + Long.BYTES <= limit; offset += Long.BYTES) {
+			// Bytes equal to the marker become 0, then only them get their high bit set
+			long word = buffer.getLong(offset) ^ MARKERS;
+			long zeros = ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+			if (zeros != 0) {
+				return offset + ((bigEndian ? Long.numberOfLeadingZeros(zeros) : Long.numberOfTrailingZeros(zeros)) >>> 3);
+			}
+		}
+		for (; offset < limit; offset++) {
+			if (buffer.get(offset) == Constants.TS_MARKER) {
+				return offset;
+			}
+		}
+		return -1;
+	}
+
+	public boolean isLocked() {
+		return locked;
+	}
+
+	/**
+	 * @return the format sync was last acquired on, or null
+	 */
+	public PacketFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return the number of bytes needed from the start of a candidate packet to acquire sync, away from the end of
+	 * the data
+	 */
+	public int getLockLength() {
+		return lockLength;
+	}
+
+	public long getLocks() {
+		return locks;
+	}
+
+	public long getLosses() {
+		return losses;
+	}
+
+	/**
+	 * @return the number of bytes skipped out of sync
+	 */
+	public long getSkippedBytes() {
+		return skippedBytes;
+	}
+
+	public static class SyncScannerBuilder {
+		private PacketFormat[] formats = PacketFormat.values();
+		private int confirmations = 4;
+
+		private SyncScannerBuilder() {
+		}
+
+		/**
+		 * Allowed packet formats, default all of them.
+		 */
+		public SyncScannerBuilder setFormats(PacketFormat... formats) {
+			this.formats = formats.clone();
+			return this;
+		}
+
+		/**
+		 * Number of sync bytes to find after a candidate to acquire sync, default 4.
+		 */
+		public SyncScannerBuilder setConfirmations(int confirmations) {
+			this.confirmations = confirmations;
+			return this;
+		}
+
+		public SyncScanner build() {
+			Preconditions.checkArgument(formats.length > 0, "formats cannot be empty");
+			Preconditions.checkArgument(confirmations > 0, "confirmations must be positive");
+			return new SyncScanner(formats, confirmations);
+		}
+	}
+}
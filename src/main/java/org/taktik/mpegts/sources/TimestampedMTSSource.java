@@ -0,0 +1,19 @@
+package org.taktik.mpegts.sources;
+
+/**
+ * A source of packets stamped with their arrival time, like M2TS files.<br>
+ *
+ * The {@link org.taktik.mpegts.Streamer} paces such sources with the arrival times rather than the PCRs: every
+ * packet is timed, instead of one every 40ms or so.<br>
+ *
+ * Only the source given to the Streamer is asked for arrival times: {@link MappedFileMTSSource} is the one source
+ * providing them. M2TS packets read by the other sources, which read ahead on another thread, or through a source
+ * wrapping another one, are paced on their PCRs.
+ */
+public interface TimestampedMTSSource extends MTSSource {
+	/**
+	 * @return the arrival time of the first packet returned by the last read, in 27MHz units, growing along the
+	 * stream; or -1 if it is unknown
+	 */
+	public long getArrivalTime();
+}
@@ -0,0 +1,102 @@
+package org.taktik.mpegts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.io.ByteSource;
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sources.ByteSourceMTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ByteSourceMTSSourceTest {
+
+	/**
+	 * A reset while the reader is blocked on the stream closes the stream, and reads again from the start.
+	 */
+	@Test
+	public void testResetBlockedReader() throws Exception {
+		// One batch of packets
+		byte[] packets = Arrays.copyOf(TestStreams.sampleBytes(), Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE);
+		byte[] packet = Arrays.copyOf(packets, Constants.MPEGTS_PACKET_SIZE);
+
+		AtomicInteger opened = new AtomicInteger();
+		CountDownLatch blocked = new CountDownLatch(1);
+		ByteSource byteSource = new ByteSource() {
+			@Override
+			public InputStream openStream() {
+				opened.incrementAndGet();
+				return new BlockingStream(packets, blocked);
+			}
+		};
+
+		ByteSourceMTSSource source = ByteSourceMTSSource.builder().setByteSource(byteSource).build();
+		MTSPacketView view = new MTSPacketView();
+		assertTrue(source.nextPacket(view));
+		assertArrayEquals(packet, view.toPacket().getBuffer().array());
+		assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+		CompletableFuture<Void> reset = CompletableFuture.runAsync(() -> {
+			try {
+				source.reset();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		reset.get(10, TimeUnit.SECONDS);
+		assertEquals(2, opened.get());
+		assertTrue(source.nextPacket(view));
+		assertArrayEquals(packet, view.toPacket().getBuffer().array());
+		source.close();
+	}
+
+	/**
+	 * Returns its packets, then blocks until closed.
+	 */
+	private static class BlockingStream extends InputStream {
+		private final byte[] packets;
+		private final CountDownLatch blocked;
+		private final CountDownLatch closed = new CountDownLatch(1);
+		private int position;
+
+		BlockingStream(byte[] packets, CountDownLatch blocked) {
+			this.packets = packets;
+			this.blocked = blocked;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position < packets.length) {
+				int length = Math.min(len, packets.length - position);
+				System.arraycopy(packets, position, b, off, length);
+				position += length;
+				return length;
+			}
+			blocked.countDown();
+			try {
+				closed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			throw new IOException("Stream closed");
+		}
+
+		@Override
+		public void close() {
+			closed.countDown();
+		}
+	}
+}
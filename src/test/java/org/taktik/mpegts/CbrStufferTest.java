@@ -0,0 +1,70 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CbrStufferTest {
+	private static final long INPUT_RATE = 10_000_000;
+	private static final long MUX_RATE = 20_000_000;
+	private static final int PCR_INTERVAL = 10;
+
+	/**
+	 * Stuff a 10Mb/s input to 20Mb/s: half of the output is null packets, and PCRs follow the output positions.
+	 */
+	@Test
+	public void testStuffing() {
+		int packets = 600;
+		ByteBuffer input = ByteBuffer.allocate(packets * Constants.MPEGTS_PACKET_SIZE);
+		long inputTicks = Constants.MPEGTS_PACKET_SIZE * 8 * 27_000_000L / INPUT_RATE;
+		for (int i = 0; i < packets; i++) {
+			int offset = i * Constants.MPEGTS_PACKET_SIZE;
+			input.put(offset, (byte) 0x47).put(offset + 1, (byte) 0x01).put(offset + 3, (byte) 0x30);
+			if (i % PCR_INTERVAL == 0) {
+				input.put(offset + 4, (byte) 7).put(offset + 5, (byte) 0x10);
+				MTSPacketView.setPcr(input, offset + 6, 1_000_000 + i * inputTicks);
+			} else {
+				input.put(offset + 4, (byte) 0).put(offset + 5, (byte) 0);
+			}
+		}
+
+		ByteBuffer output = ByteBuffer.allocate(4 * packets * Constants.MPEGTS_PACKET_SIZE);
+		CbrStuffer stuffer = new CbrStuffer(MUX_RATE, PcrPacer.builder().build());
+		long origin = System.nanoTime() + 1_000_000;
+		for (int group = 0; group < packets; group += PCR_INTERVAL) {
+			long departure = origin + group * inputTicks * 1000 / 27;
+			stuffer.send(input, group * Constants.MPEGTS_PACKET_SIZE, (group + PCR_INTERVAL) * Constants.MPEGTS_PACKET_SIZE,
+					departure, (buffer, start, end) -> output.put(output.position(), buffer, start, end - start)
+							.position(output.position() + end - start));
+		}
+
+		assertEquals(output.position() / Constants.MPEGTS_PACKET_SIZE, stuffer.getPacketCount());
+		assertEquals(packets, stuffer.getPacketCount() - stuffer.getStuffingCount());
+		assertTrue(Math.abs(stuffer.getStuffingRatio() - 0.5) < 0.02, "stuffing " + stuffer.getStuffingRatio());
+		assertEquals(packets / PCR_INTERVAL - 1, stuffer.getPcrCount());
+		assertEquals(0, stuffer.getPcrErrors());
+		assertTrue(stuffer.getMaxPcrErrorNanos() < 100);
+
+		long firstPcr = -1;
+		int firstIndex = 0;
+		int nulls = 0;
+		for (int index = 0; index < output.position() / Constants.MPEGTS_PACKET_SIZE; index++) {
+			int offset = index * Constants.MPEGTS_PACKET_SIZE;
+			if (MTSPacketView.getPid(output, offset) == NullPackets.PID) {
+				nulls++;
+			} else if (MTSPacketView.isPcrFlag(output, offset)) {
+				long pcr = MTSPacketView.getPcr(output, offset + 6);
+				if (firstPcr < 0) {
+					firstPcr = pcr;
+					firstIndex = index;
+				}
+				long expected = (index - firstIndex) * Constants.MPEGTS_PACKET_SIZE * 8 * 27_000_000L / MUX_RATE;
+				assertTrue(Math.abs(pcr - firstPcr - expected) <= 2, "PCR at " + index);
+			}
+		}
+		assertEquals(stuffer.getStuffingCount(), nulls);
+	}
+}
@@ -0,0 +1,186 @@
+package org.taktik.mpegts;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sinks.HLSHttpHandler;
+import org.taktik.mpegts.sinks.HLSSink;
+import org.taktik.mpegts.sinks.PartRing;
+import org.taktik.mpegts.sources.MTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HLSSinkTest {
+
+	/**
+	 * Package the sample file by 2s segments, and check the playlist window and the segments it lists.
+	 */
+	@Test
+	public void testSegments() throws Exception {
+		Path directory = Files.createTempDirectory("hls");
+		try {
+			HLSSink sink = HLSSink.builder()
+					.setDirectory(directory)
+					.setTargetDuration(Duration.ofSeconds(2))
+					.setPlaylistSize(3)
+					.build();
+			MTSSource source = TestStreams.sampleSource();
+			ByteBuffer packets = ByteBuffer.allocate(Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE);
+			while (source.nextPackets(packets.clear()) > 0) {
+				sink.send(packets.flip());
+			}
+			source.close();
+			sink.close();
+
+			List<String> playlist = Files.readAllLines(directory.resolve("stream.m3u8"));
+			assertEquals("#EXTM3U", playlist.get(0));
+			assertEquals("#EXT-X-ENDLIST", playlist.get(playlist.size() - 1));
+			List<String> segments = playlist.stream().filter(line -> line.endsWith(".ts")).toList();
+			assertEquals(3, segments.size());
+			long sequence = Long.parseLong(playlist.stream()
+					.filter(line -> line.startsWith("#EXT-X-MEDIA-SEQUENCE:"))
+					.findFirst().orElseThrow().substring("#EXT-X-MEDIA-SEQUENCE:".length()));
+			assertEquals("stream" + sequence + ".ts", segments.get(0));
+			List<Double> durations = playlist.stream()
+					.filter(line -> line.startsWith("#EXTINF:"))
+					.map(line -> Double.parseDouble(line.substring("#EXTINF:".length(), line.indexOf(','))))
+					.toList();
+			assertTrue(durations.get(0) >= 2.0, "segment shorter than the target: " + durations);
+
+			for (String segment : segments) {
+				ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(directory.resolve(segment)));
+				assertEquals(0, content.limit() % Constants.MPEGTS_PACKET_SIZE);
+				// PAT, PMT, then a random access point
+				MTSPacketView packet = new MTSPacketView(content, 0);
+				assertEquals(0, packet.getPid());
+				packet.wrap(content, Constants.MPEGTS_PACKET_SIZE);
+				assertEquals(4096, packet.getPid());
+				packet.wrap(content, 2 * Constants.MPEGTS_PACKET_SIZE);
+				assertTrue(packet.isRandomAccessIndicator());
+			}
+
+			// Segments are kept for one more playlist after leaving it
+			try (Stream<Path> files = Files.list(directory)) {
+				assertEquals(6, files.filter(file -> file.toString().endsWith(".ts")).count());
+			}
+		} finally {
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+	}
+
+	/**
+	 * Package the sample file with 200ms parts, and check that blocking playlist reloads and preload hint requests are
+	 * answered once the part they wait for is published.
+	 */
+	@Test
+	public void testLowLatency() throws Exception {
+		Path directory = Files.createTempDirectory("hls");
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		try {
+			HLSSink sink = HLSSink.builder()
+					.setDirectory(directory)
+					.setTargetDuration(Duration.ofSeconds(2))
+					.setPartTarget(Duration.ofMillis(200))
+					.build();
+			PartRing ring = sink.getPartRing();
+			server.createContext("/live/", new HLSHttpHandler(sink));
+			server.start();
+			String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/live/";
+			HttpClient client = HttpClient.newHttpClient();
+
+			// Bad numbers, and a part without its media sequence number, are answered with 400
+			for (String bad : new String[] {"stream.m3u8?_HLS_msn=abc", "stream.m3u8?_HLS_msn=-1",
+					"stream.m3u8?_HLS_msn=1&_HLS_part=99999999999", "stream.m3u8?_HLS_part=2",
+					"stream99999999999999999999.ts", "stream1.99999999999.ts"}) {
+				HttpResponse<Void> response = client.send(HttpRequest.newBuilder(URI.create(base + bad)).build(),
+						HttpResponse.BodyHandlers.discarding());
+				assertEquals(400, response.statusCode(), bad);
+			}
+
+			CompletableFuture<HttpResponse<String>> reload = client.sendAsync(
+					HttpRequest.newBuilder(URI.create(base + "stream.m3u8?_HLS_msn=1&_HLS_part=2")).build(),
+					HttpResponse.BodyHandlers.ofString());
+			Thread.sleep(200);
+			assertFalse(reload.isDone());
+
+			MTSSource source = TestStreams.sampleSource();
+			ByteBuffer packets = ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
+			while (!published(ring, "stream1.2.ts") && source.nextPackets(packets.clear()) > 0) {
+				sink.send(packets.flip());
+			}
+			String playlist = reload.get(5, TimeUnit.SECONDS).body();
+			assertTrue(playlist.contains("#EXT-X-PART-INF:PART-TARGET=0.200"), playlist);
+			assertTrue(playlist.contains("URI=\"stream1.2.ts\""), playlist);
+			assertFalse(playlist.contains("#EXT-X-ENDLIST"), playlist);
+			Matcher durations = Pattern.compile("#EXT-X-PART:DURATION=([0-9.]+)").matcher(playlist);
+			while (durations.find()) {
+				assertTrue(Double.parseDouble(durations.group(1)) <= 0.2, playlist);
+			}
+
+			// The first part of a segment starts with PAT, PMT and a random access point
+			HttpResponse<byte[]> part = client.send(HttpRequest.newBuilder(URI.create(base + "stream1.0.ts")).build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(200, part.statusCode());
+			ByteBuffer content = ByteBuffer.wrap(part.body());
+			assertEquals(0, content.limit() % Constants.MPEGTS_PACKET_SIZE);
+			assertEquals(0, new MTSPacketView(content, 0).getPid());
+			assertTrue(new MTSPacketView(content, 2 * Constants.MPEGTS_PACKET_SIZE).isRandomAccessIndicator());
+
+			Matcher hint = Pattern.compile("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"([^\"]+)\"").matcher(playlist);
+			assertTrue(hint.find(), playlist);
+			CompletableFuture<HttpResponse<byte[]>> preload = client.sendAsync(
+					HttpRequest.newBuilder(URI.create(base + hint.group(1))).build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			Thread.sleep(200);
+			assertFalse(preload.isDone());
+			while (!published(ring, hint.group(1)) && source.nextPackets(packets.clear()) > 0) {
+				sink.send(packets.flip());
+			}
+			assertEquals(200, preload.get(5, TimeUnit.SECONDS).statusCode());
+			assertTrue(preload.get().body().length > 0);
+
+			// Complete segments are served too
+			HttpResponse<byte[]> segment = client.send(HttpRequest.newBuilder(URI.create(base + "stream0.ts")).build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(200, segment.statusCode());
+			assertTrue(segment.body().length > content.limit());
+
+			source.close();
+			sink.close();
+			String last = new String(ring.getPlaylist(), StandardCharsets.UTF_8);
+			assertTrue(last.endsWith("#EXT-X-ENDLIST\n"), last);
+		} finally {
+			server.stop(0);
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+	}
+
+	private static boolean published(PartRing ring, String uri) {
+		byte[] playlist = ring.getPlaylist();
+		return playlist != null && new String(playlist, StandardCharsets.UTF_8).lines()
+				.anyMatch(line -> line.startsWith("#EXT-X-PART:") && line.contains("URI=\"" + uri + "\""));
+	}
+}
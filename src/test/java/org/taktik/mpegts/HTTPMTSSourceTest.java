@@ -0,0 +1,158 @@
+package org.taktik.mpegts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sources.HTTPMTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HTTPMTSSourceTest {
+
+	private static final int CHUNK_SIZE = 500 * Constants.MPEGTS_PACKET_SIZE;
+
+	private byte[] content;
+	private HttpServer server;
+	private ExecutorService executor;
+	private final AtomicInteger heads = new AtomicInteger();
+	private final List<String> ranges = new CopyOnWriteArrayList<>();
+	// Starts of the ranges whose first response is cut in the middle
+	private final Set<Long> failing = ConcurrentHashMap.newKeySet();
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		content = TestStreams.sampleBytes();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/file.ts", this::handle);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Read the file by chunks with several requests in flight, then again after a reset.
+	 */
+	@Test
+	public void testPrefetch() throws Exception {
+		HTTPMTSSource source = source();
+		assertEquals(content.length, source.getContentLength());
+		assertArrayEquals(expected(), readAll(source));
+		source.reset();
+		assertArrayEquals(expected(), readAll(source));
+		source.close();
+		int chunks = (content.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		assertEquals(1, heads.get());
+		assertEquals(2 * chunks, ranges.size());
+	}
+
+	/**
+	 * Cut the first response of every third chunk: the source requests the rest of the chunk only.
+	 */
+	@Test
+	public void testResume() throws Exception {
+		for (long start = 0; start < content.length; start += 3L * CHUNK_SIZE) {
+			failing.add(start);
+		}
+		HTTPMTSSource source = source();
+		assertArrayEquals(expected(), readAll(source));
+		source.close();
+		assertTrue(failing.isEmpty());
+		assertTrue(ranges.stream()
+				.map(range -> Long.parseLong(range.substring("bytes=".length(), range.indexOf('-'))))
+				.anyMatch(start -> start % CHUNK_SIZE != 0), "no resumed range in " + ranges);
+	}
+
+	/**
+	 * A resource of 204 bytes packets is read through sync detection, and both its chunks and packets are cut anywhere.
+	 */
+	@Test
+	public void testPacketFormat() throws Exception {
+		byte[] packets = expected();
+		ByteBuffer framed = ByteBuffer.allocate(packets.length / Constants.MPEGTS_PACKET_SIZE * PacketFormat.RS.getPacketSize());
+		for (int offset = 0; offset < packets.length; offset += Constants.MPEGTS_PACKET_SIZE) {
+			framed.put(packets, offset, Constants.MPEGTS_PACKET_SIZE);
+			framed.position(framed.position() + PacketFormat.RS.getPacketSize() - Constants.MPEGTS_PACKET_SIZE);
+		}
+		content = framed.array();
+		HTTPMTSSource source = source();
+		assertArrayEquals(packets, readAll(source));
+		source.reset();
+		assertArrayEquals(packets, readAll(source));
+		source.close();
+	}
+
+	private HTTPMTSSource source() throws IOException {
+		return HTTPMTSSource.builder()
+				.setURI("http://127.0.0.1:" + server.getAddress().getPort() + "/file.ts")
+				.setChunkSize(CHUNK_SIZE)
+				.setPrefetch(3)
+				.build();
+	}
+
+	private byte[] expected() {
+		int length = content.length - content.length % Constants.MPEGTS_PACKET_SIZE;
+		return Arrays.copyOf(content, length);
+	}
+
+	private static byte[] readAll(HTTPMTSSource source) throws Exception {
+		ByteBuffer packets = ByteBuffer.allocate(4 << 20);
+		while (source.nextPackets(packets) > 0) {
+		}
+		packets.flip();
+		byte[] bytes = new byte[packets.remaining()];
+		packets.get(bytes);
+		return bytes;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			heads.incrementAndGet();
+			exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+			return;
+		}
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		ranges.add(range);
+		int dash = range.indexOf('-');
+		int start = Integer.parseInt(range.substring("bytes=".length(), dash));
+		int end = dash == range.length() - 1 ? content.length - 1 : Integer.parseInt(range.substring(dash + 1));
+		int length = end - start + 1;
+		exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+		exchange.sendResponseHeaders(206, length);
+		OutputStream body = exchange.getResponseBody();
+		if (failing.remove((long) start)) {
+			body.write(content, start, length / 2);
+			body.flush();
+			// Closes the connection, as the body is incomplete
+			exchange.close();
+			return;
+		}
+		body.write(content, start, length);
+		exchange.close();
+	}
+}
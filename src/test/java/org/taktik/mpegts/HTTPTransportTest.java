@@ -0,0 +1,106 @@
+package org.taktik.mpegts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sinks.HTTPTransport;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HTTPTransportTest {
+
+	private static final int CHUNK_SIZE = 20 * Constants.MPEGTS_PACKET_SIZE;
+	private static final int BUFFER_SIZE = 100 * Constants.MPEGTS_PACKET_SIZE;
+	// Bytes of the first request read before its connection is killed
+	private static final int CUT = 2000 * Constants.MPEGTS_PACKET_SIZE;
+
+	private byte[] content;
+	private HttpServer server;
+	private ExecutorService executor;
+	// Bodies received, one per request
+	private final List<byte[]> bodies = new CopyOnWriteArrayList<>();
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		content = TestStreams.sampleBytes();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/ingest.ts", this::handle);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Kill the first upload partway: the sink reconnects, and the second upload starts at a random access packet,
+	 * then holds the rest of the stream without a gap.
+	 */
+	@Test
+	public void testReconnect() throws Exception {
+		HTTPTransport transport = HTTPTransport.builder()
+				.setURI("http://127.0.0.1:" + server.getAddress().getPort() + "/ingest.ts")
+				.setBufferSize(BUFFER_SIZE)
+				.setChunkSize(CHUNK_SIZE)
+				.setReconnectDelay(Duration.ofMillis(50))
+				.build();
+		// Paced, so that the stream goes on once reconnected
+		ByteBuffer packets = ByteBuffer.wrap(content);
+		while (packets.hasRemaining()) {
+			Thread.sleep(1);
+			int length = Math.min(packets.remaining(), Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE);
+			transport.send(packets.slice(packets.position(), length));
+			packets.position(packets.position() + length);
+		}
+		transport.close();
+
+		assertEquals(2, bodies.size());
+		assertEquals(1, transport.getReconnects());
+		assertTrue(transport.getDroppedPackets() > 0);
+
+		// The first upload is the start of the stream
+		byte[] first = bodies.get(0);
+		assertEquals(CUT, first.length);
+		assertArrayEquals(Arrays.copyOf(content, CUT), first);
+
+		// The second one resumes after the cut, at a random access packet
+		byte[] second = bodies.get(1);
+		assertEquals(0, second.length % Constants.MPEGTS_PACKET_SIZE);
+		int resume = content.length - second.length;
+		assertTrue(resume > CUT, "resumed at " + resume);
+		assertTrue((MTSPacketView.getAdaptationFieldFlags(ByteBuffer.wrap(second), 0) & 0x40) != 0);
+		assertArrayEquals(Arrays.copyOfRange(content, resume, content.length), second);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		InputStream body = exchange.getRequestBody();
+		if (bodies.isEmpty()) {
+			// Read part of the body, then close the connection without a response
+			bodies.add(body.readNBytes(CUT));
+			exchange.close();
+			return;
+		}
+		bodies.add(body.readAllBytes());
+		exchange.sendResponseHeaders(200, -1);
+		exchange.close();
+	}
+}
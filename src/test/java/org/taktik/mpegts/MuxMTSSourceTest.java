@@ -0,0 +1,119 @@
+package org.taktik.mpegts;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sources.MTSSource;
+import org.taktik.mpegts.sources.MTSSources;
+import org.taktik.mpegts.sources.MuxMTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MuxMTSSourceTest {
+	private static final long MUX_RATE = 10_000_000;
+
+	/**
+	 * Mux the sample file with itself: the second copy is moved to another program and other PIDs.
+	 */
+	@Test
+	public void testMux() throws Exception {
+		Output output = mux(0);
+
+		Map<Integer, Integer> programs = output.pats.get(output.pats.size() - 1).getPrograms();
+		assertEquals(2, programs.size());
+		assertEquals(2, output.pmts.size());
+		PMTSection first = output.pmts.get(programs.get(1));
+		PMTSection second = output.pmts.get(programs.get(2));
+		assertEquals(1, first.getSpecificId());
+		assertEquals(2, second.getSpecificId());
+		assertEquals(256, first.getPcrPid());
+		int video = second.getPcrPid();
+		assertNotEquals(256, video);
+		assertEquals(video, second.getStreams().get(0).getPid());
+
+		int[] input = count(TestStreams.sampleFile());
+		assertEquals(input[256], output.counts[256]);
+		assertEquals(input[256], output.counts[video]);
+		assertEquals(input[257], output.counts[second.getStreams().get(1).getPid()]);
+		assertEquals(0, output.counts[17]);
+		assertEquals(0, output.counts[0x1fff]);
+		assertEquals(0, output.sections.getCrcErrors());
+	}
+
+	/**
+	 * With a mux rate, PCRs follow the position of their packet in the output.
+	 */
+	@Test
+	public void testMuxRate() throws Exception {
+		Output output = mux(MUX_RATE);
+
+		assertTrue(output.counts[0x1fff] > 0);
+		assertEquals(2, output.pmts.size());
+		for (int pid : new int[] {256, output.pmts.get(output.pats.get(output.pats.size() - 1).getPrograms().get(2)).getPcrPid()}) {
+			List<long[]> pcrs = output.pcrs.get(pid);
+			assertTrue(pcrs.size() > 10);
+			for (int i = 1; i < pcrs.size(); i++) {
+				long packets = pcrs.get(i)[0] - pcrs.get(0)[0];
+				long expected = packets * Constants.MPEGTS_PACKET_SIZE * 8 * 27_000_000L / MUX_RATE;
+				assertTrue(Math.abs(pcrs.get(i)[1] - pcrs.get(0)[1] - expected) <= 1);
+			}
+		}
+	}
+
+	private int[] count(File file) throws Exception {
+		int[] counts = new int[8192];
+		MTSSource source = MTSSources.from(file);
+		MTSPacketView packet = new MTSPacketView();
+		while (source.nextPacket(packet)) {
+			counts[packet.getPid()]++;
+		}
+		source.close();
+		return counts;
+	}
+
+	private Output mux(long muxRate) throws Exception {
+		MTSSource source = MuxMTSSource.builder()
+				.addSource(TestStreams.sampleSource())
+				.addSource(TestStreams.sampleSource())
+				.setMuxRate(muxRate)
+				.build();
+		Output output = new Output();
+		MTSPacketView packet = new MTSPacketView();
+		long index = 0;
+		while (source.nextPacket(packet)) {
+			int pid = packet.getPid();
+			output.counts[pid]++;
+			if (pid == 0 || output.pats.stream().anyMatch(pat -> pat.getPrograms().containsValue(pid))) {
+				output.sections.push(packet);
+			}
+			if (packet.isPcrFlag()) {
+				output.pcrs.computeIfAbsent(pid, p -> Lists.newArrayList()).add(new long[] {index, packet.getPcr()});
+			}
+			index++;
+		}
+		source.close();
+		return output;
+	}
+
+	private static class Output {
+		final int[] counts = new int[8192];
+		final List<PATSection> pats = Lists.newArrayList();
+		// Last PMT by PID
+		final Map<Integer, PMTSection> pmts = new HashMap<>();
+		// Packet index and PCR, by PID
+		final Map<Integer, List<long[]>> pcrs = new HashMap<>();
+		final SectionAssembler sections = new SectionAssembler((pid, section) -> {
+			if (pid == 0) {
+				pats.add(PATSection.parse(section.duplicate()));
+			} else {
+				pmts.put(pid, PMTSection.parse(section.duplicate()));
+			}
+		});
+	}
+}
@@ -0,0 +1,104 @@
+package org.taktik.mpegts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sinks.MTSSink;
+import org.taktik.mpegts.sinks.NullStrippingTransportFilter;
+import org.taktik.mpegts.sources.MTSSource;
+import org.taktik.mpegts.sources.MTSSources;
+import org.taktik.mpegts.sources.MuxMTSSource;
+import org.taktik.mpegts.sources.NullRestoringMTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NullStrippingTest {
+
+	/**
+	 * Strip the null packets of a constant bitrate stream, and restore them.
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] original = read(MuxMTSSource.builder()
+				.addSource(TestStreams.sampleSource())
+				.setMuxRate(4_000_000)
+				.build(), false);
+
+		ByteArrayOutputStream stripped = new ByteArrayOutputStream();
+		NullStrippingTransportFilter filter = NullStrippingTransportFilter.wrap(collector(stripped));
+		ByteBuffer input = ByteBuffer.wrap(original);
+		MTSPacketView view = new MTSPacketView();
+		int block = 0;
+		while (input.hasRemaining()) {
+			// Alternate blocks and single packets
+			if (block++ % 3 == 0) {
+				filter.send(view.wrap(input, input.position()));
+				input.position(input.position() + Constants.MPEGTS_PACKET_SIZE);
+			} else {
+				int length = Math.min(input.remaining(), Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE);
+				filter.send(input.slice(input.position(), length));
+				input.position(input.position() + length);
+			}
+		}
+		filter.close();
+
+		assertEquals(original.length, filter.getInputBytes());
+		assertEquals(stripped.size(), filter.getOutputBytes());
+		assertTrue(filter.getSavingRatio() > 0.3, "saving " + filter.getSavingRatio());
+
+		NullRestoringMTSSource restoring = NullRestoringMTSSource.builder()
+				.setSource(MTSSources.from(new ByteArrayInputStream(stripped.toByteArray())))
+				.build();
+		assertArrayEquals(original, read(restoring, true));
+		assertTrue(restoring.getRestoredCount() > 0);
+		assertArrayEquals(original, read(MTSSources.restoreNulls(MTSSources.from(new ByteArrayInputStream(stripped.toByteArray()))), false));
+	}
+
+	private static byte[] read(MTSSource source, boolean bulk) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (bulk) {
+			ByteBuffer packets = ByteBuffer.allocate(10 * Constants.MPEGTS_PACKET_SIZE);
+			while (source.nextPackets(packets.clear()) > 0) {
+				out.write(packets.array(), 0, packets.position());
+			}
+		} else {
+			MTSPacketView packet = new MTSPacketView();
+			ByteBuffer copy = ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
+			while (source.nextPacket(packet)) {
+				packet.copyTo(copy.clear());
+				out.write(copy.array());
+			}
+		}
+		source.close();
+		return out.toByteArray();
+	}
+
+	private static MTSSink collector(ByteArrayOutputStream out) {
+		return new MTSSink() {
+			@Override
+			public void send(MTSPacket packet) throws Exception {
+				send(new MTSPacketView().wrap(packet));
+			}
+
+			@Override
+			public void send(MTSPacketView packet) {
+				send(packet.asByteBuffer());
+			}
+
+			@Override
+			public void send(ByteBuffer packets) {
+				while (packets.hasRemaining()) {
+					out.write(packets.get());
+				}
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+}
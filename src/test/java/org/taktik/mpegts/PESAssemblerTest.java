@@ -0,0 +1,97 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sources.MTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PESAssemblerTest {
+	private static final int VIDEO_PID = 256;
+	private static final int AUDIO_PID = 257;
+
+	/**
+	 * Reassemble the unbounded video PES and the bounded audio PES of the sample file.
+	 */
+	@Test
+	public void testReassembly() throws Exception {
+		List<Long> audioPts = Lists.newArrayList();
+		int[] starts = new int[8192];
+		int[] ends = new int[8192];
+		PESAssembler assembler = new PESAssembler(new PESAssembler.PESListener() {
+			@Override
+			public void onPesStart(int pid, PESHeaderView header, MTSPacketView packet) {
+				starts[pid]++;
+				assertTrue(header.hasPts());
+			}
+
+			@Override
+			public void onPes(int pid, PESHeaderView header, ByteBuffer pes) {
+				ends[pid]++;
+				if (pid == VIDEO_PID) {
+					assertEquals(0xe0, header.getStreamId());
+					assertEquals(0, header.getPacketLength());
+				} else {
+					assertEquals(0xc0, header.getStreamId());
+					assertEquals(6 + header.getPacketLength(), pes.remaining());
+					audioPts.add(header.getPts());
+				}
+			}
+		}, true);
+
+		MTSSource source = TestStreams.sampleSource();
+		ByteBuffer block = ByteBuffer.allocate(Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE);
+		MTSPacketView packet = new MTSPacketView();
+		while (source.nextPackets(block.clear()) > 0) {
+			block.flip();
+			for (int offset = 0; offset < block.limit(); offset += Constants.MPEGTS_PACKET_SIZE) {
+				int pid = packet.wrap(block, offset).getPid();
+				if (pid == VIDEO_PID || pid == AUDIO_PID) {
+					assembler.push(packet);
+				}
+			}
+		}
+		source.close();
+		assembler.flush();
+
+		assertTrue(starts[VIDEO_PID] > 0);
+		assertEquals(starts[VIDEO_PID], ends[VIDEO_PID]);
+		assertTrue(starts[AUDIO_PID] > 0);
+		assertEquals(starts[AUDIO_PID], ends[AUDIO_PID]);
+		assertEquals(0, assembler.getDroppedPes());
+		for (int i = 1; i < audioPts.size(); i++) {
+			assertTrue(audioPts.get(i) > audioPts.get(i - 1));
+		}
+	}
+
+	/**
+	 * Rewrite the timestamps of a PES header holding a PTS and a DTS, across the 33 bits wrap.
+	 */
+	@Test
+	public void testTimestamps() {
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[]{
+				0, 0, 1, (byte) 0xe0, 0, 0, (byte) 0x80, (byte) 0xc0, 10,
+				0x31, 0, 1, 0, 1, 0x11, 0, 1, 0, 1});
+		PESHeaderView header = new PESHeaderView().wrap(buffer, 0, buffer.limit());
+		assertTrue(header.isValid());
+		assertEquals(0, header.getPts());
+		assertEquals(0, header.getDts());
+		assertEquals(19, header.getHeaderLength());
+
+		header.setPts(PESHeaderView.TIMESTAMP_WRAP + 3003);
+		header.setDts(-1);
+		assertEquals(3003, header.getPts());
+		assertEquals(PESHeaderView.TIMESTAMP_WRAP - 1, header.getDts());
+		// Prefixes and marker bits are kept
+		assertEquals(0x30, buffer.get(9) & 0xf0);
+		assertEquals(0x10, buffer.get(14) & 0xf0);
+		assertEquals(1, buffer.get(13) & 1);
+
+		assertFalse(header.wrap(buffer, 0, 12).isValid());
+	}
+}
@@ -0,0 +1,88 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sources.MTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PMTSectionTest {
+	private static final int PMT_PID = 4096;
+
+	/**
+	 * Parse the PMT of the sample file: MPEG-2 video and MPEG-1 audio.
+	 */
+	@Test
+	public void testParse() throws Exception {
+		PMTSection pmt = PMTSection.parse(section(pmtPackets().get(0)));
+		assertEquals(256, pmt.getPcrPid());
+		assertEquals(2, pmt.getStreams().size());
+		PMTSection.PMTStream video = pmt.getStream(256);
+		assertEquals(0x02, video.getStreamType());
+		assertTrue(video.isVideo());
+		assertFalse(video.isAudio());
+		PMTSection.PMTStream audio = pmt.getStream(257);
+		assertEquals(0x03, audio.getStreamType());
+		assertTrue(audio.isAudio());
+		assertNull(pmt.getStream(258));
+	}
+
+	/**
+	 * The repeated PMT is served from the cache, a new version is parsed.
+	 */
+	@Test
+	public void testCache() throws Exception {
+		List<ByteBuffer> packets = pmtPackets();
+		assertTrue(packets.size() > 1);
+		PMTCache cache = new PMTCache();
+		PMTSection first = cache.get(PMT_PID, section(packets.get(0)));
+		for (ByteBuffer packet : packets) {
+			assertSame(first, cache.get(PMT_PID, section(packet)));
+		}
+
+		// Bump the version: the CRC is not checked by the cache
+		ByteBuffer section = section(packets.get(0));
+		int versionByte = section.position() + 5;
+		section.put(versionByte, (byte) ((section.get(versionByte) + 2) & 0xff));
+		PMTSection updated = cache.get(PMT_PID, section);
+		assertNotSame(first, updated);
+		assertEquals((first.getVersionNumber() + 1) & 0x1f, updated.getVersionNumber());
+		assertSame(updated, cache.get(PMT_PID));
+	}
+
+	private List<ByteBuffer> pmtPackets() throws Exception {
+		MTSSource source = TestStreams.sampleSource();
+		List<ByteBuffer> packets = Lists.newArrayList();
+		ByteBuffer block = ByteBuffer.allocate(Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE);
+		while (source.nextPackets(block.clear()) > 0) {
+			block.flip();
+			for (int offset = 0; offset < block.limit(); offset += Constants.MPEGTS_PACKET_SIZE) {
+				MTSPacketView packet = new MTSPacketView(block, offset);
+				if (packet.getPid() == PMT_PID && packet.isPayloadUnitStartIndicator()) {
+					byte[] copy = new byte[Constants.MPEGTS_PACKET_SIZE];
+					block.get(offset, copy);
+					packets.add(ByteBuffer.wrap(copy));
+				}
+			}
+		}
+		source.close();
+		return packets;
+	}
+
+	/**
+	 * @return the section of a packet, from its table_id
+	 */
+	private static ByteBuffer section(ByteBuffer packet) {
+		ByteBuffer payload = new MTSPacketView(packet, 0).getPayload();
+		int pointer = payload.get() & 0xff;
+		return payload.position(payload.position() + pointer);
+	}
+}
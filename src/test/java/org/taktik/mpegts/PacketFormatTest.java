@@ -0,0 +1,174 @@
+package org.taktik.mpegts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import com.google.common.io.ByteSource;
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sinks.MTSSink;
+import org.taktik.mpegts.sources.ByteSourceMTSSource;
+import org.taktik.mpegts.sources.InputStreamMTSSource;
+import org.taktik.mpegts.sources.MTSSource;
+import org.taktik.mpegts.sources.MTSSources;
+import org.taktik.mpegts.sources.MappedFileMTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PacketFormatTest {
+
+	private static final int PACKETS = 1000;
+	// Arrival timestamps of the packets span 600ms, where their PCRs span about 1.8s
+	private static final int ARRIVAL_STEP = 600 * 27_000 / PACKETS;
+
+	/**
+	 * 192 and 204 bytes packets after some garbage are detected by every source, which hand out the TS packets only.
+	 */
+	@Test
+	public void testDetection() throws Exception {
+		byte[] packets = packets();
+		for (PacketFormat format : new PacketFormat[] {PacketFormat.M2TS, PacketFormat.RS}) {
+			byte[] framed = frame(packets, format, 100);
+			Path file = Files.createTempFile("format", ".ts");
+			try {
+				Files.write(file, framed);
+				assertArrayEquals(packets, read(MTSSources.from(file.toFile())), format + " mapped");
+				assertArrayEquals(packets, read(MTSSources.from(Files.newByteChannel(file))), format + " channel");
+
+				// Short reads, cutting packets anywhere
+				InputStreamMTSSource stream = InputStreamMTSSource.builder()
+						.setInputStream(new ShortReadStream(framed, 100))
+						.build();
+				assertArrayEquals(packets, read(stream), format + " stream");
+				assertEquals(format, stream.getSyncScanner().getFormat());
+				assertEquals(100, stream.getSyncScanner().getSkippedBytes());
+
+				ByteSourceMTSSource byteSource = ByteSourceMTSSource.builder()
+						.setByteSource(ByteSource.wrap(framed))
+						.build();
+				assertArrayEquals(packets, read(byteSource), format + " byte source");
+				byteSource.reset();
+				assertArrayEquals(packets, read(byteSource), format + " byte source after reset");
+				assertEquals(format, byteSource.getSyncScanner().getFormat());
+			} finally {
+				Files.delete(file);
+			}
+		}
+	}
+
+	/**
+	 * A mapped M2TS file is paced on its arrival timestamps, the same packets read from a stream on their PCRs.
+	 */
+	@Test
+	public void testArrivalPacing() throws Exception {
+		byte[] packets = packets();
+		byte[] framed = frame(packets, PacketFormat.M2TS, 0);
+		Path file = Files.createTempFile("format", ".m2ts");
+		try {
+			Files.write(file, framed);
+			MappedFileMTSSource mapped = MappedFileMTSSource.builder().setFile(file.toFile()).build();
+			long arrivalNanos = stream(mapped);
+			assertTrue(arrivalNanos > 400_000_000L && arrivalNanos < 1_000_000_000L, "arrival paced in " + arrivalNanos + "ns");
+
+			long pcrNanos = stream(MTSSources.from(new ByteArrayInputStream(framed)));
+			assertTrue(pcrNanos > 1_400_000_000L, "PCR paced in " + pcrNanos + "ns");
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private byte[] packets() throws Exception {
+		return Arrays.copyOf(TestStreams.sampleBytes(), PACKETS * Constants.MPEGTS_PACKET_SIZE);
+	}
+
+	/**
+	 * Frame TS packets in the given format, after some garbage: M2TS packets get growing arrival timestamps, and RS
+	 * packets parity bytes holding sync bytes.
+	 */
+	private static byte[] frame(byte[] packets, PacketFormat format, int garbage) {
+		ByteBuffer framed = ByteBuffer.allocate(garbage + packets.length / Constants.MPEGTS_PACKET_SIZE * format.getPacketSize());
+		framed.position(garbage);
+		for (int i = 0; i < packets.length / Constants.MPEGTS_PACKET_SIZE; i++) {
+			if (format == PacketFormat.M2TS) {
+				framed.putInt(i * ARRIVAL_STEP);
+			}
+			framed.put(packets, i * Constants.MPEGTS_PACKET_SIZE, Constants.MPEGTS_PACKET_SIZE);
+			if (format == PacketFormat.RS) {
+				for (int j = Constants.MPEGTS_PACKET_SIZE; j < format.getPacketSize(); j++) {
+					framed.put(Constants.TS_MARKER);
+				}
+			}
+		}
+		return framed.array();
+	}
+
+	private static byte[] read(MTSSource source) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer packets = ByteBuffer.allocate(10 * Constants.MPEGTS_PACKET_SIZE);
+		while (source.nextPackets(packets.clear()) > 0) {
+			out.write(packets.array(), 0, packets.position());
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the time taken to stream the source
+	 */
+	private static long stream(MTSSource source) throws Exception {
+		long[] received = {0};
+		MTSSink sink = new MTSSink() {
+			@Override
+			public void send(MTSPacket packet) {
+				received[0]++;
+			}
+
+			@Override
+			public void send(MTSPacketView packet) {
+				received[0]++;
+			}
+
+			@Override
+			public void send(ByteBuffer packets) {
+				received[0] += packets.remaining() / Constants.MPEGTS_PACKET_SIZE;
+				packets.position(packets.limit());
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		Streamer streamer = Streamer.builder()
+				.setSource(source)
+				.setSink(sink)
+				.build();
+		long start = System.nanoTime();
+		streamer.stream();
+		streamer.join();
+		long elapsed = System.nanoTime() - start;
+		source.close();
+		assertEquals(PACKETS, received[0]);
+		return elapsed;
+	}
+
+	/**
+	 * Returns at most a few bytes per read.
+	 */
+	private static class ShortReadStream extends ByteArrayInputStream {
+		private final int maxRead;
+
+		ShortReadStream(byte[] bytes, int maxRead) {
+			super(bytes);
+			this.maxRead = maxRead;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, maxRead));
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class PacketRingTest {
+
+	private static final int SLOTS = 4;
+	private static final int ROUNDS = 5_000;
+
+	/**
+	 * Slots published right before finish() by another thread are all taken, whenever the consumer looks at the ring.
+	 */
+	@Test
+	public void testPublishThenFinish() throws Exception {
+		for (WaitStrategy waitStrategy : new WaitStrategy[] {WaitStrategy.YIELD, WaitStrategy.PARK}) {
+			PacketRing ring = PacketRing.builder()
+					.setSlots(SLOTS)
+					.setPacketsPerSlot(1)
+					.setDirect(false)
+					.setWaitStrategy(waitStrategy)
+					.build();
+			for (int round = 0; round < ROUNDS; round++) {
+				ring.reset();
+				int published = round % (SLOTS + 1);
+				Thread producer = Thread.ofPlatform().start(() -> {
+					for (int i = 0; i < published; i++) {
+						ByteBuffer slot = ring.claim();
+						slot.put(0, (byte) i);
+						slot.position(Constants.MPEGTS_PACKET_SIZE).flip();
+						ring.publish(i);
+					}
+					ring.finish();
+				});
+				int taken = 0;
+				for (ByteBuffer slot = ring.take(); slot != null; slot = ring.take()) {
+					assertEquals(taken, ring.tag(), waitStrategy + ", round " + round);
+					assertEquals(taken, slot.get(0));
+					ring.release();
+					taken++;
+				}
+				producer.join();
+				assertEquals(published, taken, waitStrategy + ", round " + round);
+				assertNull(ring.take());
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package org.taktik.mpegts;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sinks.MTSSink;
+import org.taktik.mpegts.sinks.PidDemuxSink;
+import org.taktik.mpegts.sources.MTSSource;
+import org.taktik.mpegts.sources.MTSSources;
+import org.taktik.mpegts.sources.PidFilterMTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PidDemuxTest {
+
+	/**
+	 * Remap the video PID of the sample file: its PMT is rewritten, and the SDT is dropped.
+	 */
+	@Test
+	public void testRemap() throws Exception {
+		int[] input = count(TestStreams.sampleSource(), new Tables());
+		Tables tables = new Tables();
+		int[] output = count(PidFilterMTSSource.builder()
+				.setSource(TestStreams.sampleSource())
+				.setFilter(PidFilter.builder().remapPid(256, 0x200).build())
+				.build(), tables);
+
+		assertEquals(0, output[256]);
+		assertEquals(input[256], output[0x200]);
+		assertEquals(input[257], output[257]);
+		assertEquals(input[4096], output[4096]);
+		assertEquals(0, output[17]);
+		PMTSection pmt = tables.pmts.get(0);
+		assertEquals(0x200, pmt.getPcrPid());
+		assertEquals(0x200, pmt.getStreams().get(0).getPid());
+		assertEquals(257, pmt.getStreams().get(1).getPid());
+		assertEquals(0, tables.sections.getCrcErrors());
+	}
+
+	/**
+	 * Split a two programs stream into two outputs.
+	 */
+	@Test
+	public void testSplit() throws Exception {
+		ByteBuffer mpts = ByteBuffer.allocate(40 * Constants.MPEGTS_PACKET_SIZE);
+		for (int repeat = 0; repeat < 2; repeat++) {
+			mpts.put(PsiWriter.packetize(0, PsiWriter.pat(1, 0, Map.of(1, 0x100, 2, 0x200))));
+			mpts.put(PsiWriter.packetize(0x100, PsiWriter.pmt(pmt(1, 0x101), identity())));
+			mpts.put(PsiWriter.packetize(0x200, PsiWriter.pmt(pmt(2, 0x201), identity())));
+			for (int i = 0; i < 3; i++) {
+				mpts.put(packet(0x101, i));
+				mpts.put(packet(0x201, i));
+				mpts.put(packet(0x201, i + 3));
+			}
+		}
+
+		Tables first = new Tables();
+		Tables second = new Tables();
+		int[] firstCounts = new int[8192];
+		int[] secondCounts = new int[8192];
+		PidDemuxSink sink = PidDemuxSink.builder()
+				.addPrograms(Map.of(1, counter(firstCounts, first), 2, counter(secondCounts, second)))
+				.build();
+		sink.send(mpts.flip());
+		sink.close();
+
+		assertEquals(1, first.pats.size());
+		assertEquals(Map.of(1, 0x100), first.pats.get(first.pats.size() - 1).getPrograms());
+		assertEquals(Map.of(2, 0x200), second.pats.get(second.pats.size() - 1).getPrograms());
+		assertEquals(0x101, first.pmts.get(0).getStreams().get(0).getPid());
+		assertEquals(6, firstCounts[0x101]);
+		assertEquals(0, firstCounts[0x201]);
+		assertEquals(0, firstCounts[0x200]);
+		assertEquals(12, secondCounts[0x201]);
+		assertEquals(0, secondCounts[0x101]);
+		assertTrue(secondCounts[0] > 0);
+	}
+
+	/**
+	 * Two programs share one PMT PID: both PMTs are kept and sent when both programs are selected, only the selected
+	 * one otherwise.
+	 */
+	@Test
+	public void testSharedPmtPid() throws Exception {
+		ByteBuffer mpts = ByteBuffer.allocate(40 * Constants.MPEGTS_PACKET_SIZE);
+		for (int repeat = 0; repeat < 2; repeat++) {
+			mpts.put(PsiWriter.packetize(0, PsiWriter.pat(1, 0, Map.of(1, 0x100, 2, 0x100))));
+			for (int program = 1; program <= 2; program++) {
+				ByteBuffer pmt = PsiWriter.packetize(0x100, PsiWriter.pmt(pmt(program, program << 8 | 1), identity()));
+				MTSPacketView.setContinuityCounter(pmt, 0, 2 * repeat + program - 1);
+				mpts.put(pmt);
+			}
+			for (int i = 0; i < 3; i++) {
+				mpts.put(packet(0x101, i));
+				mpts.put(packet(0x201, i));
+			}
+		}
+		byte[] input = Arrays.copyOf(mpts.array(), mpts.position());
+
+		Tables both = new Tables();
+		int[] bothCounts = count(PidFilterMTSSource.builder()
+				.setSource(MTSSources.from(new ByteArrayInputStream(input)))
+				.setFilter(PidFilter.builder().addPrograms(1, 2).build())
+				.build(), both);
+		assertEquals(6, bothCounts[0x101]);
+		assertEquals(6, bothCounts[0x201]);
+		assertEquals(Set.of(1, 2), both.pmts.stream().map(PMTSection::getSpecificId).collect(Collectors.toSet()));
+
+		Tables second = new Tables();
+		int[] secondCounts = count(PidFilterMTSSource.builder()
+				.setSource(MTSSources.from(new ByteArrayInputStream(input)))
+				.setFilter(PidFilter.builder().addPrograms(2).build())
+				.build(), second);
+		assertEquals(0, secondCounts[0x101]);
+		assertEquals(6, secondCounts[0x201]);
+		assertEquals(Set.of(2), second.pmts.stream().map(PMTSection::getSpecificId).collect(Collectors.toSet()));
+		assertEquals(0x201, second.pmts.get(0).getStreams().get(0).getPid());
+		assertEquals(0, second.sections.getCrcErrors());
+	}
+
+	private static PMTSection pmt(int program, int pid) {
+		return new PMTSection(new PSISection(0x02, program, 0, 1, 0, 0), pid, List.of(),
+				List.of(new PMTSection.PMTStream(0x1b, pid, List.of())), 0);
+	}
+
+	private static int[] identity() {
+		int[] identity = new int[8192];
+		for (int pid = 0; pid < identity.length; pid++) {
+			identity[pid] = pid;
+		}
+		return identity;
+	}
+
+	private static ByteBuffer packet(int pid, int cc) {
+		ByteBuffer packet = ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
+		packet.put(0, (byte) 0x47).put(1, (byte) (pid >> 8)).put(2, (byte) pid).put(3, (byte) (0x10 | (cc & 0x0f)));
+		return packet;
+	}
+
+	/**
+	 * The PAT and PMTs of an output.
+	 */
+	private static class Tables {
+		final List<PATSection> pats = Lists.newArrayList();
+		final List<PMTSection> pmts = Lists.newArrayList();
+		final SectionAssembler sections = new SectionAssembler((pid, section) -> {
+			if (pid == 0) {
+				pats.add(PATSection.parse(section.duplicate()));
+			} else {
+				pmts.add(PMTSection.parse(section.duplicate()));
+			}
+		});
+
+		void push(MTSPacketView packet) {
+			int pid = packet.getPid();
+			if (pid == 0 || pats.stream().anyMatch(pat -> pat.getPrograms().containsValue(pid))) {
+				sections.push(packet);
+			}
+		}
+	}
+
+	private static int[] count(MTSSource source, Tables tables) throws Exception {
+		int[] counts = new int[8192];
+		MTSPacketView packet = new MTSPacketView();
+		while (source.nextPacket(packet)) {
+			counts[packet.getPid()]++;
+			tables.push(packet);
+		}
+		source.close();
+		return counts;
+	}
+
+	private static MTSSink counter(int[] counts, Tables tables) {
+		return new MTSSink() {
+			@Override
+			public void send(MTSPacket packet) throws Exception {
+				send(new MTSPacketView().wrap(packet));
+			}
+
+			@Override
+			public void send(MTSPacketView packet) {
+				assertNotNull(packet);
+				counts[packet.getPid()]++;
+				tables.push(packet);
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+}
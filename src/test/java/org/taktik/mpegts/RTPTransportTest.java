@@ -0,0 +1,173 @@
+package org.taktik.mpegts;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sinks.RTPTransport;
+import org.taktik.mpegts.sources.MTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RTPTransportTest {
+
+	private static final int COLUMNS = 5;
+	private static final int ROWS = 4;
+	private static final long STALL_MILLIS = 2000;
+	// 10ms at 90kHz
+	private static final int MAX_TIMESTAMP_STEP = 900;
+
+	/**
+	 * Send one FEC matrix to a loopback receiver, then rebuild a lost media packet from its row FEC packet and
+	 * another one from its column FEC packet.
+	 */
+	@Test
+	public void testFecRecovery() throws Exception {
+		ByteBuffer packets = TestStreams.samplePackets(COLUMNS * ROWS * Constants.PACKETS_PER_BLOCK);
+
+		try (DatagramChannel media = receiver(); DatagramChannel columns = receiver(); DatagramChannel rows = receiver()) {
+			media.bind(new InetSocketAddress("127.0.0.1", 0));
+			int port = ((InetSocketAddress) media.getLocalAddress()).getPort();
+			columns.bind(new InetSocketAddress("127.0.0.1", port + 2));
+			rows.bind(new InetSocketAddress("127.0.0.1", port + 4));
+
+			try (RTPTransport transport = RTPTransport.builder()
+					.setAddress("127.0.0.1")
+					.setPort(port)
+					.setFec(COLUMNS, ROWS)
+					.build()) {
+				transport.send(packets);
+			}
+
+			List<byte[]> mediaPackets = receive(media, COLUMNS * ROWS);
+			List<byte[]> columnPackets = receive(columns, COLUMNS);
+			List<byte[]> rowPackets = receive(rows, ROWS);
+
+			ByteBuffer first = ByteBuffer.wrap(mediaPackets.get(0));
+			assertEquals(0x80, first.get(0) & 0xc0);
+			assertEquals(RTPTransport.MP2T_PAYLOAD_TYPE, first.get(1) & 0x7f);
+			int firstSequence = first.getShort(2) & 0xffff;
+			for (int i = 0; i < mediaPackets.size(); i++) {
+				assertEquals((firstSequence + i) & 0xffff, ByteBuffer.wrap(mediaPackets.get(i)).getShort(2) & 0xffff);
+			}
+
+			// Lose packet 7, in row 1
+			byte[] rowFec = rowPackets.get(1);
+			assertEquals((firstSequence + COLUMNS) & 0xffff, ByteBuffer.wrap(rowFec).getShort(RTPTransport.RTP_HEADER_SIZE) & 0xffff);
+			byte[] recovered = recover(rowFec, mediaPackets, 1 * COLUMNS, 1, COLUMNS, 7);
+			assertArrayEquals(payload(mediaPackets.get(7)), recovered);
+
+			// Lose packet 13, in column 3
+			byte[] columnFec = null;
+			for (byte[] fec : columnPackets) {
+				if ((ByteBuffer.wrap(fec).getShort(RTPTransport.RTP_HEADER_SIZE) & 0xffff) == ((firstSequence + 3) & 0xffff)) {
+					columnFec = fec;
+				}
+			}
+			assertNotNull(columnFec);
+			recovered = recover(columnFec, mediaPackets, 3, COLUMNS, ROWS, 13);
+			assertArrayEquals(payload(mediaPackets.get(13)), recovered);
+		}
+	}
+
+	/**
+	 * The packets left over when the source stalls are sent at once, with the timestamp of their departure rather
+	 * than the one of the end of the stall.
+	 */
+	@Test
+	public void testStalledSource() throws Exception {
+		ByteBuffer packets = TestStreams.samplePackets(10);
+		byte[] expected = Arrays.copyOf(packets.array(), packets.limit());
+		MTSSource source = TestStreams.stalledSource(packets, STALL_MILLIS);
+
+		try (DatagramChannel media = receiver()) {
+			media.bind(new InetSocketAddress("127.0.0.1", 0));
+			int port = ((InetSocketAddress) media.getLocalAddress()).getPort();
+
+			try (RTPTransport transport = RTPTransport.builder()
+					.setAddress("127.0.0.1")
+					.setPort(port)
+					.build()) {
+				Streamer streamer = Streamer.builder()
+						.setSource(source)
+						.setSink(transport)
+						.setBufferSize(2 * Constants.PACKETS_PER_BLOCK)
+						.build();
+				streamer.stream();
+				List<byte[]> mediaPackets = receive(media, 2);
+				long received = System.nanoTime();
+				streamer.join();
+				assertTrue(System.nanoTime() - received > TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS / 2),
+						"received during the stall");
+
+				int step = ByteBuffer.wrap(mediaPackets.get(1)).getInt(4) - ByteBuffer.wrap(mediaPackets.get(0)).getInt(4);
+				assertTrue(step >= 0 && step < MAX_TIMESTAMP_STEP, "timestamp step " + step);
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				for (byte[] mediaPacket : mediaPackets) {
+					content.write(payload(mediaPacket));
+				}
+				assertArrayEquals(expected, content.toByteArray());
+			}
+		}
+	}
+
+	private static DatagramChannel receiver() throws Exception {
+		return DatagramChannel.open(StandardProtocolFamily.INET);
+	}
+
+	private static List<byte[]> receive(DatagramChannel channel, int count) throws Exception {
+		List<byte[]> packets = new ArrayList<>();
+		ByteBuffer buffer = ByteBuffer.allocate(2048);
+		while (packets.size() < count) {
+			buffer.clear();
+			channel.receive(buffer);
+			buffer.flip();
+			byte[] packet = new byte[buffer.remaining()];
+			buffer.get(packet);
+			packets.add(packet);
+		}
+		return packets;
+	}
+
+	private static byte[] payload(byte[] rtpPacket) {
+		byte[] payload = new byte[rtpPacket.length - RTPTransport.RTP_HEADER_SIZE];
+		System.arraycopy(rtpPacket, RTPTransport.RTP_HEADER_SIZE, payload, 0, payload.length);
+		return payload;
+	}
+
+	/**
+	 * Rebuild the payload of a lost media packet from the FEC packet and the other media packets it protects.
+	 */
+	private static byte[] recover(byte[] fecPacket, List<byte[]> mediaPackets, int first, int offset, int count, int lost) {
+		ByteBuffer fec = ByteBuffer.wrap(fecPacket);
+		int length = fec.getShort(RTPTransport.RTP_HEADER_SIZE + 2) & 0xffff;
+		byte[] payload = new byte[fecPacket.length - RTPTransport.RTP_HEADER_SIZE - RTPTransport.FEC_HEADER_SIZE];
+		System.arraycopy(fecPacket, RTPTransport.RTP_HEADER_SIZE + RTPTransport.FEC_HEADER_SIZE, payload, 0, payload.length);
+		assertEquals(offset, fecPacket[RTPTransport.RTP_HEADER_SIZE + 13] & 0xff);
+		assertEquals(count, fecPacket[RTPTransport.RTP_HEADER_SIZE + 14] & 0xff);
+		for (int i = 0; i < count; i++) {
+			int index = first + i * offset;
+			if (index == lost) {
+				continue;
+			}
+			byte[] other = payload(mediaPackets.get(index));
+			length ^= other.length;
+			for (int j = 0; j < other.length; j++) {
+				payload[j] ^= other[j];
+			}
+		}
+		byte[] recovered = new byte[length];
+		System.arraycopy(payload, 0, recovered, 0, length);
+		return recovered;
+	}
+}
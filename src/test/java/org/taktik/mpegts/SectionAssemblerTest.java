@@ -0,0 +1,154 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sources.MTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SectionAssemblerTest {
+	private static final int PID = 0x100;
+
+	@Test
+	public void testCrc() {
+		byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(0x0376E6E7, MpegCrc32.compute(check, 0, check.length));
+	}
+
+	/**
+	 * The PAT repeated all along the sample file is emitted once.
+	 */
+	@Test
+	public void testRepeats() throws Exception {
+		MTSSource source = TestStreams.sampleSource();
+		List<byte[]> sections = Lists.newArrayList();
+		SectionAssembler assembler = new SectionAssembler((pid, section) -> sections.add(toArray(section)));
+		ByteBuffer block = ByteBuffer.allocate(Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE);
+		MTSPacketView packet = new MTSPacketView();
+		int pats = 0;
+		while (source.nextPackets(block.clear()) > 0) {
+			block.flip();
+			for (int offset = 0; offset < block.limit(); offset += Constants.MPEGTS_PACKET_SIZE) {
+				if (packet.wrap(block, offset).getPid() == 0) {
+					assembler.push(packet);
+					pats++;
+				}
+			}
+		}
+		source.close();
+		assertTrue(pats > 1);
+		assertEquals(1, sections.size());
+		assertEquals(0, sections.get(0)[0]);
+		assertEquals(0, assembler.getCrcErrors());
+	}
+
+	/**
+	 * A section spanning three packets, followed by a second one in its last packet, then repeated, corrupted and
+	 * updated.
+	 */
+	@Test
+	public void testMultiPacket() {
+		byte[] first = section(0x02, 1, 400);
+		byte[] second = section(0x02, 2, 20);
+
+		List<byte[]> sections = Lists.newArrayList();
+		SectionAssembler assembler = new SectionAssembler((pid, section) -> {
+			assertEquals(PID, pid);
+			sections.add(toArray(section));
+		});
+		int cc = packetize(assembler, 0, first, second);
+		assertEquals(2, sections.size());
+		assertArrayEquals(first, sections.get(0));
+		assertArrayEquals(second, sections.get(1));
+
+		cc = packetize(assembler, cc, first, second);
+		assertEquals(2, sections.size());
+
+		// A corrupted section is dropped
+		byte[] corrupted = section(0x02, 1, 400);
+		corrupted[corrupted.length - 1] ^= 1;
+		cc = packetize(assembler, cc, corrupted);
+		assertEquals(2, sections.size());
+		assertEquals(1, assembler.getCrcErrors());
+
+		// A new version is emitted
+		byte[] updated = section(0x02, 1, 400);
+		updated[5] = (byte) 0xc3;
+		ByteBuffer.wrap(updated).putInt(updated.length - 4, MpegCrc32.compute(updated, 0, updated.length - 4));
+		packetize(assembler, cc, updated);
+		assertEquals(3, sections.size());
+		assertArrayEquals(updated, sections.get(2));
+	}
+
+	/**
+	 * @return a long section with the given table_id and table_id_extension, of the given size, CRC_32 included
+	 */
+	private static byte[] section(int tableId, int extension, int size) {
+		byte[] section = new byte[size];
+		section[0] = (byte) tableId;
+		section[1] = (byte) (0xb0 | ((size - 3) >> 8));
+		section[2] = (byte) (size - 3);
+		section[3] = (byte) (extension >> 8);
+		section[4] = (byte) extension;
+		section[5] = (byte) 0xc1; // version 0, current
+		for (int i = 8; i < size - 4; i++) {
+			section[i] = (byte) (i * 7);
+		}
+		int crc = MpegCrc32.compute(section, 0, size - 4);
+		ByteBuffer.wrap(section).putInt(size - 4, crc);
+		return section;
+	}
+
+	/**
+	 * Push sections back to back in packets on {@link #PID}, packets where sections start carrying a pointer_field.
+	 *
+	 * @return the next continuity counter
+	 */
+	private static int packetize(SectionAssembler assembler, int cc, byte[]... sections) {
+		ByteBuffer data = ByteBuffer.allocate(Arrays.stream(sections).mapToInt(section -> section.length).sum());
+		List<Integer> starts = Lists.newArrayList();
+		for (byte[] section : sections) {
+			starts.add(data.position());
+			data.put(section);
+		}
+		data.flip();
+		MTSPacketView packet = new MTSPacketView();
+		while (data.hasRemaining()) {
+			ByteBuffer buffer = ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
+			byte[] stuffing = new byte[Constants.MPEGTS_PACKET_SIZE];
+			Arrays.fill(stuffing, (byte) 0xff);
+			buffer.put(stuffing).clear();
+			int from = data.position();
+			// First section starting in this packet, given its pointer_field
+			Integer start = starts.stream()
+					.filter(offset -> offset >= from && offset < from + Constants.MPEGTS_PACKET_SIZE - 5)
+					.findFirst().orElse(null);
+			buffer.put((byte) 0x47);
+			buffer.put((byte) ((start != null ? 0x40 : 0) | (PID >> 8)));
+			buffer.put((byte) PID);
+			buffer.put((byte) (0x10 | cc));
+			if (start != null) {
+				buffer.put((byte) (start - from));
+			}
+			int count = Math.min(buffer.remaining(), data.remaining());
+			buffer.put(buffer.position(), data, data.position(), count);
+			data.position(data.position() + count);
+			assembler.push(packet.wrap(buffer, 0));
+			cc = (cc + 1) & 0x0f;
+		}
+		return cc;
+	}
+
+	private static byte[] toArray(ByteBuffer section) {
+		byte[] array = new byte[section.remaining()];
+		section.get(array);
+		return array;
+	}
+}
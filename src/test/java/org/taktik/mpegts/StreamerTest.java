@@ -46,7 +46,7 @@ public class StreamerTest {
 		ResettableMTSSource ts1 = MTSSources.from(tsFile);
 		ResettableMTSSource ts2 = MTSSources.from(tsFile);
 
-		((SeekableByteChannelMTSSource) ts1).seek(202500000L);
+		((SeekableMTSSource) ts1).seek(202500000L);
 
 		// media132, media133 --> ok
 		// media133, media132 --> ok
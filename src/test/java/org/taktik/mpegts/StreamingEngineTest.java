@@ -0,0 +1,62 @@
+package org.taktik.mpegts;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sinks.MTSSink;
+import org.taktik.mpegts.sources.MTSSources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StreamingEngineTest {
+
+	private static final int PACKETS = 300;
+
+	/**
+	 * A channel buffering a single group still reads ahead, and streams its whole source.
+	 */
+	@Test
+	public void testSmallBuffer() throws Exception {
+		ByteBuffer packets = TestStreams.samplePackets(PACKETS);
+
+		long[] received = {0};
+		MTSSink sink = new MTSSink() {
+			@Override
+			public void send(MTSPacket packet) {
+				received[0]++;
+			}
+
+			@Override
+			public void send(MTSPacketView packet) {
+				received[0]++;
+			}
+
+			@Override
+			public void send(ByteBuffer packets) {
+				received[0] += packets.remaining() / Constants.MPEGTS_PACKET_SIZE;
+				packets.position(packets.limit());
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+
+		StreamingEngine engine = StreamingEngine.builder()
+				.setCarriers(1)
+				.setBufferSize(Constants.PACKETS_PER_BLOCK)
+				.build();
+		engine.start();
+		try {
+			StreamingEngine.Channel channel = engine.addChannel(MTSSources.from(new ByteArrayInputStream(packets.array())), sink);
+			assertTrue(channel.join(10, TimeUnit.SECONDS));
+			assertEquals(PACKETS, channel.getPacketCount());
+			assertEquals(PACKETS, received[0]);
+		} finally {
+			engine.stop();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sources.SyncScanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SyncScannerTest {
+
+	private static final ByteOrder[] ORDERS = {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN};
+
+	/**
+	 * The first packet is found at every offset within a word, scanning from any offset before it, in both byte
+	 * orders, on heap and direct buffers.
+	 */
+	@Test
+	public void testOffsetsInWord() {
+		for (ByteOrder order : ORDERS) {
+			for (boolean direct : new boolean[] {false, true}) {
+				for (int offset = 0; offset < 2 * Long.BYTES; offset++) {
+					ByteBuffer buffer = allocate(direct, order, offset + 5 * Constants.MPEGTS_PACKET_SIZE);
+					putPackets(buffer, offset, 5);
+					for (int from = 0; from <= offset; from++) {
+						SyncScanner scanner = tsScanner();
+						String where = order + (direct ? " direct" : " heap") + ", packet at " + offset + ", from " + from;
+						assertEquals(offset, scanner.scan(buffer, from, buffer.limit(), false), where);
+						assertEquals(offset - from, scanner.getSkippedBytes(), where);
+						assertTrue(scanner.isLocked(), where);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * 0x47 bytes in garbage and in payloads are skipped, even when a few of them are a packet size apart.
+	 */
+	@Test
+	public void testFalseMarkers() {
+		int garbage = 50;
+		for (ByteOrder order : ORDERS) {
+			ByteBuffer buffer = allocate(false, order, garbage + 20 * Constants.MPEGTS_PACKET_SIZE);
+			putPackets(buffer, garbage, 20);
+			for (int i : new int[] {3, 8, 11, 20, 49}) {
+				buffer.put(i, Constants.TS_MARKER);
+			}
+			// Confirmed by 2 of the 4 sync bytes needed
+			buffer.put(5, Constants.TS_MARKER);
+			buffer.put(5 + Constants.MPEGTS_PACKET_SIZE, Constants.TS_MARKER);
+			buffer.put(5 + 2 * Constants.MPEGTS_PACKET_SIZE, Constants.TS_MARKER);
+			// Markers in payloads, at a different place in each packet
+			for (int i = 0; i < 20; i++) {
+				buffer.put(garbage + i * Constants.MPEGTS_PACKET_SIZE + 10 + 7 * i, Constants.TS_MARKER);
+			}
+
+			SyncScanner scanner = tsScanner();
+			assertEquals(garbage, scanner.scan(buffer, 0, buffer.limit(), false), order.toString());
+			assertEquals(garbage, scanner.getSkippedBytes());
+			for (int offset = garbage; offset < buffer.limit(); offset += Constants.MPEGTS_PACKET_SIZE) {
+				assertTrue(scanner.isInSync(buffer, offset, buffer.limit()));
+			}
+		}
+	}
+
+	/**
+	 * Sync is lost on garbage between packets and on a bad sync byte, and acquired again on the next packet.
+	 */
+	@Test
+	public void testResync() {
+		int garbage = 37;
+		for (ByteOrder order : ORDERS) {
+			ByteBuffer buffer = allocate(false, order, 20 * Constants.MPEGTS_PACKET_SIZE + garbage);
+			putPackets(buffer, 0, 10);
+			putPackets(buffer, 10 * Constants.MPEGTS_PACKET_SIZE + garbage, 10);
+			// Corrupt the sync byte of packet 15
+			buffer.put(15 * Constants.MPEGTS_PACKET_SIZE + garbage, (byte) 0);
+
+			SyncScanner scanner = tsScanner();
+			int packets = 0;
+			int offset = 0;
+			while (offset < buffer.limit()) {
+				if (scanner.isLocked() && scanner.isInSync(buffer, offset, buffer.limit())) {
+					packets++;
+					offset += Constants.MPEGTS_PACKET_SIZE;
+					continue;
+				}
+				scanner.lost();
+				int found = scanner.scan(buffer, offset, buffer.limit(), true);
+				if (found < 0) {
+					break;
+				}
+				offset = found;
+			}
+			assertEquals(19, packets, order.toString());
+			assertEquals(2, scanner.getLosses());
+			assertEquals(3, scanner.getLocks());
+			assertEquals(garbage + Constants.MPEGTS_PACKET_SIZE, scanner.getSkippedBytes());
+		}
+	}
+
+	/**
+	 * Lengths that are not a multiple of 8 are searched up to their last byte.
+	 */
+	@Test
+	public void testLengths() {
+		for (ByteOrder order : ORDERS) {
+			for (int length = 1; length <= 4 * Long.BYTES; length++) {
+				ByteBuffer buffer = allocate(false, order, length + Long.BYTES);
+
+				// No marker: everything is skipped
+				SyncScanner scanner = tsScanner();
+				assertEquals(-1 - length, scanner.scan(buffer, 0, length, false), order + ", length " + length);
+				assertEquals(length, scanner.getSkippedBytes());
+
+				// A marker in the last byte is kept, waiting for more data, and the one past limit is not seen
+				buffer.put(length - 1, Constants.TS_MARKER);
+				buffer.put(length, Constants.TS_MARKER);
+				scanner = tsScanner();
+				assertEquals(-1 - (length - 1), scanner.scan(buffer, 0, length, false), order + ", length " + length);
+				assertEquals(length - 1, scanner.getSkippedBytes());
+				assertFalse(scanner.isLocked());
+			}
+
+			// A single packet ending the data, after garbage of any length
+			for (int garbage = 0; garbage <= 2 * Long.BYTES; garbage++) {
+				ByteBuffer buffer = allocate(false, order, garbage + Constants.MPEGTS_PACKET_SIZE);
+				putPackets(buffer, garbage, 1);
+				SyncScanner scanner = tsScanner();
+				assertEquals(garbage, scanner.scan(buffer, 0, buffer.limit(), true), order + ", garbage " + garbage);
+			}
+		}
+	}
+
+	private static SyncScanner tsScanner() {
+		return SyncScanner.builder().setFormats(PacketFormat.TS).build();
+	}
+
+	/**
+	 * @return a buffer of the given length filled with bytes that are not sync bytes
+	 */
+	private static ByteBuffer allocate(boolean direct, ByteOrder order, int length) {
+		ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+		for (int i = 0; i < length; i++) {
+			buffer.put(i, (byte) 0xff);
+		}
+		return buffer.order(order);
+	}
+
+	private static void putPackets(ByteBuffer buffer, int offset, int count) {
+		for (int i = 0; i < count; i++) {
+			buffer.put(offset + i * Constants.MPEGTS_PACKET_SIZE, Constants.TS_MARKER);
+		}
+	}
+}
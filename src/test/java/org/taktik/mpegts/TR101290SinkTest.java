@@ -0,0 +1,166 @@
+package org.taktik.mpegts;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sinks.TR101290Sink;
+import org.taktik.mpegts.sinks.TR101290Sink.Check;
+import org.taktik.mpegts.sources.MTSSource;
+import org.taktik.mpegts.sources.MuxMTSSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TR101290SinkTest {
+	private static final long MUX_RATE = 4_000_000;
+	private static final long PACKET_NANOS = Constants.MPEGTS_PACKET_SIZE * 8 * 1_000_000_000L / MUX_RATE;
+
+	/**
+	 * A constant bitrate stream out of the mux has no error, but the PCRs of the sample file are 100ms apart.
+	 */
+	@Test
+	public void testClean() throws Exception {
+		ByteBuffer stream = stream();
+		List<TR101290Sink.Report> reports = Lists.newArrayList();
+		TR101290Sink.Report report = analyze(stream, reports);
+
+		assertEquals(stream.limit() / Constants.MPEGTS_PACKET_SIZE, report.getPacketCount());
+		for (Check check : new Check[] {Check.SYNC_LOSS, Check.SYNC_BYTE, Check.PAT, Check.CONTINUITY, Check.PID,
+				Check.TRANSPORT, Check.CRC, Check.PCR_ACCURACY, Check.CAT}) {
+			assertEquals(0, report.getCount(check), check.toString());
+		}
+		// Most PCRs of the sample file are 100ms apart
+		assertTrue(report.getCount(Check.PCR_REPETITION, 256) >= 250, report.toString());
+		// One report per second of stream, and the last one on close
+		long seconds = report.getPacketCount() * PACKET_NANOS / 1_000_000_000L;
+		assertTrue(Math.abs(reports.size() - 1 - seconds) <= 1, "reports " + reports.size());
+		assertTrue(reports.get(0).getPacketCount() < report.getPacketCount());
+	}
+
+	/**
+	 * Errors injected in the stream are counted on their PID.
+	 */
+	@Test
+	public void testErrors() throws Exception {
+		ByteBuffer stream = stream();
+		int packets = stream.limit() / Constants.MPEGTS_PACKET_SIZE;
+		int video = -1;
+		int dropped = -1;
+		for (int i = packets / 4; i < packets; i++) {
+			if (MTSPacketView.getPid(stream, i * Constants.MPEGTS_PACKET_SIZE) == 256) {
+				if (video < 0) {
+					video = i;
+				} else {
+					dropped = i;
+					break;
+				}
+			}
+		}
+		// A lost video packet
+		MTSPacketView.setPid(stream, dropped * Constants.MPEGTS_PACKET_SIZE, NullPackets.PID);
+		// A corrupted sync byte, then a sync loss
+		stream.put(10 * Constants.MPEGTS_PACKET_SIZE, (byte) 0);
+		for (int i = 100; i < 102; i++) {
+			stream.put(i * Constants.MPEGTS_PACKET_SIZE, (byte) 0);
+		}
+		// A transport error on a video packet
+		stream.put(video * Constants.MPEGTS_PACKET_SIZE + 1, (byte) (stream.get(video * Constants.MPEGTS_PACKET_SIZE + 1) | 0x80));
+		// No PAT for 2 seconds, from the middle of the stream
+		int pats = 0;
+		int patsStart = packets / 2;
+		int patsEnd = patsStart + (int) (2_000_000_000L / PACKET_NANOS);
+		boolean corrupted = false;
+		for (int i = patsStart; i < packets; i++) {
+			int offset = i * Constants.MPEGTS_PACKET_SIZE;
+			if (MTSPacketView.getPid(stream, offset) == 0) {
+				if (i < patsEnd) {
+					MTSPacketView.setPid(stream, offset, NullPackets.PID);
+					pats++;
+				} else if (!corrupted) {
+					// The first PAT after the gap is corrupted, the next one is fine
+					stream.put(offset + 10, (byte) ~stream.get(offset + 10));
+					corrupted = true;
+				}
+			}
+		}
+		assertTrue(pats > 10);
+
+		TR101290Sink.Report report = analyze(stream, Lists.newArrayList());
+		assertEquals(3, report.getCount(Check.SYNC_BYTE), report.toString());
+		assertEquals(1, report.getCount(Check.SYNC_LOSS));
+		assertEquals(1, report.getCount(Check.TRANSPORT, 256));
+		// The lost packet, and the packet with a transport error
+		assertEquals(2, report.getCount(Check.CONTINUITY, 256));
+		assertEquals(1, report.getCount(Check.PAT, 0), report.toString());
+		assertEquals(1, report.getCount(Check.CRC, 0));
+		assertEquals(report.getCount(Check.SYNC_BYTE) + report.getCount(Check.SYNC_LOSS) + report.getCount(Check.PAT)
+				+ report.getCount(Check.CONTINUITY) + report.getCount(Check.PMT) + report.getCount(Check.PID),
+				report.getPriorityCount(1));
+	}
+
+	/**
+	 * A PAT and a PMT without section syntax are counted as table errors, and the analysis goes on.
+	 */
+	@Test
+	public void testShortSections() throws Exception {
+		ByteBuffer stream = stream();
+		int packets = stream.limit() / Constants.MPEGTS_PACKET_SIZE;
+		int pmtPid = -1;
+		boolean pat = false;
+		for (int i = packets / 2; i < packets && (!pat || pmtPid < 0); i++) {
+			int offset = i * Constants.MPEGTS_PACKET_SIZE;
+			int pid = MTSPacketView.getPid(stream, offset);
+			if (!MTSPacketView.isPayloadUnitStartIndicator(stream, offset)) {
+				continue;
+			}
+			// Clear the section_syntax_indicator of the first PAT and PMT, after a pointer field of 0
+			if (pid == 0 && !pat) {
+				pat = true;
+			} else if (pid != 0 && pmtPid < 0 && stream.get(offset + 5) == 0x02) {
+				pmtPid = pid;
+			} else {
+				continue;
+			}
+			stream.put(offset + 6, (byte) (stream.get(offset + 6) & 0x7f));
+		}
+		assertTrue(pat && pmtPid > 0);
+
+		TR101290Sink.Report report = analyze(stream, Lists.newArrayList());
+		assertEquals(packets, report.getPacketCount());
+		assertEquals(1, report.getCount(Check.PAT, 0), report.toString());
+		assertEquals(1, report.getCount(Check.PMT, pmtPid), report.toString());
+	}
+
+	private ByteBuffer stream() throws Exception {
+		MTSSource source = MuxMTSSource.builder()
+				.addSource(TestStreams.sampleSource())
+				.setMuxRate(MUX_RATE)
+				.build();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer packets = ByteBuffer.allocate(Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE);
+		while (source.nextPackets(packets.clear()) > 0) {
+			out.write(packets.array(), 0, packets.position());
+		}
+		source.close();
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	private TR101290Sink.Report analyze(ByteBuffer stream, List<TR101290Sink.Report> reports) throws Exception {
+		long[] packet = {0};
+		TR101290Sink sink = TR101290Sink.builder()
+				.setClock(() -> packet[0]++ * PACKET_NANOS)
+				.setReportListener(reports::add)
+				.build();
+		while (stream.hasRemaining()) {
+			int length = Math.min(stream.remaining(), Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE);
+			sink.send(stream.slice(stream.position(), length));
+			stream.position(stream.position() + length);
+		}
+		sink.close();
+		assertEquals(sink.getReport(), reports.get(reports.size() - 1));
+		return sink.getReport();
+	}
+}
@@ -0,0 +1,69 @@
+package org.taktik.mpegts;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.taktik.mpegts.sources.MTSSource;
+import org.taktik.mpegts.sources.MTSSources;
+
+/**
+ * The sample stream the tests run on: 30s of a single program, 16216 packets with a PCR every 100ms.
+ */
+final class TestStreams {
+	private static final String SAMPLE = "/file_example_MP4_480_1_5MG.ts";
+
+	private TestStreams() {
+	}
+
+	static File sampleFile() throws Exception {
+		return new File(Objects.requireNonNull(TestStreams.class.getResource(SAMPLE)).toURI());
+	}
+
+	static MTSSource sampleSource() throws Exception {
+		return MTSSources.from(sampleFile());
+	}
+
+	static byte[] sampleBytes() throws Exception {
+		return Files.readAllBytes(sampleFile().toPath());
+	}
+
+	/**
+	 * @return a buffer holding the first packets of the sample, between its position and limit
+	 */
+	static ByteBuffer samplePackets(int count) throws Exception {
+		return ByteBuffer.wrap(Arrays.copyOf(sampleBytes(), count * Constants.MPEGTS_PACKET_SIZE));
+	}
+
+	/**
+	 * @return a source giving the packets of the buffer, then nothing for stallMillis before it ends
+	 */
+	static MTSSource stalledSource(ByteBuffer packets, long stallMillis) {
+		return new MTSSource() {
+			@Override
+			public MTSPacket nextPacket() {
+				return null;
+			}
+
+			@Override
+			public int nextPackets(ByteBuffer buffer) throws Exception {
+				if (!packets.hasRemaining()) {
+					Thread.sleep(stallMillis);
+					return 0;
+				}
+				int length = Math.min(buffer.remaining(), packets.remaining());
+				length -= length % Constants.MPEGTS_PACKET_SIZE;
+				buffer.put(buffer.position(), packets, packets.position(), length);
+				buffer.position(buffer.position() + length);
+				packets.position(packets.position() + length);
+				return length / Constants.MPEGTS_PACKET_SIZE;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+}
@@ -0,0 +1,205 @@
+package org.taktik.mpegts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.taktik.mpegts.sinks.MTSSink;
+import org.taktik.mpegts.sinks.UDPTransport;
+import org.taktik.mpegts.sources.MTSSource;
+import org.taktik.mpegts.sources.MTSSources;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UDPTransportTest {
+
+	private static final int DATAGRAM_SIZE = Constants.PACKETS_PER_BLOCK * Constants.MPEGTS_PACKET_SIZE;
+	private static final long STALL_MILLIS = 2000;
+	// The sample file has a packet every 1.87ms: groups of 30 packets leave every 56ms
+	private static final int GROUP_SIZE = 30;
+	private static final long MAX_HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(28);
+
+	/**
+	 * Runs of any length and single packets are sent in full datagrams, only the last one is short.
+	 */
+	@Test
+	public void testFullDatagrams() throws Exception {
+		ByteBuffer packets = TestStreams.samplePackets(100);
+
+		try (DatagramChannel receiver = DatagramChannel.open(StandardProtocolFamily.INET)) {
+			receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+			int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+
+			try (UDPTransport transport = UDPTransport.builder()
+					.setAddress("127.0.0.1")
+					.setPort(port)
+					.build()) {
+				// Runs of 1 to 15 packets, as groups cut at PCRs, with single packets between them
+				MTSPacketView view = new MTSPacketView();
+				int run = 1;
+				while (packets.hasRemaining()) {
+					int length = Math.min(packets.remaining(), run * Constants.MPEGTS_PACKET_SIZE);
+					transport.send(packets.slice(packets.position(), length));
+					packets.position(packets.position() + length);
+					if (run % 4 == 0 && packets.hasRemaining()) {
+						transport.send(view.wrap(packets, packets.position()));
+						packets.position(packets.position() + Constants.MPEGTS_PACKET_SIZE);
+					}
+					run = run % 15 + 1;
+				}
+			}
+
+			List<byte[]> datagrams = receive(receiver, (100 + Constants.PACKETS_PER_BLOCK - 1) / Constants.PACKETS_PER_BLOCK);
+			ByteArrayOutputStream received = new ByteArrayOutputStream();
+			for (int i = 0; i < datagrams.size(); i++) {
+				int expected = i < datagrams.size() - 1 ? DATAGRAM_SIZE : (100 % Constants.PACKETS_PER_BLOCK) * Constants.MPEGTS_PACKET_SIZE;
+				assertEquals(expected, datagrams.get(i).length, "datagram " + i);
+				received.write(datagrams.get(i));
+			}
+			assertArrayEquals(packets.array(), received.toByteArray());
+		}
+	}
+
+	/**
+	 * The packets left over when the source stalls are sent at once, not when it resumes.
+	 */
+	@Test
+	public void testStalledSource() throws Exception {
+		ByteBuffer packets = TestStreams.samplePackets(10);
+		byte[] expected = Arrays.copyOf(packets.array(), packets.limit());
+
+		// Two slots of packets, then nothing for a while
+		MTSSource source = TestStreams.stalledSource(packets, STALL_MILLIS);
+
+		try (DatagramChannel receiver = DatagramChannel.open(StandardProtocolFamily.INET)) {
+			receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+			int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+
+			try (UDPTransport transport = UDPTransport.builder()
+					.setAddress("127.0.0.1")
+					.setPort(port)
+					.build()) {
+				Streamer streamer = Streamer.builder()
+						.setSource(source)
+						.setSink(transport)
+						.setBufferSize(2 * Constants.PACKETS_PER_BLOCK)
+						.build();
+				streamer.stream();
+				List<byte[]> datagrams = receive(receiver, 2);
+				long received = System.nanoTime();
+				streamer.join();
+				assertTrue(System.nanoTime() - received > TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS / 2),
+						"received during the stall");
+
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				for (byte[] datagram : datagrams) {
+					content.write(datagram);
+				}
+				assertArrayEquals(expected, content.toByteArray());
+			}
+		}
+	}
+
+	/**
+	 * The packets left over at the end of a group are sent before the next group when it leaves later than one
+	 * datagram after it.
+	 */
+	@Test
+	public void testGroupTails() throws Exception {
+		byte[] packets = Arrays.copyOf(TestStreams.sampleBytes(), 1000 * Constants.MPEGTS_PACKET_SIZE);
+		HoldingSink sink = new HoldingSink();
+		Streamer streamer = Streamer.builder()
+				.setSource(MTSSources.from(new ByteArrayInputStream(packets)))
+				.setSink(sink)
+				.setPacer(PcrPacer.builder().setGroupSize(GROUP_SIZE).build())
+				.build();
+		streamer.stream();
+		streamer.join();
+		assertEquals(1000, sink.packets);
+		assertEquals(0, sink.held);
+		assertTrue(sink.holds > 0);
+		assertTrue(sink.maxHoldNanos < MAX_HOLD_NANOS, "held for " + sink.maxHoldNanos + "ns");
+	}
+
+	private static List<byte[]> receive(DatagramChannel channel, int count) throws Exception {
+		List<byte[]> datagrams = new ArrayList<>();
+		ByteBuffer buffer = ByteBuffer.allocate(2048);
+		while (datagrams.size() < count) {
+			buffer.clear();
+			channel.receive(buffer);
+			buffer.flip();
+			byte[] datagram = new byte[buffer.remaining()];
+			buffer.get(datagram);
+			datagrams.add(datagram);
+		}
+		return datagrams;
+	}
+
+	/**
+	 * Gathers packets in datagrams like {@link UDPTransport}, and measures how long the packets left over wait.
+	 */
+	private static class HoldingSink implements MTSSink {
+		private long packets;
+		private int held;
+		private long heldSince;
+		private long holds;
+		private long maxHoldNanos;
+
+		@Override
+		public void send(MTSPacket packet) {
+			add(1);
+		}
+
+		@Override
+		public void send(MTSPacketView packet) {
+			add(1);
+		}
+
+		@Override
+		public void send(ByteBuffer packets) {
+			add(packets.remaining() / Constants.MPEGTS_PACKET_SIZE);
+			packets.position(packets.limit());
+		}
+
+		private void add(int count) {
+			long now = System.nanoTime();
+			packets += count;
+			boolean sent = held + count >= Constants.PACKETS_PER_BLOCK;
+			if (held > 0 && sent) {
+				release(now);
+			}
+			int previous = held;
+			held = (held + count) % Constants.PACKETS_PER_BLOCK;
+			if (held > 0 && (previous == 0 || sent)) {
+				heldSince = now;
+			}
+		}
+
+		@Override
+		public void flush() {
+			if (held > 0) {
+				release(System.nanoTime());
+				held = 0;
+			}
+		}
+
+		private void release(long now) {
+			holds++;
+			maxHoldNanos = Math.max(maxHoldNanos, now - heldSince);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}